@@ -39,10 +39,13 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.LineNumberReader;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -51,19 +54,31 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.RDKit.RDKFuncs;
-import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.TopDocsCollector;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.NIOFSDirectory;
+import org.rdkit.lucene.AnalyzerFactory;
+import org.rdkit.lucene.BulkBuildIndexWriterConfigFactory;
 import org.rdkit.lucene.ChemicalIndex;
+import org.rdkit.lucene.DefaultIndexWriterConfigFactory;
 import org.rdkit.lucene.IndexListener;
+import org.rdkit.lucene.IndexWriterConfigFactory;
+import org.rdkit.lucene.IngestionStatistics;
+import org.rdkit.lucene.ReadMostlyIndexWriterConfigFactory;
+import org.rdkit.lucene.ScreenMode;
+import org.rdkit.lucene.SearchCursor;
+import org.rdkit.lucene.SearchPage;
 import org.rdkit.lucene.StandardAnalyzerFactory;
+import org.rdkit.lucene.TrickleIndexWriterConfigFactory;
 import org.rdkit.lucene.fingerprint.DefaultFingerprintFactory;
 import org.rdkit.lucene.fingerprint.DefaultFingerprintSettings;
 import org.rdkit.lucene.fingerprint.FingerprintType;
+import org.rdkit.lucene.store.DirectoryType;
+import org.rdkit.lucene.util.IndexUtils;
 
 /**
  * A Lucene benchmark based on a ChemicalIndex and a set of SMILES
@@ -94,6 +109,22 @@ public class LuceneBenchmark {
 		MOL, FP, SS
 	}
 
+	public enum MoleculeSource {
+		SMILES, BINARY
+	}
+
+	public enum IndexProfile {
+		DEFAULT, BULK_BUILD, TRICKLE, READ_MOSTLY
+	}
+
+	public enum WarmMode {
+		COLD, WARM
+	}
+
+	public enum ResultMode {
+		PAGES, COUNT
+	}
+
 	//
 	// Inner Classes
 	//
@@ -217,6 +248,9 @@ public class LuceneBenchmark {
 	/** The logger instance. */
 	private static final Logger LOGGER = Logger.getLogger(LuceneBenchmark.class.getName());
 
+	/** The number of hits fetched per page. */
+	private static final int PAGE_SIZE = 1000;
+
 	//
 	// Members
 	//
@@ -239,10 +273,19 @@ public class LuceneBenchmark {
 
 	private final int m_iThreadCount;
 
+	private final ResultMode m_resultMode;
+
 	private boolean m_bHeaderWritten;
 
 	private AtomicInteger m_aiSearchNumber;
 
+	/** Bytes allocated by the threads running searches or -1, if not measurable. */
+	private final AtomicLong m_alAllocatedBytes;
+
+	private long m_lGarbageCollections;
+
+	private long m_lGarbageCollectionTime;
+
 	//
 	// Constructor
 	//
@@ -258,6 +301,18 @@ public class LuceneBenchmark {
 			final String strInputFileWithSmiles, final int iStartLine, final int iEndLine,
 			final String strOutputFileCsv, final int iSearchCount,
 			final int iThreadCount, final SearchType... searchTypes) throws IOException {
+		this(chemIndex, strInputFileWithSmiles, iStartLine, iEndLine, strOutputFileCsv, iSearchCount,
+				iThreadCount, ResultMode.PAGES, searchTypes);
+	}
+
+	/**
+	 * A Lucene benchmark like above, which either collects the top hits of every
+	 * search or only counts the hits.
+	 */
+	public LuceneBenchmark(final ChemicalIndex chemIndex,
+			final String strInputFileWithSmiles, final int iStartLine, final int iEndLine,
+			final String strOutputFileCsv, final int iSearchCount,
+			final int iThreadCount, final ResultMode resultMode, final SearchType... searchTypes) throws IOException {
 		m_chemIndex = chemIndex;
 		m_listAvailableSearchItems = new ArrayList<SearchBenchmarkItem>();
 		m_listInProgressItems = new ArrayList<SearchBenchmarkItem>();
@@ -267,7 +322,9 @@ public class LuceneBenchmark {
 		m_listSearchTypes = Arrays.asList(searchTypes);
 		m_iSearchCount = iSearchCount;
 		m_iThreadCount = iThreadCount;
+		m_resultMode = resultMode;
 		m_bHeaderWritten = false;
+		m_alAllocatedBytes = new AtomicLong(getAllocatedBytes() < 0 ? -1 : 0);
 		final FileReader inFile = new FileReader(strInputFileWithSmiles);
 		final LineNumberReader lineReader = new LineNumberReader(inFile);
 		String strLine;
@@ -292,10 +349,68 @@ public class LuceneBenchmark {
 		return m_aiSearchNumber.get();
 	}
 
+	/**
+	 * Returns the average time of all finished searches of the specified type.
+	 * 
+	 * @param searchType Search type. Must not be null.
+	 * 
+	 * @return Average time in milliseconds or -1, if there were no searches of that type.
+	 */
+	public int getAverageTimeInMs(final SearchType searchType) {
+		long lSum = 0;
+		int iCount = 0;
+
+		synchronized (m_listAvailableSearchItems) {
+			for (final SearchBenchmarkItem item : m_listFinishedSearchItems) {
+				if (item.getSearchType() == searchType) {
+					for (final Integer iTime : item.getTimeInMs()) {
+						lSum += iTime;
+						iCount++;
+					}
+				}
+			}
+		}
+
+		return (int)(iCount > 0 ? (lSum / iCount) : -1);
+	}
+
+	/**
+	 * Returns the average number of bytes that the Java heap had to provide per search.
+	 * Only allocations of the thread running a search are measured, not the ones
+	 * of search threads of the index (e.g. parallel substructure verification).
+	 * 
+	 * @return Allocated bytes per search or -1, if the JVM does not measure
+	 * 		thread allocations.
+	 */
+	public long getAllocatedBytesPerSearch() {
+		final long lAllocatedBytes = m_alAllocatedBytes.get();
+		final int iSearches = getOverAllSearches();
+		return (lAllocatedBytes < 0 ? -1 : lAllocatedBytes / Math.max(1, iSearches));
+	}
+
+	/**
+	 * Returns the number of garbage collections during the last run.
+	 * 
+	 * @return Number of garbage collections of all collectors.
+	 */
+	public long getGarbageCollections() {
+		return m_lGarbageCollections;
+	}
+
+	/**
+	 * Returns the time spent in garbage collections during the last run.
+	 * 
+	 * @return Garbage collection time of all collectors in milliseconds.
+	 */
+	public long getGarbageCollectionTimeInMs() {
+		return m_lGarbageCollectionTime;
+	}
+
 
 	public int run() {
 		m_aiSearchNumber = new AtomicInteger();
 		final ExecutorService exec = Executors.newFixedThreadPool(m_iThreadCount);
+		final long[] arrGcStart = getGarbageCollectionStatistics();
 		final long lStart = System.currentTimeMillis();
 
 		for (;;) {
@@ -341,6 +456,9 @@ public class LuceneBenchmark {
 		}
 
 		final long lEnd = System.currentTimeMillis();
+		final long[] arrGcEnd = getGarbageCollectionStatistics();
+		m_lGarbageCollections = arrGcEnd[0] - arrGcStart[0];
+		m_lGarbageCollectionTime = arrGcEnd[1] - arrGcStart[1];
 
 		return (int)(lEnd - lStart);
 	}
@@ -350,35 +468,89 @@ public class LuceneBenchmark {
 	//
 
 	protected void runTest(final SearchBenchmarkItem item, final int iSearchNumber) {
+		final long lAllocatedStart = getAllocatedBytes();
+
 		try {
-			TopDocsCollector<ScoreDoc> collector = null;
-			item.searchStarted(iSearchNumber);
+			if (m_resultMode == ResultMode.COUNT) {
+				runCount(item, iSearchNumber);
+			}
+			else {
+				runSearch(item, iSearchNumber);
+			}
+		}
+		catch (final Exception exc) {
+			item.searchFailed();
+		}
+
+		if (lAllocatedStart >= 0 && m_alAllocatedBytes.get() >= 0) {
+			m_alAllocatedBytes.addAndGet(getAllocatedBytes() - lAllocatedStart);
+		}
+
+		putBackSearchItem(item);
+
+		LOGGER.info(item.toString());
+	}
+
+	/**
+	 * Runs a search, which fetches the hits page by page with search cursors.
+	 */
+	protected void runSearch(final SearchBenchmarkItem item, final int iSearchNumber) throws Exception {
+		final int iMaxHits = (item.getSearchType() == SearchType.SS ? 50000 : 1000000);
+		SearchPage page = null;
+		SearchCursor cursor = null;
+		int iFetchedHits = 0;
+		item.searchStarted(iSearchNumber);
+		do {
 			switch (item.getSearchType()) {
 			case MOL:
-				collector = m_chemIndex.searchExactMolecules(item.getSmiles(), 1000000);
+				page = m_chemIndex.searchExactMolecules(item.getSmiles(), cursor, PAGE_SIZE);
 				break;
 			case FP:
-				collector = m_chemIndex.searchMoleculesByFingerprintMatch(item.getSmiles(), 1000000);
+				page = m_chemIndex.searchMoleculesByFingerprintMatch(item.getSmiles(), cursor, PAGE_SIZE);
 				break;
 			case SS:
-				collector = m_chemIndex.searchMoleculesWithSubstructure(item.getSmiles(), 50000);
+				page = m_chemIndex.searchMoleculesWithSubstructure(item.getSmiles(), cursor, PAGE_SIZE);
 				break;
 			}
-
-			if (collector == null) {
-				item.searchFailed();
-			}
-			else {
-				item.searchFinished(collector.getTotalHits());
+			if (page != null) {
+				iFetchedHits += page.size();
+				cursor = page.getCursor();
 			}
 		}
-		catch (final Exception exc) {
+		while (page != null && cursor != null && iFetchedHits < iMaxHits);
+
+		if (page == null) {
 			item.searchFailed();
 		}
+		else {
+			item.searchFinished(page.getTotalHits());
+		}
+	}
 
-		putBackSearchItem(item);
+	/**
+	 * Runs a search, which only counts the hits. Substructure searches count all hits.
+	 */
+	protected void runCount(final SearchBenchmarkItem item, final int iSearchNumber) throws Exception {
+		int iHits = -1;
+		item.searchStarted(iSearchNumber);
+		switch (item.getSearchType()) {
+		case MOL:
+			iHits = m_chemIndex.countExactMolecules(item.getSmiles());
+			break;
+		case FP:
+			iHits = m_chemIndex.countMoleculesByFingerprintMatch(item.getSmiles());
+			break;
+		case SS:
+			iHits = m_chemIndex.countMoleculesWithSubstructure(item.getSmiles());
+			break;
+		}
 
-		LOGGER.info(item.toString());
+		if (iHits < 0) {
+			item.searchFailed();
+		}
+		else {
+			item.searchFinished(iHits);
+		}
 	}
 
 	protected boolean areAllItemsProcessed() {
@@ -532,16 +704,20 @@ public class LuceneBenchmark {
 	}
 
 	private static String insertNumberInFilename(final String strFilename, final int iNumber) {
+		return insertTextInFilename(strFilename, "" + iNumber);
+	}
+
+	private static String insertTextInFilename(final String strFilename, final String strText) {
 		String strRet = null;
 
 		if (strFilename != null) {
 			final int indexExt = strFilename.lastIndexOf(".");
 			if (indexExt > -1) {
-				strRet = strFilename.substring(0, indexExt) + "_" + iNumber +
+				strRet = strFilename.substring(0, indexExt) + "_" + strText +
 						strFilename.substring(indexExt);
 			}
 			else {
-				strRet = strFilename + "_" + iNumber;
+				strRet = strFilename + "_" + strText;
 			}
 		}
 
@@ -550,9 +726,17 @@ public class LuceneBenchmark {
 
 	public static void printInfoAndExit() {
 		System.out.println("LuceneBenchmark usage:\n" +
-				"    LuceneBenchmark -index <indexDirectory> <sdfFile> <sdfFieldForPrimaryKey> [<listOfPrimaryKeysToIgnore>...]\n" +
+				"    LuceneBenchmark -index [-profiles <indexProfiles>] <indexDirectory> <sdfFile> <sdfFieldForPrimaryKey> [<listOfPrimaryKeysToIgnore>...]\n" +
 				" or LuceneBenchmark -benchmark <indexDirecory> <benchmarkIniFile> [<benchmarkIniFile>...]\n" +
 				"\n" +
+				"Index profiles: Comma-separated index writer configurations to compare. Optional. Default is DEFAULT\n" +
+				"             DEFAULT = Lucene defaults, BULK_BUILD = Large RAM buffer and wide merges for building,\n" +
+				"             TRICKLE = Small RAM buffer and background merges for continuous ingestion,\n" +
+				"             READ_MOSTLY = Few segments and eager reclaiming of deletions for searching\n" +
+				"             With several profiles every profile builds its own index in a sub directory of\n" +
+				"             the index directory named like the profile. Indexing speed (docs/sec) and segment\n" +
+				"             counts are reported per profile.\n" +
+				"\n" +
 				"Config file must be in the properties format of Java. The following keys are known:\n" +
 				"querySmilesFile: The input query file with SMILES. Mandatory.\n" +
 				"firstRow: The first row to be used for benchmarking. Optional. Default is -, which means beginning of file.\n" +
@@ -561,17 +745,67 @@ public class LuceneBenchmark {
 				"             FP = Fingerprint, SS = Substructure, MOL = Exact Molecule Search\n" +
 				"searchesPerType: Number of searches to be performed per row and per search type. Optional. Default is 1.\n" +
 				"threadCount: Number of concurrent threads to be used. One thread = one query. Optional. Default is 1.\n" +
+				"screenModes: Comma-separated fingerprint screen modes to compare. Optional. Default is TERM_QUERY\n" +
+				"             TERM_QUERY = Posting list intersection, FINGERPRINT_COLUMN = Scan of packed fingerprints,\n" +
+				"             LEAPFROG = Posting list intersection from rarest to most common bit\n" +
+				"             Every screen mode runs the whole benchmark once.\n" +
+				"moleculeSources: Comma-separated sources of candidate molecules for substructure verification\n" +
+				"             to compare. Optional. Default is SMILES\n" +
+				"             SMILES = Parse stored SMILES, BINARY = Rebuild stored binary molecules (pickles)\n" +
+				"             Every molecule source runs the whole benchmark once per screen mode.\n" +
+				"directoryTypes: Comma-separated ways to access the index files to compare. Optional. Default is NIOFS\n" +
+				"             NIOFS = Positional NIO reads, MMAP = Memory mapped files,\n" +
+				"             RAM = Copy of the index in the Java heap (small indexes only)\n" +
+				"             Every directory type runs the whole benchmark once per screen mode and molecule source.\n" +
+				"warmModes: Comma-separated states of the index to compare. Optional. Default is WARM\n" +
+				"             COLD = Searches right after opening the index, WARM = Searches after reading all index\n" +
+				"             files once (so they are in the OS page cache) and running some warm-up queries.\n" +
+				"             COLD runs before WARM on the same index. Drop the OS page cache before (e.g.\n" +
+				"             sync; echo 3 > /proc/sys/vm/drop_caches on Linux) to measure a really cold index.\n" +
+				"resultModes: Comma-separated ways to deliver hits to compare. Optional. Default is PAGES\n" +
+				"             PAGES = Fetch the hits in pages of 1000 with search cursors (up to 1000000 for FP\n" +
+				"             and MOL, 50000 for SS),\n" +
+				"             COUNT = Count all hits without collecting them.\n" +
+				"             Every result mode runs the whole benchmark once per warm mode. Bytes allocated\n" +
+				"             per search by the searching thread and garbage collections are reported.\n" +
+				"resultCacheSize: Budget of the search result cache in bytes. Optional. Default is 0, which disables\n" +
+				"             the cache, so repeated searches are measured instead of cache lookups.\n" +
+				"queryCacheSize: Maximum number of prepared queries (canonical SMILES, query fingerprint and molecule)\n" +
+				"             to be cached. Optional. Default is 0, which disables the cache.\n" +
 				"resultCsvFile: The output result file in CSV format. Optional. Default is\n" +
 				"             %querySmilesFile% (%threadCount% threads, %searches% searches, %searchTypes% in %time% min).csv\n" +
 				"             The following placeholders are allowed: \n" +
 				"                 %querySmilesFile%, %firstRow%, %lastRow%, \n" +
-				"                 %searchTypes%, %searchesPerType%, %threadCount%, \n" +
+				"                 %searchTypes%, %searchesPerType%, %threadCount%, %screenMode%, %moleculeSource%, \n" +
+				"                 %directoryType%, %warmMode%, %resultMode%, \n" +
 				"                 %time% (which is the overall search time, \n" +
 				"                 %searchCount% (which is the overall search count");
 		System.exit(1);
 	}
 
 	public static void index(final String strIndexDirectory, final String strSdfFile, final String strFieldPK, final String... arrPKsToIgnore) throws IOException {
+		index(new IndexProfile[] { IndexProfile.DEFAULT }, strIndexDirectory, strSdfFile, strFieldPK, arrPKsToIgnore);
+	}
+
+	public static void index(final IndexProfile[] arrProfiles, final String strIndexDirectory, final String strSdfFile,
+			final String strFieldPK, final String... arrPKsToIgnore) throws IOException {
+		final List<String> listResults = new ArrayList<String>();
+
+		for (final IndexProfile profile : arrProfiles) {
+			final String strProfileDirectory = (arrProfiles.length == 1 ? strIndexDirectory :
+				new File(strIndexDirectory, profile.name()).getAbsolutePath());
+			System.out.println("Indexing with profile " + profile + " into " + strProfileDirectory);
+			listResults.add(profile + ": " + index(profile, strProfileDirectory, strSdfFile, strFieldPK, arrPKsToIgnore));
+		}
+
+		System.out.println("Index profiles:");
+		for (final String strResult : listResults) {
+			System.out.println(strResult);
+		}
+	}
+
+	public static String index(final IndexProfile profile, final String strIndexDirectory, final String strSdfFile,
+			final String strFieldPK, final String... arrPKsToIgnore) throws IOException {
 		ChemicalIndex.prepareIndexDirectory(new File(strIndexDirectory), true);
 		HashSet<String> setPKsToIgnore = null;
 
@@ -582,8 +816,9 @@ public class LuceneBenchmark {
 			}
 		}
 
+		final StandardAnalyzerFactory analyzerFactory = new StandardAnalyzerFactory();
 		final ChemicalIndex chemIndex = new ChemicalIndex(new NIOFSDirectory(new File(strIndexDirectory)),
-				new StandardAnalyzerFactory(),
+				analyzerFactory,
 
 				// Define here how fingerprints shall be used
 				new DefaultFingerprintFactory(
@@ -598,7 +833,10 @@ public class LuceneBenchmark {
 						.setAvalonQueryFlag(1)
 						.setAvalonBitFlags(RDKFuncs.getAvalonSSSBits())),
 
-						null);
+						createIndexWriterConfigFactory(profile, analyzerFactory));
+
+		// Store binary molecules as well, so SMILES and binary molecule sources can be compared
+		chemIndex.setStoreBinaryMolecules(true);
 
 		chemIndex.addIndexListener(new IndexListener() {
 			private final AtomicInteger m_iAddedMoleculeCount = new AtomicInteger(0);
@@ -618,8 +856,48 @@ public class LuceneBenchmark {
 			}
 		});
 
-		chemIndex.addSDFFileToIndex(new File(strSdfFile), strFieldPK, null, setPKsToIgnore);
+		// A new index does not contain any of the primary keys yet
+		final boolean bBulkLoad = (chemIndex.getIndexedMoleculeCount() <= 0);
+		if (bBulkLoad) {
+			chemIndex.startBulkLoad();
+		}
+
+		final long lStart = System.currentTimeMillis();
+		final IngestionStatistics stats = chemIndex.addSDFFileToIndex(new File(strSdfFile), strFieldPK, null,
+				setPKsToIgnore, Runtime.getRuntime().availableProcessors());
+		final int iSegmentsIngested = chemIndex.getIndexedSegmentCount();
+
+		if (bBulkLoad) {
+			chemIndex.finishBulkLoad(0);
+		}
+		final long lTime = System.currentTimeMillis() - lStart;
+		final int iSegments = chemIndex.getIndexedSegmentCount();
+		final int iMolecules = chemIndex.getIndexedMoleculeCount();
 		chemIndex.shutdown();
+
+		final String strResult = String.format("%d molecules added in %.1f s (%.1f docs/sec, %.1f docs/sec " +
+				"without commit), %d segments after adding, %d segments after commit, %d molecules in index",
+				stats.getAddedCount(), lTime / 1000.0d, stats.getAddedCount() * 1000.0d / Math.max(1, lTime),
+				stats.getThroughput(), iSegmentsIngested, iSegments, iMolecules);
+		System.out.println(stats);
+		System.out.println(strResult);
+
+		return strResult;
+	}
+
+	public static IndexWriterConfigFactory createIndexWriterConfigFactory(final IndexProfile profile,
+			final AnalyzerFactory analyzerFactory) {
+		switch (profile) {
+		case BULK_BUILD:
+			return new BulkBuildIndexWriterConfigFactory(analyzerFactory);
+		case TRICKLE:
+			return new TrickleIndexWriterConfigFactory(analyzerFactory);
+		case READ_MOSTLY:
+			return new ReadMostlyIndexWriterConfigFactory(analyzerFactory);
+		case DEFAULT:
+		default:
+			return new DefaultIndexWriterConfigFactory(analyzerFactory);
+		}
 	}
 
 	public static void benchmark(final String strIndexDirectory, final String... arrConfigFiles) throws IOException {
@@ -636,81 +914,227 @@ public class LuceneBenchmark {
 		// Run the benchmarks one after the other
 		// Setup parameters
 		for (int i = 0; i < arrConfigFiles.length; i++) {
-			ChemicalIndex.prepareIndexDirectory(new File(strIndexDirectory), true);
-			final ChemicalIndex chemIndex = new ChemicalIndex(new NIOFSDirectory(new File(strIndexDirectory)),
-					new StandardAnalyzerFactory(),
-					new DefaultFingerprintFactory(new DefaultFingerprintSettings(FingerprintType.avalon).setNumBits(512)),
-					null);
-
-			// Some warm-up queries to initialize caches (does not count for benchmark)
-			System.out.println("Warming up system ...");
-			final String[] arrWarmupSmiles = new String[] {
-					"[H]CCCN1C=C2C(=C(c3occc3)C(=O)C([H])(C)C2=O)C=C1CCCC",
-					"CS(=O)C",
-					"C1CC2[C@@H]1C[NH2+]2",
-					"[H]c1ccc(OCC)cc1",
-					"[H]CCCC([H])C(=O)[O-]"
-			};
-			for (final String strSmiles : arrWarmupSmiles) {
-				final TopDocsCollector<ScoreDoc> collector =
-						chemIndex.searchMoleculesByFingerprintMatch(strSmiles, 1000000);
-				try {
-					chemIndex.getPrimaryKeysForSearchHits(collector);
-				}
-				catch (final Exception exc) {
-					LOGGER.log(Level.SEVERE, "Unable to deliver search results.", exc);
-				}
+			final List<ScreenMode> listScreenModes = new ArrayList<ScreenMode>();
+			for (final String strScreenMode : arrPropsBenchmarking[i].getProperty("screenModes").split(",")) {
+				listScreenModes.add(ScreenMode.valueOf(strScreenMode.trim()));
+			}
+			final List<MoleculeSource> listMoleculeSources = new ArrayList<MoleculeSource>();
+			for (final String strSource : arrPropsBenchmarking[i].getProperty("moleculeSources").split(",")) {
+				listMoleculeSources.add(MoleculeSource.valueOf(strSource.trim()));
 			}
-			System.out.println("Warm up of system is done. Starting benchmarking ...");
 
-			final String strInputFileWithSmiles = new File(arrPropsBenchmarking[i].getProperty("querySmilesFile").toString()).getAbsolutePath();
-			final int iStartLine = Integer.parseInt(arrPropsBenchmarking[i].getProperty("firstRow").toString());
-			final int iEndLine = Integer.parseInt(arrPropsBenchmarking[i].getProperty("lastRow").toString());
+			final List<DirectoryType> listDirectoryTypes = new ArrayList<DirectoryType>();
+			for (final String strType : arrPropsBenchmarking[i].getProperty("directoryTypes").split(",")) {
+				listDirectoryTypes.add(DirectoryType.valueOf(strType.trim()));
+			}
+			final List<WarmMode> listWarmModes = new ArrayList<WarmMode>();
+			for (final WarmMode warmMode : WarmMode.values()) {
+				// Cold searches must run before the index gets warmed
+				if (arrPropsBenchmarking[i].getProperty("warmModes").contains(warmMode.name())) {
+					listWarmModes.add(warmMode);
+				}
+			}
+			final List<ResultMode> listResultModes = new ArrayList<ResultMode>();
+			for (final String strMode : arrPropsBenchmarking[i].getProperty("resultModes").split(",")) {
+				listResultModes.add(ResultMode.valueOf(strMode.trim()));
+			}
 
-			final String strSearchTypes = arrPropsBenchmarking[i].getProperty("searchTypes").toString();
-			final List<SearchType> listSearchTypes = new ArrayList<SearchType>();
-			for (final SearchType searchType : SearchType.values()) {
-				if (strSearchTypes.contains(searchType.name())) {
-					listSearchTypes.add(searchType);
+			// Combinations of screen mode, molecule source and directory type to be compared
+			final List<ScreenMode> listRunScreenModes = new ArrayList<ScreenMode>();
+			final List<MoleculeSource> listRunMoleculeSources = new ArrayList<MoleculeSource>();
+			final List<DirectoryType> listRunDirectoryTypes = new ArrayList<DirectoryType>();
+			for (final ScreenMode screenMode : listScreenModes) {
+				for (final MoleculeSource moleculeSource : listMoleculeSources) {
+					for (final DirectoryType directoryType : listDirectoryTypes) {
+						listRunScreenModes.add(screenMode);
+						listRunMoleculeSources.add(moleculeSource);
+						listRunDirectoryTypes.add(directoryType);
+					}
 				}
 			}
-			final SearchType[] arrSearchTypes = listSearchTypes.toArray(new SearchType[listSearchTypes.size()]);
 
-			final int iSearchCount = Integer.parseInt(arrPropsBenchmarking[i].getProperty("searchesPerType").toString());
-			final int iThreadCount = Integer.parseInt(arrPropsBenchmarking[i].getProperty("threadCount").toString());
+			// Average times per run and search type to compare runs at the end
+			final Map<String, Map<SearchType, Integer>> mapAverageTimes =
+					new LinkedHashMap<String, Map<SearchType, Integer>>();
+			final Map<String, String> mapAllocations = new LinkedHashMap<String, String>();
+
+			for (int iRun = 0; iRun < listRunScreenModes.size(); iRun++) {
+				final ScreenMode screenMode = listRunScreenModes.get(iRun);
+				final MoleculeSource moleculeSource = listRunMoleculeSources.get(iRun);
+				final DirectoryType directoryType = listRunDirectoryTypes.get(iRun);
+				ChemicalIndex.prepareIndexDirectory(new File(strIndexDirectory), true);
+				final long lOpenStart = System.currentTimeMillis();
+				final Directory directory = directoryType.open(new File(strIndexDirectory));
+				final long lOpenTime = System.currentTimeMillis() - lOpenStart;
+				final ChemicalIndex chemIndex = new ChemicalIndex(directory,
+						new StandardAnalyzerFactory(),
+						new DefaultFingerprintFactory(new DefaultFingerprintSettings(FingerprintType.avalon).setNumBits(512)),
+						null);
+				chemIndex.setScreenMode(screenMode);
+				chemIndex.setUseBinaryMolecules(moleculeSource == MoleculeSource.BINARY);
+				chemIndex.setResultCacheSize(Long.parseLong(arrPropsBenchmarking[i].getProperty("resultCacheSize").trim()));
+				chemIndex.setQueryCacheSize(Integer.parseInt(arrPropsBenchmarking[i].getProperty("queryCacheSize").trim()));
+				System.out.println("Screen Mode: " + screenMode);
+				System.out.println("Molecule Source: " + moleculeSource);
+				System.out.println("Directory Type: " + directoryType + " (opened in " + lOpenTime + " ms)");
+
+				for (final WarmMode warmMode : listWarmModes) {
+					System.out.println("Warm Mode: " + warmMode);
+
+					if (warmMode == WarmMode.WARM) {
+						// Read all index files once, so they are in the OS page cache
+						System.out.println("Preloading index files ...");
+						final long lWarmStart = System.currentTimeMillis();
+						final long lBytes = IndexUtils.warm(directory);
+						System.out.println("Preloaded " + (lBytes / 1024 / 1024) + " MB in " +
+								(System.currentTimeMillis() - lWarmStart) + " ms.");
+
+						// Some warm-up queries to initialize caches (does not count for benchmark)
+						System.out.println("Warming up system ...");
+						final String[] arrWarmupSmiles = new String[] {
+								"[H]CCCN1C=C2C(=C(c3occc3)C(=O)C([H])(C)C2=O)C=C1CCCC",
+								"CS(=O)C",
+								"C1CC2[C@@H]1C[NH2+]2",
+								"[H]c1ccc(OCC)cc1",
+								"[H]CCCC([H])C(=O)[O-]"
+						};
+						for (final String strSmiles : arrWarmupSmiles) {
+							try {
+								chemIndex.searchMoleculesByFingerprintMatch(strSmiles, null, PAGE_SIZE);
+							}
+							catch (final Exception exc) {
+								LOGGER.log(Level.SEVERE, "Unable to deliver search results.", exc);
+							}
+						}
+						System.out.println("Warm up of system is done. Starting benchmarking ...");
+					}
+
+					for (final ResultMode resultMode : listResultModes) {
+						System.out.println("Result Mode: " + resultMode);
+
+						final String strInputFileWithSmiles = new File(arrPropsBenchmarking[i].getProperty("querySmilesFile").toString()).getAbsolutePath();
+						final int iStartLine = Integer.parseInt(arrPropsBenchmarking[i].getProperty("firstRow").toString());
+						final int iEndLine = Integer.parseInt(arrPropsBenchmarking[i].getProperty("lastRow").toString());
+
+						final String strSearchTypes = arrPropsBenchmarking[i].getProperty("searchTypes").toString();
+						final List<SearchType> listSearchTypes = new ArrayList<SearchType>();
+						for (final SearchType searchType : SearchType.values()) {
+							if (strSearchTypes.contains(searchType.name())) {
+								listSearchTypes.add(searchType);
+							}
+						}
+						final SearchType[] arrSearchTypes = listSearchTypes.toArray(new SearchType[listSearchTypes.size()]);
+
+						final int iSearchCount = Integer.parseInt(arrPropsBenchmarking[i].getProperty("searchesPerType").toString());
+						final int iThreadCount = Integer.parseInt(arrPropsBenchmarking[i].getProperty("threadCount").toString());
+
+						final String strOutputFileCsv = prepareBenchmarkCsvFile(arrPropsBenchmarking[i].getProperty("resultCsvFile").toString()
+								.replaceAll("%screenMode%", screenMode.name())
+								.replaceAll("%moleculeSource%", moleculeSource.name())
+								.replaceAll("%directoryType%", directoryType.name())
+								.replaceAll("%warmMode%", warmMode.name())
+								.replaceAll("%resultMode%", resultMode.name()));
+
+						System.out.println("Configuration taken from  " + arrPropsBenchmarking[i]);
+						System.out.println("Input will be taken from " + strInputFileWithSmiles + " (lines " + iStartLine + "-" + iEndLine + ")");
+						System.out.println("Output will be written to " + strOutputFileCsv);
+						System.out.println("Configuration details: \n" + arrPropsBenchmarking[i]);
+
+						// Setup benchmark
+						final LuceneBenchmark benchmark = new LuceneBenchmark(
+								chemIndex, strInputFileWithSmiles, iStartLine, iEndLine,
+								strOutputFileCsv, iSearchCount, iThreadCount, resultMode, arrSearchTypes);
+						final int iOverallTime = benchmark.run();
+						final int iOverallSearches = benchmark.getOverAllSearches();
+						final int iOverallTimeInMinutes = (iOverallTime / 1000 / 60);
+
+						final Map<SearchType, Integer> mapAverageTimesOfMode = new HashMap<SearchType, Integer>();
+						for (final SearchType searchType : arrSearchTypes) {
+							mapAverageTimesOfMode.put(searchType, benchmark.getAverageTimeInMs(searchType));
+						}
+						final String strRun = screenMode +
+								(listMoleculeSources.size() > 1 ? "/" + moleculeSource : "") +
+								(listDirectoryTypes.size() > 1 ? "/" + directoryType : "") +
+								(listWarmModes.size() > 1 ? "/" + warmMode : "") +
+								(listResultModes.size() > 1 ? "/" + resultMode : "");
+						final long lAllocatedBytes = benchmark.getAllocatedBytesPerSearch();
+						final String strAllocations = (lAllocatedBytes < 0 ? "n/a" : (lAllocatedBytes / 1024) + " KB") +
+								" allocated per search, " + benchmark.getGarbageCollections() + " garbage collections (" +
+								benchmark.getGarbageCollectionTimeInMs() + " ms)";
+						mapAverageTimes.put(strRun, mapAverageTimesOfMode);
+						mapAllocations.put(strRun, strAllocations);
+
+						String strNewName = strOutputFileCsv;
+						if (strOutputFileCsv.contains("%searchCount%")) {
+							strNewName = strNewName.replaceAll("%searchCount%", "" + iOverallSearches);
+						}
+						if (strOutputFileCsv.contains("%time%")) {
+							strNewName = strNewName.replaceAll("%time%", "" + iOverallTimeInMinutes);
+						}
 
-			final String strOutputFileCsv = prepareBenchmarkCsvFile(arrPropsBenchmarking[i].getProperty("resultCsvFile").toString());
+						if (!strNewName.equals(strOutputFileCsv) && !(new File(strOutputFileCsv).renameTo(new File(strNewName)))) {
+							System.out.println("Unable to rename result file '" + strOutputFileCsv +
+									"'with correct overall search count " + iOverallSearches + ".");
+						}
 
-			System.out.println("Configuration taken from  " + arrPropsBenchmarking[i]);
-			System.out.println("Input will be taken from " + strInputFileWithSmiles + " (lines " + iStartLine + "-" + iEndLine + ")");
-			System.out.println("Output will be written to " + strOutputFileCsv);
-			System.out.println("Configuration details: \n" + arrPropsBenchmarking[i]);
+						System.out.println("Overall Searches: " + iOverallSearches);
+						System.out.println("Overall Search Time: " + iOverallTimeInMinutes + " min");
+						System.out.println("Average Search Times (in ms): " + mapAverageTimesOfMode);
+						System.out.println("Memory: " + strAllocations);
+					}
+				}
 
-			// Setup benchmark
-			final LuceneBenchmark benchmark = new LuceneBenchmark(
-					chemIndex, strInputFileWithSmiles, iStartLine, iEndLine,
-					strOutputFileCsv, iSearchCount, iThreadCount, arrSearchTypes);
-			final int iOverallTime = benchmark.run();
-			final int iOverallSearches = benchmark.getOverAllSearches();
-			final int iOverallTimeInMinutes = (iOverallTime / 1000 / 60);
-			chemIndex.shutdown();
+				final String strResultCache = chemIndex.getResultCache().toString();
+				final String strQueryCache = chemIndex.getQueryCache().toString();
+				chemIndex.shutdown();
+				directory.close();
 
-			String strNewName = strOutputFileCsv;
-			if (strOutputFileCsv.contains("%searchCount%")) {
-				strNewName = strNewName.replaceAll("%searchCount%", "" + iOverallSearches);
+				System.out.println("Result Cache: " + strResultCache);
+				System.out.println("Query Cache: " + strQueryCache);
 			}
-			if (strOutputFileCsv.contains("%time%")) {
-				strNewName = strNewName.replaceAll("%time%", "" + iOverallTimeInMinutes);
+
+			// Compare screen modes
+			if (mapAverageTimes.size() > 1) {
+				System.out.println("Average search times by screen mode, molecule source, directory type, warm mode and result mode (in ms):");
+				for (final Map.Entry<String, Map<SearchType, Integer>> entry : mapAverageTimes.entrySet()) {
+					System.out.println(entry.getKey() + ": " + entry.getValue());
+				}
+				System.out.println("Memory by screen mode, molecule source, directory type, warm mode and result mode:");
+				for (final Map.Entry<String, String> entry : mapAllocations.entrySet()) {
+					System.out.println(entry.getKey() + ": " + entry.getValue());
+				}
 			}
+		}
+	}
 
-			if (!strNewName.equals(strOutputFileCsv) && !(new File(strOutputFileCsv).renameTo(new File(strNewName)))) {
-				System.out.println("Unable to rename result file '" + strOutputFileCsv +
-						"'with correct overall search count " + iOverallSearches + ".");
+	/**
+	 * Returns the number of bytes allocated by the current thread so far.
+	 * 
+	 * @return Allocated bytes or -1, if the JVM does not measure thread allocations.
+	 */
+	private static long getAllocatedBytes() {
+		final Object bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			final com.sun.management.ThreadMXBean beanThreads = (com.sun.management.ThreadMXBean)bean;
+			if (beanThreads.isThreadAllocatedMemorySupported() && beanThreads.isThreadAllocatedMemoryEnabled()) {
+				return beanThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
 			}
+		}
+		return -1;
+	}
 
-			System.out.println("Overall Searches: " + iOverallSearches);
-			System.out.println("Overall Search Time: " + iOverallTimeInMinutes + " min");
+	/**
+	 * Returns the number of garbage collections and the time spent in them so far.
+	 * 
+	 * @return Array with the number of collections and the time in milliseconds of all collectors.
+	 */
+	private static long[] getGarbageCollectionStatistics() {
+		final long[] arrStats = new long[2];
+		for (final GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			arrStats[0] += Math.max(0, bean.getCollectionCount());
+			arrStats[1] += Math.max(0, bean.getCollectionTime());
 		}
+		return arrStats;
 	}
 
 	private static Properties readConfigFile(final String strFile) throws FileNotFoundException, IOException {
@@ -720,6 +1144,13 @@ public class LuceneBenchmark {
 		defaults.put("searchTypes", "FP,SS,MOL");
 		defaults.put("searchesPerType", "1");
 		defaults.put("threadCount", "1");
+		defaults.put("screenModes", ScreenMode.TERM_QUERY.name());
+		defaults.put("moleculeSources", MoleculeSource.SMILES.name());
+		defaults.put("directoryTypes", DirectoryType.NIOFS.name());
+		defaults.put("warmModes", WarmMode.WARM.name());
+		defaults.put("resultModes", ResultMode.PAGES.name());
+		defaults.put("resultCacheSize", "0");
+		defaults.put("queryCacheSize", "0");
 		defaults.put("resultCsvFile", "%querySmilesFile% (%threadCount% threads, %searchesPerType% searches, %searchTypes%, %searchCount% searches done in %time% min).csv");
 
 		final Properties props = new Properties(defaults);
@@ -737,6 +1168,26 @@ public class LuceneBenchmark {
 		strResultFile = strResultFile.replaceAll("%searchTypes%",  props.getProperty("searchTypes", ""));
 		strResultFile = strResultFile.replaceAll("%firstRow%",  props.getProperty("firstRow", ""));
 		strResultFile = strResultFile.replaceAll("%lastRow%",  props.getProperty("lastRow", ""));
+		if (props.getProperty("screenModes").contains(",") && !strResultFile.contains("%screenMode%")) {
+			// Keep results of different screen modes apart
+			strResultFile = insertTextInFilename(strResultFile, "%screenMode%");
+		}
+		if (props.getProperty("moleculeSources").contains(",") && !strResultFile.contains("%moleculeSource%")) {
+			// Keep results of different molecule sources apart
+			strResultFile = insertTextInFilename(strResultFile, "%moleculeSource%");
+		}
+		if (props.getProperty("directoryTypes").contains(",") && !strResultFile.contains("%directoryType%")) {
+			// Keep results of different directory types apart
+			strResultFile = insertTextInFilename(strResultFile, "%directoryType%");
+		}
+		if (props.getProperty("warmModes").contains(",") && !strResultFile.contains("%warmMode%")) {
+			// Keep results of cold and warm searches apart
+			strResultFile = insertTextInFilename(strResultFile, "%warmMode%");
+		}
+		if (props.getProperty("resultModes").contains(",") && !strResultFile.contains("%resultMode%")) {
+			// Keep results of collected and counted hits apart
+			strResultFile = insertTextInFilename(strResultFile, "%resultMode%");
+		}
 		props.put("resultCsvFile", strResultFile);
 
 		return props;
@@ -747,6 +1198,17 @@ public class LuceneBenchmark {
 		if (argv.length == 0) {
 			printInfoAndExit();
 		}
+		else if ("-index".equals(argv[0]) && argv.length >= 6 && "-profiles".equals(argv[1])) {
+			final String[] arrProfileNames = argv[2].split(",");
+			final IndexProfile[] arrProfiles = new IndexProfile[arrProfileNames.length];
+			for (int i = 0; i < arrProfileNames.length; i++) {
+				arrProfiles[i] = IndexProfile.valueOf(arrProfileNames[i].trim());
+			}
+			final int length = argv.length - 6;
+			final String[] arrPKsToIgnore = new String[length];
+			System.arraycopy(argv, 6, arrPKsToIgnore, 0, length);
+			index(arrProfiles, argv[3], argv[4], argv[5], arrPKsToIgnore);
+		}
 		else if ("-index".equals(argv[0]) && argv.length >= 4) {
 			final int length = argv.length - 4;
 			final String[] arrPKsToIgnore = new String[length];
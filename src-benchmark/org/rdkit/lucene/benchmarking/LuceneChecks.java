@@ -0,0 +1,1009 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene.benchmarking;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import org.RDKit.RDKFuncs;
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Field.Index;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocsCollector;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.Version;
+import org.rdkit.lucene.ChemicalIndex;
+import org.rdkit.lucene.FingerprintScreenFilter;
+import org.rdkit.lucene.FingerprintScreenQuery;
+import org.rdkit.lucene.HitSet;
+import org.rdkit.lucene.HitSetCollector;
+import org.rdkit.lucene.SimilarityScan;
+import org.rdkit.lucene.StandardAnalyzerFactory;
+import org.rdkit.lucene.SubstructureHitListener;
+import org.rdkit.lucene.fingerprint.DefaultFingerprintFactory;
+import org.rdkit.lucene.fingerprint.DefaultFingerprintSettings;
+import org.rdkit.lucene.fingerprint.FingerprintType;
+import org.rdkit.lucene.sdf.SDFParser;
+import org.rdkit.lucene.sdf.SDFRecord;
+import org.rdkit.lucene.store.FingerprintStore;
+
+/**
+ * Behavioural checks of search features, whose results must not depend on how
+ * they are computed. The project has no unit tests, so these checks compare the
+ * optimized code paths with straightforward reference computations and are run
+ * from the command line like the benchmarks. Every check prints its result and
+ * the process exits with 1, if any check failed.
+ * <p>
+ * Synthetic checks do not need RDKit. They build an in-memory index of random
+ * fingerprints in several segments with some deleted documents:
+ * <ul>
+ * <li>The similarity scan, which skips bit count buckets that cannot reach the
+ * threshold (Swamidass-Baldi bound), finds the same top hits, counts and hit
+ * sets as a brute force comparison with every fingerprint, scanning on one
+ * or several threads.</li>
+ * <li>The leapfrog screen query finds the same documents as the fingerprint
+ * column filter and the boolean query of fingerprint bit terms, skipping deleted
+ * documents. With a maximum bit frequency below 1.0 it finds a superset.</li>
+ * </ul>
+ * <p>
+ * Index checks need RDKit and run query SMILES against an existing index, which
+ * was built with the Avalon fingerprint of 512 bits like the benchmark index:
+ * <ul>
+ * <li>Parallel substructure verification delivers the same hits in the same
+ * document id order as verification on a single thread, both when streaming
+ * hits and when collecting them, and a listener stops the stream exactly.</li>
+ * <li>Every count method counts as many hits as the search method finds and the
+ * hit set of the search all method contains, for free text, name, exact,
+ * fingerprint, substructure and similarity searches.</li>
+ * </ul>
+ * <p>
+ * SDF checks need RDKit and ingest records of an SDF file into an in-memory index:
+ * <ul>
+ * <li>Parallel ingestion of a file, which contains every primary key twice,
+ * keeps the structure of the last valid record of every primary key, as if the
+ * file was added sequentially.</li>
+ * </ul>
+ */
+public class LuceneChecks {
+
+	//
+	// Constants
+	//
+
+	/** Default number of documents of the synthetic index. */
+	private static final int DEFAULT_DOCUMENTS = 20000;
+
+	/** Default seed of the random fingerprints. */
+	private static final long DEFAULT_SEED = 42;
+
+	/** Number of bits of the synthetic fingerprints. */
+	private static final int NUM_BITS = 512;
+
+	/** Average number of molecules per family of similar molecules in the synthetic index. */
+	private static final int FAMILY_SIZE = 100;
+
+	/** Number of segments of the synthetic index. */
+	private static final int SEGMENTS = 4;
+
+	/** Every n-th document of the synthetic index is deleted. */
+	private static final int DELETE_EVERY = 97;
+
+	/** Number of queries per check. */
+	private static final int QUERIES = 20;
+
+	/** Maximum bit frequency of the leapfrog screen query, which ignores frequent bits. */
+	private static final float SCREEN_BIT_FREQUENCY = 0.2f;
+
+	/** Number of threads of concurrent scans and verifications. */
+	private static final int THREADS = 4;
+
+	/** Maximum number of hits of a streamed substructure search. */
+	private static final int MAX_STREAMED_HITS = 1000;
+
+	/** Maximum number of hits of a collected substructure search. */
+	private static final int MAX_COLLECTED_HITS = 100;
+
+	/** Similarity threshold of the count checks. */
+	private static final float SIMILARITY_THRESHOLD = 0.7f;
+
+	/** Number of records read from the SDF file for the ingestion check. */
+	private static final int SDF_RECORDS = 500;
+
+	/** Shift of the primary keys in the second copy of the SDF records. */
+	private static final int SDF_ROTATION = 7;
+
+	//
+	// Inner Classes
+	//
+
+	/**
+	 * Records the hits of a streaming substructure search and stops
+	 * it after a maximum number of hits.
+	 */
+	private static class HitRecorder implements SubstructureHitListener {
+
+		/** Maximum number of hits to receive. */
+		private final int m_iMaxHits;
+
+		/** Document ids of the received hits in the order they arrived. */
+		private final List<Integer> m_listDocIds;
+
+		/** Primary keys of the received hits in the order they arrived. */
+		private final List<String> m_listPKs;
+
+		/**
+		 * Creates a new recorder.
+		 * 
+		 * @param iMaxHits Maximum number of hits to receive. Must be &gt; 0.
+		 */
+		private HitRecorder(final int iMaxHits) {
+			m_iMaxHits = iMaxHits;
+			m_listDocIds = new ArrayList<Integer>();
+			m_listPKs = new ArrayList<String>();
+		}
+
+		@Override
+		public boolean onHit(final int iDocID, final String strPK, final float fScore) {
+			m_listDocIds.add(iDocID);
+			m_listPKs.add(strPK);
+			return m_listDocIds.size() < m_iMaxHits;
+		}
+	}
+
+	//
+	// Members
+	//
+
+	/** Number of performed checks. */
+	private int m_iChecks;
+
+	/** Number of failed checks. */
+	private int m_iFailures;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new set of checks without results.
+	 */
+	public LuceneChecks() {
+		m_iChecks = 0;
+		m_iFailures = 0;
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Runs all checks, which do not need RDKit, on a synthetic in-memory index.
+	 * 
+	 * @param iDocuments Number of documents of the index.
+	 * @param lSeed Seed of the random fingerprints.
+	 * 
+	 * @throws IOException Thrown, if the index could not be built or read.
+	 */
+	public void runSyntheticChecks(final int iDocuments, final long lSeed) throws IOException {
+		final Random random = new Random(lSeed);
+		final Directory directory = new RAMDirectory();
+		final long[][] arrFingerprints = createSyntheticIndex(directory, iDocuments, random);
+		final IndexReader reader = IndexReader.open(directory);
+		final FingerprintStore store = new FingerprintStore(directory, ChemicalIndex.FIELD_FP);
+		final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+		try {
+			System.out.println("Synthetic index: " + reader.numDocs() + " documents in " +
+					reader.getSequentialSubReaders().length + " segments");
+			checkSimilarityScan(reader, store, executor, arrFingerprints, random);
+			checkScreenQueries(reader, store, arrFingerprints, random);
+		}
+		finally {
+			executor.shutdown();
+			store.clear();
+			reader.close();
+			directory.close();
+		}
+	}
+
+	/**
+	 * Runs all checks, which need RDKit, on an existing index.
+	 * 
+	 * @param strIndexDirectory Directory of the index. Must not be null.
+	 * @param strQueryFile File with query SMILES in its first column. Must not be null.
+	 * 
+	 * @throws IOException Thrown, if the index or the query file could not be read.
+	 * @throws ParseException Thrown, if a free text query could not be parsed.
+	 */
+	public void runIndexChecks(final String strIndexDirectory, final String strQueryFile)
+			throws IOException, ParseException {
+		final List<String> listQueries = MarshallingBenchmark.readSmiles(strQueryFile);
+		final ChemicalIndex index = new ChemicalIndex(new NIOFSDirectory(new File(strIndexDirectory)),
+				new StandardAnalyzerFactory(),
+				new DefaultFingerprintFactory(new DefaultFingerprintSettings(FingerprintType.avalon).setNumBits(512)),
+				null);
+
+		// Every search shall really run
+		index.setResultCacheSize(0);
+
+		try {
+			System.out.println("Index: " + index.getIndexedMoleculeCount() + " molecules in " +
+					index.getIndexedSegmentCount() + " segments");
+			for (final String strSmiles : listQueries.subList(0, Math.min(QUERIES, listQueries.size()))) {
+				checkSubstructureOrder(index, strSmiles);
+				checkCounts(index, strSmiles);
+			}
+		}
+		finally {
+			index.shutdown();
+		}
+	}
+
+	/**
+	 * Runs all checks, which ingest records of an SDF file. They need RDKit.
+	 * 
+	 * @param strSdfFile SDF file, which can be GZIP compressed. Must not be null.
+	 * @param strFieldPrimaryKey The field name that holds the primary key. Must not be null.
+	 * 
+	 * @throws IOException Thrown, if the SDF file could not be read or the index failed.
+	 */
+	public void runSdfChecks(final String strSdfFile, final String strFieldPrimaryKey) throws IOException {
+		// Creating the index activates RDKit, which is needed to read the records
+		final ChemicalIndex index = new ChemicalIndex(new RAMDirectory(), new StandardAnalyzerFactory(),
+				new DefaultFingerprintFactory(new DefaultFingerprintSettings(FingerprintType.avalon).setNumBits(512)),
+				null);
+
+		try {
+			checkSdfIngestion(index, readSdfRecords(strSdfFile, strFieldPrimaryKey, SDF_RECORDS),
+					strFieldPrimaryKey);
+		}
+		finally {
+			index.shutdown();
+		}
+	}
+
+	/**
+	 * Checks, that parallel SDF ingestion keeps the last valid record of every primary key.
+	 * The records are written twice into a temporary SDF file, the second time with the
+	 * primary keys shifted by a few records, so every primary key gets another structure
+	 * later in the file. The expected structures come from adding the file sequentially.
+	 * 
+	 * @param index Empty index to ingest into. Must not be null.
+	 * @param listRecords SDF records with primary keys. Must not be null.
+	 * @param strFieldPrimaryKey The field name that holds the primary key. Must not be null.
+	 * 
+	 * @throws IOException Thrown, if the temporary file could not be written or the index failed.
+	 */
+	public void checkSdfIngestion(final ChemicalIndex index, final List<SDFRecord> listRecords,
+			final String strFieldPrimaryKey) throws IOException {
+		final int iRecords = listRecords.size();
+		final Map<String, String> mapExpected = new LinkedHashMap<String, String>();
+		final File file = File.createTempFile("LuceneChecks", ".sdf");
+
+		try {
+			final BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+			try {
+				for (int iCopy = 0; iCopy < 2; iCopy++) {
+					for (int i = 0; i < iRecords; i++) {
+						final String strStructure = listRecords.get(i).getStructure();
+						final String strPK = listRecords.get((i + iCopy * SDF_ROTATION) % iRecords)
+								.get(strFieldPrimaryKey).toString();
+						writer.write(strStructure);
+						writer.write("> <" + strFieldPrimaryKey + ">\n" + strPK + "\n\n$$$$\n");
+
+						// Sequential reference
+						final String strCanonSmiles = RDKFuncs.getCanonSmiles(strStructure, false);
+						if (strCanonSmiles != null && !strCanonSmiles.isEmpty()) {
+							mapExpected.put(strPK, strCanonSmiles);
+						}
+					}
+				}
+			}
+			finally {
+				writer.close();
+			}
+
+			index.addSDFFileToIndex(file, strFieldPrimaryKey, null, null, THREADS);
+		}
+		finally {
+			file.delete();
+		}
+
+		final String strRecords = "(" + iRecords + " records twice, " + mapExpected.size() + " primary keys)";
+		int iMismatches = 0;
+		for (final Map.Entry<String, String> entry : mapExpected.entrySet()) {
+			final Document doc = index.searchMoleculeByPK(entry.getKey());
+			if (doc == null || !entry.getValue().equals(doc.get(ChemicalIndex.FIELD_SMILES))) {
+				iMismatches++;
+			}
+		}
+		check("SDF ingestion keeps the last record of every primary key " + strRecords +
+				(iMismatches > 0 ? ", " + iMismatches + " mismatches" : ""), iMismatches == 0);
+		check("SDF ingestion adds every primary key once " + strRecords,
+				index.getIndexedMoleculeCount() == mapExpected.size());
+	}
+
+	/**
+	 * Checks, that parallel substructure verification finds the same hits in the same
+	 * order as verification on a single thread. Streamed hits must arrive in ascending
+	 * document id order and stop exactly when the listener asks for it. A collected
+	 * search must find the first hits of the stream, regardless of the number of
+	 * search threads.
+	 * 
+	 * @param index Index to search. Must not be null.
+	 * @param strSmiles Query SMILES. Must not be null.
+	 * 
+	 * @throws IOException Thrown, if the index could not be read.
+	 */
+	public void checkSubstructureOrder(final ChemicalIndex index, final String strSmiles) throws IOException {
+		final String strQuery = "query " + strSmiles;
+
+		final HitRecorder serial = new HitRecorder(MAX_STREAMED_HITS);
+		final int iSerialHits = index.searchMoleculesWithSubstructure(strSmiles, serial, 1);
+		final HitRecorder parallel = new HitRecorder(MAX_STREAMED_HITS);
+		final int iParallelHits = index.searchMoleculesWithSubstructure(strSmiles, parallel, THREADS);
+		if (iSerialHits < 0) {
+			System.out.println("SKIPPED: Substructure order, " + strQuery + " cannot be searched");
+			return;
+		}
+
+		boolean bAscending = true;
+		for (int i = 1; i < serial.m_listDocIds.size(); i++) {
+			bAscending &= (serial.m_listDocIds.get(i - 1) < serial.m_listDocIds.get(i));
+		}
+		check("Streamed substructure hits in document id order, " + strQuery + " (" + iSerialHits + " hits)",
+				bAscending && iSerialHits == serial.m_listDocIds.size());
+		check("Streamed substructure hits stop at the listener, " + strQuery,
+				iSerialHits <= MAX_STREAMED_HITS);
+		check("Parallel streamed substructure hits, " + strQuery,
+				iParallelHits == iSerialHits && parallel.m_listDocIds.equals(serial.m_listDocIds) &&
+				parallel.m_listPKs.equals(serial.m_listPKs));
+
+		final int iExpected = Math.min(MAX_COLLECTED_HITS, serial.m_listDocIds.size());
+		final List<Integer> listExpected = serial.m_listDocIds.subList(0, iExpected);
+		final int iThreadCount = index.getSearchThreadCount();
+		try {
+			for (final int iThreads : new int[] { 1, THREADS }) {
+				index.setSearchThreadCount(iThreads);
+				final ScoreDoc[] arrHits = index.searchMoleculesWithSubstructure(
+						strSmiles, MAX_COLLECTED_HITS).topDocs().scoreDocs;
+				final List<Integer> listDocIds = new ArrayList<Integer>();
+				for (final ScoreDoc hit : arrHits) {
+					listDocIds.add(hit.doc);
+				}
+				Collections.sort(listDocIds);
+				check("Collected substructure hits with " + iThreads + " threads, " + strQuery,
+						listDocIds.equals(listExpected));
+			}
+		}
+		finally {
+			index.setSearchThreadCount(iThreadCount);
+		}
+	}
+
+	/**
+	 * Checks, that every count method counts as many hits as the corresponding search
+	 * method finds and the search all method returns. Name and free text searches use
+	 * the primary key of a substructure hit of the query.
+	 * 
+	 * @param index Index to search. Must not be null.
+	 * @param strSmiles Query SMILES. Must not be null.
+	 * 
+	 * @throws IOException Thrown, if the index could not be read.
+	 * @throws ParseException Thrown, if the free text query could not be parsed.
+	 */
+	public void checkCounts(final ChemicalIndex index, final String strSmiles)
+			throws IOException, ParseException {
+		final String strQuery = "query " + strSmiles;
+
+		final int iExact = index.countExactMolecules(strSmiles);
+		checkCount("Exact", strQuery, iExact, index.searchExactMolecules(strSmiles, 1),
+				index.searchAllExactMolecules(strSmiles));
+		final int iFingerprint = index.countMoleculesByFingerprintMatch(strSmiles);
+		checkCount("Fingerprint", strQuery, iFingerprint, index.searchMoleculesByFingerprintMatch(strSmiles, 1),
+				index.searchAllMoleculesByFingerprintMatch(strSmiles));
+
+		// Verified searches only find as many hits as they are asked for
+		final int iSubstructure = index.countMoleculesWithSubstructure(strSmiles);
+		checkCollected("Substructure", strQuery, iSubstructure,
+				index.searchMoleculesWithSubstructure(strSmiles, Math.max(1, iSubstructure + 1)),
+				index.searchAllMoleculesWithSubstructure(strSmiles));
+		final int iSimilarity = index.countMoleculesBySimilarity(strSmiles, SIMILARITY_THRESHOLD);
+		checkCollected("Similarity", strQuery + " (threshold " + SIMILARITY_THRESHOLD + ")", iSimilarity,
+				index.searchMoleculesBySimilarity(strSmiles, SIMILARITY_THRESHOLD, Math.max(1, iSimilarity + 1)),
+				index.searchAllMoleculesBySimilarity(strSmiles, SIMILARITY_THRESHOLD));
+
+		final String[] arrPKs = index.getPrimaryKeysForSearchHits(index.searchMoleculesWithSubstructure(strSmiles, 1));
+		if (arrPKs.length > 0 && arrPKs[0] != null) {
+			final String strPK = arrPKs[0];
+			checkCount("Name", "name " + strPK, index.countMoleculesByName(strPK),
+					index.searchMoleculesByName(strPK, 1), index.searchAllMoleculesByName(strPK));
+			final String strFreeSearch = QueryParser.escape(strPK);
+			checkCount("Free text", "search " + strFreeSearch, index.countMolecules(strFreeSearch),
+					index.searchMolecules(strFreeSearch, 1), index.searchAllMolecules(strFreeSearch));
+		}
+	}
+
+	/**
+	 * Checks, that the similarity scan delivers the same results as a brute force comparison
+	 * of the query with every fingerprint. It also checks the Swamidass-Baldi bound, which
+	 * lets the scan skip whole bit count buckets, for every compared fingerprint.
+	 * 
+	 * @param reader Reader of the synthetic index. Must not be null.
+	 * @param store Fingerprint store of the index. Must not be null.
+	 * @param executor Executor for concurrent scans. Must not be null.
+	 * @param arrFingerprints Fingerprint words per document, null for deleted documents.
+	 * 		Must not be null.
+	 * @param random Random source of queries. Must not be null.
+	 * 
+	 * @throws IOException Thrown, if the index could not be read.
+	 */
+	public void checkSimilarityScan(final IndexReader reader, final FingerprintStore store,
+			final ExecutorService executor, final long[][] arrFingerprints, final Random random)
+					throws IOException {
+		final float[] arrThresholds = new float[] { 0.3f, 0.5f, 0.7f };
+		final int[] arrMaxHits = new int[] { 1, 10, 100 };
+		int iBoundViolations = 0;
+
+		for (int iQuery = 0; iQuery < QUERIES; iQuery++) {
+			final long[] arrQuery = createQuery(arrFingerprints, random);
+			final float fThreshold = arrThresholds[iQuery % arrThresholds.length];
+			final int iMaxHits = arrMaxHits[iQuery / arrThresholds.length % arrMaxHits.length];
+
+			// Brute force reference
+			final int iQueryBits = countBits(arrQuery);
+			final List<ScoreDoc> listExpected = new ArrayList<ScoreDoc>();
+			for (int iDoc = 0; iDoc < arrFingerprints.length; iDoc++) {
+				if (arrFingerprints[iDoc] != null) {
+					final int iDocBits = countBits(arrFingerprints[iDoc]);
+					final int iCommon = countCommonBits(arrQuery, arrFingerprints[iDoc]);
+					final float fScore = (float)iCommon / (iQueryBits + iDocBits - iCommon);
+					if (fScore > (float)Math.min(iQueryBits, iDocBits) / Math.max(iQueryBits, iDocBits)) {
+						iBoundViolations++;
+					}
+					if (fScore >= fThreshold) {
+						listExpected.add(new ScoreDoc(iDoc, fScore));
+					}
+				}
+			}
+			sortHits(listExpected);
+			final String strQuery = "query " + iQuery + " (threshold " + fThreshold + ", top " + iMaxHits +
+					" of " + listExpected.size() + " hits)";
+
+			final ScoreDoc[] arrExpected = listExpected.subList(0,
+					Math.min(iMaxHits, listExpected.size())).toArray(new ScoreDoc[0]);
+			final FixedBitSet expectedBits = new FixedBitSet(reader.maxDoc());
+			for (final ScoreDoc hit : listExpected) {
+				expectedBits.set(hit.doc);
+			}
+
+			final SimilarityScan scan = new SimilarityScan(arrQuery, fThreshold, iMaxHits);
+			check("Similarity scan, " + strQuery, sameHits(arrExpected,
+					scan.run(reader, store, null, null).topDocs().scoreDocs));
+			check("Concurrent similarity scan, " + strQuery, sameHits(arrExpected,
+					scan.run(reader, store, executor, null).topDocs().scoreDocs));
+			check("Similarity count, " + strQuery,
+					scan.count(reader, store, executor, null) == listExpected.size());
+			check("Similarity hit set, " + strQuery,
+					scan.collect(reader, store, executor, null).equals(expectedBits));
+		}
+
+		check("Similarity never exceeds the bit count bound", iBoundViolations == 0);
+	}
+
+	/**
+	 * Checks, that the three fingerprint screens of a substructure search (leapfrog
+	 * query, fingerprint column filter and boolean query of bit terms) find exactly the
+	 * documents, which contain all query bits. A leapfrog query that ignores frequent bits
+	 * must find at least these documents.
+	 * 
+	 * @param reader Reader of the synthetic index. Must not be null.
+	 * @param store Fingerprint store of the index. Must not be null.
+	 * @param arrFingerprints Fingerprint words per document, null for deleted documents.
+	 * 		Must not be null.
+	 * @param random Random source of queries. Must not be null.
+	 * 
+	 * @throws IOException Thrown, if the index could not be read.
+	 */
+	public void checkScreenQueries(final IndexReader reader, final FingerprintStore store,
+			final long[][] arrFingerprints, final Random random) throws IOException {
+		final IndexSearcher searcher = new IndexSearcher(reader);
+
+		try {
+			for (int iQuery = 0; iQuery < QUERIES; iQuery++) {
+				// Keep only a few bits like a substructure query, which matches whole families
+				final long[] arrQuery = createQuery(arrFingerprints, random);
+				for (int i = 0; i < arrQuery.length; i++) {
+					arrQuery[i] &= random.nextLong() & random.nextLong();
+				}
+				if (countBits(arrQuery) == 0) {
+					continue;
+				}
+
+				// Brute force reference
+				final FixedBitSet expectedBits = new FixedBitSet(reader.maxDoc());
+				for (int iDoc = 0; iDoc < arrFingerprints.length; iDoc++) {
+					if (arrFingerprints[iDoc] != null &&
+							countCommonBits(arrQuery, arrFingerprints[iDoc]) == countBits(arrQuery)) {
+						expectedBits.set(iDoc);
+					}
+				}
+				final String strQuery = "query " + iQuery + " (" + countBits(arrQuery) + " bits, " +
+						expectedBits.cardinality() + " hits)";
+
+				final BitSet fpQuery = toBitSet(arrQuery);
+				final BooleanQuery queryTerms = new BooleanQuery();
+				for (int i = fpQuery.nextSetBit(0); i >= 0; i = fpQuery.nextSetBit(i + 1)) {
+					queryTerms.add(new BooleanClause(new TermQuery(new Term(ChemicalIndex.FIELD_FP,
+							Integer.toString(i))), BooleanClause.Occur.MUST));
+				}
+
+				check("Term screen, " + strQuery, search(searcher, queryTerms).equals(expectedBits));
+				check("Fingerprint column screen, " + strQuery, search(searcher,
+						new ConstantScoreQuery(new FingerprintScreenFilter(store, arrQuery))).equals(expectedBits));
+				check("Leapfrog screen, " + strQuery, search(searcher,
+						new FingerprintScreenQuery(ChemicalIndex.FIELD_FP, fpQuery, 1.0f)).equals(expectedBits));
+
+				final FixedBitSet partialBits = search(searcher,
+						new FingerprintScreenQuery(ChemicalIndex.FIELD_FP, fpQuery, SCREEN_BIT_FREQUENCY));
+				final FixedBitSet missedBits = new FixedBitSet(expectedBits);
+				missedBits.andNot(partialBits);
+				check("Leapfrog screen with maximum bit frequency " + SCREEN_BIT_FREQUENCY + " (" +
+						partialBits.cardinality() + " candidates), " + strQuery,
+						missedBits.cardinality() == 0 && !containsDeleted(reader, partialBits));
+			}
+		}
+		finally {
+			searcher.close();
+		}
+	}
+
+	/**
+	 * Returns the number of checks performed so far.
+	 * 
+	 * @return Number of checks.
+	 */
+	public int getCheckCount() {
+		return m_iChecks;
+	}
+
+	/**
+	 * Returns the number of checks that failed so far.
+	 * 
+	 * @return Number of failures.
+	 */
+	public int getFailureCount() {
+		return m_iFailures;
+	}
+
+	//
+	// Protected Methods
+	//
+
+	/**
+	 * Records and prints the result of a check.
+	 * 
+	 * @param strCheck Description of the check. Must not be null.
+	 * @param bPassed True, if the check passed.
+	 */
+	protected void check(final String strCheck, final boolean bPassed) {
+		m_iChecks++;
+		if (!bPassed) {
+			m_iFailures++;
+		}
+		System.out.println((bPassed ? "PASSED: " : "FAILED: ") + strCheck);
+	}
+
+	/**
+	 * Checks, that a count equals the total number of hits of a search and the
+	 * number of hits of a search all.
+	 * 
+	 * @param strType Type of the search. Must not be null.
+	 * @param strQuery Description of the query. Must not be null.
+	 * @param iCount Counted hits.
+	 * @param collector Search result. Can be null.
+	 * @param hits Result of the search all. Can be null.
+	 */
+	protected void checkCount(final String strType, final String strQuery, final int iCount,
+			final TopDocsCollector<ScoreDoc> collector, final HitSet hits) {
+		check(strType + " count, " + strQuery + " (" + iCount + " hits)",
+				iCount >= 0 && collector != null && collector.getTotalHits() == iCount &&
+				hits != null && hits.cardinality() == iCount);
+	}
+
+	/**
+	 * Checks, that a count equals the number of hits collected by a search, which
+	 * was asked for one hit more, and the number of hits of a search all.
+	 * 
+	 * @param strType Type of the search. Must not be null.
+	 * @param strQuery Description of the query. Must not be null.
+	 * @param iCount Counted hits.
+	 * @param collector Search result. Can be null.
+	 * @param hits Result of the search all. Can be null.
+	 */
+	protected void checkCollected(final String strType, final String strQuery, final int iCount,
+			final TopDocsCollector<ScoreDoc> collector, final HitSet hits) {
+		check(strType + " count, " + strQuery + " (" + iCount + " hits)",
+				iCount >= 0 && collector != null && collector.topDocs().scoreDocs.length == iCount &&
+				hits != null && hits.cardinality() == iCount);
+	}
+
+	//
+	// Static Public Methods
+	//
+
+	/**
+	 * Prints the usage of the checks and exits.
+	 */
+	public static void printInfoAndExit() {
+		System.out.println("LuceneChecks usage:\n" +
+				"    LuceneChecks -synthetic [<documents> [<seed>]]\n" +
+				" or LuceneChecks -index <indexDirectory> <querySmilesFile>\n" +
+				" or LuceneChecks -sdf <sdfFile> <pkField>\n" +
+				"\n" +
+				"-synthetic: Checks that do not need RDKit on a random in-memory index.\n" +
+				"             Default is " + DEFAULT_DOCUMENTS + " documents and seed " + DEFAULT_SEED + ".\n" +
+				"-index:     Checks that need RDKit on an existing index built by LuceneBenchmark -index.\n" +
+				"             The first " + QUERIES + " SMILES of the first column of the query file are used.\n" +
+				"-sdf:       Checks that need RDKit and ingest the first " + SDF_RECORDS + " records of an SDF file\n" +
+				"             with primary keys in the specified field into an in-memory index.\n" +
+				"\n" +
+				"The exit code is 1, if any check failed.");
+		System.exit(0);
+	}
+
+	/**
+	 * Runs the checks.
+	 * 
+	 * @param argv See {@link #printInfoAndExit()}.
+	 * 
+	 * @throws IOException Thrown, if an index could not be built or read.
+	 */
+	public static void main(final String[] argv) throws IOException, ParseException {
+		if (argv.length == 0) {
+			printInfoAndExit();
+		}
+
+		final LuceneChecks checks = new LuceneChecks();
+		if ("-synthetic".equals(argv[0])) {
+			checks.runSyntheticChecks(argv.length > 1 ? Integer.parseInt(argv[1]) : DEFAULT_DOCUMENTS,
+					argv.length > 2 ? Long.parseLong(argv[2]) : DEFAULT_SEED);
+		}
+		else if ("-index".equals(argv[0]) && argv.length >= 3) {
+			checks.runIndexChecks(argv[1], argv[2]);
+		}
+		else if ("-sdf".equals(argv[0]) && argv.length >= 3) {
+			checks.runSdfChecks(argv[1], argv[2]);
+		}
+		else {
+			printInfoAndExit();
+		}
+
+		System.out.println(checks.getCheckCount() + " checks, " + checks.getFailureCount() + " failed.");
+		System.exit(checks.getFailureCount() == 0 ? 0 : 1);
+	}
+
+	//
+	// Static Private Methods
+	//
+
+	/**
+	 * Builds an index of random fingerprints in several segments and deletes some
+	 * of the documents. Fingerprints are random variations of a number of prototypes,
+	 * so there are families of similar molecules. Bits are set with different frequencies
+	 * like in real fingerprints, and the fingerprints have different densities, so they
+	 * spread over many bit count buckets. No segments are merged, so document ids are
+	 * assigned in the order the documents are added.
+	 * 
+	 * @param directory Empty directory. Must not be null.
+	 * @param iDocuments Number of documents.
+	 * @param random Random source. Must not be null.
+	 * 
+	 * @return Fingerprint words per document id, null for deleted documents.
+	 * 
+	 * @throws IOException Thrown, if the index could not be written.
+	 */
+	private static long[][] createSyntheticIndex(final Directory directory, final int iDocuments,
+			final Random random) throws IOException {
+		final long[][] arrFingerprints = new long[iDocuments][];
+		final IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_36,
+				new WhitespaceAnalyzer(Version.LUCENE_36));
+		config.setMergePolicy(NoMergePolicy.NO_COMPOUND_FILES);
+		final IndexWriter writer = new IndexWriter(directory, config);
+
+		try {
+			final long[][] arrPrototypes = new long[Math.max(1, iDocuments / FAMILY_SIZE)][];
+			for (int i = 0; i < arrPrototypes.length; i++) {
+				arrPrototypes[i] = createFingerprint(null, 0.0d, 0.02d + random.nextDouble() * 0.25d, random);
+			}
+
+			final int iSegmentSize = Math.max(1, iDocuments / SEGMENTS);
+			for (int iDoc = 0; iDoc < iDocuments; iDoc++) {
+				final long[] arrWords = createFingerprint(arrPrototypes[random.nextInt(arrPrototypes.length)],
+						0.6d + random.nextDouble() * 0.4d, 0.01d, random);
+				final Document doc = new Document();
+				doc.add(new Field(ChemicalIndex.FIELD_PK, "pk" + iDoc, Store.YES, Index.NOT_ANALYZED_NO_NORMS));
+				for (int iBit = 0; iBit < NUM_BITS; iBit++) {
+					if ((arrWords[iBit >> 6] & (1L << (iBit & 63))) != 0) {
+						doc.add(new Field(ChemicalIndex.FIELD_FP, Integer.toString(iBit), Store.NO,
+								Index.NOT_ANALYZED_NO_NORMS, Field.TermVector.NO));
+					}
+				}
+				writer.addDocument(doc);
+				arrFingerprints[iDoc] = arrWords;
+
+				if ((iDoc + 1) % iSegmentSize == 0) {
+					writer.commit();
+				}
+			}
+
+			for (int iDoc = 0; iDoc < iDocuments; iDoc += DELETE_EVERY) {
+				writer.deleteDocuments(new Term(ChemicalIndex.FIELD_PK, "pk" + iDoc));
+				arrFingerprints[iDoc] = null;
+			}
+		}
+		finally {
+			writer.close();
+		}
+
+		return arrFingerprints;
+	}
+
+	/**
+	 * Creates a random fingerprint. Low bits are set more often than high bits.
+	 * 
+	 * @param arrPrototype Fingerprint words to take bits from. Can be null.
+	 * @param dKeep Probability to keep a bit of the prototype.
+	 * @param dDensity Average probability to set a further bit.
+	 * @param random Random source. Must not be null.
+	 * 
+	 * @return Fingerprint words.
+	 */
+	private static long[] createFingerprint(final long[] arrPrototype, final double dKeep,
+			final double dDensity, final Random random) {
+		final long[] arrWords = new long[NUM_BITS / 64];
+		for (int iBit = 0; iBit < NUM_BITS; iBit++) {
+			final long lMask = 1L << (iBit & 63);
+			if ((arrPrototype != null && (arrPrototype[iBit >> 6] & lMask) != 0 && random.nextDouble() < dKeep) ||
+					random.nextDouble() < dDensity * 2.0d * (NUM_BITS - iBit) / NUM_BITS) {
+				arrWords[iBit >> 6] |= lMask;
+			}
+		}
+		return arrWords;
+	}
+
+	/**
+	 * Creates a query fingerprint by removing some bits of a random live document,
+	 * so there are similar molecules in the index.
+	 * 
+	 * @param arrFingerprints Fingerprint words per document, null for deleted documents.
+	 * 		Must not be null.
+	 * @param random Random source. Must not be null.
+	 * 
+	 * @return Query fingerprint words.
+	 */
+	private static long[] createQuery(final long[][] arrFingerprints, final Random random) {
+		long[] arrSource = null;
+		while (arrSource == null) {
+			arrSource = arrFingerprints[random.nextInt(arrFingerprints.length)];
+		}
+
+		final long[] arrQuery = new long[arrSource.length];
+		for (int i = 0; i < arrQuery.length; i++) {
+			arrQuery[i] = arrSource[i] & random.nextLong() | arrSource[i] & random.nextLong();
+		}
+
+		return arrQuery;
+	}
+
+	/**
+	 * Reads the first records with a structure and a primary key from an SDF file.
+	 * 
+	 * @param strSdfFile SDF file, which can be GZIP compressed. Must not be null.
+	 * @param strFieldPrimaryKey The field name that holds the primary key. Must not be null.
+	 * @param iMaxRecords Maximum number of records to read.
+	 * 
+	 * @return Records with a structure and a primary key.
+	 * 
+	 * @throws IOException Thrown, if the file could not be read.
+	 */
+	private static List<SDFRecord> readSdfRecords(final String strSdfFile, final String strFieldPrimaryKey,
+			final int iMaxRecords) throws IOException {
+		final List<SDFRecord> listRecords = new ArrayList<SDFRecord>();
+		InputStream in = new FileInputStream(strSdfFile);
+		if (strSdfFile.endsWith(".gz")) {
+			in = new GZIPInputStream(in);
+		}
+		final SDFParser parser = new SDFParser(null, in, -1, -1);
+
+		try {
+			SDFRecord record;
+			while (listRecords.size() < iMaxRecords && (record = parser.readSdfRecord()) != null) {
+				if (record.getStructure() != null && record.get(strFieldPrimaryKey) != null) {
+					listRecords.add(record);
+				}
+			}
+		}
+		finally {
+			parser.close();
+		}
+
+		return listRecords;
+	}
+
+	/**
+	 * Converts fingerprint words into a bit set.
+	 * 
+	 * @param arrWords Fingerprint words. Must not be null.
+	 * 
+	 * @return Bit set with the same bits.
+	 */
+	private static BitSet toBitSet(final long[] arrWords) {
+		final BitSet fp = new BitSet(arrWords.length * 64);
+		for (int iBit = 0; iBit < arrWords.length * 64; iBit++) {
+			if ((arrWords[iBit >> 6] & (1L << (iBit & 63))) != 0) {
+				fp.set(iBit);
+			}
+		}
+		return fp;
+	}
+
+	/**
+	 * Collects all documents that match a query.
+	 * 
+	 * @param searcher Searcher to use. Must not be null.
+	 * @param query Query to run. Must not be null.
+	 * 
+	 * @return Matching documents.
+	 * 
+	 * @throws IOException Thrown, if the index could not be read.
+	 */
+	private static FixedBitSet search(final IndexSearcher searcher, final Query query) throws IOException {
+		final HitSetCollector collector = new HitSetCollector(searcher.maxDoc(), null);
+		searcher.search(query, collector);
+		return collector.getHitSet().getBits();
+	}
+
+	/**
+	 * Determines, if a set of documents contains deleted documents.
+	 * 
+	 * @param reader Reader of the index. Must not be null.
+	 * @param bits Documents to test. Must not be null.
+	 * 
+	 * @return True, if any of the documents is deleted.
+	 */
+	private static boolean containsDeleted(final IndexReader reader, final FixedBitSet bits) {
+		boolean bDeleted = false;
+		for (int iDoc = bits.nextSetBit(0); !bDeleted && iDoc >= 0;
+				iDoc = (iDoc + 1 < bits.length() ? bits.nextSetBit(iDoc + 1) : -1)) {
+			bDeleted = reader.isDeleted(iDoc);
+		}
+		return bDeleted;
+	}
+
+	/**
+	 * Counts the set bits of a fingerprint.
+	 * 
+	 * @param arrWords Fingerprint words. Must not be null.
+	 * 
+	 * @return Number of set bits.
+	 */
+	private static int countBits(final long[] arrWords) {
+		int iBits = 0;
+		for (final long lWord : arrWords) {
+			iBits += Long.bitCount(lWord);
+		}
+		return iBits;
+	}
+
+	/**
+	 * Counts the bits, which are set in both fingerprints.
+	 * 
+	 * @param arrWords1 Fingerprint words. Must not be null.
+	 * @param arrWords2 Other fingerprint words of the same length. Must not be null.
+	 * 
+	 * @return Number of common bits.
+	 */
+	private static int countCommonBits(final long[] arrWords1, final long[] arrWords2) {
+		int iBits = 0;
+		for (int i = 0; i < arrWords1.length; i++) {
+			iBits += Long.bitCount(arrWords1[i] & arrWords2[i]);
+		}
+		return iBits;
+	}
+
+	/**
+	 * Sorts hits by descending score and ascending document id.
+	 * 
+	 * @param listHits Hits. Must not be null.
+	 */
+	private static void sortHits(final List<ScoreDoc> listHits) {
+		Collections.sort(listHits, new Comparator<ScoreDoc>() {
+			@Override
+			public int compare(final ScoreDoc hit1, final ScoreDoc hit2) {
+				return (hit1.score != hit2.score ? Float.compare(hit2.score, hit1.score) : hit1.doc - hit2.doc);
+			}
+		});
+	}
+
+	/**
+	 * Determines, if two lists of hits contain the same documents with the same scores
+	 * in the same order.
+	 * 
+	 * @param arrExpected Expected hits. Must not be null.
+	 * @param arrActual Actual hits. Must not be null.
+	 * 
+	 * @return True, if the hits are the same.
+	 */
+	private static boolean sameHits(final ScoreDoc[] arrExpected, final ScoreDoc[] arrActual) {
+		boolean bSame = (arrExpected.length == arrActual.length);
+		for (int i = 0; bSame && i < arrExpected.length; i++) {
+			bSame = (arrExpected[i].doc == arrActual[i].doc && arrExpected[i].score == arrActual[i].score);
+		}
+		return bSame;
+	}
+}
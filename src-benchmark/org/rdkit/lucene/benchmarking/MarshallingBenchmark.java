@@ -0,0 +1,386 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene.benchmarking;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.RDKit.ExplicitBitVect;
+import org.RDKit.Int_Vect;
+import org.RDKit.ROMol;
+import org.RDKit.RWMol;
+import org.rdkit.lucene.bin.RDKit;
+import org.rdkit.lucene.bin.RDKitMarshaller;
+import org.rdkit.lucene.fingerprint.DefaultFingerprintSettings;
+import org.rdkit.lucene.fingerprint.FingerprintSettings;
+import org.rdkit.lucene.fingerprint.FingerprintType;
+
+/**
+ * A microbenchmark for moving fingerprints and molecule pickles between RDKit
+ * and Java. It compares the former per element conversions, which cross JNI
+ * once per bit or byte, with the conversions of {@link RDKitMarshaller}.
+ * <p>
+ * Like JMH in average time mode, every operation is run for a number of warm-up
+ * iterations, which are not measured, followed by measured iterations. Every
+ * iteration converts the fingerprints or pickles of all input molecules once.
+ * The result is the average time per molecule with its standard deviation over
+ * the measured iterations. Results of all operations are consumed, so the JIT
+ * compiler cannot eliminate them.
+ */
+public class MarshallingBenchmark {
+
+	//
+	// Constants
+	//
+
+	/** Default number of warm-up iterations. */
+	private static final int DEFAULT_WARMUP_ITERATIONS = 5;
+
+	/** Default number of measured iterations. */
+	private static final int DEFAULT_MEASUREMENT_ITERATIONS = 10;
+
+	//
+	// Inner Classes
+	//
+
+	/**
+	 * A benchmarked operation on a single molecule.
+	 */
+	private abstract static class Operation {
+
+		/** The name of the operation. */
+		private final String m_strName;
+
+		/**
+		 * Creates a new operation.
+		 * 
+		 * @param strName Name of the operation. Must not be null.
+		 */
+		private Operation(final String strName) {
+			m_strName = strName;
+		}
+
+		/**
+		 * Runs the operation for the specified molecule.
+		 * 
+		 * @param iMolecule Index of the input molecule.
+		 * 
+		 * @return Some value of the result to be consumed.
+		 */
+		protected abstract long run(int iMolecule);
+	}
+
+	//
+	// Members
+	//
+
+	/** Fingerprints of all input molecules. */
+	private final ExplicitBitVect[] m_arrFingerprints;
+
+	/** Pickles of all input molecules. */
+	private final byte[][] m_arrPickles;
+
+	/** Input molecules. */
+	private final ROMol[] m_arrMolecules;
+
+	/** Number of warm-up iterations. */
+	private final int m_iWarmupIterations;
+
+	/** Number of measured iterations. */
+	private final int m_iMeasurementIterations;
+
+	/** Consumes results of all operations. */
+	private long m_lSink;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new marshalling benchmark and prepares fingerprints and pickles
+	 * of the passed in molecules. SMILES that cannot be parsed are skipped.
+	 * 
+	 * @param listSmiles Input SMILES. Must not be null.
+	 * @param settings Settings of the fingerprints to be converted. Must not be null.
+	 * @param iWarmupIterations Number of warm-up iterations.
+	 * @param iMeasurementIterations Number of measured iterations. Must be &gt; 0.
+	 */
+	public MarshallingBenchmark(final List<String> listSmiles, final FingerprintSettings settings,
+			final int iWarmupIterations, final int iMeasurementIterations) {
+		if (iMeasurementIterations <= 0) {
+			throw new IllegalArgumentException("Number of measured iterations must be > 0.");
+		}
+
+		final List<ROMol> listMolecules = new ArrayList<ROMol>(listSmiles.size());
+		final List<ExplicitBitVect> listFingerprints = new ArrayList<ExplicitBitVect>(listSmiles.size());
+		for (final String strSmiles : listSmiles) {
+			try {
+				final RWMol mol = RWMol.MolFromSmiles(strSmiles, 0, true);
+				if (mol != null) {
+					listFingerprints.add(settings.getRdkitFingerprintType().calculate(mol, settings));
+					listMolecules.add(mol);
+				}
+			}
+			catch (final Exception exc) {
+				System.out.println("Skipping SMILES " + strSmiles + ": " + exc.getMessage());
+			}
+		}
+
+		m_arrMolecules = listMolecules.toArray(new ROMol[listMolecules.size()]);
+		m_arrFingerprints = listFingerprints.toArray(new ExplicitBitVect[listFingerprints.size()]);
+		m_arrPickles = new byte[m_arrMolecules.length][];
+		for (int i = 0; i < m_arrMolecules.length; i++) {
+			m_arrPickles[i] = RDKit.toByteArray(m_arrMolecules[i]);
+		}
+		m_iWarmupIterations = iWarmupIterations;
+		m_iMeasurementIterations = iMeasurementIterations;
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Runs all operations and prints their average time per molecule.
+	 */
+	public void run() {
+		System.out.println("Molecules: " + m_arrMolecules.length);
+		System.out.println("Warm-up iterations: " + m_iWarmupIterations +
+				", measured iterations: " + m_iMeasurementIterations);
+		if (m_arrMolecules.length == 0) {
+			return;
+		}
+
+		System.out.println(String.format("%-32s %14s %12s", "Operation", "ns/molecule", "+-"));
+
+		measure(new Operation("fingerprint.getBitPerBit") {
+			@Override
+			protected long run(final int iMolecule) {
+				final ExplicitBitVect rdkitBitVector = m_arrFingerprints[iMolecule];
+				final int iLength = (int)rdkitBitVector.getNumBits();
+				long lCount = 0;
+				for (int i = 0; i < iLength; i++) {
+					if (rdkitBitVector.getBit(i)) {
+						lCount++;
+					}
+				}
+				return lCount;
+			}
+		});
+		measure(new Operation("fingerprint.bulkText") {
+			@Override
+			protected long run(final int iMolecule) {
+				return RDKitMarshaller.toBitSet(m_arrFingerprints[iMolecule]).cardinality();
+			}
+		});
+		measure(new Operation("pickle.toBytes.undeleted") {
+			@Override
+			protected long run(final int iMolecule) {
+				// Former conversion, which left the native vector to finalization
+				final Int_Vect iv = m_arrMolecules[iMolecule].ToBinary();
+				final byte[] arrBytes = new byte[(int)iv.size()];
+				for (int i = 0; i < arrBytes.length; i++) {
+					arrBytes[i] = (byte)iv.get(i);
+				}
+				return arrBytes.length;
+			}
+		});
+		measure(new Operation("pickle.toBytes") {
+			@Override
+			protected long run(final int iMolecule) {
+				return RDKit.toByteArray(m_arrMolecules[iMolecule]).length;
+			}
+		});
+		measure(new Operation("pickle.toMolecule.undeleted") {
+			@Override
+			protected long run(final int iMolecule) {
+				final byte[] arrBytes = m_arrPickles[iMolecule];
+				final Int_Vect iv = new Int_Vect(arrBytes.length);
+				for (int i = 0; i < arrBytes.length; i++) {
+					iv.set(i, arrBytes[i]);
+				}
+				final ROMol mol = ROMol.MolFromBinary(iv);
+				final long lAtoms = mol.getNumAtoms();
+				mol.delete();
+				return lAtoms;
+			}
+		});
+		measure(new Operation("pickle.toMolecule") {
+			@Override
+			protected long run(final int iMolecule) {
+				final ROMol mol = RDKit.toROMol(m_arrPickles[iMolecule]);
+				final long lAtoms = mol.getNumAtoms();
+				mol.delete();
+				return lAtoms;
+			}
+		});
+
+		System.out.println("(Sink: " + m_lSink + ")");
+	}
+
+	/**
+	 * Frees all molecules and fingerprints.
+	 */
+	public void dispose() {
+		for (final ROMol mol : m_arrMolecules) {
+			mol.delete();
+		}
+		for (final ExplicitBitVect fp : m_arrFingerprints) {
+			fp.delete();
+		}
+	}
+
+	//
+	// Private Methods
+	//
+
+	/**
+	 * Runs the warm-up and measured iterations of an operation and prints the result.
+	 * 
+	 * @param operation Operation to be measured. Must not be null.
+	 */
+	private void measure(final Operation operation) {
+		for (int i = 0; i < m_iWarmupIterations; i++) {
+			runIteration(operation);
+		}
+
+		final double[] arrTimes = new double[m_iMeasurementIterations];
+		double dSum = 0;
+		for (int i = 0; i < arrTimes.length; i++) {
+			final long lStart = System.nanoTime();
+			runIteration(operation);
+			arrTimes[i] = (double)(System.nanoTime() - lStart) / m_arrMolecules.length;
+			dSum += arrTimes[i];
+		}
+
+		final double dMean = dSum / arrTimes.length;
+		double dSquares = 0;
+		for (final double dTime : arrTimes) {
+			dSquares += (dTime - dMean) * (dTime - dMean);
+		}
+		final double dDeviation = (arrTimes.length > 1 ? Math.sqrt(dSquares / (arrTimes.length - 1)) : 0);
+
+		System.out.println(String.format("%-32s %14.1f %12.1f", operation.m_strName, dMean, dDeviation));
+	}
+
+	/**
+	 * Runs an operation once for every molecule.
+	 * 
+	 * @param operation Operation to be run. Must not be null.
+	 */
+	private void runIteration(final Operation operation) {
+		long lSink = 0;
+		for (int i = 0; i < m_arrMolecules.length; i++) {
+			lSink += operation.run(i);
+		}
+		m_lSink += lSink;
+	}
+
+	//
+	// Static Public Methods
+	//
+
+	/**
+	 * Prints usage information and exits.
+	 */
+	public static void printInfoAndExit() {
+		System.out.println("MarshallingBenchmark usage:\n" +
+				"    MarshallingBenchmark <smilesFile> [<fingerprintType> [<numBits> [<warmupIterations> <measuredIterations>]]]\n" +
+				"\n" +
+				"smilesFile: File with one SMILES per line (further columns are ignored).\n" +
+				"fingerprintType: Fingerprint type to be converted. Default is avalon.\n" +
+				"numBits: Number of fingerprint bits. Default is 512.\n" +
+				"warmupIterations: Number of iterations, which are not measured. Default is " +
+				DEFAULT_WARMUP_ITERATIONS + ".\n" +
+				"measuredIterations: Number of measured iterations. Default is " +
+				DEFAULT_MEASUREMENT_ITERATIONS + ".\n");
+		System.exit(0);
+	}
+
+	/**
+	 * Reads the SMILES of the first column of a file.
+	 * 
+	 * @param strFile Input file. Must not be null.
+	 * 
+	 * @return List of SMILES.
+	 * 
+	 * @throws IOException Thrown, if the file could not be read.
+	 */
+	public static List<String> readSmiles(final String strFile) throws IOException {
+		final List<String> listSmiles = new ArrayList<String>();
+		final BufferedReader reader = new BufferedReader(new FileReader(strFile));
+		try {
+			String strLine;
+			while ((strLine = reader.readLine()) != null) {
+				final String[] arrColumns = strLine.trim().split("\\s+");
+				if (arrColumns.length > 0 && !arrColumns[0].isEmpty()) {
+					listSmiles.add(arrColumns[0]);
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+
+		return listSmiles;
+	}
+
+	public static void main(final String[] argv) throws IOException {
+		if (argv.length == 0) {
+			printInfoAndExit();
+		}
+
+		if (!RDKit.activate()) {
+			throw new UnsatisfiedLinkError("RDKit library could not be loaded.");
+		}
+
+		final FingerprintType fpType = (argv.length > 1 ? FingerprintType.valueOf(argv[1]) : FingerprintType.avalon);
+		final int iNumBits = (argv.length > 2 ? Integer.parseInt(argv[2]) : 512);
+		final int iWarmupIterations = (argv.length > 4 ? Integer.parseInt(argv[3]) : DEFAULT_WARMUP_ITERATIONS);
+		final int iMeasurementIterations = (argv.length > 4 ? Integer.parseInt(argv[4]) :
+			DEFAULT_MEASUREMENT_ITERATIONS);
+
+		final MarshallingBenchmark benchmark = new MarshallingBenchmark(readSmiles(argv[0]),
+				new DefaultFingerprintSettings(fpType).setNumBits(iNumBits), iWarmupIterations, iMeasurementIterations);
+		System.out.println("Fingerprint: " + fpType + " (" + iNumBits + " bits)");
+		try {
+			benchmark.run();
+		}
+		finally {
+			benchmark.dispose();
+		}
+	}
+}
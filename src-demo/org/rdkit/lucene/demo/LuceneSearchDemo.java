@@ -76,18 +76,19 @@ import javax.swing.filechooser.FileFilter;
 
 import org.RDKit.RDKFuncs;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.TopDocsCollector;
-import org.apache.lucene.store.NIOFSDirectory;
 import org.rdkit.lucene.AnalyzerFactory;
 import org.rdkit.lucene.ChemicalIndex;
 import org.rdkit.lucene.IndexListener;
+import org.rdkit.lucene.SearchCursor;
+import org.rdkit.lucene.SearchExpiredException;
+import org.rdkit.lucene.SearchPage;
 import org.rdkit.lucene.StandardAnalyzerFactory;
 import org.rdkit.lucene.bin.RDKit;
 import org.rdkit.lucene.fingerprint.DefaultFingerprintFactory;
 import org.rdkit.lucene.fingerprint.DefaultFingerprintSettings;
 import org.rdkit.lucene.fingerprint.FingerprintFactory;
 import org.rdkit.lucene.fingerprint.FingerprintType;
+import org.rdkit.lucene.store.DirectoryType;
 import org.rdkit.lucene.util.LayoutUtils;
 
 public class LuceneSearchDemo extends JPanel {
@@ -102,6 +103,30 @@ public class LuceneSearchDemo extends JPanel {
 	/** The logger instance. */
 	private static final Logger LOGGER = Logger.getLogger(LuceneSearchDemo.class.getName());
 
+	/** The number of hits fetched per page. */
+	private static final int PAGE_SIZE = 1000;
+
+	//
+	// Inner Classes
+	//
+
+	/**
+	 * A paged search for the search term that was entered when it was started.
+	 */
+	protected interface PagedSearch {
+
+		/**
+		 * Searches the next page.
+		 * 
+		 * @param cursor Cursor of the previous page or null to fetch the first page.
+		 * 
+		 * @return Page of results or null, if nothing was found.
+		 * 
+		 * @throws Exception Thrown, if the search failed.
+		 */
+		SearchPage searchPage(SearchCursor cursor) throws Exception;
+	}
+
 	//
 	// Members
 	//
@@ -111,6 +136,9 @@ public class LuceneSearchDemo extends JPanel {
 	private File m_dirCurrent;
 	private final AtomicInteger m_iAddedMoleculeCount;
 	private String m_strLastSelectedPK;
+	private String m_strLastSearchType;
+	private PagedSearch m_lastSearch;
+	private SearchCursor m_cursorNextPage;
 
 	// Register panel
 	private JTextField m_tfFilename;
@@ -135,6 +163,7 @@ public class LuceneSearchDemo extends JPanel {
 	private JList m_lResults;
 	private JLabel m_lbHitCount;
 	private JLabel m_lbSearchTime;
+	private JButton m_btnNextPage;
 	private JLabel m_lbDetailsSmiles;
 	private JLabel m_lbDetailsStructureGif;
 
@@ -394,6 +423,8 @@ public class LuceneSearchDemo extends JPanel {
 		m_lResults = new JList(new DefaultListModel());
 		m_lbHitCount = new JLabel("0");
 		m_lbSearchTime = new JLabel("0");
+		m_btnNextPage = new JButton("Next Page");
+		m_btnNextPage.setEnabled(false);
 
 		m_lbSearchTerms = new JLabel("no search yet");
 		m_lbDetailsSmiles = new JLabel();
@@ -440,6 +471,7 @@ public class LuceneSearchDemo extends JPanel {
 		pStats.add(new JLabel("Hits in"));
 		pStats.add(m_lbSearchTime);
 		pStats.add(new JLabel("ms."));
+		pStats.add(m_btnNextPage);
 
 		LayoutUtils.constrain(panel, pSearchTerms, 0, 0, LayoutUtils.REMAINDER, 1,
 				LayoutUtils.HORIZONTAL, LayoutUtils.NORTHWEST, 1.0d, 0.0d,
@@ -458,6 +490,14 @@ public class LuceneSearchDemo extends JPanel {
 				BorderFactory.createTitledBorder("Search Results"),
 				BorderFactory.createEmptyBorder(5, 5, 5, 5)));
 
+		m_btnNextPage.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(final ActionEvent e) {
+				onSearchNextPage();
+			}
+		});
+
 		onUpdateResultDetails(null);
 
 		return panel;
@@ -520,6 +560,7 @@ public class LuceneSearchDemo extends JPanel {
 				m_btnSearchByMolecule.setEnabled(false);
 				m_btnSearchByFingerprintSimilarity.setEnabled(false);
 				m_btnSearchBySubstructure.setEnabled(false);
+				m_btnNextPage.setEnabled(false);
 				m_tfFilename.setEnabled(false);
 				m_tfPrimaryKeyField.setEnabled(false);
 				m_tfIgnoreUpToPK.setEnabled(false);
@@ -554,6 +595,7 @@ public class LuceneSearchDemo extends JPanel {
 							m_btnSearchByMolecule.setEnabled(true);
 							m_btnSearchByFingerprintSimilarity.setEnabled(true);
 							m_btnSearchBySubstructure.setEnabled(true);
+							m_btnNextPage.setEnabled(m_cursorNextPage != null);
 							m_tfFilename.setEnabled(true);
 							m_tfPrimaryKeyField.setEnabled(true);
 							m_tfIgnoreUpToPK.setEnabled(true);
@@ -679,96 +721,89 @@ public class LuceneSearchDemo extends JPanel {
 	}
 
 	protected void onSearch() {
-		doJob("Search", new Runnable() {
+		final String strSearch = m_tfSearch.getText();
+		onSearchFirstPage("Free Search", new PagedSearch() {
 			@Override
-			public void run() {
-				try {
-					final long lStart = System.currentTimeMillis();
-					final TopDocsCollector<ScoreDoc> collector =
-							m_index.searchMolecules(m_tfSearch.getText(), 1000000);
-					final long lEnd = System.currentTimeMillis();
-					onUpdateResults("Free Search", collector, (int)(lEnd - lStart));
-					onUpdateIndexStatistics();
-				}
-				catch (final Exception exc) {
-					LOGGER.log(Level.SEVERE, "Search failed.", exc);
-				}
+			public SearchPage searchPage(final SearchCursor cursor) throws Exception {
+				return m_index.searchMolecules(strSearch, cursor, PAGE_SIZE);
 			}
 		});
 	}
 
 	protected void onSearchByName() {
-		doJob("Search", new Runnable() {
+		final String strSearch = m_tfSearch.getText();
+		onSearchFirstPage("Search By Name", new PagedSearch() {
 			@Override
-			public void run() {
-				try {
-					final long lStart = System.currentTimeMillis();
-					final TopDocsCollector<ScoreDoc> collector =
-							m_index.searchMoleculesByName(m_tfSearch.getText(), 1000000);
-					final long lEnd = System.currentTimeMillis();
-					onUpdateResults("Search By Name", collector, (int)(lEnd - lStart));
-					onUpdateIndexStatistics();
-				}
-				catch (final Exception exc) {
-					LOGGER.log(Level.SEVERE, "Search failed.", exc);
-				}
+			public SearchPage searchPage(final SearchCursor cursor) throws Exception {
+				return m_index.searchMoleculesByName(strSearch, cursor, PAGE_SIZE);
 			}
 		});
 	}
 
 	protected void onSearchByMolecule() {
-		doJob("Search", new Runnable() {
+		final String strSearch = m_tfSearch.getText();
+		onSearchFirstPage("Search By Molecule", new PagedSearch() {
 			@Override
-			public void run() {
-				try {
-					final long lStart = System.currentTimeMillis();
-					final TopDocsCollector<ScoreDoc> collector =
-							m_index.searchExactMolecules(m_tfSearch.getText(), 1000000);
-					final long lEnd = System.currentTimeMillis();
-					onUpdateResults("Search By Molecule", collector, (int)(lEnd - lStart));
-					onUpdateIndexStatistics();
-				}
-				catch (final Exception exc) {
-					LOGGER.log(Level.SEVERE, "Search failed.", exc);
-				}
+			public SearchPage searchPage(final SearchCursor cursor) throws Exception {
+				return m_index.searchExactMolecules(strSearch, cursor, PAGE_SIZE);
 			}
 		});
 	}
 
 	protected void onSearchByFingerprintSimilarity() {
-		doJob("Search", new Runnable() {
+		final String strSearch = m_tfSearch.getText();
+		onSearchFirstPage("Search By FP Match", new PagedSearch() {
 			@Override
-			public void run() {
-				try {
-					final long lStart = System.currentTimeMillis();
-					final TopDocsCollector<ScoreDoc> collector =
-							m_index.searchMoleculesByFingerprintMatch(m_tfSearch.getText(), 1000000);
-					final long lEnd = System.currentTimeMillis();
-					onUpdateResults("Search By FP Match", collector, (int)(lEnd - lStart));
-					onUpdateIndexStatistics();
-				}
-				catch (final Exception exc) {
-					LOGGER.log(Level.SEVERE, "Search failed.", exc);
-				}
+			public SearchPage searchPage(final SearchCursor cursor) throws Exception {
+				return m_index.searchMoleculesByFingerprintMatch(strSearch, cursor, PAGE_SIZE);
 			}
 		});
 	}
 
 	protected void onSearchBySubstructure() {
+		final String strSearch = m_tfSearch.getText();
+		onSearchFirstPage("Search By Substructure", new PagedSearch() {
+			@Override
+			public SearchPage searchPage(final SearchCursor cursor) throws Exception {
+				return m_index.searchMoleculesWithSubstructure(strSearch, cursor, PAGE_SIZE);
+			}
+		});
+	}
+
+	protected void onSearchFirstPage(final String strSearchType, final PagedSearch search) {
+		m_strLastSearchType = strSearchType;
+		m_lastSearch = search;
+		m_cursorNextPage = null;
+		runPagedSearch(strSearchType, search, null);
+	}
+
+	protected void onSearchNextPage() {
+		if (m_lastSearch != null && m_cursorNextPage != null) {
+			runPagedSearch(m_strLastSearchType, m_lastSearch, m_cursorNextPage);
+		}
+	}
+
+	protected void runPagedSearch(final String strSearchType, final PagedSearch search, final SearchCursor cursor) {
 		doJob("Search", new Runnable() {
 			@Override
 			public void run() {
+				SearchPage page = null;
 				try {
 					final long lStart = System.currentTimeMillis();
-					final TopDocsCollector<ScoreDoc> collector =
-							m_index.searchMoleculesWithSubstructure(m_tfSearch.getText(), 10000);
+					page = search.searchPage(cursor);
 					final long lEnd = System.currentTimeMillis();
-					onUpdateResults("Search By Substructure", collector, (int)(lEnd - lStart));
+					onUpdateResults(strSearchType, page, cursor != null, (int)(lEnd - lStart));
 					onUpdateIndexStatistics();
 				}
+				catch (final SearchExpiredException exc) {
+					LOGGER.log(Level.WARNING, "Search expired. Please search again.", exc);
+				}
 				catch (final Exception exc) {
 					LOGGER.log(Level.SEVERE, "Search failed.", exc);
 				}
+				finally {
+					m_cursorNextPage = (page == null ? null : page.getCursor());
+				}
 			}
 		});
 	}
@@ -784,34 +819,36 @@ public class LuceneSearchDemo extends JPanel {
 		}
 	}
 
-	protected void onUpdateResults(final String strSearchType, final TopDocsCollector<ScoreDoc> collector,
-			final int iSearchTime) {
+	protected void onUpdateResults(final String strSearchType, final SearchPage page,
+			final boolean bAppend, final int iSearchTime) {
 		final DefaultListModel modelOld = (DefaultListModel)m_lResults.getModel();
-		modelOld.removeAllElements();
-
 		final DefaultListModel modelNew = new DefaultListModel();
+		if (bAppend) {
+			for (int i = 0; i < modelOld.getSize(); i++) {
+				modelNew.addElement(modelOld.getElementAt(i));
+			}
+		}
+		else {
+			modelOld.removeAllElements();
+		}
 		int iTotalHits = 0;
 
-		if (collector != null) {
-			try {
-				final String[] arrPKs = m_index.getPrimaryKeysForSearchHits(collector);
-				iTotalHits = arrPKs.length;
-				for (final String pk : arrPKs) {
-					modelNew.addElement(pk);
-				}
-			}
-			catch (final Exception exc) {
-				modelNew.addElement("Unable to deliver search results.");
-				LOGGER.log(Level.SEVERE, "Unable to deliver search results.", exc);
+		if (page != null) {
+			// Primary keys have been resolved with the hits
+			for (final String pk : page.getPrimaryKeys()) {
+				modelNew.addElement(pk);
 			}
+			iTotalHits = Math.max(page.getTotalHits(), modelNew.getSize());
 		}
 
-		m_lbSearchTerms.setText(strSearchType + ": " + m_tfSearch.getText());
+		if (!bAppend) {
+			m_lbSearchTerms.setText(strSearchType + ": " + m_tfSearch.getText());
+		}
 		m_lResults.setModel(modelNew);
 		m_lbHitCount.setText("" + iTotalHits);
 		m_lbSearchTime.setText("" + iSearchTime);
 
-		if (!modelNew.isEmpty()) {
+		if (!bAppend && !modelNew.isEmpty()) {
 			m_lResults.setSelectedIndex(0);
 		}
 	}
@@ -900,6 +937,8 @@ public class LuceneSearchDemo extends JPanel {
 
 		// Setup Lucene Chemical Index
 		final File dirIndex = new File(args.length > 0 ? args[0] : "index");
+		// Optional: NIOFS (default), MMAP or RAM
+		final DirectoryType directoryType = (args.length > 1 ? DirectoryType.valueOf(args[1]) : DirectoryType.NIOFS);
 		ChemicalIndex.prepareIndexDirectory(dirIndex, true);
 		ChemicalIndex index = null;
 
@@ -922,7 +961,7 @@ public class LuceneSearchDemo extends JPanel {
 				"http://web.global.nibr.novartis.net/services/depicter/mol-renderer/.png?smiles=%VALUE%&w=%WIDTH%&h=%HEIGHT%");
 
 		try {
-			index = new ChemicalIndex(new NIOFSDirectory(dirIndex), analyzerFactory,
+			index = new ChemicalIndex(directoryType.open(dirIndex), analyzerFactory,
 					fingerprintFactory, null);
 
 			// Prepare GUI
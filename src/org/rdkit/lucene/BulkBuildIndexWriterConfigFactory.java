@@ -0,0 +1,102 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TieredMergePolicy;
+
+/**
+ * Index writer configuration for building a large index in one go, e.g. with
+ * {@link ChemicalIndex#startBulkLoad()} and {@link ChemicalIndex#addSDFFileToIndex(java.io.File,
+ * String, String, java.util.Set, int)}.
+ * <p>
+ * A large RAM buffer flushes few, large segments and allows one indexing thread
+ * state per processor, so all converter threads of the ingestion can add documents
+ * in parallel. Merges combine many segments at once and run on several threads,
+ * which reduces how often documents get rewritten. Compound files are not used, as
+ * they cost an additional copy of every segment.
+ * <p>
+ * Trade-offs: The RAM buffer occupies up to {@value #RAM_BUFFER_SIZE_MB} MB of heap
+ * while indexing, new molecules become searchable only after a flush, and the
+ * resulting index consists of more segments with more open files than with the
+ * default configuration. Finish with a merge to few segments (see
+ * {@link ChemicalIndex#finishBulkLoad(int)}), if the index will be read mostly afterwards.
+ */
+public class BulkBuildIndexWriterConfigFactory extends DefaultIndexWriterConfigFactory {
+
+	//
+	// Constants
+	//
+
+	/** Size of the RAM buffer in MB. */
+	public static final double RAM_BUFFER_SIZE_MB = 256.0d;
+
+	/** Number of segments per tier and number of segments merged at once. */
+	public static final double SEGMENTS_PER_TIER = 30.0d;
+
+	//
+	// Constructor
+	//
+
+	public BulkBuildIndexWriterConfigFactory(final AnalyzerFactory analyzerFactory) {
+		super(analyzerFactory);
+	}
+
+	//
+	// Public Methods
+	//
+
+	@Override
+	public IndexWriterConfig createIndexWriterConfig(final Analyzer analyzer) {
+		final int iProcessors = Runtime.getRuntime().availableProcessors();
+
+		final TieredMergePolicy mergePolicy = new TieredMergePolicy();
+		mergePolicy.setSegmentsPerTier(SEGMENTS_PER_TIER);
+		mergePolicy.setMaxMergeAtOnce((int)SEGMENTS_PER_TIER);
+		mergePolicy.setUseCompoundFile(false);
+
+		final ConcurrentMergeScheduler mergeScheduler = new ConcurrentMergeScheduler();
+		final int iMergeThreads = Math.max(1, Math.min(4, iProcessors / 4));
+		mergeScheduler.setMaxMergeCount(iMergeThreads + 2);
+		mergeScheduler.setMaxThreadCount(iMergeThreads);
+
+		return super.createIndexWriterConfig(analyzer)
+				.setRAMBufferSizeMB(RAM_BUFFER_SIZE_MB)
+				.setMaxBufferedDocs(IndexWriterConfig.DISABLE_AUTO_FLUSH)
+				.setMaxThreadStates(Math.max(IndexWriterConfig.DEFAULT_MAX_THREAD_STATES, iProcessors))
+				.setMergePolicy(mergePolicy)
+				.setMergeScheduler(mergeScheduler);
+	}
+}
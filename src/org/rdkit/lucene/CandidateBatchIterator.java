@@ -0,0 +1,197 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.ReaderUtil;
+import org.rdkit.lucene.util.IndexUtils;
+
+/**
+ * Pulls the documents matching a query lazily in batches of limited size,
+ * instead of collecting all of them at once. Segments are visited one after
+ * another through the scorer of the query, so batches are in increasing
+ * document id order and memory usage does not depend on the number of matches.
+ * This is used to feed screening candidates into substructure verification.
+ * The iteration can start at any document id, e.g. to resume a search where
+ * a previous page stopped.
+ */
+public class CandidateBatchIterator {
+
+	//
+	// Constants
+	//
+
+	/** Default number of candidates per batch. */
+	public static final int DEFAULT_BATCH_SIZE = 4096;
+
+	//
+	// Members
+	//
+
+	/** The query weight. */
+	private final Weight m_weight;
+
+	/** All segment readers. */
+	private final IndexReader[] m_arrSegmentReaders;
+
+	/** Document id base of every segment. */
+	private final int[] m_arrDocBases;
+
+	/** Maximum number of candidates per batch. */
+	private final int m_iBatchSize;
+
+	/** First top level document id to be delivered. */
+	private final int m_iStartDoc;
+
+	/** Current segment. */
+	private int m_iSegment;
+
+	/** Scorer of the current segment or null, if the segment was not started yet. */
+	private Scorer m_scorer;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new iterator for the matches of the specified query.
+	 * 
+	 * @param searcher Searcher. Must not be null.
+	 * @param query Query, e.g. a fingerprint screen. Must not be null.
+	 * @param iBatchSize Maximum number of candidates per batch. Must be &gt; 0.
+	 * 
+	 * @throws IOException Thrown, if the query could not be prepared.
+	 */
+	public CandidateBatchIterator(final IndexSearcher searcher, final Query query, final int iBatchSize)
+			throws IOException {
+		this(searcher, query, iBatchSize, 0);
+	}
+
+	/**
+	 * Creates a new iterator for the matches of the specified query, which
+	 * skips all matches before the specified document id.
+	 * 
+	 * @param searcher Searcher. Must not be null.
+	 * @param query Query, e.g. a fingerprint screen. Must not be null.
+	 * @param iBatchSize Maximum number of candidates per batch. Must be &gt; 0.
+	 * @param iStartDoc First top level document id to be delivered. Must be &gt;= 0.
+	 * 
+	 * @throws IOException Thrown, if the query could not be prepared.
+	 */
+	public CandidateBatchIterator(final IndexSearcher searcher, final Query query, final int iBatchSize,
+			final int iStartDoc) throws IOException {
+		if (searcher == null) {
+			throw new IllegalArgumentException("Searcher must not be null.");
+		}
+		if (query == null) {
+			throw new IllegalArgumentException("Query must not be null.");
+		}
+		if (iBatchSize <= 0) {
+			throw new IllegalArgumentException("Batch size must be > 0.");
+		}
+		if (iStartDoc < 0) {
+			throw new IllegalArgumentException("Start document must be >= 0.");
+		}
+
+		m_weight = searcher.createNormalizedWeight(query);
+		m_arrSegmentReaders = searcher.getSubReaders();
+		m_arrDocBases = IndexUtils.getDocBases(m_arrSegmentReaders);
+		m_iBatchSize = iBatchSize;
+		m_iStartDoc = iStartDoc;
+		m_iSegment = (iStartDoc < searcher.maxDoc() ? ReaderUtil.subIndex(iStartDoc, m_arrDocBases) :
+			m_arrSegmentReaders.length);
+		m_scorer = null;
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Returns the next batch of matching documents in document id order
+	 * with top level document ids and their scores.
+	 * 
+	 * @return Next batch or null, if there are no more matches.
+	 * 
+	 * @throws IOException Thrown, if the index could not be read.
+	 */
+	public ScoreDoc[] nextBatch() throws IOException {
+		ScoreDoc[] arrBatch = new ScoreDoc[m_iBatchSize];
+		int iCount = 0;
+
+		while (iCount < m_iBatchSize && m_iSegment < m_arrSegmentReaders.length) {
+			final int iDoc;
+			if (m_scorer == null) {
+				m_scorer = m_weight.scorer(m_arrSegmentReaders[m_iSegment], true, false);
+				if (m_scorer == null) {
+					// No matches in this segment
+					m_iSegment++;
+					continue;
+				}
+
+				final int iSegmentStartDoc = m_iStartDoc - m_arrDocBases[m_iSegment];
+				iDoc = (iSegmentStartDoc > 0 ? m_scorer.advance(iSegmentStartDoc) : m_scorer.nextDoc());
+			}
+			else {
+				iDoc = m_scorer.nextDoc();
+			}
+
+			if (iDoc == DocIdSetIterator.NO_MORE_DOCS) {
+				m_scorer = null;
+				m_iSegment++;
+			}
+			else {
+				arrBatch[iCount++] = new ScoreDoc(m_arrDocBases[m_iSegment] + iDoc, m_scorer.score());
+			}
+		}
+
+		if (iCount == 0) {
+			arrBatch = null;
+		}
+		else if (iCount < m_iBatchSize) {
+			final ScoreDoc[] arrShortBatch = new ScoreDoc[iCount];
+			System.arraycopy(arrBatch, 0, arrShortBatch, 0, iCount);
+			arrBatch = arrShortBatch;
+		}
+
+		return arrBatch;
+	}
+}
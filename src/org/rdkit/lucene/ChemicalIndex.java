@@ -33,18 +33,23 @@
 package org.rdkit.lucene;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.GZIPInputStream;
 
 import org.RDKit.GenericRDKitException;
 import org.RDKit.RDKFuncs;
@@ -54,7 +59,6 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Index;
 import org.apache.lucene.document.Field.Store;
-import org.apache.lucene.document.Fieldable;
 import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.FieldInfos;
 import org.apache.lucene.index.IndexNotFoundException;
@@ -65,20 +69,35 @@ import org.apache.lucene.queryParser.MultiFieldQueryParser;
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherLifetimeManager;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.TopDocsCollector;
 import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.TotalHitCountCollector;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.FixedBitSet;
 import org.apache.lucene.util.ReaderUtil;
 import org.apache.lucene.util.Version;
 import org.rdkit.lucene.bin.RDKit;
+import org.rdkit.lucene.cache.FixedTopDocsCollector;
+import org.rdkit.lucene.cache.MoleculeCache;
+import org.rdkit.lucene.cache.PrimaryKeyScoreDoc;
+import org.rdkit.lucene.cache.QueryCache;
+import org.rdkit.lucene.cache.QueryCache.PreparedQuery;
+import org.rdkit.lucene.cache.ResultCache;
 import org.rdkit.lucene.fingerprint.FingerprintFactory;
-import org.rdkit.lucene.sdf.SDFParser;
 import org.rdkit.lucene.sdf.SDFRecord;
+import org.rdkit.lucene.store.FingerprintColumn;
+import org.rdkit.lucene.store.FingerprintStore;
+import org.rdkit.lucene.util.IndexUtils;
 
 public class ChemicalIndex {
 
@@ -100,17 +119,116 @@ public class ChemicalIndex {
 	/** Field name of the fingerprint. */
 	public static final String FIELD_FP = "fp";
 
+	/** Field name of the binary RDKit molecule, which is only stored on demand. */
+	public static final String FIELD_MOL = "mol";
+
 	/** Field name of molecule names (synonyms). */
 	public static final String FIELD_NAME = "name";
 
 	/** Empty results. */
 	private static final String[] EMPTY_RESULTS = new String[0];
 
+	/** Default budget of the molecule cache in estimated native bytes. */
+	public static final long DEFAULT_MOLECULE_CACHE_SIZE = 64L * 1024 * 1024;
+
+	/** Default budget of the result cache in estimated heap bytes. */
+	public static final long DEFAULT_RESULT_CACHE_SIZE = 16L * 1024 * 1024;
+
+	/** Default maximum number of prepared queries in the query cache. */
+	public static final int DEFAULT_QUERY_CACHE_SIZE = 1024;
+
+	/** Default interval in milliseconds between two reopen attempts of the searcher. */
+	public static final long DEFAULT_REOPEN_INTERVAL = 1000;
+
+	/** Default time in seconds that a replaced searcher is kept for search cursors. */
+	public static final long DEFAULT_CURSOR_LIFETIME = 60;
+
+	//
+	// Inner Classes
+	//
+
+	/**
+	 * An index searcher, which knows the cache generations that belong to its
+	 * reader. Document ids are only valid for the reader they were obtained from,
+	 * so searches on a replaced searcher must not read or fill the molecule and
+	 * result caches of the current one.
+	 * <p>
+	 * The searcher also holds the primary key column of every segment, which is
+	 * taken from the Lucene field cache. Resolving the primary key of a hit is an
+	 * array read instead of loading its stored document with all its fields. The
+	 * field cache keeps the column of a segment as long as the segment is open,
+	 * so a reopened searcher only loads the columns of new segments. Search results
+	 * take the primary keys of their hits along (see {@link PrimaryKeyColumn}), so
+	 * a replaced searcher does not need to be kept open for them.
+	 */
+	protected static class ChemicalSearcher extends IndexSearcher {
+
+		/** Result cache generation of this searcher. It changes, if settings affecting results change. */
+		private volatile int m_iResultCacheGeneration;
+
+		/** Primary keys of all documents of the searcher. */
+		private final PrimaryKeyColumn m_primaryKeys;
+
+		/**
+		 * Creates a new searcher and loads the primary key columns of all segments.
+		 * 
+		 * @param reader Index reader. Must not be null.
+		 * @param iResultCacheGeneration Result cache generation of the reader.
+		 * 
+		 * @throws IOException Thrown, if the primary keys could not be read.
+		 */
+		protected ChemicalSearcher(final IndexReader reader, final int iResultCacheGeneration) throws IOException {
+			super(reader);
+			m_iResultCacheGeneration = iResultCacheGeneration;
+			m_primaryKeys = new PrimaryKeyColumn(reader, FIELD_PK);
+		}
+
+		/**
+		 * Returns the primary keys of all documents of this searcher.
+		 * 
+		 * @return Primary key column.
+		 */
+		public PrimaryKeyColumn getPrimaryKeyColumn() {
+			return m_primaryKeys;
+		}
+
+		/**
+		 * Returns the result cache generation of this searcher.
+		 * 
+		 * @return Result cache generation.
+		 */
+		public int getResultCacheGeneration() {
+			return m_iResultCacheGeneration;
+		}
+	}
+
+	/**
+	 * Creates the searchers of the searcher manager. Every new reader starts
+	 * a new result cache generation and lets the fingerprint store remove column
+	 * files of segments that got merged away.
+	 */
+	private class ChemicalSearcherFactory extends SearcherFactory {
+
+		@Override
+		public IndexSearcher newSearcher(final IndexReader reader) throws IOException {
+			// Document ids of cached results belong to the previous reader, while cached
+			// molecules are keyed by segment core and stay valid for unchanged segments
+			m_resultCache.invalidate();
+
+			// Fingerprint columns are built lazily by the first screen or similarity
+			// search that needs them, so only obsolete column files are removed here
+			m_fingerprintStore.deleteObsoleteFiles(reader);
+
+			// searcher.setSimilarity(new ChemicalSimiliarity()); // TODO
+			return new ChemicalSearcher(reader, m_resultCache.getGeneration());
+		}
+	}
+
 	//
 	// Members
 	//
 
-	private boolean m_bShutdown;
+	private volatile boolean m_bShutdown;
 
 	private final Directory m_directory;
 
@@ -120,15 +238,50 @@ public class ChemicalIndex {
 
 	private final IndexWriterConfigFactory m_configFactory;
 
-	private IndexWriter m_writer;
+	private volatile IndexWriter m_writer;
+
+	private volatile SearcherManager m_searcherManager;
+
+	private final SearcherFactory m_searcherFactory;
+
+	private long m_lReopenInterval;
+
+	private ScheduledExecutorService m_reopenExecutor;
+
+	/** Keeps searchers of search cursors open. Replaced, when the index gets closed. */
+	private volatile SearcherLifetimeManager m_searcherLifetimes;
+
+	private volatile long m_lCursorLifetime;
 
-	private IndexSearcher m_searcher;
+	private final FingerprintStore m_fingerprintStore;
+
+	private final MoleculeCache m_moleculeCache;
+
+	private final ResultCache m_resultCache;
+
+	private final QueryCache m_queryCache;
+
+	private volatile ScreenMode m_screenMode;
+
+	private volatile float m_fMaxScreenBitFrequency;
+
+	private volatile boolean m_bStoreBinaryMolecules;
+
+	private volatile boolean m_bUseBinaryMolecules;
+
+	private volatile boolean m_bBulkLoad;
+
+	private int m_iSearchThreadCount;
+
+	private ThreadPoolExecutor m_searchExecutor;
 
 	private final List<IndexListener> m_lListener;
 
-	private final Object m_lockWriter = new Object(); // TODO: Used to block reading operations when writing
+	/** Guards creation and closing of the writer. Acquired before m_lockSearcher. */
+	private final Object m_lockWriter = new Object();
 
-	private final Object m_lockSearcher = new Object(); // TODO: Used to block writing operations when reading
+	/** Guards replacing, reopening and closing of the searcher manager. */
+	private final Object m_lockSearcher = new Object();
 
 	//
 	// Constructor
@@ -179,7 +332,23 @@ public class ChemicalIndex {
 		m_fingerprintFactory = fingerprintFactory;
 		m_configFactory = (configFactory == null ? new DefaultIndexWriterConfigFactory(analyzerFactory) : configFactory);
 		m_writer = null;
-		m_searcher = null;
+		m_searcherManager = null;
+		m_searcherFactory = new ChemicalSearcherFactory();
+		m_lReopenInterval = DEFAULT_REOPEN_INTERVAL;
+		m_reopenExecutor = null;
+		m_searcherLifetimes = new SearcherLifetimeManager();
+		m_lCursorLifetime = DEFAULT_CURSOR_LIFETIME;
+		m_fingerprintStore = new FingerprintStore(directory, FIELD_FP);
+		m_moleculeCache = new MoleculeCache(DEFAULT_MOLECULE_CACHE_SIZE);
+		m_resultCache = new ResultCache(DEFAULT_RESULT_CACHE_SIZE);
+		m_queryCache = new QueryCache(DEFAULT_QUERY_CACHE_SIZE);
+		m_screenMode = ScreenMode.TERM_QUERY;
+		m_fMaxScreenBitFrequency = 1.0f;
+		m_bStoreBinaryMolecules = false;
+		m_bUseBinaryMolecules = true;
+		m_bBulkLoad = false;
+		m_iSearchThreadCount = Runtime.getRuntime().availableProcessors();
+		m_searchExecutor = null;
 		m_lListener = new ArrayList<IndexListener>();
 	}
 
@@ -214,98 +383,412 @@ public class ChemicalIndex {
 	}
 
 	/**
-	 * Adds the specified SDF file to the index.
+	 * Returns the mode that is used to screen molecules by fingerprint.
 	 * 
-	 * @param sdfFile SDF File. Must not be null.
-	 * @param strFieldPrimaryKey The field name that holds the primary key. Must not be null.
-	 * @param strIgnoreUpToPK Start indexing on that primery key. Ignore the ones before. Can be null.
-	 * @param setIgnorePKs Set of primary keys with structures that shall not be indexed. Can be null.
+	 * @return Screen mode. Never null.
+	 */
+	public ScreenMode getScreenMode() {
+		return m_screenMode;
+	}
+
+	/**
+	 * Sets the mode that is used to screen molecules by fingerprint. This
+	 * affects fingerprint match searches as well as the screening
+	 * step of substructure searches. Cached results are discarded.
 	 * 
-	 * @throws IOException
+	 * @param screenMode Screen mode. Must not be null.
 	 */
-	public void addSDFFileToIndex(final File sdfFile, final String strFieldPrimaryKey,
-			final String strIgnoreUpToPK, final Set<String> setIgnorePKs) throws IOException {
-		// Pre-checks
-		if (sdfFile == null) {
-			throw new IllegalArgumentException("The SDF File must not be null.");
+	public void setScreenMode(final ScreenMode screenMode) {
+		if (screenMode == null) {
+			throw new IllegalArgumentException("Screen mode must not be null.");
 		}
-		if (strFieldPrimaryKey == null) {
-			throw new IllegalArgumentException("The primary key field of the SDF File must not be null.");
+
+		if (m_screenMode != screenMode) {
+			m_screenMode = screenMode;
+			invalidateResults();
 		}
+	}
 
-		int iTotalErrors = 0;
-		int iSubsequentialErrors = 0;
+	/**
+	 * Returns the maximum fraction of all documents a query bit may be set in
+	 * to be used for screening in {@link ScreenMode#LEAPFROG} mode.
+	 * 
+	 * @return Maximum bit frequency (0.0 - 1.0).
+	 */
+	public float getMaxScreenBitFrequency() {
+		return m_fMaxScreenBitFrequency;
+	}
 
-		InputStream in = new FileInputStream(sdfFile);
-		try {
-			final String strFileName = sdfFile.getName();
-			if (strFileName.endsWith(".gz")
-					|| strFileName.endsWith(".zip")) {
-				in = new GZIPInputStream(in);
-			}
-			final SDFParser parser = new SDFParser(sdfFile.getName(), in, 1, 0);
-			SDFRecord molSdf = null;
-			boolean bStartAdding = (strIgnoreUpToPK == null);
+	/**
+	 * Sets the maximum fraction of all documents a query bit may be set in
+	 * to be used for screening in {@link ScreenMode#LEAPFROG} mode. More common
+	 * bits are dropped from the screen, which admits more candidates, but saves
+	 * intersecting long posting lists. Default is 1.0, which uses all bits.
+	 * Cached results are discarded.
+	 * 
+	 * @param fMaxBitFrequency Maximum bit frequency (&gt; 0.0 - 1.0).
+	 */
+	public void setMaxScreenBitFrequency(final float fMaxBitFrequency) {
+		if (!(fMaxBitFrequency > 0.0f && fMaxBitFrequency <= 1.0f)) {
+			throw new IllegalArgumentException("Maximum bit frequency must be > 0.0 and <= 1.0.");
+		}
 
-			while ((molSdf = parser.readSdfRecord()) != null) {
-				String strPK = null;
+		if (m_fMaxScreenBitFrequency != fMaxBitFrequency) {
+			m_fMaxScreenBitFrequency = fMaxBitFrequency;
+			invalidateResults();
+		}
+	}
 
-				try {
-					final Object objPK = molSdf.get(strFieldPrimaryKey);
-					if (objPK != null) {
-						strPK = objPK.toString();
-
-						if (bStartAdding && (setIgnorePKs == null || !setIgnorePKs.contains(strPK))) {
-							final String strStructure = molSdf.getStructure();
-							if (strStructure != null) {
-								addMoleculeAsSDF(strPK, molSdf, null, molSdf);
-							}
-							else {
-								LOGGER.log(Level.WARNING, "No structure found for primary key '" +
-										strPK + "' not found. Ignoring.");
-							}
-						}
-						else if (strPK.equals(strIgnoreUpToPK)) {
-							bStartAdding = true;
-						}
-					}
-					else {
-						strPK = " at line " + molSdf.get(SDFRecord.PROPERTY_LINE_NUMBER);
-						throw new IllegalArgumentException("Primary key field '" +
-								strFieldPrimaryKey + "' not found.");
-					}
+	/**
+	 * Returns true, if added molecules are also stored as binary RDKit molecules.
+	 * 
+	 * @return True, if binary molecules are stored.
+	 */
+	public boolean isStoreBinaryMolecules() {
+		return m_bStoreBinaryMolecules;
+	}
 
-					iSubsequentialErrors = 0;
-				}
-				catch (final Exception exc) {
-					iSubsequentialErrors++;
-					iTotalErrors++;
-					LOGGER.log(Level.SEVERE, "Molecule " + strPK + " could not be added to index.", exc);
+	/**
+	 * Determines, if added molecules shall also be stored as binary RDKit molecules
+	 * (pickles). Substructure searches can rebuild these molecules much faster than
+	 * parsing their SMILES again, at the cost of a bigger index. Default is false.
+	 * Molecules that have been added before are not affected.
+	 * 
+	 * @param bStore True to store binary molecules.
+	 */
+	public void setStoreBinaryMolecules(final boolean bStore) {
+		m_bStoreBinaryMolecules = bStore;
+	}
 
-					if (iSubsequentialErrors > 100) {
-						throw new IOException("Too many errors in a row. Giving up.", exc);
-					}
+	/**
+	 * Returns true, if substructure searches verify candidates based on their
+	 * binary RDKit molecules (if stored).
+	 * 
+	 * @return True, if binary molecules are used.
+	 */
+	public boolean isUseBinaryMolecules() {
+		return m_bUseBinaryMolecules;
+	}
 
-					if (exc instanceof IOException) {
-						throw (IOException)exc;
-					}
+	/**
+	 * Determines, if substructure searches shall verify candidates based on their
+	 * binary RDKit molecules. Candidates without binary molecule are always
+	 * verified based on their SMILES. Default is true.
+	 * 
+	 * @param bUse True to use binary molecules, false to always parse SMILES.
+	 */
+	public void setUseBinaryMolecules(final boolean bUse) {
+		m_bUseBinaryMolecules = bUse;
+	}
+
+	/**
+	 * Returns the cache of parsed molecules, which substructure searches use to
+	 * avoid parsing the same candidates again and again. It provides hit, miss and
+	 * eviction counters. Molecules of unchanged segments survive reopening the searcher,
+	 * molecules of a segment are removed when the segment gets closed.
+	 * 
+	 * @return Molecule cache. Never null.
+	 */
+	public MoleculeCache getMoleculeCache() {
+		return m_moleculeCache;
+	}
+
+	/**
+	 * Sets the budget of the molecule cache in estimated native bytes. Default is
+	 * {@link #DEFAULT_MOLECULE_CACHE_SIZE}.
+	 * 
+	 * @param lBytes Budget in bytes. 0 disables caching.
+	 */
+	public void setMoleculeCacheSize(final long lBytes) {
+		m_moleculeCache.setMaxSize(lBytes);
+	}
+
+	/**
+	 * Returns the cache of search results, which exact, fingerprint match and
+	 * substructure searches use to answer repeated queries without searching
+	 * again. It provides hit, miss and eviction counters as well as the hit rate.
+	 * The cache is invalidated whenever a new searcher gets opened.
+	 * 
+	 * @return Result cache. Never null.
+	 */
+	public ResultCache getResultCache() {
+		return m_resultCache;
+	}
+
+	/**
+	 * Sets the budget of the result cache in estimated heap bytes. Default is
+	 * {@link #DEFAULT_RESULT_CACHE_SIZE}.
+	 * 
+	 * @param lBytes Budget in bytes. 0 disables caching.
+	 */
+	public void setResultCacheSize(final long lBytes) {
+		m_resultCache.setMaxSize(lBytes);
+	}
+
+	/**
+	 * Returns the cache of prepared queries, which holds canonical SMILES, query
+	 * fingerprints and query molecules of recent search SMILES, so repeated and paged
+	 * searches skip this RDKit work. It provides hit, miss and eviction counters.
+	 * Prepared queries do not depend on the index content and survive reopening the searcher.
+	 * 
+	 * @return Query cache. Never null.
+	 */
+	public QueryCache getQueryCache() {
+		return m_queryCache;
+	}
+
+	/**
+	 * Sets the maximum number of prepared queries in the query cache. Default is
+	 * {@link #DEFAULT_QUERY_CACHE_SIZE}.
+	 * 
+	 * @param iSize Maximum number of queries. 0 disables caching.
+	 */
+	public void setQueryCacheSize(final int iSize) {
+		m_queryCache.setMaxSize(iSize);
+	}
+
+	/**
+	 * Returns the number of threads that are used to scan fingerprints
+	 * for similarity searches and to verify substructure candidates in parallel.
+	 * 
+	 * @return Number of search threads.
+	 */
+	public synchronized int getSearchThreadCount() {
+		return m_iSearchThreadCount;
+	}
+
+	/**
+	 * Sets the number of threads that are used to scan fingerprints
+	 * for similarity searches and to verify substructure candidates in parallel. Default is the number of available
+	 * processors. The existing thread pool is resized, so running searches keep using it and are never rejected.
+	 * Surplus threads terminate as soon as they become idle.
+	 * 
+	 * @param iThreadCount Number of search threads. Must be > 0.
+	 */
+	public synchronized void setSearchThreadCount(final int iThreadCount) {
+		if (iThreadCount <= 0) {
+			throw new IllegalArgumentException("Number of search threads must be > 0.");
+		}
+
+		if (iThreadCount != m_iSearchThreadCount) {
+			m_iSearchThreadCount = iThreadCount;
+			if (m_searchExecutor != null) {
+				// The core size must never exceed the maximum size
+				if (iThreadCount > m_searchExecutor.getMaximumPoolSize()) {
+					m_searchExecutor.setMaximumPoolSize(iThreadCount);
+					m_searchExecutor.setCorePoolSize(iThreadCount);
+				}
+				else {
+					m_searchExecutor.setCorePoolSize(iThreadCount);
+					m_searchExecutor.setMaximumPoolSize(iThreadCount);
 				}
 			}
 		}
-		finally {
-			if (in != null) {
-				try {
-					in.close();
-				}
-				catch (final IOException exc) {
-					// Ignored
+	}
+
+	/**
+	 * Returns the interval between two attempts of the background thread
+	 * to reopen the searcher.
+	 * 
+	 * @return Reopen interval in milliseconds. 0, if reopening in the background is disabled.
+	 */
+	public long getReopenInterval() {
+		synchronized (m_lockSearcher) {
+			return m_lReopenInterval;
+		}
+	}
+
+	/**
+	 * Sets the interval between two attempts of the background thread to reopen
+	 * the searcher. Molecules added since the last reopen become searchable with
+	 * the next attempt. Reopening never blocks running searches, they finish on
+	 * the searcher they started with. Default is {@value #DEFAULT_REOPEN_INTERVAL} ms.
+	 * 
+	 * @param lMillis Reopen interval in milliseconds. 0 disables reopening in the
+	 * 		background, so changes become searchable only by calling {@link #refresh()}.
+	 */
+	public void setReopenInterval(final long lMillis) {
+		if (lMillis < 0) {
+			throw new IllegalArgumentException("Reopen interval must not be negative.");
+		}
+
+		synchronized (m_lockSearcher) {
+			if (lMillis != m_lReopenInterval) {
+				m_lReopenInterval = lMillis;
+				if (m_searcherManager != null) {
+					stopReopenThread();
+					startReopenThread();
 				}
 			}
 		}
-		if (iTotalErrors > 0) {
-			LOGGER.log(Level.SEVERE, iTotalErrors + " molecules could not be added due to errors.");
+	}
+
+	/**
+	 * Returns the time that a searcher, which delivered a page of results, is kept
+	 * open after it has been replaced by a newer one.
+	 * 
+	 * @return Cursor lifetime in seconds.
+	 */
+	public long getCursorLifetime() {
+		return m_lCursorLifetime;
+	}
+
+	/**
+	 * Sets the time that a searcher, which delivered a page of results, is kept
+	 * open after it has been replaced by a newer one. As long as it is open, further
+	 * pages of its searches (see {@link SearchCursor}) are served by the same
+	 * searcher and stay consistent. Afterwards they fail with a {@link SearchExpiredException}.
+	 * Only searchers that delivered a cursor are kept, other search results carry
+	 * the primary keys of their hits and do not need their searcher anymore.
+	 * Every searcher holds its index files, so a long
+	 * lifetime may keep disk space and file handles of merged segments occupied.
+	 * Default is {@value #DEFAULT_CURSOR_LIFETIME} seconds.
+	 * 
+	 * @param lSeconds Cursor lifetime in seconds. 0 releases replaced searchers with the next reopen.
+	 */
+	public void setCursorLifetime(final long lSeconds) {
+		if (lSeconds < 0) {
+			throw new IllegalArgumentException("Cursor lifetime must not be negative.");
+		}
+
+		m_lCursorLifetime = lSeconds;
+	}
+
+	/**
+	 * Reopens the searcher, if molecules were added or deleted since it was
+	 * opened, so that these changes become searchable. This happens also
+	 * periodically in the background (see {@link #setReopenInterval(long)}).
+	 * Running searches are not affected, they finish on the searcher they started with.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if the index could not be reopened.
+	 */
+	public void refresh() throws IOException {
+		synchronized (m_lockSearcher) {
+			if (m_searcherManager != null) {
+				m_searcherManager.maybeRefresh();
+			}
+		}
+
+		// Searchers of outdated cursors are released
+		m_searcherLifetimes.prune(new SearcherLifetimeManager.PruneByAge(m_lCursorLifetime));
+	}
+
+	/**
+	 * Commits all added molecules to the index directory, so that they
+	 * survive a crash and become visible for other processes. This is done
+	 * also when the index is closed.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if committing failed.
+	 */
+	public void commit() throws IOException {
+		synchronized (m_lockWriter) {
+			if (m_writer != null) {
+				m_writer.commit();
+			}
+		}
+	}
+
+	/**
+	 * Returns true, if the index is in bulk load mode.
+	 * 
+	 * @return True, if molecules are added without removing existing ones with the same primary key.
+	 */
+	public boolean isBulkLoad() {
+		return m_bBulkLoad;
+	}
+
+	/**
+	 * Starts the bulk load mode, which is meant for filling an empty index or
+	 * appending molecules that are known to be new. In this mode added molecules
+	 * do not remove molecules with the same primary key, which saves buffering a
+	 * delete term per molecule and applying it when flushing and merging. Adding
+	 * a primary key that exists already results in duplicates. SDF files added by
+	 * {@link #addSDFFileToIndex(File, String, String, Set, int)} are still deduplicated,
+	 * if they contain a primary key several times. Call {@link #finishBulkLoad(int)} when done.
+	 */
+	public void startBulkLoad() {
+		m_bBulkLoad = true;
+	}
+
+	/**
+	 * Finishes the bulk load mode. Optionally the index gets merged down to the
+	 * specified number of segments, which takes time and temporarily needs disk
+	 * space for a copy of the index, but speeds up searches on an index that is
+	 * rarely changed afterwards. All changes get committed and searchable.
+	 * 
+	 * @param iMaxSegments Maximum number of segments to merge the index into.
+	 * 		0 does not merge.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if merging or committing failed.
+	 */
+	public void finishBulkLoad(final int iMaxSegments) throws IOException {
+		if (iMaxSegments < 0) {
+			throw new IllegalArgumentException("Maximum number of segments must not be negative.");
+		}
+
+		m_bBulkLoad = false;
+
+		final IndexWriter writer = prepareWriter();
+		if (writer != null) {
+			if (iMaxSegments > 0) {
+				writer.forceMerge(iMaxSegments);
+			}
+			commit();
+			refresh();
 		}
 	}
+
+	/**
+	 * Adds the specified SDF file to the index using one converter thread per
+	 * available processor (see {@link #addSDFFileToIndex(File, String, String, Set, int)}).
+	 * 
+	 * @param sdfFile SDF File. Must not be null.
+	 * @param strFieldPrimaryKey The field name that holds the primary key. Must not be null.
+	 * @param strIgnoreUpToPK Start indexing on that primery key. Ignore the ones before. Can be null.
+	 * @param setIgnorePKs Set of primary keys with structures that shall not be indexed. Can be null.
+	 * 
+	 * @throws IOException
+	 */
+	public void addSDFFileToIndex(final File sdfFile, final String strFieldPrimaryKey,
+			final String strIgnoreUpToPK, final Set<String> setIgnorePKs) throws IOException {
+		addSDFFileToIndex(sdfFile, strFieldPrimaryKey, strIgnoreUpToPK, setIgnorePKs,
+				Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Adds the specified SDF file to the index. One thread reads the records,
+	 * while the specified number of threads canonicalize and fingerprint them and
+	 * add them to the index in parallel (see {@link SDFIngester}). If several records
+	 * have the same primary key, the last one wins. The added molecules are
+	 * committed and searchable, when this method returns.
+	 * 
+	 * @param sdfFile SDF File. Must not be null.
+	 * @param strFieldPrimaryKey The field name that holds the primary key. Must not be null.
+	 * @param strIgnoreUpToPK Start indexing on that primery key. Ignore the ones before. Can be null.
+	 * @param setIgnorePKs Set of primary keys with structures that shall not be indexed. Can be null.
+	 * @param iThreadCount Number of threads converting records. Must be &gt; 0.
+	 * 
+	 * @return Statistics of the ingestion with the throughput of every stage.
+	 * 
+	 * @throws IOException
+	 */
+	public IngestionStatistics addSDFFileToIndex(final File sdfFile, final String strFieldPrimaryKey,
+			final String strIgnoreUpToPK, final Set<String> setIgnorePKs, final int iThreadCount)
+					throws IOException {
+		final SDFIngester ingester = new SDFIngester(this, strFieldPrimaryKey, strIgnoreUpToPK,
+				setIgnorePKs, iThreadCount, SDFIngester.DEFAULT_QUEUE_CAPACITY);
+		final IngestionStatistics stats = ingester.ingest(sdfFile);
+		LOGGER.log(Level.INFO, "Added " + sdfFile.getName() + ": " + stats);
+
+		commit();
+		refresh();
+
+		return stats;
+	}
+
 	/**
 	 * Notifies all index listener when a molecule has been added.
 	 * 
@@ -328,21 +811,36 @@ public class ChemicalIndex {
 	}
 
 	/**
-	 * Closes writer and searcher of this index. This may take some time, if
-	 * merges are currently running. Writer and searcher will be recreated on
-	 * demand. To avoid this, call {@link #shutdown()} instead.
+	 * Closes writer and searcher of this index and commits all changes. This may
+	 * take some time, if merges are currently running. Running searches finish
+	 * on their searcher, which is closed afterwards. Writer and searcher will be
+	 * recreated on demand. To avoid this, call {@link #shutdown()} instead.
 	 * 
 	 * @throws IOException
 	 *             Thrown, if closing of searcher or writer failed.
 	 */
 	public void close() throws IOException {
-		if (m_searcher != null) {
-			m_searcher.close();
-			m_searcher = null;
-		}
-		if (m_writer != null) {
-			m_writer.close(true);
-			m_writer = null;
+		synchronized (m_lockWriter) {
+			synchronized (m_lockSearcher) {
+				stopReopenThread();
+				if (m_searcherManager != null) {
+					m_searcherManager.close();
+					m_searcherManager = null;
+
+					// Cached molecules and results are keyed by segments of the closed searcher
+					m_moleculeCache.clear();
+					m_resultCache.invalidate();
+				}
+
+				// Cursors continue with a new searcher
+				final SearcherLifetimeManager lifetimes = m_searcherLifetimes;
+				m_searcherLifetimes = new SearcherLifetimeManager();
+				lifetimes.close();
+			}
+			if (m_writer != null) {
+				m_writer.close(true);
+				m_writer = null;
+			}
 		}
 	}
 
@@ -357,6 +855,17 @@ public class ChemicalIndex {
 	public void shutdown() throws IOException {
 		m_bShutdown = true;
 		close();
+		m_fingerprintStore.clear();
+		m_moleculeCache.clear();
+		m_resultCache.invalidate();
+		m_queryCache.clear();
+
+		synchronized (this) {
+			if (m_searchExecutor != null) {
+				m_searchExecutor.shutdown();
+				m_searchExecutor = null;
+			}
+		}
 	}
 
 	/**
@@ -433,9 +942,14 @@ public class ChemicalIndex {
 	 */
 	public int getIndexedMoleculeCount() throws IOException {
 		try {
-			final IndexSearcher searcher = prepareSearcher();
+			final IndexSearcher searcher = acquireSearcher();
 			if (searcher != null) {
-				return searcher.getIndexReader().numDocs();
+				try {
+					return searcher.getIndexReader().numDocs();
+				}
+				finally {
+					releaseSearcher(searcher);
+				}
 			}
 			else {
 				return -1;
@@ -447,44 +961,63 @@ public class ChemicalIndex {
 	}
 
 	/**
-	 * Searches molecules based on a free text search, which may contain several
-	 * fields.
-	 * 
-	 * @param strFreeSearch
-	 *            Search string (human). Must not be null.
-	 * @param iMaxHits
-	 *            Maximum number of hits to return.
-	 * 
-	 * @return Collector with search results or null, if index has been
-	 *         shutdown.
+	 * Returns the number of segments of the index, as seen by the current searcher.
 	 * 
-	 * @throws IOException
-	 *             Thrown, if index could not be read.
+	 * @return Number of segments. Or -1, if unknown.
+	 */
+	public int getIndexedSegmentCount() {
+		try {
+			final IndexSearcher searcher = acquireSearcher();
+			if (searcher != null) {
+				try {
+					return IndexUtils.getSegmentReaders(searcher.getIndexReader()).length;
+				}
+				finally {
+					releaseSearcher(searcher);
+				}
+			}
+			else {
+				return -1;
+			}
+		}
+		catch (final IOException exc) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Searches molecules based on a free text search, which may contain several
+	 * fields.
+	 * 
+	 * @param strFreeSearch
+	 *            Search string (human). Must not be null.
+	 * @param iMaxHits
+	 *            Maximum number of hits to return.
+	 * 
+	 * @return Collector with search results or null, if index has been
+	 *         shutdown.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
 	 * @throws ParseException
 	 *             Thrown, if search string could not be parsed.
 	 */
 	public TopDocsCollector<ScoreDoc> searchMolecules(
 			final String strFreeSearch, final int iMaxHits) throws IOException,
 			ParseException {
-		TopScoreDocCollector collector = null;
+		TopDocsCollector<ScoreDoc> collector = null;
 
-		final IndexSearcher searcher = prepareSearcher();
+		final ChemicalSearcher searcher = acquireSearcher();
 		if (searcher != null) {
-			//final QueryParser queryParser = new QueryParser(LUCENE_VERSION,
-			//		FIELD_NAME, m_analyzerFactory.createAnalyzer());
-
-			final List<String> listFields = new ArrayList<String>(50);
-			final FieldInfos fields = ReaderUtil.getMergedFieldInfos(searcher.getIndexReader());
-			final Iterator<FieldInfo> fieldIterator = fields.iterator();
-			while (fieldIterator.hasNext()) {
-				listFields.add(fieldIterator.next().name);
+			try {
+				final Query query = createFreeTextQuery(searcher, strFreeSearch);
+				collector = TopScoreDocCollector.create(iMaxHits, true);
+				searcher.search(query, collector);
+				collector = resolveResult(searcher, collector);
+			}
+			finally {
+				releaseSearcher(searcher);
 			}
-			final MultiFieldQueryParser mfQueryParser = new MultiFieldQueryParser(LUCENE_VERSION,
-					listFields.toArray(new String[listFields.size()]), m_analyzerFactory.createAnalyzer());
-
-			final Query query = mfQueryParser.parse(strFreeSearch);
-			collector = TopScoreDocCollector.create(iMaxHits, true);
-			searcher.search(query, collector);
 		}
 
 		return collector;
@@ -505,13 +1038,18 @@ public class ChemicalIndex {
 	public Document searchMoleculeByPK(final String strPK) throws IOException {
 		Document doc = null;
 
-		final IndexSearcher searcher = prepareSearcher();
+		final IndexSearcher searcher = acquireSearcher();
 		if (searcher != null) {
-			final Query query = new TermQuery(new Term(FIELD_PK, strPK));
-			final TopScoreDocCollector collector = TopScoreDocCollector.create(1, true);
-			searcher.search(query, collector);
-			if (collector.getTotalHits() > 0) {
-				doc = searcher.doc(collector.topDocs().scoreDocs[0].doc);
+			try {
+				final Query query = new TermQuery(new Term(FIELD_PK, strPK));
+				final TopScoreDocCollector collector = TopScoreDocCollector.create(1, true);
+				searcher.search(query, collector);
+				if (collector.getTotalHits() > 0) {
+					doc = searcher.doc(collector.topDocs().scoreDocs[0].doc);
+				}
+			}
+			finally {
+				releaseSearcher(searcher);
 			}
 		}
 
@@ -537,17 +1075,19 @@ public class ChemicalIndex {
 	 */
 	public TopDocsCollector<ScoreDoc> searchMoleculesByName(
 			final String strName, final int iMaxHits) throws IOException {
-		TopScoreDocCollector collector = null;
+		TopDocsCollector<ScoreDoc> collector = null;
 
-		final IndexSearcher searcher = prepareSearcher();
+		final ChemicalSearcher searcher = acquireSearcher();
 		if (searcher != null) {
-			final Query query1 = new TermQuery(new Term(FIELD_NAME, strName));
-			final Query query2 = new TermQuery(new Term(FIELD_PK, strName));
-			final BooleanQuery query = new BooleanQuery();
-			query.add(query1, BooleanClause.Occur.SHOULD);
-			query.add(query2, BooleanClause.Occur.SHOULD);
-			collector = TopScoreDocCollector.create(iMaxHits, true);
-			searcher.search(query, collector);
+			try {
+				final Query query = createNameQuery(strName);
+				collector = TopScoreDocCollector.create(iMaxHits, true);
+				searcher.search(query, collector);
+				collector = resolveResult(searcher, collector);
+			}
+			finally {
+				releaseSearcher(searcher);
+			}
 		}
 
 		return collector;
@@ -574,15 +1114,33 @@ public class ChemicalIndex {
 	public TopDocsCollector<ScoreDoc> searchExactMolecules(
 			final String strSmiles, final int iMaxHits) throws IOException,
 			GenericRDKitException {
-		TopScoreDocCollector collector = null;
+		TopDocsCollector<ScoreDoc> collector = null;
 
-		final IndexSearcher searcher = prepareSearcher();
+		final ChemicalSearcher searcher = acquireSearcher();
 		if (searcher != null) {
-			// Convert SMILES into RDKit Molecule and canonicalize
-			final String canonSmiles = RDKFuncs.getCanonSmiles(strSmiles, true);
-			final Query query = new TermQuery(new Term(FIELD_SMILES, canonSmiles));
-			collector = TopScoreDocCollector.create(iMaxHits, true);
-			searcher.search(query, collector);
+			try {
+				// Results of a replaced searcher are never cached
+				final int iGeneration = searcher.getResultCacheGeneration();
+
+				// Canonicalize SMILES (throws an exception, if that is not possible)
+				final String canonSmiles = getExactQuerySmiles(strSmiles);
+
+				final ResultCache.Result result = m_resultCache.get(
+						ResultCache.SearchType.EXACT, canonSmiles, iMaxHits, iGeneration);
+				if (result != null) {
+					collector = result.createCollector();
+				}
+				else {
+					final Query query = new TermQuery(new Term(FIELD_SMILES, canonSmiles));
+					collector = TopScoreDocCollector.create(iMaxHits, true);
+					searcher.search(query, collector);
+					collector = cacheResult(searcher, ResultCache.SearchType.EXACT, canonSmiles, iMaxHits,
+							iGeneration, collector);
+				}
+			}
+			finally {
+				releaseSearcher(searcher);
+			}
 		}
 
 		return collector;
@@ -606,30 +1164,64 @@ public class ChemicalIndex {
 	 */
 	public TopDocsCollector<ScoreDoc> searchMoleculesByFingerprintMatch(
 			final String strSmiles, final int iMaxHits) throws IOException {
+		return searchMoleculesByFingerprintMatch(strSmiles, iMaxHits, null);
+	}
+
+	/**
+	 * Searches similar molecules based on fingerprint matches and fills the
+	 * passed in statistics. In {@link ScreenMode#FINGERPRINT_COLUMN} mode they
+	 * contain the pass rate of the folded word prefilter. Searches answered from
+	 * the result cache (see {@link #getResultCache()}) leave the statistics untouched.
+	 * 
+	 * @param strSmiles
+	 *            Smiles to search for. Must not be null.
+	 * @param iMaxHits
+	 *            Maximum number of hits to return.
+	 * @param stats
+	 *            Statistics to be filled. Can be null.
+	 * 
+	 * @return Collector with search results or null, if index has been
+	 *         shutdown.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
+	 */
+	public TopDocsCollector<ScoreDoc> searchMoleculesByFingerprintMatch(
+			final String strSmiles, final int iMaxHits, final SearchStatistics stats) throws IOException {
 		if (strSmiles == null) {
 			throw new IllegalArgumentException("SMILES must not be null.");
 		}
 
-		TopScoreDocCollector collector = null;
+		TopDocsCollector<ScoreDoc> collector = null;
 
-		final IndexSearcher searcher = prepareSearcher();
+		final ChemicalSearcher searcher = acquireSearcher();
 		if (searcher != null) {
-			// Calculate query fingerprint
-			final BitSet fpQuery = m_fingerprintFactory.createQueryFingerprint(strSmiles, false);
-
-			if (fpQuery != null) {
-				// Create query for checking if all query fingerprint bit positions
-				// are matching set bits in a molecules fingerprint
-				final BooleanQuery query = new BooleanQuery();
-				for (int i = fpQuery.nextSetBit(0); i >= 0; i = fpQuery
-						.nextSetBit(i + 1)) {
-					query.add(new BooleanClause(new TermQuery(new Term(FIELD_FP,
-							Integer.toString(i))), BooleanClause.Occur.MUST));
+			try {
+				final int iGeneration = searcher.getResultCacheGeneration();
+				final PreparedQuery prepared = prepareQuery(strSmiles);
+				final String canonSmiles = prepared.getCanonicalSmiles();
+				final BitSet fpQuery = prepared.getQueryFingerprint();
+				m_queryCache.release(prepared);
+
+				final ResultCache.Result result = (canonSmiles == null ? null : m_resultCache.get(
+						ResultCache.SearchType.FINGERPRINT, canonSmiles, iMaxHits, iGeneration));
+				if (result != null) {
+					collector = result.createCollector();
 				}
-
-				// Perform the search
-				collector = TopScoreDocCollector.create(iMaxHits, true);
-				searcher.search(query, collector);
+				else {
+					if (fpQuery != null) {
+						final Query query = createScreenQuery(fpQuery, stats);
+
+						// Perform the search
+						collector = TopScoreDocCollector.create(iMaxHits, true);
+						searcher.search(query, collector);
+						collector = (canonSmiles != null ? cacheResult(searcher, ResultCache.SearchType.FINGERPRINT,
+								canonSmiles, iMaxHits, iGeneration, collector) : resolveResult(searcher, collector));
+					}
+				}
+			}
+			finally {
+				releaseSearcher(searcher);
 			}
 		}
 
@@ -656,251 +1248,2124 @@ public class ChemicalIndex {
 	 */
 	public TopDocsCollector<ScoreDoc> searchMoleculesWithSubstructure(
 			final String strSmiles, final int iMaxHits) throws IOException {
-		SubstructureScoreDocCollector collector = null;
-		final TopDocsCollector<ScoreDoc> colFpMatch = searchMoleculesByFingerprintMatch(
-				strSmiles, Math.min(iMaxHits * 10, 100000));
-		int iErrors = 0;
-
-		IndexSearcher searcher = null;
-		if (colFpMatch != null && (searcher = prepareSearcher()) != null) {
-			// Scored in order, because colFpMatch is scored in order already
-			collector = SubstructureScoreDocCollector.create(iMaxHits, true);
-
-			// If similar molecules have been found, walk through them and check
-			// for substructures
-			if (colFpMatch.getTotalHits() > 0) {
-				final int iWaveId = RDKit.createUniqueCleanupWaveId();
+		return searchMoleculesWithSubstructure(strSmiles, iMaxHits, getSearchThreadCount());
+	}
+
+	/**
+	 * Searches molecules which contain the passed in molecule as a
+	 * substructure. This is based on fingerprint matches as well as
+	 * substructure searches. The fingerprint candidates are pulled lazily
+	 * in document id order and in batches, which are verified by up to the
+	 * specified number of search threads in parallel, until enough hits are found
+	 * or all candidates are verified. The result is the same as for a sequential
+	 * verification: the first hits in document id order.
+	 * 
+	 * @param strSmiles
+	 *            Smiles to search for. Must not be null.
+	 * @param iMaxHits
+	 *            Maximum number of hits to return.
+	 * @param iParallelism
+	 *            Maximum number of threads verifying candidates of this search.
+	 *            1 verifies on the calling thread. The number of search
+	 *            threads (see {@link #setSearchThreadCount(int)}) is an upper limit.
+	 * 
+	 * @return Collector with search results or null, if index has been
+	 *         shutdown.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
+	 */
+	public TopDocsCollector<ScoreDoc> searchMoleculesWithSubstructure(
+			final String strSmiles, final int iMaxHits, final int iParallelism) throws IOException {
+		return searchMoleculesWithSubstructure(strSmiles, iMaxHits, iParallelism, null);
+	}
+
+	/**
+	 * Searches molecules which contain the passed in molecule as a
+	 * substructure like {@link #searchMoleculesWithSubstructure(String, int, int)}
+	 * and fills the passed in statistics. In {@link ScreenMode#FINGERPRINT_COLUMN}
+	 * mode they contain the pass rate of the folded word prefilter. Searches
+	 * answered from the result cache (see {@link #getResultCache()}) do not screen
+	 * and leave the statistics untouched.
+	 * 
+	 * @param strSmiles
+	 *            Smiles to search for. Must not be null.
+	 * @param iMaxHits
+	 *            Maximum number of hits to return.
+	 * @param iParallelism
+	 *            Maximum number of threads verifying candidates of this search.
+	 * @param stats
+	 *            Statistics to be filled. Can be null.
+	 * 
+	 * @return Collector with search results or null, if index has been
+	 *         shutdown.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
+	 */
+	public TopDocsCollector<ScoreDoc> searchMoleculesWithSubstructure(final String strSmiles,
+			final int iMaxHits, final int iParallelism, final SearchStatistics stats) throws IOException {
+		if (iParallelism <= 0) {
+			throw new IllegalArgumentException("Parallelism must be > 0.");
+		}
+
+		final ChemicalSearcher searcher = acquireSearcher();
+		if (searcher == null) {
+			return null;
+		}
+
+		// The query molecule is used by the verification and must not be released before
+		PreparedQuery prepared = null;
+		try {
+			final int iGeneration = searcher.getResultCacheGeneration();
+			prepared = prepareQuery(strSmiles);
+			final String canonSmiles = prepared.getCanonicalSmiles();
+			final ResultCache.Result result = (canonSmiles == null ? null : m_resultCache.get(
+					ResultCache.SearchType.SUBSTRUCTURE, canonSmiles, iMaxHits, iGeneration));
+			if (result != null) {
+				return result.createCollector();
+			}
+
+			TopDocsCollector<ScoreDoc> collector = null;
+
+			final Query query = createSubstructureScreenQuery(prepared, stats);
+			if (query != null) {
+				// Scored in order, because candidates are delivered in document id order
+				final SubstructureScoreDocCollector collectorHits = SubstructureScoreDocCollector.create(iMaxHits, true);
+				collector = collectorHits;
+				boolean bComplete = true;
+
+				final CandidateBatchIterator candidates = new CandidateBatchIterator(
+						searcher, query, CandidateBatchIterator.DEFAULT_BATCH_SIZE);
+				int iErrors = 0;
+				int iHits = 0;
 				try {
-					final RWMol molQuery = RDKit.markForCleanup(RWMol.MolFromSmiles(strSmiles, 0, false), iWaveId);
-
-					if (molQuery != null) {
-						final TopDocs topDocs = colFpMatch.topDocs();
-						if (topDocs != null) {
-							final ScoreDoc[] arrScoreDoc = topDocs.scoreDocs;
-							int iCountHits = 0;
-							if (arrScoreDoc != null) {
-								final int iLength = arrScoreDoc.length;
-								for (int i = 0; i < iLength && iCountHits < iMaxHits; i++) {
-									final int iDocID = arrScoreDoc[i].doc;
-									final Document doc = searcher.doc(iDocID);
-									if (doc != null) {
-										final String smilesExisting = doc.get(FIELD_SMILES);
-										if (smilesExisting != null) {
-											final int iWaveIdLoop = RDKit
-													.createUniqueCleanupWaveId();
-											try {
-												final RWMol mol = RDKit.markForCleanup(RWMol
-														.MolFromSmiles(smilesExisting, 0, false), iWaveIdLoop);
-												mol.updatePropertyCache(false);
-												if (mol.hasSubstructMatch(molQuery)) {
-													iCountHits++;
-													collector.collect(iDocID, arrScoreDoc[i].score);
-												}
-											}
-											catch (final GenericRDKitException exc) {
-												iErrors++;
-											}
-											finally {
-												RDKit.cleanupMarkedObjects(iWaveIdLoop);
-											}
-										}
-									}
-								}
-							}
-						}
+					ScoreDoc[] arrBatch;
+					while (iHits < iMaxHits && (arrBatch = candidates.nextBatch()) != null) {
+						final SubstructureVerifier verifier = new SubstructureVerifier(
+								searcher, prepared.getQueryMolecule(), arrBatch, iMaxHits - iHits, m_bUseBinaryMolecules,
+								m_moleculeCache);
+						iHits += verifier.verify(collectorHits, (iParallelism > 1 ? getSearchExecutor() : null),
+								iParallelism);
+						iErrors += verifier.getErrorCount();
 					}
 				}
-				catch (final Exception exc) {
+				catch (final IOException exc) {
 					LOGGER.log(Level.SEVERE, "Search SMILES could not be used.", exc);
+					bComplete = false;
 				}
-				finally {
-					RDKit.cleanupMarkedObjects(iWaveId);
+
+				if (iErrors > 0) {
+					LOGGER.log(Level.SEVERE, iErrors + " molecules failed substructure searching.");
+					bComplete = false;
 				}
-			}
 
-			if (iErrors > 0) {
-				LOGGER.log(Level.SEVERE, iErrors + " molecules failed substructure searching.");
+				// Incomplete results are not cached, so the search gets repeated next time
+				collector = (bComplete && canonSmiles != null ? cacheResult(searcher, ResultCache.SearchType.SUBSTRUCTURE,
+						canonSmiles, iMaxHits, iGeneration, collector) : resolveResult(searcher, collector));
 			}
-		}
 
-		return collector;
+			return collector;
+		}
+		finally {
+			m_queryCache.release(prepared);
+			releaseSearcher(searcher);
+		}
 	}
 
 	/**
-	 * A convenience method to get the primary keys of the documents, which have
-	 * been found by a search and are now contained in a Collector object.
+	 * Searches molecules which contain the passed in molecule as a
+	 * substructure and streams every hit to the specified listener as soon as
+	 * it has been verified, instead of collecting all hits first. Hits arrive in
+	 * document id order, which is the order they are collected by
+	 * {@link #searchMoleculesWithSubstructure(String, int)}. The listener
+	 * can stop the search at any time, e.g. after receiving the first page of hits.
 	 * 
-	 * @param collector
-	 *            Search result. Can be null.
+	 * @param strSmiles
+	 *            Smiles to search for. Must not be null.
+	 * @param listener
+	 *            Listener to receive hits. Must not be null.
 	 * 
-	 * @return Array of primary keys in the order that the collector provides.
-	 *         Can be empty, but will never be null.
+	 * @return Number of hits delivered to the listener or -1, if index has been shutdown.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
 	 */
-	public String[] getPrimaryKeysForSearchHits(final TopDocsCollector<ScoreDoc> collector)
-			throws IOException {
-		String[] arrRet = EMPTY_RESULTS;
-
-		IndexSearcher searcher = null;
-		if (collector != null && (searcher = prepareSearcher()) != null) {
-			final TopDocs topDocs = collector.topDocs();
-			if (topDocs != null) {
-				final List<String> listPKs = new ArrayList<String>(topDocs.totalHits);
-				final ScoreDoc[] arrScoreDoc = topDocs.scoreDocs;
-				if (arrScoreDoc != null) {
-					final int iLength = arrScoreDoc.length;
-					arrRet = new String[iLength];
-					for (int i = 0; i < iLength; i++) {
-						final Document doc = searcher.doc(arrScoreDoc[i].doc);
-						if (doc != null) {
-							final Fieldable fieldPk = doc.getFieldable(FIELD_PK);
-							if (fieldPk != null) {
-								listPKs.add(fieldPk.stringValue());
-							}
-						}
-					}
-				}
-				arrRet = listPKs.toArray(new String[listPKs.size()]);
-			}
-		}
-
-		return arrRet;
+	public int searchMoleculesWithSubstructure(final String strSmiles,
+			final SubstructureHitListener listener) throws IOException {
+		return searchMoleculesWithSubstructure(strSmiles, listener, getSearchThreadCount());
 	}
 
-	//
-	// Protected Methods
-	//
-
 	/**
-	 * Adds the RDKit molecule with the specified primary key to the index.
+	 * Searches molecules which contain the passed in molecule as a
+	 * substructure and streams every hit to the specified listener as soon as
+	 * it has been verified. Candidates are verified by up to the specified number
+	 * of search threads in parallel, but the listener is called by one thread at a time
+	 * and receives hits in document id order.
 	 * 
-	 * @param strPK
-	 *            Primary key to be used for the molecule. Must not be null.
-	 * @param canonSmiles
-	 *            Canonical Smiles. Must not be null.
-	 * @param listNames
-	 *            Optional list of names to be added for synonym searches (e.g.
-	 *            NVP number). Can be null.
-	 * @param mapProperties
-	 *            Optional list of properties to be added as other fields. Can be null.
+	 * @param strSmiles
+	 *            Smiles to search for. Must not be null.
+	 * @param listener
+	 *            Listener to receive hits. Must not be null.
+	 * @param iParallelism
+	 *            Maximum number of threads verifying candidates of this search.
+	 *            1 verifies and calls the listener on the calling thread.
+	 * 
+	 * @return Number of hits delivered to the listener or -1, if index has been shutdown.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
 	 */
-	protected void addMolecule(final String strPK, final String canonSmiles,
-			final List<String> listNames, final Map<String, Object> mapProperties)
-					throws IOException, GenericRDKitException {
-		// Pre-checks
-		if (strPK == null) {
-			throw new IllegalArgumentException("Primary key must not be null.");
+	public int searchMoleculesWithSubstructure(final String strSmiles,
+			final SubstructureHitListener listener, final int iParallelism) throws IOException {
+		if (listener == null) {
+			throw new IllegalArgumentException("Listener must not be null.");
 		}
-		if (canonSmiles == null || canonSmiles.trim().isEmpty()) {
-			throw new IllegalArgumentException(
-					"Canonical SMILES must not be null or empty.");
+		if (iParallelism <= 0) {
+			throw new IllegalArgumentException("Parallelism must be > 0.");
 		}
 
-		final IndexWriter writer = prepareWriter();
-		if (writer != null) {
-			// Delete existing index document with the same PK (primary key)
-			writer.deleteDocuments(new TermQuery(new Term(FIELD_PK, strPK)));
-
-			// OR:
-			// Delete existing index document with the same canonical smiles
-			// if (canonSmiles != null) {
-			// writer.deleteDocuments(new TermQuery(new Term(FIELD_CANON_SMILES,
-			// canonSmiles)));
-			// }
-
-			final BitSet fp = m_fingerprintFactory.createStructureFingerprint(canonSmiles, true);
-
-			// Create new index document
-			final Document doc = new Document();
-			doc.add(new Field(FIELD_PK, strPK, Store.YES,
-					Index.NOT_ANALYZED_NO_NORMS));
+		int iHits = -1;
 
-			// This is the canonical SMILES structure
-			doc.add(new Field(FIELD_SMILES, canonSmiles, Store.YES,
-					Index.NOT_ANALYZED_NO_NORMS));
-
-			// For the fingerprint we store only the bit positions as numbers
-			for (int i = fp.nextSetBit(0); i >= 0; i = fp.nextSetBit(i + 1)) {
-				doc.add(new Field(FIELD_FP, Integer.toString(i), Store.NO,
-						Index.NOT_ANALYZED_NO_NORMS, Field.TermVector.NO));
-			}
-
-			// Add names for the molecule
-			if (listNames != null) {
-				for (final String name : listNames) {
-					doc.add(new Field(FIELD_NAME, name, Store.YES,
-							Index.NOT_ANALYZED_NO_NORMS));
+		final ChemicalSearcher searcher = acquireSearcher();
+		PreparedQuery prepared = null;
+		try {
+			prepared = (searcher == null ? null : prepareQuery(strSmiles));
+			final Query query = (prepared == null ? null : createSubstructureScreenQuery(prepared, null));
+			if (query != null) {
+				iHits = 0;
+
+				final CandidateBatchIterator candidates = new CandidateBatchIterator(
+						searcher, query, CandidateBatchIterator.DEFAULT_BATCH_SIZE);
+				int iErrors = 0;
+				try {
+					ScoreDoc[] arrBatch;
+					boolean bStopped = false;
+					while (!bStopped && (arrBatch = candidates.nextBatch()) != null) {
+						final SubstructureVerifier verifier = new SubstructureVerifier(
+								searcher, prepared.getQueryMolecule(), arrBatch, Integer.MAX_VALUE, m_bUseBinaryMolecules,
+								m_moleculeCache);
+						iHits += verifier.stream(listener, (iParallelism > 1 ? getSearchExecutor() : null),
+								iParallelism);
+						iErrors += verifier.getErrorCount();
+						bStopped = verifier.isStopped();
+					}
+				}
+				catch (final IOException exc) {
+					LOGGER.log(Level.SEVERE, "Search SMILES could not be used.", exc);
 				}
-			}
 
-			// Add other properties for the molecule
-			if (mapProperties != null) {
-				for (final String key : mapProperties.keySet()) {
-					final Object value = mapProperties.get(key);
-					if (value != null) {
-						final String strValue = value.toString();
-						doc.add(new Field(key, strValue, Store.YES,
-								Index.NOT_ANALYZED_NO_NORMS));
-					}
+				if (iErrors > 0) {
+					LOGGER.log(Level.SEVERE, iErrors + " molecules failed substructure searching.");
 				}
 			}
-
-			writer.addDocument(doc);
-
-			onMoleculeAdded(strPK, canonSmiles);
 		}
-		else {
-			throw new IOException("Index writer is unavailable.");
+		finally {
+			m_queryCache.release(prepared);
+			releaseSearcher(searcher);
 		}
+
+		return iHits;
 	}
 
 	/**
-	 * Creates the index writer, if it is currently closed.
+	 * Searches the molecules that are most similar to the passed in molecule
+	 * based on the Tanimoto similarity of their fingerprints. All fingerprints
+	 * are scanned in parallel using the fingerprint columns of the index segments
+	 * (see {@link ScreenMode#FINGERPRINT_COLUMN}), independent of the configured screen mode.
 	 * 
-	 * @return The writer, if one is available. Null otherwise.
+	 * @param strSmiles
+	 *            Smiles to search for. Must not be null.
+	 * @param fThreshold
+	 *            Minimum Tanimoto similarity of hits (0.0 - 1.0).
+	 * @param iMaxHits
+	 *            Maximum number of hits to return.
+	 * 
+	 * @return Collector with search results ordered by descending similarity,
+	 * 		   which is used as score, or null, if index has been shutdown.
+	 * 		   The total hit count is the number of returned hits.
 	 * 
 	 * @throws IOException
-	 *             Thrown, if index writer could not be opened.
+	 *             Thrown, if index could not be read.
 	 */
-	protected IndexWriter prepareWriter() throws IOException {
-		if (isShutdown()) {
-			return null;
-		}
-
-		if (m_writer == null) {
-			close(); // Close a reader
-			m_writer = new IndexWriter(m_directory,
-					m_configFactory.createIndexWriterConfig(m_analyzerFactory.createAnalyzer()));
-		}
-
-		return m_writer;
+	public TopDocsCollector<ScoreDoc> searchMoleculesBySimilarity(
+			final String strSmiles, final float fThreshold, final int iMaxHits) throws IOException {
+		return searchMoleculesBySimilarity(strSmiles, fThreshold, iMaxHits, null);
 	}
 
 	/**
-	 * Creates the index searcher, if it is currently closed.
+	 * Searches the molecules that are most similar to the passed in molecule
+	 * based on the Tanimoto similarity of their fingerprints. Only molecules
+	 * with a fingerprint bit count in [fThreshold * |q|, |q| / fThreshold] can
+	 * reach the threshold, so only these bit count buckets of the
+	 * fingerprint columns are visited. Buckets are scanned in parallel.
 	 * 
-	 * @return The searcher, if one is available. Null otherwise.
+	 * @param strSmiles
+	 *            Smiles to search for. Must not be null.
+	 * @param fThreshold
+	 *            Minimum Tanimoto similarity of hits (0.0 - 1.0).
+	 * @param iMaxHits
+	 *            Maximum number of hits to return.
+	 * @param stats
+	 *            Statistics to be filled with the number of visited buckets and
+	 *            compared candidates of this search. Can be null.
+	 * 
+	 * @return Collector with search results ordered by descending similarity,
+	 * 		   which is used as score, or null, if index has been shutdown.
+	 * 		   The total hit count is the number of returned hits.
 	 * 
 	 * @throws IOException
-	 *             Thrown, if index searcher could not be opened.
+	 *             Thrown, if index could not be read.
 	 */
-	protected IndexSearcher prepareSearcher() throws IOException {
-		if (isShutdown()) {
-			return null;
+	public TopDocsCollector<ScoreDoc> searchMoleculesBySimilarity(final String strSmiles,
+			final float fThreshold, final int iMaxHits, final SearchStatistics stats) throws IOException {
+		if (strSmiles == null) {
+			throw new IllegalArgumentException("SMILES must not be null.");
 		}
 
-		if (m_searcher == null) {
-			close(); // Close a writer
+		TopDocsCollector<ScoreDoc> collector = null;
+
+		final ChemicalSearcher searcher = acquireSearcher();
+		if (searcher != null) {
 			try {
-				m_searcher = new IndexSearcher(IndexReader.open(m_directory));
+				// The structure fingerprint is comparable to the indexed ones
+				final PreparedQuery prepared = prepareQuery(strSmiles);
+				final BitSet fpQuery = prepared.getStructureFingerprint();
+				m_queryCache.release(prepared);
+
+				if (fpQuery != null) {
+					final SimilarityScan scan = new SimilarityScan(
+							FingerprintColumn.toWords(fpQuery), fThreshold, iMaxHits);
+					collector = resolveResult(searcher,
+							scan.run(searcher.getIndexReader(), m_fingerprintStore, getSearchExecutor(), stats));
+				}
 			}
-			catch (final IndexNotFoundException exc) {
-				LOGGER.log(Level.WARNING, "The index does not exist yet.");
-				throw new IOException("The index does not exist yet.", exc);
+			finally {
+				releaseSearcher(searcher);
 			}
-			// m_searcher.setSimilarity(new ChemicalSimiliarity()); // TODO
 		}
 
-		return m_searcher;
+		return collector;
+	}
+
+	/**
+	 * Counts the molecules found by a free text search (see {@link #searchMolecules(String, int)}).
+	 * Hits are only counted, so no hit objects are allocated at all.
+	 * Counts are not cached.
+	 * 
+	 * @param strFreeSearch
+	 *            Search string (human). Must not be null.
+	 * 
+	 * @return Number of hits or -1, if index has been shutdown.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
+	 * @throws ParseException
+	 *             Thrown, if search string could not be parsed.
+	 */
+	public int countMolecules(final String strFreeSearch) throws IOException, ParseException {
+		int iHits = -1;
+
+		final ChemicalSearcher searcher = acquireSearcher();
+		if (searcher != null) {
+			try {
+				iHits = countHits(searcher, createFreeTextQuery(searcher, strFreeSearch));
+			}
+			finally {
+				releaseSearcher(searcher);
+			}
+		}
+
+		return iHits;
+	}
+
+	/**
+	 * Counts the molecules with the specified name or primary key
+	 * (see {@link #searchMoleculesByName(String, int)}).
+	 * 
+	 * @param strName
+	 *            Name of a molecule. Must not be null.
+	 * 
+	 * @return Number of hits or -1, if index has been shutdown.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
+	 */
+	public int countMoleculesByName(final String strName) throws IOException {
+		int iHits = -1;
+
+		final ChemicalSearcher searcher = acquireSearcher();
+		if (searcher != null) {
+			try {
+				iHits = countHits(searcher, createNameQuery(strName));
+			}
+			finally {
+				releaseSearcher(searcher);
+			}
+		}
+
+		return iHits;
+	}
+
+	/**
+	 * Counts the molecules with the same canonical smiles
+	 * (see {@link #searchExactMolecules(String, int)}).
+	 * 
+	 * @param strSmiles
+	 *            Smiles to search for. Must not be null. Does not need to be in
+	 *            canonical form yet.
+	 * 
+	 * @return Number of hits or -1, if index has been shutdown.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
+	 */
+	public int countExactMolecules(final String strSmiles) throws IOException, GenericRDKitException {
+		int iHits = -1;
+
+		final ChemicalSearcher searcher = acquireSearcher();
+		if (searcher != null) {
+			try {
+				final String canonSmiles = getExactQuerySmiles(strSmiles);
+
+				iHits = countHits(searcher, new TermQuery(new Term(FIELD_SMILES, canonSmiles)));
+			}
+			finally {
+				releaseSearcher(searcher);
+			}
+		}
+
+		return iHits;
+	}
+
+	/**
+	 * Counts the molecules that pass the fingerprint screen of the passed in molecule
+	 * (see {@link #searchMoleculesByFingerprintMatch(String, int)}).
+	 * 
+	 * @param strSmiles
+	 *            Smiles to search for. Must not be null.
+	 * 
+	 * @return Number of hits or -1, if index has been shutdown. 0, if no
+	 * 		   query fingerprint could be calculated.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
+	 */
+	public int countMoleculesByFingerprintMatch(final String strSmiles) throws IOException {
+		if (strSmiles == null) {
+			throw new IllegalArgumentException("SMILES must not be null.");
+		}
+
+		int iHits = -1;
+
+		final ChemicalSearcher searcher = acquireSearcher();
+		if (searcher != null) {
+			try {
+				final PreparedQuery prepared = prepareQuery(strSmiles);
+				final BitSet fpQuery = prepared.getQueryFingerprint();
+				m_queryCache.release(prepared);
+
+				iHits = (fpQuery == null ? 0 : countHits(searcher, createScreenQuery(fpQuery)));
+			}
+			finally {
+				releaseSearcher(searcher);
+			}
+		}
+
+		return iHits;
+	}
+
+	/**
+	 * Counts the molecules which contain the passed in molecule as a substructure
+	 * (see {@link #searchMoleculesWithSubstructure(String, int)}). All candidates
+	 * of the fingerprint screen are verified, but matches are only flagged per
+	 * batch of candidates, so no hit objects and no primary keys are created.
+	 * 
+	 * @param strSmiles
+	 *            Smiles to search for. Must not be null.
+	 * 
+	 * @return Number of hits or -1, if index has been shutdown or if the
+	 * 		   SMILES cannot be used for a substructure search.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
+	 */
+	public int countMoleculesWithSubstructure(final String strSmiles) throws IOException {
+		final ChemicalSearcher searcher = acquireSearcher();
+		if (searcher == null) {
+			return -1;
+		}
+
+		// The query molecule is used by the verification and must not be released before
+		PreparedQuery prepared = null;
+		try {
+			prepared = prepareQuery(strSmiles);
+			final Query query = createSubstructureScreenQuery(prepared, null);
+			if (query == null) {
+				return -1;
+			}
+
+			final int iParallelism = getSearchThreadCount();
+			final CandidateBatchIterator candidates = new CandidateBatchIterator(
+					searcher, query, CandidateBatchIterator.DEFAULT_BATCH_SIZE);
+			int iErrors = 0;
+			int iHits = 0;
+			ScoreDoc[] arrBatch;
+			while ((arrBatch = candidates.nextBatch()) != null) {
+				final SubstructureVerifier verifier = new SubstructureVerifier(
+						searcher, prepared.getQueryMolecule(), arrBatch, Integer.MAX_VALUE, m_bUseBinaryMolecules,
+						m_moleculeCache);
+				iHits += verifier.count((iParallelism > 1 ? getSearchExecutor() : null), iParallelism);
+				iErrors += verifier.getErrorCount();
+			}
+
+			if (iErrors > 0) {
+				LOGGER.log(Level.SEVERE, iErrors + " molecules failed substructure searching.");
+			}
+
+			return iHits;
+		}
+		finally {
+			m_queryCache.release(prepared);
+			releaseSearcher(searcher);
+		}
+	}
+
+	/**
+	 * Counts the molecules whose Tanimoto similarity with the passed in molecule
+	 * reaches the specified threshold (see {@link #searchMoleculesBySimilarity(String, float, int)}).
+	 * All bit count buckets within the similarity bounds are scanned without
+	 * keeping any hits.
+	 * 
+	 * @param strSmiles
+	 *            Smiles to search for. Must not be null.
+	 * @param fThreshold
+	 *            Minimum Tanimoto similarity of hits (0.0 - 1.0).
+	 * 
+	 * @return Number of hits or -1, if index has been shutdown.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
+	 */
+	public int countMoleculesBySimilarity(final String strSmiles, final float fThreshold) throws IOException {
+		if (strSmiles == null) {
+			throw new IllegalArgumentException("SMILES must not be null.");
+		}
+
+		int iHits = -1;
+
+		final IndexSearcher searcher = acquireSearcher();
+		if (searcher != null) {
+			try {
+				final PreparedQuery prepared = prepareQuery(strSmiles);
+				final BitSet fpQuery = prepared.getStructureFingerprint();
+				m_queryCache.release(prepared);
+
+				iHits = 0;
+				if (fpQuery != null) {
+					iHits = new SimilarityScan(FingerprintColumn.toWords(fpQuery), fThreshold, 1).count(
+							searcher.getIndexReader(), m_fingerprintStore, getSearchExecutor(), null);
+				}
+			}
+			finally {
+				releaseSearcher(searcher);
+			}
+		}
+
+		return iHits;
+	}
+
+	/**
+	 * Searches all molecules based on a free text search (see {@link #searchMolecules(String, int)}).
+	 * Hits are recorded in a bit set with one bit per document instead of a priority
+	 * queue, so the memory does not depend on the number of hits. Hits are not scored
+	 * and not cached.
+	 * 
+	 * @param strFreeSearch
+	 *            Search string (human). Must not be null.
+	 * 
+	 * @return All hits or null, if index has been shutdown.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
+	 * @throws ParseException
+	 *             Thrown, if search string could not be parsed.
+	 */
+	public HitSet searchAllMolecules(final String strFreeSearch) throws IOException, ParseException {
+		HitSet hits = null;
+
+		final ChemicalSearcher searcher = acquireSearcher();
+		if (searcher != null) {
+			try {
+				hits = collectAllHits(searcher, createFreeTextQuery(searcher, strFreeSearch));
+			}
+			finally {
+				releaseSearcher(searcher);
+			}
+		}
+
+		return hits;
+	}
+
+	/**
+	 * Searches all molecules with the specified name or primary key
+	 * (see {@link #searchAllMolecules(String)}).
+	 * 
+	 * @param strName
+	 *            Name of a molecule. Must not be null.
+	 * 
+	 * @return All hits or null, if index has been shutdown.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
+	 */
+	public HitSet searchAllMoleculesByName(final String strName) throws IOException {
+		HitSet hits = null;
+
+		final ChemicalSearcher searcher = acquireSearcher();
+		if (searcher != null) {
+			try {
+				hits = collectAllHits(searcher, createNameQuery(strName));
+			}
+			finally {
+				releaseSearcher(searcher);
+			}
+		}
+
+		return hits;
+	}
+
+	/**
+	 * Searches all molecules with the same canonical smiles
+	 * (see {@link #searchAllMolecules(String)}).
+	 * 
+	 * @param strSmiles
+	 *            Smiles to search for. Must not be null. Does not need to be in
+	 *            canonical form yet.
+	 * 
+	 * @return All hits or null, if index has been shutdown.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
+	 */
+	public HitSet searchAllExactMolecules(final String strSmiles) throws IOException, GenericRDKitException {
+		HitSet hits = null;
+
+		final ChemicalSearcher searcher = acquireSearcher();
+		if (searcher != null) {
+			try {
+				final String canonSmiles = getExactQuerySmiles(strSmiles);
+
+				hits = collectAllHits(searcher, new TermQuery(new Term(FIELD_SMILES, canonSmiles)));
+			}
+			finally {
+				releaseSearcher(searcher);
+			}
+		}
+
+		return hits;
+	}
+
+	/**
+	 * Searches all molecules that pass the fingerprint screen of the passed in molecule
+	 * (see {@link #searchAllMolecules(String)}).
+	 * 
+	 * @param strSmiles
+	 *            Smiles to search for. Must not be null.
+	 * 
+	 * @return All hits or null, if index has been shutdown. Empty, if no
+	 * 		   query fingerprint could be calculated.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
+	 */
+	public HitSet searchAllMoleculesByFingerprintMatch(final String strSmiles) throws IOException {
+		if (strSmiles == null) {
+			throw new IllegalArgumentException("SMILES must not be null.");
+		}
+
+		HitSet hits = null;
+
+		final ChemicalSearcher searcher = acquireSearcher();
+		if (searcher != null) {
+			try {
+				final PreparedQuery prepared = prepareQuery(strSmiles);
+				final BitSet fpQuery = prepared.getQueryFingerprint();
+				m_queryCache.release(prepared);
+
+				hits = (fpQuery == null ?
+						new HitSet(new FixedBitSet(searcher.maxDoc()), searcher.getPrimaryKeyColumn()) :
+					collectAllHits(searcher, createScreenQuery(fpQuery)));
+			}
+			finally {
+				releaseSearcher(searcher);
+			}
+		}
+
+		return hits;
+	}
+
+	/**
+	 * Searches all molecules which contain the passed in molecule as a substructure
+	 * (see {@link #searchMoleculesWithSubstructure(String, int)}). All candidates
+	 * of the fingerprint screen are verified and every match sets its bit, so e.g.
+	 * all molecules containing a certain group can be exported without guessing a
+	 * maximum number of hits.
+	 * 
+	 * @param strSmiles
+	 *            Smiles to search for. Must not be null.
+	 * 
+	 * @return All hits or null, if index has been shutdown or if the
+	 * 		   SMILES cannot be used for a substructure search.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
+	 */
+	public HitSet searchAllMoleculesWithSubstructure(final String strSmiles) throws IOException {
+		final ChemicalSearcher searcher = acquireSearcher();
+		if (searcher == null) {
+			return null;
+		}
+
+		// The query molecule is used by the verification and must not be released before
+		PreparedQuery prepared = null;
+		try {
+			prepared = prepareQuery(strSmiles);
+			final Query query = createSubstructureScreenQuery(prepared, null);
+			if (query == null) {
+				return null;
+			}
+
+			final int iParallelism = getSearchThreadCount();
+			final FixedBitSet bits = new FixedBitSet(searcher.maxDoc());
+			final CandidateBatchIterator candidates = new CandidateBatchIterator(
+					searcher, query, CandidateBatchIterator.DEFAULT_BATCH_SIZE);
+			int iErrors = 0;
+			ScoreDoc[] arrBatch;
+			while ((arrBatch = candidates.nextBatch()) != null) {
+				final SubstructureVerifier verifier = new SubstructureVerifier(
+						searcher, prepared.getQueryMolecule(), arrBatch, Integer.MAX_VALUE, m_bUseBinaryMolecules,
+						m_moleculeCache);
+				verifier.collect(bits, (iParallelism > 1 ? getSearchExecutor() : null), iParallelism);
+				iErrors += verifier.getErrorCount();
+			}
+
+			if (iErrors > 0) {
+				LOGGER.log(Level.SEVERE, iErrors + " molecules failed substructure searching.");
+			}
+
+			return new HitSet(bits, searcher.getPrimaryKeyColumn());
+		}
+		finally {
+			m_queryCache.release(prepared);
+			releaseSearcher(searcher);
+		}
+	}
+
+	/**
+	 * Searches all molecules whose Tanimoto similarity with the passed in molecule
+	 * reaches the specified threshold (see {@link #searchAllMolecules(String)}).
+	 * 
+	 * @param strSmiles
+	 *            Smiles to search for. Must not be null.
+	 * @param fThreshold
+	 *            Minimum Tanimoto similarity of hits (0.0 - 1.0).
+	 * 
+	 * @return All hits or null, if index has been shutdown.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
+	 */
+	public HitSet searchAllMoleculesBySimilarity(final String strSmiles, final float fThreshold)
+			throws IOException {
+		if (strSmiles == null) {
+			throw new IllegalArgumentException("SMILES must not be null.");
+		}
+
+		HitSet hits = null;
+
+		final ChemicalSearcher searcher = acquireSearcher();
+		if (searcher != null) {
+			try {
+				final PreparedQuery prepared = prepareQuery(strSmiles);
+				final BitSet fpQuery = prepared.getStructureFingerprint();
+				m_queryCache.release(prepared);
+
+				hits = new HitSet(fpQuery == null ? new FixedBitSet(searcher.maxDoc()) :
+					new SimilarityScan(FingerprintColumn.toWords(fpQuery), fThreshold, 1).collect(
+							searcher.getIndexReader(), m_fingerprintStore, getSearchExecutor(), null),
+							searcher.getPrimaryKeyColumn());
+			}
+			finally {
+				releaseSearcher(searcher);
+			}
+		}
+
+		return hits;
+	}
+
+	/**
+	 * Searches a page of molecules based on a free text search, which may contain
+	 * several fields. Hits are ordered like the ones of {@link #searchMolecules(String, int)}.
+	 * Fetching a page costs a priority queue of the page size, no matter how many
+	 * pages were fetched before. Results of paged searches are not cached.
+	 * 
+	 * @param strFreeSearch
+	 *            Search string (human). Must not be null.
+	 * @param cursor
+	 *            Cursor of the previous page or null to fetch the first page.
+	 * @param iPageSize
+	 *            Maximum number of hits of the page. Must be &gt; 0.
+	 * 
+	 * @return Page of results or null, if index has been shutdown.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
+	 * @throws SearchExpiredException
+	 *             Thrown, if the searcher of the cursor has been released already.
+	 * @throws ParseException
+	 *             Thrown, if search string could not be parsed.
+	 */
+	public SearchPage searchMolecules(final String strFreeSearch, final SearchCursor cursor,
+			final int iPageSize) throws IOException, ParseException {
+		final int iQueryHash = getQueryHash("FREE_TEXT", strFreeSearch, cursor);
+		SearchPage page = null;
+
+		final ChemicalSearcher searcher = acquireSearcher(cursor);
+		if (searcher != null) {
+			try {
+				page = searchPage(searcher, createFreeTextQuery(searcher, strFreeSearch), cursor, iQueryHash, iPageSize);
+			}
+			finally {
+				releaseSearcher(searcher);
+			}
+		}
+
+		return page;
+	}
+
+	/**
+	 * Searches a page of molecules based on a name that has been registered in the name
+	 * field (see {@link #searchMolecules(String, SearchCursor, int)} for paging).
+	 * 
+	 * @param strName
+	 *            Name of a molecule. Must not be null.
+	 * @param cursor
+	 *            Cursor of the previous page or null to fetch the first page.
+	 * @param iPageSize
+	 *            Maximum number of hits of the page. Must be &gt; 0.
+	 * 
+	 * @return Page of results or null, if index has been shutdown.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
+	 * @throws SearchExpiredException
+	 *             Thrown, if the searcher of the cursor has been released already.
+	 */
+	public SearchPage searchMoleculesByName(final String strName, final SearchCursor cursor,
+			final int iPageSize) throws IOException {
+		final int iQueryHash = getQueryHash("NAME", strName, cursor);
+		SearchPage page = null;
+
+		final ChemicalSearcher searcher = acquireSearcher(cursor);
+		if (searcher != null) {
+			try {
+				page = searchPage(searcher, createNameQuery(strName), cursor, iQueryHash, iPageSize);
+			}
+			finally {
+				releaseSearcher(searcher);
+			}
+		}
+
+		return page;
+	}
+
+	/**
+	 * Searches a page of molecules based on a canonical smiles
+	 * (see {@link #searchMolecules(String, SearchCursor, int)} for paging).
+	 * 
+	 * @param strSmiles
+	 *            Smiles to search for. Must not be null. Does not need to be in
+	 *            canonical form yet.
+	 * @param cursor
+	 *            Cursor of the previous page or null to fetch the first page.
+	 * @param iPageSize
+	 *            Maximum number of hits of the page. Must be &gt; 0.
+	 * 
+	 * @return Page of results or null, if index has been shutdown.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
+	 * @throws SearchExpiredException
+	 *             Thrown, if the searcher of the cursor has been released already.
+	 */
+	public SearchPage searchExactMolecules(final String strSmiles, final SearchCursor cursor,
+			final int iPageSize) throws IOException, GenericRDKitException {
+		final int iQueryHash = getQueryHash("EXACT", strSmiles, cursor);
+		SearchPage page = null;
+
+		final ChemicalSearcher searcher = acquireSearcher(cursor);
+		if (searcher != null) {
+			try {
+				final String canonSmiles = getExactQuerySmiles(strSmiles);
+
+				page = searchPage(searcher, new TermQuery(new Term(FIELD_SMILES, canonSmiles)), cursor,
+						iQueryHash, iPageSize);
+			}
+			finally {
+				releaseSearcher(searcher);
+			}
+		}
+
+		return page;
+	}
+
+	/**
+	 * Searches a page of similar molecules based on fingerprint matches
+	 * (see {@link #searchMolecules(String, SearchCursor, int)} for paging).
+	 * 
+	 * @param strSmiles
+	 *            Smiles to search for. Must not be null.
+	 * @param cursor
+	 *            Cursor of the previous page or null to fetch the first page.
+	 * @param iPageSize
+	 *            Maximum number of hits of the page. Must be &gt; 0.
+	 * 
+	 * @return Page of results or null, if index has been shutdown or if no
+	 * 		   query fingerprint could be calculated.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
+	 * @throws SearchExpiredException
+	 *             Thrown, if the searcher of the cursor has been released already.
+	 */
+	public SearchPage searchMoleculesByFingerprintMatch(final String strSmiles, final SearchCursor cursor,
+			final int iPageSize) throws IOException {
+		final int iQueryHash = getQueryHash("FINGERPRINT", strSmiles, cursor);
+		SearchPage page = null;
+
+		final ChemicalSearcher searcher = acquireSearcher(cursor);
+		if (searcher != null) {
+			try {
+				final PreparedQuery prepared = prepareQuery(strSmiles);
+				final BitSet fpQuery = prepared.getQueryFingerprint();
+				m_queryCache.release(prepared);
+
+				if (fpQuery != null) {
+					page = searchPage(searcher, createScreenQuery(fpQuery), cursor, iQueryHash, iPageSize);
+				}
+			}
+			finally {
+				releaseSearcher(searcher);
+			}
+		}
+
+		return page;
+	}
+
+	/**
+	 * Searches a page of molecules which contain the passed in molecule as a
+	 * substructure. Like {@link #searchMoleculesWithSubstructure(String, int)} the
+	 * candidates are verified in document id order until the page is full. The
+	 * cursor remembers where the verification stopped, so the next page resumes
+	 * there and candidates of previous pages are never verified again.
+	 * 
+	 * @param strSmiles
+	 *            Smiles to search for. Must not be null.
+	 * @param cursor
+	 *            Cursor of the previous page or null to fetch the first page.
+	 * @param iPageSize
+	 *            Maximum number of hits of the page. Must be &gt; 0.
+	 * 
+	 * @return Page of results or null, if index has been shutdown or if the
+	 * 		   SMILES cannot be used for a substructure search. The total hit
+	 * 		   count is the number of hits up to and including this page.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
+	 * @throws SearchExpiredException
+	 *             Thrown, if the searcher of the cursor has been released already.
+	 */
+	public SearchPage searchMoleculesWithSubstructure(final String strSmiles, final SearchCursor cursor,
+			final int iPageSize) throws IOException {
+		if (iPageSize <= 0) {
+			throw new IllegalArgumentException("Page size must be > 0.");
+		}
+
+		final int iQueryHash = getQueryHash("SUBSTRUCTURE", strSmiles, cursor);
+		final ChemicalSearcher searcher = acquireSearcher(cursor);
+		if (searcher == null) {
+			return null;
+		}
+
+		// The query molecule is used by the verification and must not be released before
+		PreparedQuery prepared = null;
+		try {
+			prepared = prepareQuery(strSmiles);
+			final Query query = createSubstructureScreenQuery(prepared, null);
+			if (query == null) {
+				return null;
+			}
+
+			final int iParallelism = getSearchThreadCount();
+			final SubstructureScoreDocCollector collector = SubstructureScoreDocCollector.create(iPageSize, true);
+			final CandidateBatchIterator candidates = new CandidateBatchIterator(
+					searcher, query, CandidateBatchIterator.DEFAULT_BATCH_SIZE,
+					(cursor == null ? 0 : cursor.getResumeDoc()));
+			int iErrors = 0;
+			int iHits = 0;
+			ScoreDoc[] arrBatch;
+			while (iHits < iPageSize && (arrBatch = candidates.nextBatch()) != null) {
+				final SubstructureVerifier verifier = new SubstructureVerifier(
+						searcher, prepared.getQueryMolecule(), arrBatch, iPageSize - iHits, m_bUseBinaryMolecules,
+						m_moleculeCache);
+				iHits += verifier.verify(collector, (iParallelism > 1 ? getSearchExecutor() : null), iParallelism);
+				iErrors += verifier.getErrorCount();
+			}
+
+			if (iErrors > 0) {
+				LOGGER.log(Level.SEVERE, iErrors + " molecules failed substructure searching.");
+			}
+
+			final ScoreDoc[] arrHits = collector.topDocs().scoreDocs;
+			final int iHitsBefore = (cursor == null ? 0 : cursor.getHitsBefore());
+			SearchCursor cursorNext = null;
+			if (iHits == iPageSize) {
+				// Candidates are verified in document id order, so the verification resumes after the last hit
+				int iLastDoc = -1;
+				for (final ScoreDoc hit : arrHits) {
+					iLastDoc = Math.max(iLastDoc, hit.doc);
+				}
+				cursorNext = createCursor(searcher, iQueryHash, arrHits[arrHits.length - 1], iLastDoc + 1,
+						iHitsBefore + iHits);
+			}
+
+			return new SearchPage(arrHits, getPrimaryKeys(searcher, arrHits), iHitsBefore + iHits, cursorNext);
+		}
+		finally {
+			m_queryCache.release(prepared);
+			releaseSearcher(searcher);
+		}
+	}
+
+	/**
+	 * Searches a page of the molecules that are most similar to the passed in molecule
+	 * (see {@link #searchMoleculesBySimilarity(String, float, int)}). Every page scans
+	 * the fingerprints again, but keeps only the hits ranking after the previous page.
+	 * 
+	 * @param strSmiles
+	 *            Smiles to search for. Must not be null.
+	 * @param fThreshold
+	 *            Minimum Tanimoto similarity of hits (0.0 - 1.0).
+	 * @param cursor
+	 *            Cursor of the previous page or null to fetch the first page.
+	 * @param iPageSize
+	 *            Maximum number of hits of the page. Must be &gt; 0.
+	 * 
+	 * @return Page of results ordered by descending similarity or null, if index
+	 * 		   has been shutdown. The total hit count is the number of hits up to
+	 * 		   and including this page.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
+	 * @throws SearchExpiredException
+	 *             Thrown, if the searcher of the cursor has been released already.
+	 */
+	public SearchPage searchMoleculesBySimilarity(final String strSmiles, final float fThreshold,
+			final SearchCursor cursor, final int iPageSize) throws IOException {
+		if (strSmiles == null) {
+			throw new IllegalArgumentException("SMILES must not be null.");
+		}
+
+		final int iQueryHash = getQueryHash("SIMILARITY" + fThreshold, strSmiles, cursor);
+		SearchPage page = null;
+
+		final ChemicalSearcher searcher = acquireSearcher(cursor);
+		if (searcher != null) {
+			try {
+				final PreparedQuery prepared = prepareQuery(strSmiles);
+				final BitSet fpQuery = prepared.getStructureFingerprint();
+				m_queryCache.release(prepared);
+
+				if (fpQuery != null) {
+					final SimilarityScan scan = new SimilarityScan(FingerprintColumn.toWords(fpQuery), fThreshold,
+							iPageSize, (cursor == null ? null : cursor.getAfter()));
+					final ScoreDoc[] arrHits = scan.run(searcher.getIndexReader(), m_fingerprintStore,
+							getSearchExecutor(), null).topDocs().scoreDocs;
+					final int iHits = (cursor == null ? 0 : cursor.getHitsBefore()) + arrHits.length;
+					page = new SearchPage(arrHits, getPrimaryKeys(searcher, arrHits), iHits,
+							(arrHits.length == iPageSize ? createCursor(searcher, iQueryHash,
+									arrHits[arrHits.length - 1], -1, iHits) : null));
+				}
+			}
+			finally {
+				releaseSearcher(searcher);
+			}
+		}
+
+		return page;
+	}
+
+	/**
+	 * A convenience method to get the primary keys of the documents, which have
+	 * been found by a search and are now contained in a Collector object.
+	 * Hits of searches of this index carry their primary keys (see
+	 * {@link PrimaryKeyScoreDoc}), which were resolved with the searcher that
+	 * found them. Other hits are resolved with the current searcher.
+	 * 
+	 * @param collector
+	 *            Search result. Can be null.
+	 * 
+	 * @return Array of primary keys in the order that the collector provides.
+	 *         Can be empty, but will never be null.
+	 */
+	public String[] getPrimaryKeysForSearchHits(final TopDocsCollector<ScoreDoc> collector)
+			throws IOException {
+		return (collector == null ? EMPTY_RESULTS : getPrimaryKeysForSearchHits(collector.topDocs()));
+	}
+
+	/**
+	 * Returns the primary keys of a page of the documents, which have been found
+	 * by a search and are now contained in a Collector object. Like all collectors,
+	 * the passed in collector delivers its hits only once, so the page cannot be
+	 * requested again from the same collector.
+	 * 
+	 * @param collector
+	 *            Search result. Can be null.
+	 * @param iStart
+	 *            Index of the first hit of the page (0 based).
+	 * @param iHowMany
+	 *            Maximum number of hits of the page.
+	 * 
+	 * @return Array of primary keys in the order that the collector provides.
+	 *         Can be empty, but will never be null.
+	 */
+	public String[] getPrimaryKeysForSearchHits(final TopDocsCollector<ScoreDoc> collector,
+			final int iStart, final int iHowMany) throws IOException {
+		return (collector == null ? EMPTY_RESULTS :
+			getPrimaryKeysForSearchHits(collector.topDocs(iStart, iHowMany)));
+	}
+
+	/**
+	 * Returns the primary keys of all documents of a hit set in document id order.
+	 * They are read from the primary key column of the searcher that found them,
+	 * which the hit set carries. For large hit sets use
+	 * {@link #getPrimaryKeysForSearchHits(HitSet, int, int)} to resolve them in pages.
+	 * 
+	 * @param hits
+	 *            Search result. Can be null.
+	 * 
+	 * @return Array of primary keys in document id order.
+	 *         Can be empty, but will never be null.
+	 */
+	public String[] getPrimaryKeysForSearchHits(final HitSet hits) throws IOException {
+		return (hits == null ? EMPTY_RESULTS : getPrimaryKeysForSearchHits(hits, 0, hits.cardinality()));
+	}
+
+	/**
+	 * Returns the primary keys of a page of the documents of a hit set in document
+	 * id order (see {@link #getPrimaryKeysForSearchHits(HitSet)}). Unlike collectors,
+	 * hit sets can deliver the same page any number of times. Hit sets without
+	 * primary key column are resolved with the current searcher.
+	 * 
+	 * @param hits
+	 *            Search result. Can be null.
+	 * @param iStart
+	 *            Index of the first hit of the page (0 based).
+	 * @param iHowMany
+	 *            Maximum number of hits of the page.
+	 * 
+	 * @return Array of primary keys in document id order.
+	 *         Can be empty, but will never be null.
+	 */
+	public String[] getPrimaryKeysForSearchHits(final HitSet hits, final int iStart, final int iHowMany)
+			throws IOException {
+		String[] arrRet = EMPTY_RESULTS;
+
+		final int[] arrDocs = (hits == null ? null : hits.getHits(iStart, iHowMany));
+		if (arrDocs != null && arrDocs.length > 0) {
+			if (hits.getPrimaryKeyColumn() != null) {
+				arrRet = removeNulls(hits.getPrimaryKeyColumn().getPrimaryKeys(arrDocs));
+			}
+			else {
+				final ChemicalSearcher searcher = acquireSearcher();
+				if (searcher != null) {
+					try {
+						arrRet = removeNulls(getPrimaryKeys(searcher, arrDocs));
+					}
+					finally {
+						releaseSearcher(searcher);
+					}
+				}
+			}
+		}
+
+		return arrRet;
+	}
+
+	/**
+	 * Returns the primary keys of the passed in search hits. Unlike
+	 * {@link #getPrimaryKeysForSearchHits(TopDocsCollector)} the result stays aligned
+	 * with the hits, e.g. to transfer them together with their scores. Hits of
+	 * searches of this index carry their primary keys (see {@link PrimaryKeyScoreDoc}).
+	 * Other hits are resolved with the current searcher.
+	 * 
+	 * @param arrScoreDocs
+	 *            Search hits. Must not be null.
+	 * 
+	 * @return Array of primary keys with the same length and order as the hits.
+	 * 		   Contains null for hits without primary key or for all hits without
+	 * 		   primary key, if the index has been shutdown.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             Thrown, if a hit without primary key does not belong to the current searcher.
+	 */
+	public String[] getPrimaryKeys(final ScoreDoc[] arrScoreDocs) throws IOException {
+		final String[] arrRet = new String[arrScoreDocs.length];
+		boolean bUnresolved = false;
+
+		for (int i = 0; i < arrScoreDocs.length; i++) {
+			if (arrScoreDocs[i] instanceof PrimaryKeyScoreDoc) {
+				arrRet[i] = ((PrimaryKeyScoreDoc)arrScoreDocs[i]).getPrimaryKey();
+			}
+			else {
+				bUnresolved = true;
+			}
+		}
+
+		final ChemicalSearcher searcher = (bUnresolved ? acquireSearcher() : null);
+		if (searcher != null) {
+			try {
+				final PrimaryKeyColumn primaryKeys = searcher.getPrimaryKeyColumn();
+				for (int i = 0; i < arrScoreDocs.length; i++) {
+					if (!(arrScoreDocs[i] instanceof PrimaryKeyScoreDoc)) {
+						arrRet[i] = primaryKeys.getPrimaryKey(arrScoreDocs[i].doc);
+					}
+				}
+			}
+			finally {
+				releaseSearcher(searcher);
+			}
+		}
+
+		return arrRet;
+	}
+
+	//
+	// Protected Methods
+	//
+
+	/**
+	 * Resolves the primary keys of the passed in search hits.
+	 * 
+	 * @param topDocs
+	 *            Search hits. Can be null.
+	 * 
+	 * @return Array of primary keys in the order of the hits. Hits without
+	 * 		   primary key are left out. Can be empty, but will never be null.
+	 */
+	protected String[] getPrimaryKeysForSearchHits(final TopDocs topDocs) throws IOException {
+		String[] arrRet = EMPTY_RESULTS;
+
+		if (topDocs != null && topDocs.scoreDocs != null) {
+			arrRet = removeNulls(getPrimaryKeys(topDocs.scoreDocs));
+		}
+
+		return arrRet;
+	}
+
+	/**
+	 * Resolves the primary keys of the passed in search hits with the specified searcher.
+	 * 
+	 * @param searcher
+	 *            Searcher that found the hits. Must not be null.
+	 * @param arrScoreDocs
+	 *            Search hits. Must not be null.
+	 * 
+	 * @return Array of primary keys with the same length and order as the hits.
+	 * 		   Contains null for hits without primary key.
+	 */
+	protected String[] getPrimaryKeys(final ChemicalSearcher searcher, final ScoreDoc[] arrScoreDocs)
+			throws IOException {
+		final String[] arrRet = new String[arrScoreDocs.length];
+		final PrimaryKeyColumn primaryKeys = searcher.getPrimaryKeyColumn();
+
+		for (int i = 0; i < arrScoreDocs.length; i++) {
+			arrRet[i] = primaryKeys.getPrimaryKey(arrScoreDocs[i].doc);
+		}
+
+		return arrRet;
+	}
+
+	/**
+	 * Resolves the primary keys of the specified documents.
+	 * 
+	 * @param searcher
+	 *            Searcher that found the documents. Must not be null.
+	 * @param arrDocs
+	 *            Document ids. Must not be null.
+	 * 
+	 * @return Array of primary keys with the same length and order as the document ids.
+	 * 		   Contains null for documents without primary key.
+	 */
+	protected String[] getPrimaryKeys(final ChemicalSearcher searcher, final int[] arrDocs) throws IOException {
+		return searcher.getPrimaryKeyColumn().getPrimaryKeys(arrDocs);
+	}
+
+	/**
+	 * Records all hits of the specified query in a bit set.
+	 * 
+	 * @param searcher
+	 *            Searcher. Must not be null.
+	 * @param query
+	 *            Query. Must not be null.
+	 * 
+	 * @return All hits together with the primary key column of the searcher.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
+	 */
+	protected HitSet collectAllHits(final ChemicalSearcher searcher, final Query query) throws IOException {
+		final HitSetCollector collector = new HitSetCollector(searcher.maxDoc(), searcher.getPrimaryKeyColumn());
+		searcher.search(query, collector);
+		return collector.getHitSet();
+	}
+
+	/**
+	 * Creates the query of a free text search over all fields of the index.
+	 * 
+	 * @param searcher
+	 *            Searcher to determine the fields from. Must not be null.
+	 * @param strFreeSearch
+	 *            Search string (human). Must not be null.
+	 * 
+	 * @return Query.
+	 * 
+	 * @throws ParseException
+	 *             Thrown, if search string could not be parsed.
+	 */
+	protected Query createFreeTextQuery(final IndexSearcher searcher, final String strFreeSearch)
+			throws ParseException {
+		//final QueryParser queryParser = new QueryParser(LUCENE_VERSION,
+		//		FIELD_NAME, m_analyzerFactory.createAnalyzer());
+
+		final List<String> listFields = new ArrayList<String>(50);
+		final FieldInfos fields = ReaderUtil.getMergedFieldInfos(searcher.getIndexReader());
+		final Iterator<FieldInfo> fieldIterator = fields.iterator();
+		while (fieldIterator.hasNext()) {
+			listFields.add(fieldIterator.next().name);
+		}
+		final MultiFieldQueryParser mfQueryParser = new MultiFieldQueryParser(LUCENE_VERSION,
+				listFields.toArray(new String[listFields.size()]), m_analyzerFactory.createAnalyzer());
+
+		return mfQueryParser.parse(strFreeSearch);
+	}
+
+	/**
+	 * Creates the query of a name search, which matches names and primary keys.
+	 * 
+	 * @param strName
+	 *            Name of a molecule. Must not be null.
+	 * 
+	 * @return Query.
+	 */
+	protected Query createNameQuery(final String strName) {
+		final Query query1 = new TermQuery(new Term(FIELD_NAME, strName));
+		final Query query2 = new TermQuery(new Term(FIELD_PK, strName));
+		final BooleanQuery query = new BooleanQuery();
+		query.add(query1, BooleanClause.Occur.SHOULD);
+		query.add(query2, BooleanClause.Occur.SHOULD);
+		return query;
+	}
+
+	/**
+	 * Counts the hits of the specified query without collecting them.
+	 * 
+	 * @param searcher
+	 *            Searcher. Must not be null.
+	 * @param query
+	 *            Query. Must not be null.
+	 * 
+	 * @return Number of hits.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
+	 */
+	protected int countHits(final IndexSearcher searcher, final Query query) throws IOException {
+		final TotalHitCountCollector collector = new TotalHitCountCollector();
+		searcher.search(query, collector);
+		return collector.getTotalHits();
+	}
+
+	/**
+	 * Searches a page of hits of the specified query with a collector of the
+	 * page size, which skips all hits up to the last hit of the previous page.
+	 * 
+	 * @param searcher
+	 *            Searcher, which delivered the previous page, if still available. Must not be null.
+	 * @param query
+	 *            Query. Must not be null.
+	 * @param cursor
+	 *            Cursor of the previous page or null to fetch the first page.
+	 * @param iQueryHash
+	 *            Hash code of search type and query.
+	 * @param iPageSize
+	 *            Maximum number of hits of the page. Must be &gt; 0.
+	 * 
+	 * @return Page of results. Never null.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
+	 */
+	protected SearchPage searchPage(final ChemicalSearcher searcher, final Query query, final SearchCursor cursor,
+			final int iQueryHash, final int iPageSize) throws IOException {
+		if (iPageSize <= 0) {
+			throw new IllegalArgumentException("Page size must be > 0.");
+		}
+
+		final SubstructureScoreDocCollector collector = SubstructureScoreDocCollector.create(
+				iPageSize, (cursor == null ? null : cursor.getAfter()), true);
+		searcher.search(query, collector);
+		final TopDocs topDocs = collector.topDocs();
+		final ScoreDoc[] arrHits = topDocs.scoreDocs;
+		final int iHits = (cursor == null ? 0 : cursor.getHitsBefore()) + arrHits.length;
+
+		return new SearchPage(arrHits, getPrimaryKeys(searcher, arrHits), topDocs.totalHits,
+				(arrHits.length == iPageSize && iHits < topDocs.totalHits ?
+						createCursor(searcher, iQueryHash, arrHits[arrHits.length - 1], -1, iHits) : null));
+	}
+
+	/**
+	 * Creates the cursor for the next page and keeps the searcher of the
+	 * current page open for it (see {@link #setCursorLifetime(long)}).
+	 * 
+	 * @param searcher
+	 *            Searcher of the current page. Must not be null.
+	 * @param iQueryHash
+	 *            Hash code of search type and query.
+	 * @param after
+	 *            Last hit of the current page. Must not be null.
+	 * @param iResumeDoc
+	 *            First document id to be verified by the next page or -1, if not used.
+	 * @param iHitsBefore
+	 *            Number of hits up to and including the current page.
+	 * 
+	 * @return Cursor.
+	 */
+	protected SearchCursor createCursor(final ChemicalSearcher searcher, final int iQueryHash,
+			final ScoreDoc after, final int iResumeDoc, final int iHitsBefore) throws IOException {
+		return new SearchCursor(recordSearcher(searcher), iQueryHash, after, iResumeDoc, iHitsBefore);
+	}
+
+	/**
+	 * Keeps the specified searcher open after it has been replaced by a newer one
+	 * (see {@link #setCursorLifetime(long)}), so that it can be acquired again by
+	 * its version to continue a search. Only used for search cursors.
+	 * 
+	 * @param searcher
+	 *            Searcher to be kept. Must not be null.
+	 * 
+	 * @return Version of the searcher.
+	 */
+	protected long recordSearcher(final IndexSearcher searcher) throws IOException {
+		long lVersion = searcher.getIndexReader().getVersion();
+		try {
+			lVersion = m_searcherLifetimes.record(searcher);
+		}
+		catch (final AlreadyClosedException exc) {
+			// Index got closed meanwhile - acquiring the searcher later fails
+		}
+		catch (final IllegalArgumentException exc) {
+			// Another searcher of the same reader version is kept already, which has the same document ids
+		}
+
+		return lVersion;
+	}
+
+	/**
+	 * Calculates the hash code of a paged search, which is stored in its cursors.
+	 * 
+	 * @param strSearchType
+	 *            Search type (and parameters). Must not be null.
+	 * @param strQuery
+	 *            Query. Must not be null.
+	 * @param cursor
+	 *            Cursor of the previous page. Can be null.
+	 * 
+	 * @return Hash code.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             Thrown, if the cursor belongs to a different search.
+	 */
+	protected int getQueryHash(final String strSearchType, final String strQuery, final SearchCursor cursor) {
+		if (strQuery == null) {
+			throw new IllegalArgumentException("Query must not be null.");
+		}
+
+		final int iQueryHash = (strSearchType + '\0' + strQuery).hashCode();
+		if (cursor != null && cursor.getQueryHash() != iQueryHash) {
+			throw new IllegalArgumentException("Search cursor belongs to a different search.");
+		}
+
+		return iQueryHash;
+	}
+
+	/**
+	 * Canonicalizes a query SMILES, which serves as key for cached results.
+	 * 
+	 * @param strSmiles Query SMILES. Must not be null.
+	 * 
+	 * @return Canonical SMILES or null, if the SMILES could not be canonicalized.
+	 */
+	protected String getCanonicalQuerySmiles(final String strSmiles) {
+		if (strSmiles == null) {
+			throw new IllegalArgumentException("SMILES must not be null.");
+		}
+
+		String canonSmiles = null;
+
+		try {
+			canonSmiles = RDKFuncs.getCanonSmiles(strSmiles, true);
+		}
+		catch (final GenericRDKitException exc) {
+			LOGGER.log(Level.FINE, "Query SMILES " + strSmiles + " could not be canonicalized.", exc);
+		}
+
+		return (canonSmiles == null || canonSmiles.isEmpty() ? null : canonSmiles);
+	}
+
+	/**
+	 * Returns the canonical SMILES an exact search looks up. It is taken from
+	 * the query cache, if the query has been prepared already. Otherwise only
+	 * the SMILES gets canonicalized without preparing and caching the query,
+	 * because exact searches need neither the query molecule nor its fingerprint.
+	 * 
+	 * @param strSmiles Query SMILES. Must not be null.
+	 * 
+	 * @return Canonical SMILES. Never null.
+	 * 
+	 * @throws GenericRDKitException Thrown, if the SMILES could not be canonicalized.
+	 */
+	protected String getExactQuerySmiles(final String strSmiles) throws GenericRDKitException {
+		if (strSmiles == null) {
+			throw new IllegalArgumentException("SMILES must not be null.");
+		}
+
+		final PreparedQuery prepared = m_queryCache.get(strSmiles);
+		if (prepared != null) {
+			final String canonSmiles = prepared.getCanonicalSmiles();
+			m_queryCache.release(prepared);
+			if (canonSmiles != null) {
+				return canonSmiles;
+			}
+		}
+
+		return RDKFuncs.getCanonSmiles(strSmiles, true);
+	}
+
+	/**
+	 * Returns the prepared query for the specified SMILES from the query cache.
+	 * If it is not cached yet, the SMILES is canonicalized, the query fingerprint
+	 * and the structure fingerprint of the canonical SMILES are calculated and the
+	 * query molecule is parsed and prepared to be shared read-only by several threads. Failures are not thrown, but result in
+	 * missing parts of the prepared query.
+	 * 
+	 * @param strSmiles Query SMILES. Must not be null.
+	 * 
+	 * @return Acquired prepared query, which must be released with
+	 * 		{@link QueryCache#release} after use. Never null.
+	 */
+	protected PreparedQuery prepareQuery(final String strSmiles) {
+		if (strSmiles == null) {
+			throw new IllegalArgumentException("SMILES must not be null.");
+		}
+
+		final PreparedQuery prepared = m_queryCache.get(strSmiles);
+		if (prepared != null) {
+			return prepared;
+		}
+
+		final String canonSmiles = getCanonicalQuerySmiles(strSmiles);
+		final BitSet fpQuery = m_fingerprintFactory.createQueryFingerprint(strSmiles, false);
+		final BitSet fpStructure = (canonSmiles == null ? null :
+			m_fingerprintFactory.createStructureFingerprint(canonSmiles, true));
+
+		ROMol molQuery = null;
+		try {
+			final RWMol mol = RWMol.MolFromSmiles(strSmiles, 0, false);
+			if (mol != null) {
+				try {
+					// Substructure matches must not need to compute anything lazily on the shared molecule
+					mol.updatePropertyCache(false);
+					RDKFuncs.fastFindRings(mol);
+					molQuery = mol;
+				}
+				catch (final GenericRDKitException exc) {
+					mol.delete();
+					throw exc;
+				}
+			}
+		}
+		catch (final GenericRDKitException exc) {
+			LOGGER.log(Level.FINE, "Query SMILES " + strSmiles + " could not be parsed.", exc);
+		}
+
+		// The cache takes over the query molecule
+		return m_queryCache.put(new PreparedQuery(strSmiles, canonSmiles, fpQuery, fpStructure, molQuery));
+	}
+
+	/**
+	 * Resolves the primary keys of the result of a search, adds the result to the
+	 * result cache and returns a new collector delivering it, because reading the
+	 * top documents empties the passed in collector (see
+	 * {@link #resolveResult(ChemicalSearcher, TopDocsCollector)}).
+	 * 
+	 * @param searcher Searcher that found the hits. Must not be null.
+	 * @param searchType Type of search. Must not be null.
+	 * @param canonSmiles Canonical query SMILES. Must not be null.
+	 * @param iMaxHits Maximum number of hits of the search.
+	 * @param iGeneration Result cache generation obtained before preparing the searcher.
+	 * @param collector Collector with the search result. Must not be null.
+	 * 
+	 * @return Collector with the same result.
+	 */
+	protected TopDocsCollector<ScoreDoc> cacheResult(final ChemicalSearcher searcher,
+			final ResultCache.SearchType searchType, final String canonSmiles, final int iMaxHits,
+			final int iGeneration, final TopDocsCollector<ScoreDoc> collector) throws IOException {
+		final ResultCache.Result result = new ResultCache.Result(resolveResult(searcher, collector).topDocs());
+		m_resultCache.put(searchType, canonSmiles, iMaxHits, iGeneration, result);
+		return result.createCollector();
+	}
+
+	/**
+	 * Resolves the primary keys of all hits of a search result with the searcher
+	 * that found them and returns a new collector delivering the hits together
+	 * with their primary keys (see {@link PrimaryKeyScoreDoc}). The result does
+	 * not depend on the searcher anymore, so the searcher does not need to be kept
+	 * open after it got replaced.
+	 * 
+	 * @param searcher Searcher that found the hits. Must not be null.
+	 * @param collector Collector with the search result. Can be null.
+	 * 
+	 * @return Collector with the same result or null, if null was passed in.
+	 */
+	protected TopDocsCollector<ScoreDoc> resolveResult(final ChemicalSearcher searcher,
+			final TopDocsCollector<ScoreDoc> collector) throws IOException {
+		if (collector == null) {
+			return null;
+		}
+
+		final TopDocs topDocs = collector.topDocs();
+		final String[] arrPKs = getPrimaryKeys(searcher, topDocs.scoreDocs);
+		final ScoreDoc[] arrHits = new ScoreDoc[arrPKs.length];
+		for (int i = 0; i < arrHits.length; i++) {
+			arrHits[i] = new PrimaryKeyScoreDoc(topDocs.scoreDocs[i].doc, topDocs.scoreDocs[i].score, arrPKs[i]);
+		}
+
+		return new FixedTopDocsCollector(arrHits, topDocs.totalHits, topDocs.getMaxScore());
+	}
+
+	/**
+	 * Creates the query for checking if all query fingerprint bit positions
+	 * are matching set bits in a molecules fingerprint. How this is done
+	 * depends on the current screen mode.
+	 * 
+	 * @param fpQuery Query fingerprint. Must not be null.
+	 * 
+	 * @return Screen query.
+	 */
+	protected Query createScreenQuery(final BitSet fpQuery) {
+		return createScreenQuery(fpQuery, null);
+	}
+
+	/**
+	 * Creates the query for checking if all query fingerprint bit positions
+	 * are matching set bits in a molecules fingerprint. How this is done
+	 * depends on the current screen mode.
+	 * 
+	 * @param fpQuery Query fingerprint. Must not be null.
+	 * @param stats Statistics to be filled while screening. Can be null.
+	 * 
+	 * @return Screen query.
+	 */
+	protected Query createScreenQuery(final BitSet fpQuery, final SearchStatistics stats) {
+		Query query = null;
+
+		switch (m_screenMode) {
+		case FINGERPRINT_COLUMN:
+			query = new ConstantScoreQuery(new FingerprintScreenFilter(
+					m_fingerprintStore, FingerprintColumn.toWords(fpQuery), stats));
+			break;
+		case LEAPFROG:
+			query = new FingerprintScreenQuery(FIELD_FP, fpQuery, m_fMaxScreenBitFrequency);
+			break;
+		case TERM_QUERY:
+		default:
+			final BooleanQuery queryTerms = new BooleanQuery();
+			for (int i = fpQuery.nextSetBit(0); i >= 0; i = fpQuery
+					.nextSetBit(i + 1)) {
+				queryTerms.add(new BooleanClause(new TermQuery(new Term(FIELD_FP,
+						Integer.toString(i))), BooleanClause.Occur.MUST));
+			}
+			query = queryTerms;
+			break;
+		}
+
+		return query;
+	}
+
+	/**
+	 * Creates the fingerprint screen query for a substructure search.
+	 * 
+	 * @param prepared Prepared query. Must not be null.
+	 * @param stats Statistics to be filled while screening. Can be null.
+	 * 
+	 * @return Screen query or null, if no query fingerprint could be calculated
+	 * 		or the query molecule could not be parsed.
+	 */
+	protected Query createSubstructureScreenQuery(final PreparedQuery prepared, final SearchStatistics stats) {
+		if (prepared == null) {
+			throw new IllegalArgumentException("Prepared query must not be null.");
+		}
+
+		final BitSet fpQuery = prepared.getQueryFingerprint();
+		return (fpQuery == null || prepared.getQueryMolecule() == null ? null : createScreenQuery(fpQuery, stats));
+	}
+
+	/**
+	 * Adds the RDKit molecule with the specified primary key to the index.
+	 * 
+	 * @param strPK
+	 *            Primary key to be used for the molecule. Must not be null.
+	 * @param canonSmiles
+	 *            Canonical Smiles. Must not be null.
+	 * @param listNames
+	 *            Optional list of names to be added for synonym searches (e.g.
+	 *            NVP number). Can be null.
+	 * @param mapProperties
+	 *            Optional list of properties to be added as other fields. Can be null.
+	 */
+	protected void addMolecule(final String strPK, final String canonSmiles,
+			final List<String> listNames, final Map<String, Object> mapProperties)
+					throws IOException, GenericRDKitException {
+		addMoleculeDocument(strPK, canonSmiles, createMoleculeDocument(strPK, canonSmiles, listNames, mapProperties));
+	}
+
+	/**
+	 * Creates the index document of the RDKit molecule with the specified
+	 * primary key, including its fingerprint. This does not touch the index
+	 * writer and can be called by several threads concurrently.
+	 * 
+	 * @param strPK
+	 *            Primary key to be used for the molecule. Must not be null.
+	 * @param canonSmiles
+	 *            Canonical Smiles. Must not be null.
+	 * @param listNames
+	 *            Optional list of names to be added for synonym searches (e.g.
+	 *            NVP number). Can be null.
+	 * @param mapProperties
+	 *            Optional list of properties to be added as other fields. Can be null.
+	 * 
+	 * @return Index document.
+	 */
+	protected Document createMoleculeDocument(final String strPK, final String canonSmiles,
+			final List<String> listNames, final Map<String, Object> mapProperties)
+					throws GenericRDKitException {
+		// Pre-checks
+		if (strPK == null) {
+			throw new IllegalArgumentException("Primary key must not be null.");
+		}
+		if (canonSmiles == null || canonSmiles.trim().isEmpty()) {
+			throw new IllegalArgumentException(
+					"Canonical SMILES must not be null or empty.");
+		}
+
+		final BitSet fp = m_fingerprintFactory.createStructureFingerprint(canonSmiles, true);
+
+		// Create new index document
+		final Document doc = new Document();
+		doc.add(new Field(FIELD_PK, strPK, Store.YES,
+				Index.NOT_ANALYZED_NO_NORMS));
+
+		// This is the canonical SMILES structure
+		doc.add(new Field(FIELD_SMILES, canonSmiles, Store.YES,
+				Index.NOT_ANALYZED_NO_NORMS));
+
+		// Optionally the molecule in binary form to avoid parsing SMILES when verifying
+		if (m_bStoreBinaryMolecules) {
+			final int iWaveId = RDKit.createUniqueCleanupWaveId();
+			try {
+				final RWMol mol = RDKit.markForCleanup(RWMol.MolFromSmiles(canonSmiles, 0, false), iWaveId);
+				mol.updatePropertyCache(false);
+				doc.add(new Field(FIELD_MOL, RDKit.toByteArray(mol)));
+			}
+			finally {
+				RDKit.cleanupMarkedObjects(iWaveId);
+			}
+		}
+
+		// For the fingerprint we store only the bit positions as numbers
+		for (int i = fp.nextSetBit(0); i >= 0; i = fp.nextSetBit(i + 1)) {
+			doc.add(new Field(FIELD_FP, Integer.toString(i), Store.NO,
+					Index.NOT_ANALYZED_NO_NORMS, Field.TermVector.NO));
+		}
+
+		// Add names for the molecule
+		if (listNames != null) {
+			for (final String name : listNames) {
+				doc.add(new Field(FIELD_NAME, name, Store.YES,
+						Index.NOT_ANALYZED_NO_NORMS));
+			}
+		}
+
+		// Add other properties for the molecule
+		if (mapProperties != null) {
+			for (final String key : mapProperties.keySet()) {
+				final Object value = mapProperties.get(key);
+				if (value != null) {
+					final String strValue = value.toString();
+					doc.add(new Field(key, strValue, Store.YES,
+							Index.NOT_ANALYZED_NO_NORMS));
+				}
+			}
+		}
+
+		return doc;
+	}
+
+	/**
+	 * Adds the index document of a molecule to the index. A molecule with the
+	 * same primary key, which was added before, gets removed, unless the index
+	 * is in bulk load mode. Can be called by several threads concurrently, as
+	 * long as they add different primary keys.
+	 * 
+	 * @param strPK
+	 *            Primary key of the molecule. Must not be null.
+	 * @param canonSmiles
+	 *            Canonical Smiles of the molecule. Can be null.
+	 * @param doc
+	 *            Document created by {@link #createMoleculeDocument(String, String, List, Map)}.
+	 *            Must not be null.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if the writer is unavailable or failed.
+	 */
+	protected void addMoleculeDocument(final String strPK, final String canonSmiles, final Document doc)
+			throws IOException {
+		addMoleculeDocument(strPK, canonSmiles, doc, !m_bBulkLoad);
+	}
+
+	/**
+	 * Adds the index document of a molecule to the index. Can be called by
+	 * several threads concurrently, as long as they add different primary keys.
+	 * 
+	 * @param strPK
+	 *            Primary key of the molecule. Must not be null.
+	 * @param canonSmiles
+	 *            Canonical Smiles of the molecule. Can be null.
+	 * @param doc
+	 *            Document created by {@link #createMoleculeDocument(String, String, List, Map)}.
+	 *            Must not be null.
+	 * @param bReplace
+	 *            True to remove a molecule with the same primary key, which was added before.
+	 *            False to skip this, because the primary key is known to be new.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if the writer is unavailable or failed.
+	 */
+	protected void addMoleculeDocument(final String strPK, final String canonSmiles, final Document doc,
+			final boolean bReplace) throws IOException {
+		final IndexWriter writer = prepareWriter();
+		if (writer != null) {
+			if (bReplace) {
+				// Replace existing index document with the same PK (primary key) atomically
+				writer.updateDocument(new Term(FIELD_PK, strPK), doc);
+
+				// OR:
+				// Replace existing index document with the same canonical smiles
+				// if (canonSmiles != null) {
+				// writer.updateDocument(new Term(FIELD_CANON_SMILES, canonSmiles), doc);
+				// }
+			}
+			else {
+				writer.addDocument(doc);
+			}
+
+			onMoleculeAdded(strPK, canonSmiles);
+		}
+		else {
+			throw new IOException("Index writer is unavailable.");
+		}
+	}
+
+	/**
+	 * Creates the index writer, if it is currently closed. An open searcher
+	 * gets replaced by one reading near-real-time from the writer, so that added
+	 * molecules become searchable without committing or closing the writer.
+	 * 
+	 * @return The writer, if one is available. Null otherwise.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index writer could not be opened.
+	 */
+	protected IndexWriter prepareWriter() throws IOException {
+		if (isShutdown()) {
+			return null;
+		}
+
+		IndexWriter writer = m_writer;
+		if (writer == null) {
+			synchronized (m_lockWriter) {
+				writer = m_writer;
+				if (writer == null) {
+					writer = new IndexWriter(m_directory,
+							m_configFactory.createIndexWriterConfig(m_analyzerFactory.createAnalyzer()));
+					m_writer = writer;
+
+					// Running searches finish on the replaced searcher
+					synchronized (m_lockSearcher) {
+						final SearcherManager managerOld = m_searcherManager;
+						if (managerOld != null) {
+							m_searcherManager = new SearcherManager(writer, true, m_searcherFactory);
+							managerOld.close();
+						}
+					}
+				}
+			}
+		}
+
+		return writer;
+	}
+
+	/**
+	 * Acquires the current index searcher and creates it, if it is currently
+	 * closed. If the index writer is open, the searcher reads near-real-time from
+	 * it, otherwise it reads the last commit of the index directory.
+	 * Every acquired searcher must be released by calling {@link #releaseSearcher(IndexSearcher)}.
+	 * It stays usable until then, even if it gets replaced by a reopened one meanwhile.
+	 * 
+	 * @return The searcher, if one is available. Null otherwise.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index searcher could not be opened.
+	 */
+	protected ChemicalSearcher acquireSearcher() throws IOException {
+		while (!isShutdown()) {
+			SearcherManager manager = m_searcherManager;
+			if (manager == null) {
+				synchronized (m_lockSearcher) {
+					manager = m_searcherManager;
+					if (manager == null) {
+						final IndexWriter writer = m_writer;
+						if (writer != null) {
+							manager = new SearcherManager(writer, true, m_searcherFactory);
+						}
+						else {
+							try {
+								manager = new SearcherManager(m_directory, m_searcherFactory);
+							}
+							catch (final IndexNotFoundException exc) {
+								LOGGER.log(Level.WARNING, "The index does not exist yet.");
+								throw new IOException("The index does not exist yet.", exc);
+							}
+						}
+						m_searcherManager = manager;
+						startReopenThread();
+					}
+				}
+			}
+
+			try {
+				return (ChemicalSearcher)manager.acquire();
+			}
+			catch (final AlreadyClosedException exc) {
+				// The manager was replaced or closed meanwhile - try again with the current one
+				LOGGER.log(Level.FINEST, "Searcher manager was closed concurrently.", exc);
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Releases a searcher, which was acquired before. It gets closed,
+	 * if it was replaced and no other search uses it anymore.
+	 * 
+	 * @param searcher Searcher obtained from {@link #acquireSearcher()}. Can be null.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if closing the searcher failed.
+	 */
+	protected void releaseSearcher(final IndexSearcher searcher) throws IOException {
+		if (searcher != null) {
+			// Same as SearcherManager.release(), which does not depend on the manager
+			// instance, as the issuing manager may have been replaced meanwhile
+			searcher.getIndexReader().decRef();
+		}
+	}
+
+	/**
+	 * Acquires the searcher, which delivered the previous page of a paged
+	 * search. If it has been released meanwhile, the search cannot be continued,
+	 * because its document ids do not apply to any other searcher.
+	 * The searcher must be released by calling {@link #releaseSearcher(IndexSearcher)}.
+	 * 
+	 * @param cursor
+	 *            Cursor of the previous page. Can be null to acquire the current searcher.
+	 * 
+	 * @return Searcher or null, if the index has been shutdown.
+	 * 
+	 * @throws SearchExpiredException
+	 *             Thrown, if the searcher of the cursor has been released already.
+	 * @throws IOException
+	 *             Thrown, if the searcher could not be opened.
+	 */
+	protected ChemicalSearcher acquireSearcher(final SearchCursor cursor) throws IOException {
+		return acquireSearcher(cursor == null ? -1 : cursor.getSearcherVersion());
+	}
+
+	/**
+	 * Acquires the searcher with the specified version, which has been kept open
+	 * by {@link #recordSearcher(IndexSearcher)}. If it has been released meanwhile,
+	 * document ids found by it cannot be used anymore, because they do not apply
+	 * to any other searcher. The searcher must be released by calling
+	 * {@link #releaseSearcher(IndexSearcher)}.
+	 * 
+	 * @param lSearcherVersion
+	 *            Version of the searcher or -1 to acquire the current searcher.
+	 * 
+	 * @return Searcher or null, if the index has been shutdown.
+	 * 
+	 * @throws SearchExpiredException
+	 *             Thrown, if the searcher has been released already.
+	 * @throws IOException
+	 *             Thrown, if the searcher could not be opened.
+	 */
+	protected ChemicalSearcher acquireSearcher(final long lSearcherVersion) throws IOException {
+		if (lSearcherVersion >= 0 && !m_bShutdown) {
+			final IndexSearcher searcher = m_searcherLifetimes.acquire(lSearcherVersion);
+			if (searcher == null) {
+				throw new SearchExpiredException("The searcher of the search has been released. " +
+						"The search needs to be started over.");
+			}
+			return (ChemicalSearcher)searcher;
+		}
+
+		return acquireSearcher();
+	}
+
+	/**
+	 * Returns the executor that runs parallel search tasks. It gets created
+	 * on first use and consists of daemon threads. It is only shut down
+	 * together with the index, changes of the thread count resize it.
+	 * 
+	 * @return Search executor.
+	 */
+	protected synchronized ExecutorService getSearchExecutor() {
+		if (m_searchExecutor == null) {
+			final AtomicInteger aiThreadNumber = new AtomicInteger();
+			m_searchExecutor = new ThreadPoolExecutor(m_iSearchThreadCount, m_iSearchThreadCount,
+					0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable runnable) {
+					final Thread thread = new Thread(runnable, "ChemicalIndex-Search-" + aiThreadNumber.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		return m_searchExecutor;
+	}
+
+	//
+	// Private Methods
+	//
+
+	/**
+	 * Removes all null values from the passed in primary keys.
+	 * 
+	 * @param arrPKs Primary keys. Must not be null.
+	 * 
+	 * @return Primary keys without null values. Can be empty, but will never be null.
+	 */
+	private String[] removeNulls(final String[] arrPKs) {
+		final List<String> listPKs = new ArrayList<String>(arrPKs.length);
+		for (final String strPK : arrPKs) {
+			if (strPK != null) {
+				listPKs.add(strPK);
+			}
+		}
+		return listPKs.toArray(new String[listPKs.size()]);
+	}
+
+	/**
+	 * Discards all cached results, because a setting changed that affects
+	 * search results. The current searcher continues with the new generation,
+	 * searches running meanwhile will not cache their results.
+	 */
+	private void invalidateResults() {
+		synchronized (m_lockSearcher) {
+			m_resultCache.invalidate();
+
+			final SearcherManager manager = m_searcherManager;
+			if (manager != null) {
+				final ChemicalSearcher searcher = (ChemicalSearcher)manager.acquire();
+				try {
+					searcher.m_iResultCacheGeneration = m_resultCache.getGeneration();
+				}
+				finally {
+					try {
+						manager.release(searcher);
+					}
+					catch (final IOException exc) {
+						LOGGER.log(Level.WARNING, "Searcher could not be released.", exc);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Starts the background thread that reopens the searcher periodically,
+	 * if a reopen interval is set. Must be called while holding m_lockSearcher.
+	 */
+	private void startReopenThread() {
+		if (m_lReopenInterval > 0 && m_reopenExecutor == null) {
+			m_reopenExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable runnable) {
+					final Thread thread = new Thread(runnable, "ChemicalIndex-Reopen");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			m_reopenExecutor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						refresh();
+					}
+					catch (final AlreadyClosedException exc) {
+						// The writer was closed meanwhile - the thread gets stopped as well
+					}
+					catch (final Exception exc) {
+						LOGGER.log(Level.WARNING, "Searcher could not be reopened.", exc);
+					}
+				}
+			}, m_lReopenInterval, m_lReopenInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stops the background thread that reopens the searcher periodically.
+	 * Must be called while holding m_lockSearcher.
+	 */
+	private void stopReopenThread() {
+		if (m_reopenExecutor != null) {
+			m_reopenExecutor.shutdown();
+			m_reopenExecutor = null;
+		}
 	}
 
 	//
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.FixedBitSet;
+import org.rdkit.lucene.store.FingerprintColumn;
+import org.rdkit.lucene.store.FingerprintStore;
+import org.rdkit.lucene.util.IndexUtils;
+
+/**
+ * A filter that accepts all documents whose fingerprint contains all bits
+ * of a query fingerprint. Instead of intersecting the posting lists of
+ * all query bits it scans the packed fingerprint column of each segment
+ * linearly. Screening runs in two stages: First the folded words of the
+ * query and of all documents are compared (see {@link FingerprintColumn#getFoldedWords()}),
+ * which is a single AND per document on a dense array. Only the survivors
+ * are tested (q & ~t) == 0 word by word over the full fingerprint width.
+ */
+public class FingerprintScreenFilter extends Filter {
+
+	//
+	// Constants
+	//
+
+	/** Serial number. */
+	private static final long serialVersionUID = 1L;
+
+	//
+	// Members
+	//
+
+	/** The store that delivers the fingerprint columns of all segments. */
+	private final transient FingerprintStore m_store;
+
+	/** The query fingerprint as words. */
+	private final long[] m_arrQuery;
+
+	/** The folded query fingerprint. */
+	private final long m_lFoldedQuery;
+
+	/** Statistics to be filled while screening or null. */
+	private final transient SearchStatistics m_stats;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new fingerprint screen filter.
+	 * 
+	 * @param store Fingerprint store of the index. Must not be null.
+	 * @param arrQuery Query fingerprint as words (see {@link FingerprintColumn#toWords(java.util.BitSet)}).
+	 * 		Must not be null.
+	 */
+	public FingerprintScreenFilter(final FingerprintStore store, final long[] arrQuery) {
+		this(store, arrQuery, null);
+	}
+
+	/**
+	 * Creates a new fingerprint screen filter, which records how many documents
+	 * passed the folded word prefilter.
+	 * 
+	 * @param store Fingerprint store of the index. Must not be null.
+	 * @param arrQuery Query fingerprint as words (see {@link FingerprintColumn#toWords(java.util.BitSet)}).
+	 * 		Must not be null.
+	 * @param stats Statistics to be filled while screening. Can be null.
+	 */
+	public FingerprintScreenFilter(final FingerprintStore store, final long[] arrQuery,
+			final SearchStatistics stats) {
+		if (store == null) {
+			throw new IllegalArgumentException("Fingerprint store must not be null.");
+		}
+		if (arrQuery == null) {
+			throw new IllegalArgumentException("Query fingerprint must not be null.");
+		}
+
+		m_store = store;
+		m_arrQuery = arrQuery;
+		m_lFoldedQuery = FingerprintColumn.fold(arrQuery);
+		m_stats = stats;
+	}
+
+	//
+	// Public Methods
+	//
+
+	@Override
+	public DocIdSet getDocIdSet(final IndexReader reader) throws IOException {
+		final FingerprintColumn column = m_store.getColumn(reader);
+		final int iMaxDoc = reader.maxDoc();
+		final FixedBitSet result = new FixedBitSet(iMaxDoc);
+		final FixedBitSet liveDocs = IndexUtils.getLiveDocs(reader);
+		final long[] arrFoldedWords = column.getFoldedWords();
+		final long lFoldedQuery = m_lFoldedQuery;
+		int iTested = 0;
+		int iPassed = 0;
+
+		for (int iDoc = 0; iDoc < iMaxDoc; iDoc++) {
+			if (liveDocs == null || liveDocs.get(iDoc)) {
+				iTested++;
+				if ((lFoldedQuery & ~arrFoldedWords[iDoc]) == 0) {
+					iPassed++;
+					if (column.containsAll(m_arrQuery, iDoc)) {
+						result.set(iDoc);
+					}
+				}
+			}
+		}
+
+		if (m_stats != null) {
+			m_stats.addPrefilter(iTested, iPassed);
+		}
+
+		return result;
+	}
+
+	@Override
+	public boolean equals(final Object o) {
+		return (o instanceof FingerprintScreenFilter &&
+				((FingerprintScreenFilter)o).m_store == m_store &&
+				Arrays.equals(((FingerprintScreenFilter)o).m_arrQuery, m_arrQuery));
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(m_arrQuery);
+	}
+
+	@Override
+	public String toString() {
+		return "FingerprintScreenFilter(" + Arrays.toString(m_arrQuery) + ")";
+	}
+}
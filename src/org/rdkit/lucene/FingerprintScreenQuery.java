@@ -0,0 +1,396 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Set;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+
+/**
+ * A fingerprint screen query, which matches all documents whose fingerprint
+ * contains all bits of the query fingerprint. Instead of treating all bits
+ * the same like a boolean query, the posting lists of the query bits are
+ * intersected by leapfrogging from the rarest to the most common bit of
+ * every segment: The rarest bit proposes a candidate document, all other
+ * bits skip to it, and the first one that overshoots proposes the next candidate.
+ * <p>
+ * Optionally bits that are set in more than a certain fraction of all
+ * documents of the reader are dropped. This only admits more candidates,
+ * so the screen stays correct, but saves intersecting long posting lists
+ * that hardly filter anything. All matches get the same score.
+ */
+public class FingerprintScreenQuery extends Query {
+
+	//
+	// Constants
+	//
+
+	/** Serial number. */
+	private static final long serialVersionUID = 1L;
+
+	//
+	// Members
+	//
+
+	/** The fingerprint field. */
+	private final String m_strField;
+
+	/** Set bits of the query fingerprint. */
+	private final int[] m_arrBits;
+
+	/** Maximum fraction of documents a bit may occur in to be considered. */
+	private final float m_fMaxBitFrequency;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new fingerprint screen query.
+	 * 
+	 * @param strField Field that contains fingerprint bit positions as terms. Must not be null.
+	 * @param fpQuery Query fingerprint. Must not be null.
+	 * @param fMaxBitFrequency Maximum fraction of all documents (0.0 - 1.0) a query bit
+	 * 		may be set in to be used for screening. 1.0 uses all bits. The rarest bit is
+	 * 		always used.
+	 */
+	public FingerprintScreenQuery(final String strField, final BitSet fpQuery, final float fMaxBitFrequency) {
+		if (strField == null) {
+			throw new IllegalArgumentException("Fingerprint field must not be null.");
+		}
+		if (fpQuery == null) {
+			throw new IllegalArgumentException("Query fingerprint must not be null.");
+		}
+		if (!(fMaxBitFrequency > 0.0f && fMaxBitFrequency <= 1.0f)) {
+			throw new IllegalArgumentException("Maximum bit frequency must be > 0.0 and <= 1.0.");
+		}
+
+		m_strField = strField.intern();
+		m_arrBits = new int[fpQuery.cardinality()];
+		for (int i = fpQuery.nextSetBit(0), j = 0; i >= 0; i = fpQuery.nextSetBit(i + 1), j++) {
+			m_arrBits[j] = i;
+		}
+		m_fMaxBitFrequency = fMaxBitFrequency;
+	}
+
+	//
+	// Public Methods
+	//
+
+	// Query.createWeight of Lucene 3.6 requires the deprecated Searcher type
+	@Override
+	@SuppressWarnings("deprecation")
+	public Weight createWeight(final org.apache.lucene.search.Searcher searcher) throws IOException {
+		final Term[] arrTerms = createTerms();
+		final int[] arrDocFreqs = searcher.docFreqs(arrTerms);
+		final long lMaxDocFreq = (long)Math.floor((double)m_fMaxBitFrequency * searcher.maxDoc());
+
+		// Drop near-ubiquitous bits, but keep at least the rarest one
+		int iRarest = -1;
+		int iCount = 0;
+		for (int i = 0; i < arrTerms.length; i++) {
+			if (iRarest < 0 || arrDocFreqs[i] < arrDocFreqs[iRarest]) {
+				iRarest = i;
+			}
+			if (arrDocFreqs[i] <= lMaxDocFreq) {
+				iCount++;
+			}
+		}
+
+		Term[] arrScreenTerms;
+		if (iCount == arrTerms.length) {
+			arrScreenTerms = arrTerms;
+		}
+		else if (iCount == 0) {
+			arrScreenTerms = new Term[] { arrTerms[iRarest] };
+		}
+		else {
+			arrScreenTerms = new Term[iCount];
+			for (int i = 0, j = 0; i < arrTerms.length; i++) {
+				if (arrDocFreqs[i] <= lMaxDocFreq) {
+					arrScreenTerms[j++] = arrTerms[i];
+				}
+			}
+		}
+
+		return new LeapfrogWeight(arrScreenTerms);
+	}
+
+	@Override
+	public void extractTerms(final Set<Term> terms) {
+		terms.addAll(Arrays.asList(createTerms()));
+	}
+
+	@Override
+	public String toString(final String strField) {
+		final StringBuilder sb = new StringBuilder("FingerprintScreenQuery[");
+		if (!m_strField.equals(strField)) {
+			sb.append(m_strField).append(":");
+		}
+		sb.append(Arrays.toString(m_arrBits));
+		if (m_fMaxBitFrequency < 1.0f) {
+			sb.append(", maxBitFrequency=").append(m_fMaxBitFrequency);
+		}
+		return sb.append("]").toString();
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof FingerprintScreenQuery)) {
+			return false;
+		}
+
+		final FingerprintScreenQuery other = (FingerprintScreenQuery)obj;
+		return getBoost() == other.getBoost() && m_strField == other.m_strField &&
+				m_fMaxBitFrequency == other.m_fMaxBitFrequency && Arrays.equals(m_arrBits, other.m_arrBits);
+	}
+
+	@Override
+	public int hashCode() {
+		return (Float.floatToIntBits(getBoost()) ^ m_strField.hashCode() ^
+				Float.floatToIntBits(m_fMaxBitFrequency)) * 31 + Arrays.hashCode(m_arrBits);
+	}
+
+	//
+	// Private Methods
+	//
+
+	/**
+	 * Creates the terms of all query bits.
+	 * 
+	 * @return Terms.
+	 */
+	private Term[] createTerms() {
+		final Term[] arrTerms = new Term[m_arrBits.length];
+		for (int i = 0; i < m_arrBits.length; i++) {
+			arrTerms[i] = new Term(m_strField, Integer.toString(m_arrBits[i]));
+		}
+		return arrTerms;
+	}
+
+	//
+	// Inner Classes
+	//
+
+	/**
+	 * Creates leapfrog scorers for all segments, ordering the
+	 * screen bits by their document frequency within the segment.
+	 */
+	private class LeapfrogWeight extends Weight {
+
+		/** Serial number. */
+		private static final long serialVersionUID = 1L;
+
+		/** Terms of the screen bits. */
+		private final Term[] m_arrTerms;
+
+		/** Score of all matches. */
+		private float m_fValue;
+
+		/**
+		 * Creates a new weight.
+		 * 
+		 * @param arrTerms Terms of the screen bits. Must not be null.
+		 */
+		private LeapfrogWeight(final Term[] arrTerms) {
+			m_arrTerms = arrTerms;
+			m_fValue = getBoost();
+		}
+
+		@Override
+		public Query getQuery() {
+			return FingerprintScreenQuery.this;
+		}
+
+		@Override
+		public float getValue() {
+			return m_fValue;
+		}
+
+		@Override
+		public float sumOfSquaredWeights() throws IOException {
+			return getBoost() * getBoost();
+		}
+
+		@Override
+		public void normalize(final float fNorm) {
+			m_fValue = getBoost() * fNorm;
+		}
+
+		@Override
+		public Scorer scorer(final IndexReader reader, final boolean bScoreDocsInOrder,
+				final boolean bTopScorer) throws IOException {
+			if (m_arrTerms.length == 0) {
+				return null;
+			}
+
+			// Order bits from rarest to most common within this segment
+			final long[] arrOrder = new long[m_arrTerms.length];
+			for (int i = 0; i < m_arrTerms.length; i++) {
+				final int iDocFreq = reader.docFreq(m_arrTerms[i]);
+				if (iDocFreq == 0) {
+					return null;
+				}
+				arrOrder[i] = ((long)iDocFreq << 32) | i;
+			}
+			Arrays.sort(arrOrder);
+
+			final TermDocs[] arrTermDocs = new TermDocs[m_arrTerms.length];
+			for (int i = 0; i < arrOrder.length; i++) {
+				arrTermDocs[i] = reader.termDocs(m_arrTerms[(int)arrOrder[i]]);
+			}
+
+			return new LeapfrogScorer(this, arrTermDocs, m_fValue);
+		}
+
+		@Override
+		public Explanation explain(final IndexReader reader, final int iDoc) throws IOException {
+			final Scorer scorer = scorer(reader, true, false);
+			if (scorer != null && scorer.advance(iDoc) == iDoc) {
+				return new Explanation(m_fValue, "fingerprint contains all screen bits, " + getQuery());
+			}
+			return new Explanation(0.0f, "fingerprint does not contain all screen bits, " + getQuery());
+		}
+	}
+
+	/**
+	 * Intersects the posting lists of the screen bits, which are ordered
+	 * from rarest to most common, by leapfrogging.
+	 */
+	private static class LeapfrogScorer extends Scorer {
+
+		/** Postings of the screen bits, rarest first. */
+		private final TermDocs[] m_arrTermDocs;
+
+		/** Current document of every posting list or -1, if not positioned yet. */
+		private final int[] m_arrDocs;
+
+		/** Score of all matches. */
+		private final float m_fScore;
+
+		/** Current document. */
+		private int m_iDoc;
+
+		/**
+		 * Creates a new scorer.
+		 * 
+		 * @param weight Weight. Must not be null.
+		 * @param arrTermDocs Postings of the screen bits, rarest first. Must not be empty.
+		 * @param fScore Score of all matches.
+		 */
+		private LeapfrogScorer(final Weight weight, final TermDocs[] arrTermDocs, final float fScore) {
+			super(weight);
+			m_arrTermDocs = arrTermDocs;
+			m_arrDocs = new int[arrTermDocs.length];
+			Arrays.fill(m_arrDocs, -1);
+			m_fScore = fScore;
+			m_iDoc = -1;
+		}
+
+		@Override
+		public int docID() {
+			return m_iDoc;
+		}
+
+		@Override
+		public int nextDoc() throws IOException {
+			if (m_iDoc != NO_MORE_DOCS) {
+				m_iDoc = (m_arrTermDocs[0].next() ? align(m_arrTermDocs[0].doc()) : NO_MORE_DOCS);
+			}
+			return m_iDoc;
+		}
+
+		@Override
+		public int advance(final int iTarget) throws IOException {
+			if (m_iDoc != NO_MORE_DOCS) {
+				m_iDoc = (m_arrTermDocs[0].skipTo(iTarget) ? align(m_arrTermDocs[0].doc()) : NO_MORE_DOCS);
+			}
+			return m_iDoc;
+		}
+
+		@Override
+		public float score() throws IOException {
+			return m_fScore;
+		}
+
+		/**
+		 * Moves all posting lists to the first document at or after the
+		 * specified candidate of the rarest posting list that is contained in all of them.
+		 * 
+		 * @param iCandidate Current document of the rarest posting list.
+		 * 
+		 * @return Matching document or {@link #NO_MORE_DOCS}.
+		 * 
+		 * @throws IOException Thrown, if the index could not be read.
+		 */
+		private int align(final int iCandidate) throws IOException {
+			int iTarget = iCandidate;
+			int i = 1;
+
+			while (i < m_arrTermDocs.length) {
+				if (m_arrDocs[i] < iTarget) {
+					if (!m_arrTermDocs[i].skipTo(iTarget)) {
+						return NO_MORE_DOCS;
+					}
+					m_arrDocs[i] = m_arrTermDocs[i].doc();
+				}
+
+				if (m_arrDocs[i] > iTarget) {
+					// Overshot - let the rarest bit propose the next candidate
+					if (!m_arrTermDocs[0].skipTo(m_arrDocs[i])) {
+						return NO_MORE_DOCS;
+					}
+					iTarget = m_arrTermDocs[0].doc();
+					i = 1;
+				}
+				else {
+					i++;
+				}
+			}
+
+			return iTarget;
+		}
+	}
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * All hits of a search as a bit set over the document ids of the searcher,
+ * which found them. It takes one bit per document of the index, no matter how
+ * many documents match, and delivers its hits in document id order. Primary
+ * keys of hits are resolved with {@link ChemicalIndex#getPrimaryKeysForSearchHits(HitSet, int, int)}
+ * from the primary key column of the searcher, which found them. The hit set carries
+ * that column, so the searcher itself does not need to be kept open.
+ */
+public class HitSet {
+
+	//
+	// Members
+	//
+
+	/** One bit per document of the searcher. Set for hits. */
+	private final FixedBitSet m_bits;
+
+	/** The number of hits. */
+	private final int m_iCardinality;
+
+	/** Primary keys of the documents of the searcher that found the hits or null, if unknown. */
+	private final PrimaryKeyColumn m_primaryKeys;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new hit set.
+	 * 
+	 * @param bits Bit set with one bit per document of the searcher, which is set
+	 * 		for every hit. It is taken over and must not be changed anymore. Must not be null.
+	 * @param primaryKeys Primary keys of the documents of the searcher that found the hits.
+	 * 		Can be null, if unknown.
+	 */
+	public HitSet(final FixedBitSet bits, final PrimaryKeyColumn primaryKeys) {
+		if (bits == null) {
+			throw new IllegalArgumentException("Bits must not be null.");
+		}
+
+		m_bits = bits;
+		m_iCardinality = bits.cardinality();
+		m_primaryKeys = primaryKeys;
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Returns the number of hits.
+	 * 
+	 * @return Number of hits.
+	 */
+	public int cardinality() {
+		return m_iCardinality;
+	}
+
+	/**
+	 * Returns the number of documents of the searcher, which found the hits.
+	 * 
+	 * @return Number of documents including deleted ones.
+	 */
+	public int getMaxDoc() {
+		return m_bits.length();
+	}
+
+	/**
+	 * Returns the primary keys of the documents of the searcher that found the hits.
+	 * 
+	 * @return Primary key column or null, if unknown.
+	 */
+	public PrimaryKeyColumn getPrimaryKeyColumn() {
+		return m_primaryKeys;
+	}
+
+	/**
+	 * Returns the memory that is occupied by the bits of this hit set.
+	 * 
+	 * @return Size in bytes.
+	 */
+	public long getMemorySize() {
+		return m_bits.getBits().length * 8L;
+	}
+
+	/**
+	 * Determines, if the specified document is a hit.
+	 * 
+	 * @param iDoc Document id.
+	 * 
+	 * @return True, if the document is a hit.
+	 */
+	public boolean contains(final int iDoc) {
+		return iDoc >= 0 && iDoc < m_bits.length() && m_bits.get(iDoc);
+	}
+
+	/**
+	 * Returns the first hit at or after the specified document id.
+	 * 
+	 * @param iDoc Document id to start from.
+	 * 
+	 * @return Document id of the hit or -1, if there are no further hits.
+	 */
+	public int nextHit(final int iDoc) {
+		return (iDoc >= m_bits.length() ? -1 : m_bits.nextSetBit(Math.max(0, iDoc)));
+	}
+
+	/**
+	 * Returns an iterator over all hits in document id order.
+	 * 
+	 * @return Iterator of hits.
+	 */
+	public DocIdSetIterator iterator() {
+		return m_bits.iterator();
+	}
+
+	/**
+	 * Returns the document ids of a range of hits. Whole words of the bit set
+	 * are skipped until the start is reached, so deep ranges are cheap.
+	 * 
+	 * @param iStart Index of the first hit of the range in document id order (0 based).
+	 * @param iHowMany Maximum number of hits of the range.
+	 * 
+	 * @return Document ids of the hits in ascending order. Can be empty, but never null.
+	 */
+	public int[] getHits(final int iStart, final int iHowMany) {
+		if (iStart < 0 || iHowMany < 0) {
+			throw new IllegalArgumentException("Start and number of hits must not be negative.");
+		}
+
+		final int[] arrHits = new int[Math.max(0, Math.min(iHowMany, m_iCardinality - iStart))];
+
+		if (arrHits.length > 0) {
+			// Skip words, whose hits are all before the start
+			final long[] arrWords = m_bits.getBits();
+			int iSkipped = 0;
+			int iWord = 0;
+			while (iSkipped + Long.bitCount(arrWords[iWord]) <= iStart) {
+				iSkipped += Long.bitCount(arrWords[iWord]);
+				iWord++;
+			}
+
+			// There are further hits after every hit that is visited here
+			int iDoc = m_bits.nextSetBit(iWord << 6);
+			for (; iSkipped < iStart; iSkipped++) {
+				iDoc = m_bits.nextSetBit(iDoc + 1);
+			}
+			arrHits[0] = iDoc;
+			for (int i = 1; i < arrHits.length; i++) {
+				iDoc = m_bits.nextSetBit(iDoc + 1);
+				arrHits[i] = iDoc;
+			}
+		}
+
+		return arrHits;
+	}
+
+	/**
+	 * Returns the bits of this hit set.
+	 * 
+	 * @return Bit set with one bit per document. Must not be changed.
+	 */
+	public FixedBitSet getBits() {
+		return m_bits;
+	}
+
+	@Override
+	public String toString() {
+		return "HitSet[hits=" + m_iCardinality + ", maxDoc=" + m_bits.length() + "]";
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * A {@link Collector} implementation that records every hit as a bit of a
+ * {@link HitSet} instead of keeping scored hits in a priority queue. Its memory
+ * is fixed at one bit per document, so it can collect all hits of a search.
+ * Scores are not computed and documents may be collected in any order.
+ */
+public class HitSetCollector extends Collector {
+
+	//
+	// Members
+	//
+
+	/** One bit per document of the searcher. */
+	private final FixedBitSet m_bits;
+
+	/** Primary keys of the documents of the searcher or null, if unknown. */
+	private final PrimaryKeyColumn m_primaryKeys;
+
+	/** Document id base of the current segment. */
+	private int m_iDocBase;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new collector for a searcher with the specified number of documents.
+	 * 
+	 * @param iMaxDoc Number of documents of the searcher including deleted ones.
+	 * @param primaryKeys Primary keys of the documents of the searcher. Can be null, if unknown.
+	 */
+	public HitSetCollector(final int iMaxDoc, final PrimaryKeyColumn primaryKeys) {
+		m_bits = new FixedBitSet(iMaxDoc);
+		m_primaryKeys = primaryKeys;
+		m_iDocBase = 0;
+	}
+
+	//
+	// Public Methods
+	//
+
+	@Override
+	public void setScorer(final Scorer scorer) throws IOException {
+		// Scores are not needed
+	}
+
+	@Override
+	public void collect(final int doc) throws IOException {
+		m_bits.set(m_iDocBase + doc);
+	}
+
+	@Override
+	public void setNextReader(final IndexReader reader, final int docBase) throws IOException {
+		m_iDocBase = docBase;
+	}
+
+	@Override
+	public boolean acceptsDocsOutOfOrder() {
+		return true;
+	}
+
+	/**
+	 * Returns the collected hits. The collector must not be used afterwards.
+	 * 
+	 * @return Hit set.
+	 */
+	public HitSet getHitSet() {
+		return new HitSet(m_bits, m_primaryKeys);
+	}
+}
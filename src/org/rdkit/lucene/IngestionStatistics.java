@@ -0,0 +1,327 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+/**
+ * Statistics about the work an ingestion of molecules has done. They are
+ * collected per pipeline stage: Reading records, converting them into index
+ * documents (canonicalization and fingerprinting) and writing documents. The
+ * time a stage spends busy tells its throughput, the time the reader is
+ * blocked by a full queue or the converters wait on an empty queue tells, which
+ * stage is the bottleneck. It is safe to be updated by several threads concurrently.
+ */
+public class IngestionStatistics {
+
+	//
+	// Members
+	//
+
+	/** Number of converter threads. */
+	private int m_iThreads;
+
+	/** Number of records read. */
+	private long m_lRead;
+
+	/** Nanoseconds spent reading records. */
+	private long m_lReadNanos;
+
+	/** Nanoseconds the reader was blocked by a full queue. */
+	private long m_lReaderBlockedNanos;
+
+	/** Number of records that have been skipped, e.g. because they were ignored or had no structure. */
+	private long m_lSkipped;
+
+	/** Number of records converted into index documents. */
+	private long m_lConverted;
+
+	/** Nanoseconds spent converting records by all converter threads. */
+	private long m_lConvertNanos;
+
+	/** Nanoseconds the converter threads waited on an empty queue. */
+	private long m_lConverterIdleNanos;
+
+	/** Number of documents added to the index. */
+	private long m_lAdded;
+
+	/** Nanoseconds spent adding documents by all converter threads. */
+	private long m_lWriteNanos;
+
+	/** Number of documents that were not added, because a later record had the same primary key. */
+	private long m_lDuplicates;
+
+	/** Number of records that failed. */
+	private long m_lErrors;
+
+	/** Nanoseconds the whole ingestion took. */
+	private long m_lElapsedNanos;
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Returns the number of converter threads.
+	 * 
+	 * @return Number of threads.
+	 */
+	public synchronized int getThreadCount() {
+		return m_iThreads;
+	}
+
+	/**
+	 * Returns the number of records read.
+	 * 
+	 * @return Number of records.
+	 */
+	public synchronized long getReadCount() {
+		return m_lRead;
+	}
+
+	/**
+	 * Returns the number of records that have been skipped, e.g. because
+	 * they were ignored or had no structure.
+	 * 
+	 * @return Number of skipped records.
+	 */
+	public synchronized long getSkippedCount() {
+		return m_lSkipped;
+	}
+
+	/**
+	 * Returns the number of records converted into index documents.
+	 * 
+	 * @return Number of converted records.
+	 */
+	public synchronized long getConvertedCount() {
+		return m_lConverted;
+	}
+
+	/**
+	 * Returns the number of documents added to the index.
+	 * 
+	 * @return Number of added documents.
+	 */
+	public synchronized long getAddedCount() {
+		return m_lAdded;
+	}
+
+	/**
+	 * Returns the number of converted documents, which were not added,
+	 * because a later record had the same primary key.
+	 * 
+	 * @return Number of duplicates.
+	 */
+	public synchronized long getDuplicateCount() {
+		return m_lDuplicates;
+	}
+
+	/**
+	 * Returns the number of records that failed.
+	 * 
+	 * @return Number of errors.
+	 */
+	public synchronized long getErrorCount() {
+		return m_lErrors;
+	}
+
+	/**
+	 * Returns the time the whole ingestion took.
+	 * 
+	 * @return Elapsed time in milliseconds.
+	 */
+	public synchronized long getElapsedMillis() {
+		return m_lElapsedNanos / 1000000;
+	}
+
+	/**
+	 * Returns the time the reader was blocked, because the queue was full.
+	 * 
+	 * @return Blocked time in milliseconds.
+	 */
+	public synchronized long getReaderBlockedMillis() {
+		return m_lReaderBlockedNanos / 1000000;
+	}
+
+	/**
+	 * Returns the time all converter threads together waited on an empty queue.
+	 * 
+	 * @return Idle time in milliseconds.
+	 */
+	public synchronized long getConverterIdleMillis() {
+		return m_lConverterIdleNanos / 1000000;
+	}
+
+	/**
+	 * Returns the number of documents added per second of the whole ingestion.
+	 * 
+	 * @return Documents per second or NaN, if nothing was measured yet.
+	 */
+	public synchronized double getThroughput() {
+		return perSecond(m_lAdded, m_lElapsedNanos);
+	}
+
+	/**
+	 * Returns the number of records the reader stage reads per second while busy.
+	 * 
+	 * @return Records per second or NaN, if nothing was measured yet.
+	 */
+	public synchronized double getReadThroughput() {
+		return perSecond(m_lRead, m_lReadNanos);
+	}
+
+	/**
+	 * Returns the number of records the converter stage converts per second
+	 * while busy, with all converter threads together.
+	 * 
+	 * @return Records per second or NaN, if nothing was measured yet.
+	 */
+	public synchronized double getConvertThroughput() {
+		return perSecond(m_lConverted * m_iThreads, m_lConvertNanos);
+	}
+
+	/**
+	 * Returns the number of documents the writer stage adds per second
+	 * while busy, with all converter threads together.
+	 * 
+	 * @return Documents per second or NaN, if nothing was measured yet.
+	 */
+	public synchronized double getWriteThroughput() {
+		return perSecond(m_lAdded * m_iThreads, m_lWriteNanos);
+	}
+
+	/**
+	 * Sets the number of converter threads and the time the whole ingestion took.
+	 * 
+	 * @param iThreads Number of converter threads.
+	 * @param lElapsedNanos Elapsed time in nanoseconds.
+	 */
+	public synchronized void setElapsed(final int iThreads, final long lElapsedNanos) {
+		m_iThreads = iThreads;
+		m_lElapsedNanos = lElapsedNanos;
+	}
+
+	/**
+	 * Adds a record that has been read.
+	 * 
+	 * @param lNanos Time it took to read the record.
+	 */
+	public synchronized void addRead(final long lNanos) {
+		m_lRead++;
+		m_lReadNanos += lNanos;
+	}
+
+	/**
+	 * Adds time the reader was blocked by a full queue.
+	 * 
+	 * @param lNanos Blocked time.
+	 */
+	public synchronized void addReaderBlocked(final long lNanos) {
+		m_lReaderBlockedNanos += lNanos;
+	}
+
+	/**
+	 * Adds a record that has been skipped.
+	 */
+	public synchronized void addSkipped() {
+		m_lSkipped++;
+	}
+
+	/**
+	 * Adds a record that has been converted into an index document.
+	 * 
+	 * @param lNanos Time it took to convert the record.
+	 */
+	public synchronized void addConverted(final long lNanos) {
+		m_lConverted++;
+		m_lConvertNanos += lNanos;
+	}
+
+	/**
+	 * Adds time a converter thread waited on an empty queue.
+	 * 
+	 * @param lNanos Idle time.
+	 */
+	public synchronized void addConverterIdle(final long lNanos) {
+		m_lConverterIdleNanos += lNanos;
+	}
+
+	/**
+	 * Adds a document that has been added to the index.
+	 * 
+	 * @param lNanos Time it took to add the document.
+	 */
+	public synchronized void addAdded(final long lNanos) {
+		m_lAdded++;
+		m_lWriteNanos += lNanos;
+	}
+
+	/**
+	 * Adds a document that was not added, because a later record had the same primary key.
+	 */
+	public synchronized void addDuplicate() {
+		m_lDuplicates++;
+	}
+
+	/**
+	 * Adds a record that failed.
+	 */
+	public synchronized void addError() {
+		m_lErrors++;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("IngestionStatistics[threads=%d, added=%d (%.1f docs/s), " +
+				"read=%d (%.1f/s, blocked %d ms), converted=%d (%.1f/s, idle %d ms), written (%.1f/s), " +
+				"skipped=%d, duplicates=%d, errors=%d, elapsed=%d ms]",
+				m_iThreads, m_lAdded, getThroughput(), m_lRead, getReadThroughput(), getReaderBlockedMillis(),
+				m_lConverted, getConvertThroughput(), getConverterIdleMillis(), getWriteThroughput(),
+				m_lSkipped, m_lDuplicates, m_lErrors, getElapsedMillis());
+	}
+
+	//
+	// Private Methods
+	//
+
+	/**
+	 * Calculates a rate per second.
+	 * 
+	 * @param lCount Number of items.
+	 * @param lNanos Time in nanoseconds.
+	 * 
+	 * @return Items per second or NaN, if no time was measured.
+	 */
+	private static double perSecond(final long lCount, final long lNanos) {
+		return (lNanos == 0 ? Double.NaN : lCount * 1000000000.0d / lNanos);
+	}
+}
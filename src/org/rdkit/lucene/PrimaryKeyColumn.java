@@ -0,0 +1,207 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.util.ReaderUtil;
+import org.rdkit.lucene.util.IndexUtils;
+
+/**
+ * The primary keys of all documents of an index reader, read segment by segment
+ * from the field cache, so no stored documents need to be loaded. A column holds
+ * only the primary key arrays of the segments, not the reader itself. Results
+ * that carry it (see {@link HitSet}) can resolve their document ids long after
+ * the reader that found them got closed, without keeping its index files open.
+ */
+public class PrimaryKeyColumn {
+
+	//
+	// Members
+	//
+
+	/** Document id base of every segment. */
+	private final int[] m_arrDocBases;
+
+	/** Primary key of every document per segment. Contains null for documents without primary key. */
+	private final String[][] m_arrPrimaryKeys;
+
+	/** Number of documents of the reader including deleted ones. */
+	private final int m_iMaxDoc;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new column and loads the primary keys of all segments of the specified reader.
+	 * 
+	 * @param reader Top level index reader. Must not be null.
+	 * @param strField Field that contains the primary keys. Must not be null.
+	 * 
+	 * @throws IOException Thrown, if the primary keys could not be read.
+	 */
+	public PrimaryKeyColumn(final IndexReader reader, final String strField) throws IOException {
+		if (reader == null) {
+			throw new IllegalArgumentException("Index reader must not be null.");
+		}
+		if (strField == null) {
+			throw new IllegalArgumentException("Primary key field must not be null.");
+		}
+
+		final IndexReader[] arrSegmentReaders = IndexUtils.getSegmentReaders(reader);
+		m_arrDocBases = IndexUtils.getDocBases(arrSegmentReaders);
+		m_arrPrimaryKeys = new String[arrSegmentReaders.length][];
+		for (int i = 0; i < arrSegmentReaders.length; i++) {
+			m_arrPrimaryKeys[i] = FieldCache.DEFAULT.getStrings(arrSegmentReaders[i], strField);
+		}
+		m_iMaxDoc = reader.maxDoc();
+	}
+
+	/**
+	 * Creates a new column, which concatenates the passed in columns, e.g. of the
+	 * shards of a sharded index. Document ids of every column are shifted by the
+	 * number of documents of all columns before it. No primary keys are copied.
+	 * 
+	 * @param arrColumns Columns to be concatenated in order. Must not be null
+	 * 		and must not contain null.
+	 */
+	public PrimaryKeyColumn(final PrimaryKeyColumn[] arrColumns) {
+		if (arrColumns == null) {
+			throw new IllegalArgumentException("Primary key columns must not be null.");
+		}
+
+		int iSegmentCount = 0;
+		for (final PrimaryKeyColumn column : arrColumns) {
+			if (column == null) {
+				throw new IllegalArgumentException("Primary key columns must not contain null.");
+			}
+			iSegmentCount += column.m_arrDocBases.length;
+		}
+
+		m_arrDocBases = new int[iSegmentCount];
+		m_arrPrimaryKeys = new String[iSegmentCount][];
+		int iSegment = 0;
+		int iDocBase = 0;
+		for (final PrimaryKeyColumn column : arrColumns) {
+			for (int i = 0; i < column.m_arrDocBases.length; i++) {
+				m_arrDocBases[iSegment] = iDocBase + column.m_arrDocBases[i];
+				m_arrPrimaryKeys[iSegment] = column.m_arrPrimaryKeys[i];
+				iSegment++;
+			}
+			iDocBase += column.m_iMaxDoc;
+		}
+		m_iMaxDoc = iDocBase;
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Returns the number of documents of the reader, which the column was loaded from.
+	 * 
+	 * @return Number of documents including deleted ones.
+	 */
+	public int getMaxDoc() {
+		return m_iMaxDoc;
+	}
+
+	/**
+	 * Returns the primary key of the specified document.
+	 * 
+	 * @param iDoc Document id of the reader.
+	 * 
+	 * @return Primary key or null, if the document has none.
+	 * 
+	 * @throws IllegalArgumentException Thrown, if the document id does not belong to the reader.
+	 */
+	public String getPrimaryKey(final int iDoc) {
+		checkDoc(iDoc);
+		final int iSegment = ReaderUtil.subIndex(iDoc, m_arrDocBases);
+		return m_arrPrimaryKeys[iSegment][iDoc - m_arrDocBases[iSegment]];
+	}
+
+	/**
+	 * Returns the primary keys of the specified documents. Document ids in
+	 * ascending order are resolved segment by segment, others need to look
+	 * up their segment.
+	 * 
+	 * @param arrDocs Document ids of the reader. Must not be null.
+	 * 
+	 * @return Primary keys with the same length and order as the document ids.
+	 * 		Contains null for documents without primary key.
+	 * 
+	 * @throws IllegalArgumentException Thrown, if a document id does not belong to the reader.
+	 */
+	public String[] getPrimaryKeys(final int[] arrDocs) {
+		final String[] arrRet = new String[arrDocs.length];
+		String[] arrSegmentPKs = null;
+		int iSegmentStart = 0;
+		int iSegmentEnd = 0;
+
+		for (int i = 0; i < arrDocs.length; i++) {
+			final int iDoc = arrDocs[i];
+			if (iDoc < iSegmentStart || iDoc >= iSegmentEnd) {
+				checkDoc(iDoc);
+				final int iSegment = ReaderUtil.subIndex(iDoc, m_arrDocBases);
+				arrSegmentPKs = m_arrPrimaryKeys[iSegment];
+				iSegmentStart = m_arrDocBases[iSegment];
+				iSegmentEnd = iSegmentStart + arrSegmentPKs.length;
+			}
+			arrRet[i] = arrSegmentPKs[iDoc - iSegmentStart];
+		}
+
+		return arrRet;
+	}
+
+	//
+	// Private Methods
+	//
+
+	/**
+	 * Checks, if the specified document id belongs to the reader of this column.
+	 * Ids of another reader, e.g. of an older search, may be out of range.
+	 * 
+	 * @param iDoc Document id.
+	 * 
+	 * @throws IllegalArgumentException Thrown, if the document id is out of range.
+	 */
+	private void checkDoc(final int iDoc) {
+		if (iDoc < 0 || iDoc >= m_iMaxDoc) {
+			throw new IllegalArgumentException("Document id " + iDoc + " does not belong to this searcher.");
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TieredMergePolicy;
+
+/**
+ * Index writer configuration for an index that is searched much more often
+ * than it is changed, e.g. updated in rare batches.
+ * <p>
+ * The merge policy keeps the number of segments low and reclaims deleted
+ * documents eagerly, as every segment and every deleted document costs time
+ * in every search: Fingerprint screens, substructure candidate iteration and
+ * similarity scans run per segment. Compound files are not used, as they
+ * slightly slow down reading.
+ * <p>
+ * Trade-offs: Documents get rewritten by merges more often, so updates cause more
+ * I/O and take longer until merges settled. Segments can grow to
+ * {@value #MAX_MERGED_SEGMENT_MB} MB, which needs as much free disk space while merging.
+ */
+public class ReadMostlyIndexWriterConfigFactory extends DefaultIndexWriterConfigFactory {
+
+	//
+	// Constants
+	//
+
+	/** Size of the RAM buffer in MB. */
+	public static final double RAM_BUFFER_SIZE_MB = 64.0d;
+
+	/** Number of segments per tier. */
+	public static final double SEGMENTS_PER_TIER = 4.0d;
+
+	/** Maximum size of a merged segment in MB. */
+	public static final double MAX_MERGED_SEGMENT_MB = 10240.0d;
+
+	/** Weight of deleted documents when selecting merges. Lucene's default is 2.0. */
+	public static final double RECLAIM_DELETES_WEIGHT = 4.0d;
+
+	//
+	// Constructor
+	//
+
+	public ReadMostlyIndexWriterConfigFactory(final AnalyzerFactory analyzerFactory) {
+		super(analyzerFactory);
+	}
+
+	//
+	// Public Methods
+	//
+
+	@Override
+	public IndexWriterConfig createIndexWriterConfig(final Analyzer analyzer) {
+		final TieredMergePolicy mergePolicy = new TieredMergePolicy();
+		mergePolicy.setSegmentsPerTier(SEGMENTS_PER_TIER);
+		mergePolicy.setMaxMergeAtOnce((int)SEGMENTS_PER_TIER);
+		mergePolicy.setMaxMergedSegmentMB(MAX_MERGED_SEGMENT_MB);
+		mergePolicy.setReclaimDeletesWeight(RECLAIM_DELETES_WEIGHT);
+		mergePolicy.setUseCompoundFile(false);
+
+		final ConcurrentMergeScheduler mergeScheduler = new ConcurrentMergeScheduler();
+		mergeScheduler.setMaxThreadCount(1);
+		mergeScheduler.setMaxMergeCount(3);
+
+		return super.createIndexWriterConfig(analyzer)
+				.setRAMBufferSizeMB(RAM_BUFFER_SIZE_MB)
+				.setMergePolicy(mergePolicy)
+				.setMergeScheduler(mergeScheduler);
+	}
+}
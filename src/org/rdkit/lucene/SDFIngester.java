@@ -0,0 +1,540 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+import org.RDKit.RDKFuncs;
+import org.apache.lucene.document.Document;
+import org.rdkit.lucene.sdf.SDFParser;
+import org.rdkit.lucene.sdf.SDFRecord;
+
+/**
+ * Adds the molecules of an SDF file to a {@link ChemicalIndex} in a pipeline.
+ * One reader thread parses the records and puts them into a bounded queue, which
+ * blocks the reader, if the converters cannot keep up. A number of converter threads
+ * take records from the queue, canonicalize and fingerprint them, build the index
+ * documents and add them to the index writer, which is thread-safe.
+ * <p>
+ * As documents are added in no particular order, molecules with the same primary
+ * key are deduplicated by the position of their record in the file: The last record
+ * of a primary key wins, as if the file was added sequentially. For this the
+ * primary keys of all added molecules are kept in memory during the ingestion.
+ * <p>
+ * The molecules can also be spread over the shards of a {@link ShardedChemicalIndex}.
+ * Every converter adds its documents to the shard of their primary key, so all
+ * shards are written concurrently.
+ */
+public class SDFIngester {
+
+	//
+	// Constants
+	//
+
+	/** The logger instance. */
+	private static final Logger LOGGER = Logger.getLogger(SDFIngester.class.getName());
+
+	/** Default number of records the queue between reader and converters can hold. */
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+	/** Number of failed records in a row, after which the ingestion gives up. */
+	private static final int MAX_SUBSEQUENT_ERRORS = 100;
+
+	/** Number of locks that serialize adding documents with the same primary key. */
+	private static final int LOCK_STRIPES = 64;
+
+	/** Marks the end of input for a converter thread. */
+	private static final Item END_OF_INPUT = new Item(null, null, -1);
+
+	//
+	// Inner Classes
+	//
+
+	/**
+	 * A record with its primary key and its position in the file.
+	 */
+	private static class Item {
+
+		/** The record or null, if this item marks the end of input. */
+		private final SDFRecord m_record;
+
+		/** The primary key of the record. */
+		private final String m_strPK;
+
+		/** The position of the record in the file. */
+		private final long m_lSequence;
+
+		/**
+		 * Creates a new item.
+		 * 
+		 * @param record The record. Can be null to mark the end of input.
+		 * @param strPK The primary key of the record.
+		 * @param lSequence The position of the record in the file.
+		 */
+		private Item(final SDFRecord record, final String strPK, final long lSequence) {
+			m_record = record;
+			m_strPK = strPK;
+			m_lSequence = lSequence;
+		}
+	}
+
+	//
+	// Members
+	//
+
+	/** The indexes to add molecules to, one per shard. */
+	private final ChemicalIndex[] m_arrShards;
+
+	/** The field name that holds the primary key. */
+	private final String m_strFieldPrimaryKey;
+
+	/** Primary key of the first record to be added or null. */
+	private final String m_strIgnoreUpToPK;
+
+	/** Primary keys of records that shall not be added or null. */
+	private final Set<String> m_setIgnorePKs;
+
+	/** Number of converter threads. */
+	private final int m_iThreadCount;
+
+	/** Number of records the queue can hold. */
+	private final int m_iQueueCapacity;
+
+	/** Queue between reader and converters. */
+	private BlockingQueue<Item> m_queue;
+
+	/** Position of the last added record per primary key. */
+	private ConcurrentHashMap<String, Long> m_mapAddedSequences;
+
+	/** Locks serializing adding documents with the same primary key. */
+	private Object[] m_arrLocks;
+
+	/** The first fatal failure or null. */
+	private AtomicReference<Throwable> m_failure;
+
+	/** Number of failed records in a row. */
+	private AtomicInteger m_aiSubsequentErrors;
+
+	/** Statistics of the running ingestion. */
+	private IngestionStatistics m_stats;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new ingester.
+	 * 
+	 * @param index The index to add molecules to. Must not be null.
+	 * @param strFieldPrimaryKey The field name that holds the primary key. Must not be null.
+	 * @param strIgnoreUpToPK Start indexing on that primary key. Ignore the ones before. Can be null.
+	 * @param setIgnorePKs Set of primary keys with structures that shall not be indexed. Can be null.
+	 * @param iThreadCount Number of converter threads. Must be &gt; 0.
+	 * @param iQueueCapacity Number of records the queue between reader and converters can hold.
+	 * 		Must be &gt; 0.
+	 */
+	public SDFIngester(final ChemicalIndex index, final String strFieldPrimaryKey,
+			final String strIgnoreUpToPK, final Set<String> setIgnorePKs, final int iThreadCount,
+			final int iQueueCapacity) {
+		this(new ChemicalIndex[] { index }, strFieldPrimaryKey, strIgnoreUpToPK, setIgnorePKs,
+				iThreadCount, iQueueCapacity);
+	}
+
+	/**
+	 * Creates a new ingester, which spreads the molecules over the specified shards
+	 * by their primary key (see {@link ShardedChemicalIndex#getShardIndex(String, int)}).
+	 * 
+	 * @param arrShards The indexes to add molecules to, one per shard. Must not be null or empty.
+	 * @param strFieldPrimaryKey The field name that holds the primary key. Must not be null.
+	 * @param strIgnoreUpToPK Start indexing on that primary key. Ignore the ones before. Can be null.
+	 * @param setIgnorePKs Set of primary keys with structures that shall not be indexed. Can be null.
+	 * @param iThreadCount Number of converter threads. Must be &gt; 0.
+	 * @param iQueueCapacity Number of records the queue between reader and converters can hold.
+	 * 		Must be &gt; 0.
+	 */
+	public SDFIngester(final ChemicalIndex[] arrShards, final String strFieldPrimaryKey,
+			final String strIgnoreUpToPK, final Set<String> setIgnorePKs, final int iThreadCount,
+			final int iQueueCapacity) {
+		if (arrShards == null || arrShards.length == 0) {
+			throw new IllegalArgumentException("Index must not be null.");
+		}
+		for (final ChemicalIndex index : arrShards) {
+			if (index == null) {
+				throw new IllegalArgumentException("Index must not be null.");
+			}
+		}
+		if (strFieldPrimaryKey == null) {
+			throw new IllegalArgumentException("The primary key field of the SDF File must not be null.");
+		}
+		if (iThreadCount <= 0) {
+			throw new IllegalArgumentException("Number of threads must be > 0.");
+		}
+		if (iQueueCapacity <= 0) {
+			throw new IllegalArgumentException("Queue capacity must be > 0.");
+		}
+
+		m_arrShards = arrShards.clone();
+		m_strFieldPrimaryKey = strFieldPrimaryKey;
+		m_strIgnoreUpToPK = strIgnoreUpToPK;
+		m_setIgnorePKs = setIgnorePKs;
+		m_iThreadCount = iThreadCount;
+		m_iQueueCapacity = iQueueCapacity;
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Adds all molecules of the specified SDF file to the index. The file
+	 * can be GZIP compressed. The calling thread acts as reader, while the
+	 * converter threads are started for this ingestion only.
+	 * 
+	 * @param sdfFile SDF File. Must not be null.
+	 * 
+	 * @return Statistics of the ingestion.
+	 * 
+	 * @throws IOException Thrown, if the file could not be read, if the index writer failed
+	 * 		or if too many records failed in a row.
+	 */
+	public synchronized IngestionStatistics ingest(final File sdfFile) throws IOException {
+		if (sdfFile == null) {
+			throw new IllegalArgumentException("The SDF File must not be null.");
+		}
+
+		final long lStart = System.nanoTime();
+		m_queue = new ArrayBlockingQueue<Item>(m_iQueueCapacity);
+		m_mapAddedSequences = new ConcurrentHashMap<String, Long>();
+		m_arrLocks = new Object[LOCK_STRIPES];
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			m_arrLocks[i] = new Object();
+		}
+		m_failure = new AtomicReference<Throwable>();
+		m_aiSubsequentErrors = new AtomicInteger();
+		m_stats = new IngestionStatistics();
+
+		final AtomicInteger aiThreadNumber = new AtomicInteger();
+		final ExecutorService executor = Executors.newFixedThreadPool(m_iThreadCount, new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, "ChemicalIndex-Ingest-" + aiThreadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		try {
+			final List<Future<?>> listFutures = new ArrayList<Future<?>>(m_iThreadCount);
+			for (int i = 0; i < m_iThreadCount; i++) {
+				listFutures.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						convert();
+					}
+				}));
+			}
+
+			try {
+				read(sdfFile);
+			}
+			finally {
+				// Converters keep draining the queue, so this never blocks forever
+				for (int i = 0; i < m_iThreadCount; i++) {
+					put(END_OF_INPUT);
+				}
+
+				for (final Future<?> future : listFutures) {
+					try {
+						future.get();
+					}
+					catch (final ExecutionException exc) {
+						fail(exc.getCause());
+					}
+					catch (final InterruptedException exc) {
+						Thread.currentThread().interrupt();
+						fail(exc);
+					}
+				}
+			}
+		}
+		finally {
+			executor.shutdown();
+			m_stats.setElapsed(m_iThreadCount, System.nanoTime() - lStart);
+			m_mapAddedSequences = null;
+		}
+
+		if (m_stats.getErrorCount() > 0) {
+			LOGGER.log(Level.SEVERE, m_stats.getErrorCount() + " molecules could not be added due to errors.");
+		}
+
+		final Throwable failure = m_failure.get();
+		if (failure instanceof IOException) {
+			throw (IOException)failure;
+		}
+		else if (failure instanceof RuntimeException) {
+			throw (RuntimeException)failure;
+		}
+		else if (failure instanceof Error) {
+			throw (Error)failure;
+		}
+		else if (failure != null) {
+			throw new IOException("Ingestion failed.", failure);
+		}
+
+		return m_stats;
+	}
+
+	//
+	// Protected Methods
+	//
+
+	/**
+	 * Reads all records of the SDF file and puts the ones to be added into
+	 * the queue. Stops early, if the ingestion failed.
+	 * 
+	 * @param sdfFile SDF File. Must not be null.
+	 * 
+	 * @throws IOException Thrown, if the file could not be read.
+	 */
+	protected void read(final File sdfFile) throws IOException {
+		InputStream in = new FileInputStream(sdfFile);
+		try {
+			final String strFileName = sdfFile.getName();
+			if (strFileName.endsWith(".gz")
+					|| strFileName.endsWith(".zip")) {
+				in = new GZIPInputStream(in);
+			}
+			final SDFParser parser = new SDFParser(sdfFile.getName(), in, 1, 0);
+			boolean bStartAdding = (m_strIgnoreUpToPK == null);
+			long lSequence = 0;
+
+			while (m_failure.get() == null) {
+				final long lStart = System.nanoTime();
+				final SDFRecord molSdf = parser.readSdfRecord();
+				if (molSdf == null) {
+					break;
+				}
+				m_stats.addRead(System.nanoTime() - lStart);
+				lSequence++;
+
+				final Object objPK = molSdf.get(m_strFieldPrimaryKey);
+				if (objPK != null) {
+					final String strPK = objPK.toString();
+
+					if (bStartAdding && (m_setIgnorePKs == null || !m_setIgnorePKs.contains(strPK))) {
+						put(new Item(molSdf, strPK, lSequence));
+					}
+					else {
+						if (strPK.equals(m_strIgnoreUpToPK)) {
+							bStartAdding = true;
+						}
+						m_stats.addSkipped();
+					}
+				}
+				else {
+					onError(" at line " + molSdf.get(SDFRecord.PROPERTY_LINE_NUMBER), new IllegalArgumentException(
+							"Primary key field '" + m_strFieldPrimaryKey + "' not found."));
+				}
+			}
+		}
+		finally {
+			if (in != null) {
+				try {
+					in.close();
+				}
+				catch (final IOException exc) {
+					// Ignored
+				}
+			}
+		}
+	}
+
+	/**
+	 * Takes records from the queue and adds them to the index, until the end
+	 * of input is reached. After a failure the queue is only drained.
+	 */
+	protected void convert() {
+		while (true) {
+			final long lStart = System.nanoTime();
+			final Item item = take();
+			m_stats.addConverterIdle(System.nanoTime() - lStart);
+
+			if (item == END_OF_INPUT) {
+				break;
+			}
+
+			if (item != null && m_failure.get() == null) {
+				try {
+					add(item);
+					m_aiSubsequentErrors.set(0);
+				}
+				catch (final IOException exc) {
+					fail(exc);
+				}
+				catch (final Exception exc) {
+					onError(item.m_strPK, exc);
+				}
+				catch (final Error err) {
+					fail(err);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Converts a record into an index document and adds it, unless a later
+	 * record with the same primary key has been added already.
+	 * 
+	 * @param item Record to be added. Must not be null.
+	 * 
+	 * @throws IOException Thrown, if the index writer failed.
+	 */
+	protected void add(final Item item) throws IOException {
+		final String strStructure = item.m_record.getStructure();
+		if (strStructure == null) {
+			LOGGER.log(Level.WARNING, "No structure found for primary key '" +
+					item.m_strPK + "' not found. Ignoring.");
+			m_stats.addSkipped();
+			return;
+		}
+
+		final long lStartConvert = System.nanoTime();
+		final String strCanonSmiles = RDKFuncs.getCanonSmiles(strStructure, false);
+		if (strCanonSmiles == null || strCanonSmiles.isEmpty()) {
+			LOGGER.log(Level.WARNING, "Canonical SMILES could not be created for\n" + strStructure);
+			m_stats.addSkipped();
+			return;
+		}
+		final ChemicalIndex index = m_arrShards[ShardedChemicalIndex.getShardIndex(item.m_strPK, m_arrShards.length)];
+		final Document doc = index.createMoleculeDocument(item.m_strPK, strCanonSmiles, null, item.m_record);
+		final long lStartWrite = System.nanoTime();
+		m_stats.addConverted(lStartWrite - lStartConvert);
+
+		synchronized (m_arrLocks[(item.m_strPK.hashCode() & 0x7fffffff) % LOCK_STRIPES]) {
+			final Long lAdded = m_mapAddedSequences.get(item.m_strPK);
+			if (lAdded != null && lAdded.longValue() > item.m_lSequence) {
+				m_stats.addDuplicate();
+			}
+			else {
+				// In bulk load mode only primary keys added before by this ingestion need to be replaced
+				index.addMoleculeDocument(item.m_strPK, strCanonSmiles, doc, lAdded != null || !index.isBulkLoad());
+				m_mapAddedSequences.put(item.m_strPK, item.m_lSequence);
+				m_stats.addAdded(System.nanoTime() - lStartWrite);
+			}
+		}
+	}
+
+	//
+	// Private Methods
+	//
+
+	/**
+	 * Puts an item into the queue and waits, while it is full.
+	 * 
+	 * @param item Item. Must not be null.
+	 * 
+	 * @throws IOException Thrown, if the reader got interrupted.
+	 */
+	private void put(final Item item) throws IOException {
+		final long lStart = System.nanoTime();
+		try {
+			m_queue.put(item);
+		}
+		catch (final InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Ingestion was interrupted.", exc);
+		}
+		finally {
+			m_stats.addReaderBlocked(System.nanoTime() - lStart);
+		}
+	}
+
+	/**
+	 * Takes the next item from the queue and waits, while it is empty.
+	 * 
+	 * @return Item or null, if the converter got interrupted.
+	 */
+	private Item take() {
+		try {
+			return m_queue.take();
+		}
+		catch (final InterruptedException exc) {
+			fail(exc);
+			return null;
+		}
+	}
+
+	/**
+	 * Records a failed record and fails the ingestion, if too many records
+	 * failed in a row.
+	 * 
+	 * @param strPK Primary key or position of the record. Can be null.
+	 * @param exc The error. Must not be null.
+	 */
+	private void onError(final String strPK, final Exception exc) {
+		LOGGER.log(Level.SEVERE, "Molecule " + strPK + " could not be added to index.", exc);
+		m_stats.addError();
+
+		if (m_aiSubsequentErrors.incrementAndGet() > MAX_SUBSEQUENT_ERRORS) {
+			fail(new IOException("Too many errors in a row. Giving up.", exc));
+		}
+	}
+
+	/**
+	 * Records a fatal failure, which stops the ingestion. Only the first one is kept.
+	 * 
+	 * @param failure The failure. Must not be null.
+	 */
+	private void fail(final Throwable failure) {
+		m_failure.compareAndSet(null, failure);
+	}
+}
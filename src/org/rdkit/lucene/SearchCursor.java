@@ -0,0 +1,226 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+import org.apache.lucene.search.ScoreDoc;
+
+/**
+ * Position after a page of search results, from where the next page continues.
+ * Clients pass it around as opaque token (see {@link #toString()} and
+ * {@link #parse(String)}), e.g. as part of a URL.
+ * <p>
+ * A cursor refers to the searcher that delivered the previous page, so later
+ * pages are consistent with it, even if molecules are added or deleted meanwhile.
+ * If that searcher has been released already (see {@link ChemicalIndex#setCursorLifetime(long)}),
+ * requesting the next page fails with a {@link SearchExpiredException}, because the
+ * position of the cursor is meaningless for any other searcher.
+ */
+public class SearchCursor {
+
+	//
+	// Constants
+	//
+
+	/** Separator of the fields of a token. */
+	private static final char SEPARATOR = '.';
+
+	/** Radix of numbers in a token. */
+	private static final int RADIX = Character.MAX_RADIX;
+
+	/** Number of fields of a token. */
+	private static final int FIELD_COUNT = 6;
+
+	//
+	// Members
+	//
+
+	/** The version of the index reader of the searcher. */
+	private final long m_lSearcherVersion;
+
+	/** The hash code of search type and query. */
+	private final int m_iQueryHash;
+
+	/** The score of the last hit of the previous page. */
+	private final float m_fAfterScore;
+
+	/** The document id of the last hit of the previous page. */
+	private final int m_iAfterDoc;
+
+	/** The first document id to be verified (substructure searches only). */
+	private final int m_iResumeDoc;
+
+	/** The number of hits on all previous pages. */
+	private final int m_iHitsBefore;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new cursor.
+	 * 
+	 * @param lSearcherVersion Version of the index reader of the searcher.
+	 * @param iQueryHash Hash code of search type and query.
+	 * @param after Last hit of the previous page. Must not be null.
+	 * @param iResumeDoc First document id to be verified or -1, if not used.
+	 * @param iHitsBefore Number of hits on all previous pages.
+	 */
+	public SearchCursor(final long lSearcherVersion, final int iQueryHash, final ScoreDoc after,
+			final int iResumeDoc, final int iHitsBefore) {
+		this(lSearcherVersion, iQueryHash, after.score, after.doc, iResumeDoc, iHitsBefore);
+	}
+
+	/**
+	 * Creates a new cursor.
+	 * 
+	 * @param lSearcherVersion Version of the index reader of the searcher.
+	 * @param iQueryHash Hash code of search type and query.
+	 * @param fAfterScore Score of the last hit of the previous page.
+	 * @param iAfterDoc Document id of the last hit of the previous page.
+	 * @param iResumeDoc First document id to be verified or -1, if not used.
+	 * @param iHitsBefore Number of hits on all previous pages.
+	 */
+	private SearchCursor(final long lSearcherVersion, final int iQueryHash, final float fAfterScore,
+			final int iAfterDoc, final int iResumeDoc, final int iHitsBefore) {
+		m_lSearcherVersion = lSearcherVersion;
+		m_iQueryHash = iQueryHash;
+		m_fAfterScore = fAfterScore;
+		m_iAfterDoc = iAfterDoc;
+		m_iResumeDoc = iResumeDoc;
+		m_iHitsBefore = iHitsBefore;
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Returns the version of the index reader of the searcher, which delivered the previous page.
+	 * 
+	 * @return Reader version.
+	 */
+	public long getSearcherVersion() {
+		return m_lSearcherVersion;
+	}
+
+	/**
+	 * Returns the hash code of search type and query of the previous page.
+	 * 
+	 * @return Query hash code.
+	 */
+	public int getQueryHash() {
+		return m_iQueryHash;
+	}
+
+	/**
+	 * Returns the last hit of the previous page.
+	 * 
+	 * @return Hit with document id and score.
+	 */
+	public ScoreDoc getAfter() {
+		return new ScoreDoc(m_iAfterDoc, m_fAfterScore);
+	}
+
+	/**
+	 * Returns the first document id that still needs to be verified.
+	 * Only used by substructure searches.
+	 * 
+	 * @return Document id or -1, if not used.
+	 */
+	public int getResumeDoc() {
+		return m_iResumeDoc;
+	}
+
+	/**
+	 * Returns the number of hits on all previous pages.
+	 * 
+	 * @return Number of hits.
+	 */
+	public int getHitsBefore() {
+		return m_iHitsBefore;
+	}
+
+	/**
+	 * Returns the opaque token of this cursor.
+	 * 
+	 * @return Token, which can be parsed with {@link #parse(String)}.
+	 */
+	@Override
+	public String toString() {
+		return new StringBuilder()
+		.append(Long.toString(m_lSearcherVersion, RADIX)).append(SEPARATOR)
+		.append(Integer.toString(m_iQueryHash, RADIX)).append(SEPARATOR)
+		.append(Integer.toString(Float.floatToIntBits(m_fAfterScore), RADIX)).append(SEPARATOR)
+		.append(Integer.toString(m_iAfterDoc, RADIX)).append(SEPARATOR)
+		.append(Integer.toString(m_iResumeDoc, RADIX)).append(SEPARATOR)
+		.append(Integer.toString(m_iHitsBefore, RADIX))
+		.toString();
+	}
+
+	//
+	// Static Public Methods
+	//
+
+	/**
+	 * Parses a cursor token.
+	 * 
+	 * @param strToken Token created by {@link #toString()}. Can be null.
+	 * 
+	 * @return Cursor or null, if null was passed in.
+	 * 
+	 * @throws IllegalArgumentException Thrown, if the token is invalid.
+	 */
+	public static SearchCursor parse(final String strToken) {
+		if (strToken == null) {
+			return null;
+		}
+
+		final String[] arrFields = strToken.split("\\" + SEPARATOR);
+		if (arrFields.length != FIELD_COUNT) {
+			throw new IllegalArgumentException("Invalid search cursor '" + strToken + "'.");
+		}
+
+		try {
+			return new SearchCursor(
+					Long.parseLong(arrFields[0], RADIX),
+					Integer.parseInt(arrFields[1], RADIX),
+					Float.intBitsToFloat(Integer.parseInt(arrFields[2], RADIX)),
+					Integer.parseInt(arrFields[3], RADIX),
+					Integer.parseInt(arrFields[4], RADIX),
+					Integer.parseInt(arrFields[5], RADIX));
+		}
+		catch (final NumberFormatException exc) {
+			throw new IllegalArgumentException("Invalid search cursor '" + strToken + "'.", exc);
+		}
+	}
+}
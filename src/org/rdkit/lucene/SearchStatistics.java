@@ -0,0 +1,184 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+/**
+ * Statistics about the work a single search has done. An instance can be
+ * passed into search methods that support it and gets filled while searching.
+ * It is safe to be updated by several search threads concurrently.
+ */
+public class SearchStatistics {
+
+	//
+	// Members
+	//
+
+	/** Number of documents (including deleted ones) in the searched index. */
+	private long m_lDocuments;
+
+	/** Number of non-empty bit count buckets in all searched segments. */
+	private long m_lBuckets;
+
+	/** Number of bit count buckets that have been visited. */
+	private long m_lVisitedBuckets;
+
+	/** Number of live documents whose fingerprints have been compared with the query. */
+	private long m_lCandidates;
+
+	/** Number of live documents that have been tested by the folded word prefilter of a screen. */
+	private long m_lPrefilterTested;
+
+	/** Number of live documents that passed the folded word prefilter of a screen. */
+	private long m_lPrefilterPassed;
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Returns the number of documents (including deleted ones) in the searched index.
+	 * 
+	 * @return Number of documents.
+	 */
+	public synchronized long getDocumentCount() {
+		return m_lDocuments;
+	}
+
+	/**
+	 * Returns the number of non-empty bit count buckets of all searched segments.
+	 * 
+	 * @return Number of buckets.
+	 */
+	public synchronized long getBucketCount() {
+		return m_lBuckets;
+	}
+
+	/**
+	 * Returns the number of bit count buckets that have been visited, because
+	 * they could contain hits.
+	 * 
+	 * @return Number of visited buckets.
+	 */
+	public synchronized long getVisitedBucketCount() {
+		return m_lVisitedBuckets;
+	}
+
+	/**
+	 * Returns the number of documents whose fingerprints have been compared with the query.
+	 * 
+	 * @return Number of candidates.
+	 */
+	public synchronized long getCandidateCount() {
+		return m_lCandidates;
+	}
+
+	/**
+	 * Returns the number of documents that have been tested by the folded word
+	 * prefilter of a fingerprint screen.
+	 * 
+	 * @return Number of prefiltered documents.
+	 */
+	public synchronized long getPrefilterTestedCount() {
+		return m_lPrefilterTested;
+	}
+
+	/**
+	 * Returns the number of documents that passed the folded word prefilter
+	 * of a fingerprint screen and needed a full width fingerprint test.
+	 * 
+	 * @return Number of documents passing the prefilter.
+	 */
+	public synchronized long getPrefilterPassedCount() {
+		return m_lPrefilterPassed;
+	}
+
+	/**
+	 * Returns the fraction of prefiltered documents that passed the folded word prefilter.
+	 * 
+	 * @return Pass rate between 0 and 1 or NaN, if no document has been prefiltered.
+	 */
+	public synchronized double getPrefilterPassRate() {
+		return (m_lPrefilterTested == 0 ? Double.NaN : (double)m_lPrefilterPassed / m_lPrefilterTested);
+	}
+
+	/**
+	 * Adds the documents and buckets of a searched segment.
+	 * 
+	 * @param iDocuments Number of documents (including deleted ones) of the segment.
+	 * @param iBuckets Number of non-empty bit count buckets of the segment.
+	 */
+	public synchronized void addSegment(final int iDocuments, final int iBuckets) {
+		m_lDocuments += iDocuments;
+		m_lBuckets += iBuckets;
+	}
+
+	/**
+	 * Adds a visited bucket and the candidates that have been compared in it.
+	 * 
+	 * @param iCandidates Number of compared documents.
+	 */
+	public synchronized void addVisitedBucket(final int iCandidates) {
+		m_lVisitedBuckets++;
+		m_lCandidates += iCandidates;
+	}
+
+	/**
+	 * Adds the result of the folded word prefilter of a screened segment.
+	 * 
+	 * @param iTested Number of tested documents.
+	 * @param iPassed Number of documents that passed.
+	 */
+	public synchronized void addPrefilter(final int iTested, final int iPassed) {
+		m_lPrefilterTested += iTested;
+		m_lPrefilterPassed += iPassed;
+	}
+
+	/**
+	 * Resets all statistics, so this object can be reused for another search.
+	 */
+	public synchronized void reset() {
+		m_lDocuments = 0;
+		m_lBuckets = 0;
+		m_lVisitedBuckets = 0;
+		m_lCandidates = 0;
+		m_lPrefilterTested = 0;
+		m_lPrefilterPassed = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "SearchStatistics[documents=" + m_lDocuments + ", buckets=" + m_lVisitedBuckets + "/" +
+				m_lBuckets + ", candidates=" + m_lCandidates + ", prefilter=" + m_lPrefilterPassed + "/" +
+				m_lPrefilterTested + "]";
+	}
+}
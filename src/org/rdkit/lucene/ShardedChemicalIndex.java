@@ -0,0 +1,1509 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.RDKit.GenericRDKitException;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopDocsCollector;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.PriorityQueue;
+import org.rdkit.lucene.cache.FixedTopDocsCollector;
+import org.rdkit.lucene.cache.PrimaryKeyScoreDoc;
+import org.rdkit.lucene.fingerprint.FingerprintFactory;
+import org.rdkit.lucene.sdf.SDFRecord;
+
+/**
+ * A chemical index, which is partitioned into several shards. Every shard is a
+ * {@link ChemicalIndex} with its own directory, writer and searcher. Molecules are
+ * assigned to shards by the hash code of their primary key, so a molecule that gets
+ * replaced ends up in the same shard again. Ingestion writes to all shards
+ * concurrently and every search runs on all shards in parallel.
+ * <p>
+ * The top hits of all shards are merged by descending score and ascending document id.
+ * This is exact for similarity searches, whose Tanimoto scores do not depend on other
+ * documents, and for substructure searches, whose hits are all verified matches. Free
+ * text, name, exact and fingerprint match searches are scored with Lucene TF-IDF, and
+ * every shard calculates the inverse document frequencies from its own documents only.
+ * Their scores are therefore not comparable between shards, so the merged order, the
+ * top hits of a limited search and page boundaries can differ from an unsharded index.
+ * Counts and hit sets of these searches are not affected.
+ * <p>
+ * Hits of the returned collectors carry the index of their shard as
+ * {@link ScoreDoc#shardIndex}, so document ids are only meaningful together
+ * with it. Every shard resolves the primary keys of its hits with the searcher
+ * that found them (see {@link PrimaryKeyScoreDoc}), so the merged hits carry them
+ * as well. Use {@link #getPrimaryKeysForSearchHits(TopDocsCollector)} or the
+ * paging variant to get them.
+ * <p>
+ * Paged searches keep one cursor per shard (see {@link ShardedSearchCursor}), so
+ * every shard continues with the searcher that delivered its previous page and
+ * no shard needs to collect more hits than a page holds. Hit sets of all shards
+ * are concatenated into one {@link HitSet} with the primary keys of all shards.
+ */
+public class ShardedChemicalIndex {
+
+	//
+	// Constants
+	//
+
+	/** The logger instance. */
+	private static final Logger LOGGER = Logger.getLogger(ShardedChemicalIndex.class.getName());
+
+	/** Empty array of primary keys. */
+	private static final String[] EMPTY_RESULTS = new String[0];
+
+	//
+	// Inner Classes
+	//
+
+	/**
+	 * A task that runs on a single shard.
+	 * 
+	 * @param <T> Result of the task.
+	 */
+	protected interface ShardTask<T> {
+
+		/**
+		 * Runs the task on the specified shard.
+		 * 
+		 * @param shard Index of the shard. Not null.
+		 * 
+		 * @return Result of the task. Can be null.
+		 * 
+		 * @throws Exception Thrown, if the task failed.
+		 */
+		T run(ChemicalIndex shard) throws Exception;
+	}
+
+	/**
+	 * A paged search that runs on a single shard.
+	 */
+	protected interface ShardPageTask {
+
+		/**
+		 * Searches a page on the specified shard.
+		 * 
+		 * @param shard Shard. Not null.
+		 * @param cursor Cursor of the shard or null to start over.
+		 * @param iPageSize Page size of the shard. Greater than 0.
+		 * 
+		 * @return Page of the shard or null, if it has been shutdown or
+		 * 		the query cannot be used.
+		 * 
+		 * @throws Exception Thrown, if the search failed.
+		 */
+		SearchPage run(ChemicalIndex shard, SearchCursor cursor, int iPageSize) throws Exception;
+	}
+
+	/**
+	 * Collector that delivers the merged hits of all shards. All hits are known
+	 * in advance, so it rejects all attempts to collect further documents.
+	 */
+	protected static class ShardedCollector extends FixedTopDocsCollector {
+
+		/**
+		 * Creates a new collector, which keeps the best hits of all passed in shard results.
+		 * The hits are taken over and get the index of their shard assigned, so they keep
+		 * their primary keys.
+		 * 
+		 * @param arrShardHits Results of all shards in shard order. Must not be null.
+		 * @param iMaxHits Maximum number of hits to keep.
+		 */
+		protected ShardedCollector(final TopDocs[] arrShardHits, final int iMaxHits) {
+			super(new ShardedHitQueue(Math.max(1, Math.min(iMaxHits, countHits(arrShardHits)))));
+
+			float fMaxScore = Float.NaN;
+			for (int iShard = 0; iShard < arrShardHits.length; iShard++) {
+				final TopDocs topDocs = arrShardHits[iShard];
+				if (topDocs != null) {
+					totalHits += topDocs.totalHits;
+					if (!Float.isNaN(topDocs.getMaxScore())) {
+						fMaxScore = (Float.isNaN(fMaxScore) ? topDocs.getMaxScore() : Math.max(fMaxScore, topDocs.getMaxScore()));
+					}
+					if (iMaxHits > 0 && topDocs.scoreDocs != null) {
+						for (final ScoreDoc scoreDoc : topDocs.scoreDocs) {
+							scoreDoc.shardIndex = iShard;
+							pq.insertWithOverflow(scoreDoc);
+						}
+					}
+				}
+			}
+			setMaxScore(fMaxScore);
+		}
+
+		/**
+		 * Counts the hits delivered by the passed in shard results.
+		 * 
+		 * @param arrShardHits Results of all shards. Must not be null.
+		 * 
+		 * @return Number of hits.
+		 */
+		private static int countHits(final TopDocs[] arrShardHits) {
+			int iCount = 0;
+			for (final TopDocs topDocs : arrShardHits) {
+				if (topDocs != null && topDocs.scoreDocs != null) {
+					iCount += topDocs.scoreDocs.length;
+				}
+			}
+			return iCount;
+		}
+	}
+
+	/**
+	 * Priority queue that orders hits of several shards by descending score,
+	 * ascending document id and ascending shard index. Scores are compared as
+	 * they are, so TF-IDF scores of different shards merge only approximately.
+	 */
+	protected static class ShardedHitQueue extends PriorityQueue<ScoreDoc> {
+
+		/**
+		 * Creates a new queue.
+		 * 
+		 * @param iSize Maximum number of hits.
+		 */
+		protected ShardedHitQueue(final int iSize) {
+			initialize(iSize);
+		}
+
+		@Override
+		protected boolean lessThan(final ScoreDoc hitA, final ScoreDoc hitB) {
+			return ranksBefore(hitB, hitA);
+		}
+	}
+
+	//
+	// Members
+	//
+
+	/** The shards. */
+	private final ChemicalIndex[] m_arrShards;
+
+	/** The executor that runs tasks on all shards in parallel. Created on first use. */
+	private ExecutorService m_shardExecutor;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new sharded chemical index with one shard per directory. The
+	 * assignment of molecules to shards depends on the number of shards, so an
+	 * existing sharded index must always be opened with the same directories
+	 * in the same order. The processors are split between the search threads
+	 * of the shards (see {@link ChemicalIndex#setSearchThreadCount(int)}).
+	 * 
+	 * @param arrDirectories
+	 *            Index directories of all shards. Must not be null or empty.
+	 * @param analyzerFactory
+	 *            Analyzer factory to be used by all shards. Must not be null.
+	 * @param fingerprintFactory
+	 *            Fingerprint factory to be used by all shards. Must not be null.
+	 * @param configFactory
+	 *            Configuration of the index writers of all shards. Can be null to create standard config.
+	 */
+	public ShardedChemicalIndex(final Directory[] arrDirectories, final AnalyzerFactory analyzerFactory,
+			final FingerprintFactory fingerprintFactory, final IndexWriterConfigFactory configFactory) {
+		if (arrDirectories == null || arrDirectories.length == 0) {
+			throw new IllegalArgumentException(
+					"Index directories must not be null or empty.");
+		}
+
+		final int iSearchThreadCount = Math.max(1, Runtime.getRuntime().availableProcessors() / arrDirectories.length);
+		m_arrShards = new ChemicalIndex[arrDirectories.length];
+		for (int i = 0; i < arrDirectories.length; i++) {
+			m_arrShards[i] = new ChemicalIndex(arrDirectories[i], analyzerFactory, fingerprintFactory, configFactory);
+			m_arrShards[i].setSearchThreadCount(iSearchThreadCount);
+		}
+		m_shardExecutor = null;
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Returns the number of shards.
+	 * 
+	 * @return Number of shards.
+	 */
+	public int getShardCount() {
+		return m_arrShards.length;
+	}
+
+	/**
+	 * Returns the index of the specified shard, e.g. to change settings of
+	 * a single shard. Molecules must not be added directly to a shard, as they
+	 * might end up in the wrong shard.
+	 * 
+	 * @param iShard Index of the shard.
+	 * 
+	 * @return Shard.
+	 */
+	public ChemicalIndex getShard(final int iShard) {
+		return m_arrShards[iShard];
+	}
+
+	/**
+	 * Sets the screen mode of all shards.
+	 * 
+	 * @param screenMode Screen mode. Must not be null.
+	 */
+	public void setScreenMode(final ScreenMode screenMode) {
+		for (final ChemicalIndex shard : m_arrShards) {
+			shard.setScreenMode(screenMode);
+		}
+	}
+
+	/**
+	 * Sets whether all shards verify substructures with binary molecules.
+	 * 
+	 * @param bUse True to use binary molecules, false to use SMILES.
+	 */
+	public void setUseBinaryMolecules(final boolean bUse) {
+		for (final ChemicalIndex shard : m_arrShards) {
+			shard.setUseBinaryMolecules(bUse);
+		}
+	}
+
+	/**
+	 * Adds the specified molecule to the shard of its primary key
+	 * (see {@link ChemicalIndex#addMoleculeAsSDF(String, SDFRecord, List, Map)}).
+	 */
+	public void addMoleculeAsSDF(final String strPK, final SDFRecord sdf,
+			final List<String> listNames, final Map<String, Object> mapProperties)
+					throws IOException, GenericRDKitException {
+		getShardForPK(strPK).addMoleculeAsSDF(strPK, sdf, listNames, mapProperties);
+	}
+
+	/**
+	 * Adds the specified molecule to the shard of its primary key
+	 * (see {@link ChemicalIndex#addMoleculeAsSmiles(String, String, List, Map)}).
+	 */
+	public void addMoleculeAsSmiles(final String strPK, final String strSmiles,
+			final List<String> listNames, final Map<String, Object> mapProperties)
+					throws IOException, GenericRDKitException {
+		getShardForPK(strPK).addMoleculeAsSmiles(strPK, strSmiles, listNames, mapProperties);
+	}
+
+	/**
+	 * Adds the specified SDF file to the shards. One thread reads the records,
+	 * while the specified number of threads convert them and add them to the
+	 * shards of their primary keys in parallel (see {@link SDFIngester}). The added
+	 * molecules are committed and searchable, when this method returns.
+	 * 
+	 * @param sdfFile SDF File. Must not be null.
+	 * @param strFieldPrimaryKey The field name that holds the primary key. Must not be null.
+	 * @param strIgnoreUpToPK Start indexing on that primery key. Ignore the ones before. Can be null.
+	 * @param setIgnorePKs Set of primary keys with structures that shall not be indexed. Can be null.
+	 * @param iThreadCount Number of threads converting records. Must be &gt; 0.
+	 * 
+	 * @return Statistics of the ingestion with the throughput of every stage.
+	 * 
+	 * @throws IOException
+	 */
+	public IngestionStatistics addSDFFileToIndex(final File sdfFile, final String strFieldPrimaryKey,
+			final String strIgnoreUpToPK, final Set<String> setIgnorePKs, final int iThreadCount)
+					throws IOException {
+		final SDFIngester ingester = new SDFIngester(m_arrShards, strFieldPrimaryKey, strIgnoreUpToPK,
+				setIgnorePKs, iThreadCount, SDFIngester.DEFAULT_QUEUE_CAPACITY);
+		final IngestionStatistics stats = ingester.ingest(sdfFile);
+		LOGGER.log(Level.INFO, "Added " + sdfFile.getName() + " to " + m_arrShards.length + " shards: " + stats);
+
+		commit();
+		refresh();
+
+		return stats;
+	}
+
+	/**
+	 * Starts bulk loading on all shards (see {@link ChemicalIndex#startBulkLoad()}).
+	 */
+	public void startBulkLoad() {
+		for (final ChemicalIndex shard : m_arrShards) {
+			shard.startBulkLoad();
+		}
+	}
+
+	/**
+	 * Finishes bulk loading on all shards in parallel (see {@link ChemicalIndex#finishBulkLoad(int)}).
+	 * 
+	 * @param iMaxSegments Maximum number of segments per shard. 0 or less to keep the segments as they are.
+	 * 
+	 * @throws IOException Thrown, if a shard could not be merged or committed.
+	 */
+	public void finishBulkLoad(final int iMaxSegments) throws IOException {
+		runOnAllShards(new ShardTask<Object>() {
+			@Override
+			public Object run(final ChemicalIndex shard) throws Exception {
+				shard.finishBulkLoad(iMaxSegments);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Commits all shards in parallel.
+	 * 
+	 * @throws IOException Thrown, if a shard could not be committed.
+	 */
+	public void commit() throws IOException {
+		runOnAllShards(new ShardTask<Object>() {
+			@Override
+			public Object run(final ChemicalIndex shard) throws Exception {
+				shard.commit();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Makes all changes of all shards visible to searches.
+	 * 
+	 * @throws IOException Thrown, if a searcher could not be reopened.
+	 */
+	public void refresh() throws IOException {
+		runOnAllShards(new ShardTask<Object>() {
+			@Override
+			public Object run(final ChemicalIndex shard) throws Exception {
+				shard.refresh();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Closes writers and searchers of all shards and commits all changes
+	 * (see {@link ChemicalIndex#close()}).
+	 * 
+	 * @throws IOException Thrown, if a shard could not be closed.
+	 */
+	public void close() throws IOException {
+		runOnAllShards(new ShardTask<Object>() {
+			@Override
+			public Object run(final ChemicalIndex shard) throws Exception {
+				shard.close();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Shutdown of all shards. After this call they cannot be used anymore.
+	 * 
+	 * @throws IOException Thrown, if a shard could not be closed.
+	 */
+	public void shutdown() throws IOException {
+		try {
+			runOnAllShards(new ShardTask<Object>() {
+				@Override
+				public Object run(final ChemicalIndex shard) throws Exception {
+					shard.shutdown();
+					return null;
+				}
+			});
+		}
+		finally {
+			synchronized (this) {
+				if (m_shardExecutor != null) {
+					m_shardExecutor.shutdown();
+					m_shardExecutor = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of indexed molecules of all shards.
+	 * 
+	 * @return Number of molecules. Or -1, if unknown.
+	 */
+	public int getIndexedMoleculeCount() throws IOException {
+		int iCount = 0;
+		for (final ChemicalIndex shard : m_arrShards) {
+			final int iShardCount = shard.getIndexedMoleculeCount();
+			if (iShardCount < 0) {
+				return -1;
+			}
+			iCount += iShardCount;
+		}
+		return iCount;
+	}
+
+	/**
+	 * Searches the molecule with the specified primary key in its shard.
+	 * 
+	 * @param strPK Primary key of a molecule. Must not be null.
+	 * 
+	 * @return Document with the primary key or null, if not found.
+	 * 
+	 * @throws IOException Thrown, if index could not be read.
+	 */
+	public Document searchMoleculeByPK(final String strPK) throws IOException {
+		return getShardForPK(strPK).searchMoleculeByPK(strPK);
+	}
+
+	/**
+	 * Searches molecules based on a free text search on all shards
+	 * (see {@link ChemicalIndex#searchMolecules(String, int)}). The merged order is
+	 * approximate, as every shard scores with its own term statistics.
+	 * 
+	 * @return Collector with the merged search results of all shards or null,
+	 * 		   if index has been shutdown.
+	 */
+	public TopDocsCollector<ScoreDoc> searchMolecules(final String strFreeSearch, final int iMaxHits)
+			throws IOException, ParseException {
+		try {
+			return searchAllShards(new ShardTask<TopDocsCollector<ScoreDoc>>() {
+				@Override
+				public TopDocsCollector<ScoreDoc> run(final ChemicalIndex shard) throws Exception {
+					return shard.searchMolecules(strFreeSearch, iMaxHits);
+				}
+			}, iMaxHits);
+		}
+		catch (final IOException exc) {
+			if (exc.getCause() instanceof ParseException) {
+				throw (ParseException)exc.getCause();
+			}
+			throw exc;
+		}
+	}
+
+	/**
+	 * Searches molecules based on a name on all shards
+	 * (see {@link ChemicalIndex#searchMoleculesByName(String, int)}). The merged order is
+	 * approximate, as every shard scores with its own term statistics.
+	 * 
+	 * @return Collector with the merged search results of all shards or null,
+	 * 		   if index has been shutdown.
+	 */
+	public TopDocsCollector<ScoreDoc> searchMoleculesByName(final String strName, final int iMaxHits)
+			throws IOException {
+		return searchAllShards(new ShardTask<TopDocsCollector<ScoreDoc>>() {
+			@Override
+			public TopDocsCollector<ScoreDoc> run(final ChemicalIndex shard) throws Exception {
+				return shard.searchMoleculesByName(strName, iMaxHits);
+			}
+		}, iMaxHits);
+	}
+
+	/**
+	 * Searches molecules based on a canonical SMILES on all shards
+	 * (see {@link ChemicalIndex#searchExactMolecules(String, int)}). The merged order is
+	 * approximate, as every shard scores with its own term statistics.
+	 * 
+	 * @return Collector with the merged search results of all shards or null,
+	 * 		   if index has been shutdown.
+	 */
+	public TopDocsCollector<ScoreDoc> searchExactMolecules(final String strSmiles, final int iMaxHits)
+			throws IOException {
+		return searchAllShards(new ShardTask<TopDocsCollector<ScoreDoc>>() {
+			@Override
+			public TopDocsCollector<ScoreDoc> run(final ChemicalIndex shard) throws Exception {
+				return shard.searchExactMolecules(strSmiles, iMaxHits);
+			}
+		}, iMaxHits);
+	}
+
+	/**
+	 * Searches similar molecules based on fingerprint matches on all shards
+	 * (see {@link ChemicalIndex#searchMoleculesByFingerprintMatch(String, int)}). The merged
+	 * order is approximate, as every shard scores with its own term statistics.
+	 * 
+	 * @return Collector with the merged search results of all shards or null,
+	 * 		   if index has been shutdown.
+	 */
+	public TopDocsCollector<ScoreDoc> searchMoleculesByFingerprintMatch(final String strSmiles, final int iMaxHits)
+			throws IOException {
+		return searchAllShards(new ShardTask<TopDocsCollector<ScoreDoc>>() {
+			@Override
+			public TopDocsCollector<ScoreDoc> run(final ChemicalIndex shard) throws Exception {
+				return shard.searchMoleculesByFingerprintMatch(strSmiles, iMaxHits);
+			}
+		}, iMaxHits);
+	}
+
+	/**
+	 * Searches molecules which contain the passed in molecule as a substructure
+	 * on all shards (see {@link ChemicalIndex#searchMoleculesWithSubstructure(String, int)}).
+	 * Every shard verifies its candidates with its own search threads.
+	 * 
+	 * @return Collector with the merged search results of all shards or null,
+	 * 		   if index has been shutdown.
+	 */
+	public TopDocsCollector<ScoreDoc> searchMoleculesWithSubstructure(final String strSmiles, final int iMaxHits)
+			throws IOException {
+		return searchAllShards(new ShardTask<TopDocsCollector<ScoreDoc>>() {
+			@Override
+			public TopDocsCollector<ScoreDoc> run(final ChemicalIndex shard) throws Exception {
+				return shard.searchMoleculesWithSubstructure(strSmiles, iMaxHits);
+			}
+		}, iMaxHits);
+	}
+
+	/**
+	 * Searches the molecules that are most similar to the passed in molecule
+	 * on all shards (see {@link ChemicalIndex#searchMoleculesBySimilarity(String, float, int)}).
+	 * 
+	 * @return Collector with the merged search results of all shards ordered by
+	 * 		   descending similarity or null, if index has been shutdown.
+	 */
+	public TopDocsCollector<ScoreDoc> searchMoleculesBySimilarity(final String strSmiles,
+			final float fThreshold, final int iMaxHits) throws IOException {
+		return searchAllShards(new ShardTask<TopDocsCollector<ScoreDoc>>() {
+			@Override
+			public TopDocsCollector<ScoreDoc> run(final ChemicalIndex shard) throws Exception {
+				return shard.searchMoleculesBySimilarity(strSmiles, fThreshold, iMaxHits);
+			}
+		}, iMaxHits);
+	}
+
+	/**
+	 * Counts the molecules found by a free text search on all shards
+	 * (see {@link ChemicalIndex#countMolecules(String)}).
+	 * 
+	 * @return Number of hits of all shards or -1, if index has been shutdown.
+	 */
+	public int countMolecules(final String strFreeSearch) throws IOException, ParseException {
+		try {
+			return countAllShards(new ShardTask<Integer>() {
+				@Override
+				public Integer run(final ChemicalIndex shard) throws Exception {
+					return shard.countMolecules(strFreeSearch);
+				}
+			});
+		}
+		catch (final IOException exc) {
+			if (exc.getCause() instanceof ParseException) {
+				throw (ParseException)exc.getCause();
+			}
+			throw exc;
+		}
+	}
+
+	/**
+	 * Counts the molecules with the specified name or primary key on all
+	 * shards (see {@link ChemicalIndex#countMoleculesByName(String)}).
+	 * 
+	 * @return Number of hits of all shards or -1, if index has been shutdown.
+	 */
+	public int countMoleculesByName(final String strName) throws IOException {
+		return countAllShards(new ShardTask<Integer>() {
+			@Override
+			public Integer run(final ChemicalIndex shard) throws Exception {
+				return shard.countMoleculesByName(strName);
+			}
+		});
+	}
+
+	/**
+	 * Counts the molecules with the same canonical smiles on all shards
+	 * (see {@link ChemicalIndex#countExactMolecules(String)}).
+	 * 
+	 * @return Number of hits of all shards or -1, if index has been shutdown.
+	 */
+	public int countExactMolecules(final String strSmiles) throws IOException {
+		return countAllShards(new ShardTask<Integer>() {
+			@Override
+			public Integer run(final ChemicalIndex shard) throws Exception {
+				return shard.countExactMolecules(strSmiles);
+			}
+		});
+	}
+
+	/**
+	 * Counts the molecules that pass the fingerprint screen on all shards
+	 * (see {@link ChemicalIndex#countMoleculesByFingerprintMatch(String)}).
+	 * 
+	 * @return Number of hits of all shards or -1, if index has been shutdown.
+	 */
+	public int countMoleculesByFingerprintMatch(final String strSmiles) throws IOException {
+		return countAllShards(new ShardTask<Integer>() {
+			@Override
+			public Integer run(final ChemicalIndex shard) throws Exception {
+				return shard.countMoleculesByFingerprintMatch(strSmiles);
+			}
+		});
+	}
+
+	/**
+	 * Counts the molecules which contain the passed in molecule as a substructure
+	 * on all shards (see {@link ChemicalIndex#countMoleculesWithSubstructure(String)}).
+	 * 
+	 * @return Number of hits of all shards or -1, if index has been shutdown
+	 * 		   or if the SMILES cannot be used for a substructure search.
+	 */
+	public int countMoleculesWithSubstructure(final String strSmiles) throws IOException {
+		return countAllShards(new ShardTask<Integer>() {
+			@Override
+			public Integer run(final ChemicalIndex shard) throws Exception {
+				return shard.countMoleculesWithSubstructure(strSmiles);
+			}
+		});
+	}
+
+	/**
+	 * Counts the molecules whose similarity with the passed in molecule reaches
+	 * the threshold on all shards (see {@link ChemicalIndex#countMoleculesBySimilarity(String, float)}).
+	 * 
+	 * @return Number of hits of all shards or -1, if index has been shutdown.
+	 */
+	public int countMoleculesBySimilarity(final String strSmiles, final float fThreshold) throws IOException {
+		return countAllShards(new ShardTask<Integer>() {
+			@Override
+			public Integer run(final ChemicalIndex shard) throws Exception {
+				return shard.countMoleculesBySimilarity(strSmiles, fThreshold);
+			}
+		});
+	}
+
+	/**
+	 * Searches all molecules based on a free text search on all shards
+	 * (see {@link ChemicalIndex#searchAllMolecules(String)}). The hit sets of the
+	 * shards are concatenated in shard order like the documents of a multi reader,
+	 * so document ids of shards are shifted by the number of documents of all
+	 * shards before. The merged hit set carries the primary keys of all shards.
+	 * 
+	 * @return All hits of all shards or null, if index has been shutdown.
+	 */
+	public HitSet searchAllMolecules(final String strFreeSearch) throws IOException, ParseException {
+		try {
+			return searchAllShardHits(new ShardTask<HitSet>() {
+				@Override
+				public HitSet run(final ChemicalIndex shard) throws Exception {
+					return shard.searchAllMolecules(strFreeSearch);
+				}
+			});
+		}
+		catch (final IOException exc) {
+			if (exc.getCause() instanceof ParseException) {
+				throw (ParseException)exc.getCause();
+			}
+			throw exc;
+		}
+	}
+
+	/**
+	 * Searches all molecules with the specified name or primary key on all
+	 * shards (see {@link #searchAllMolecules(String)}).
+	 * 
+	 * @return All hits of all shards or null, if index has been shutdown.
+	 */
+	public HitSet searchAllMoleculesByName(final String strName) throws IOException {
+		return searchAllShardHits(new ShardTask<HitSet>() {
+			@Override
+			public HitSet run(final ChemicalIndex shard) throws Exception {
+				return shard.searchAllMoleculesByName(strName);
+			}
+		});
+	}
+
+	/**
+	 * Searches all molecules with the same canonical smiles on all shards
+	 * (see {@link #searchAllMolecules(String)}).
+	 * 
+	 * @return All hits of all shards or null, if index has been shutdown.
+	 */
+	public HitSet searchAllExactMolecules(final String strSmiles) throws IOException {
+		return searchAllShardHits(new ShardTask<HitSet>() {
+			@Override
+			public HitSet run(final ChemicalIndex shard) throws Exception {
+				return shard.searchAllExactMolecules(strSmiles);
+			}
+		});
+	}
+
+	/**
+	 * Searches all molecules that pass the fingerprint screen on all shards
+	 * (see {@link #searchAllMolecules(String)}).
+	 * 
+	 * @return All hits of all shards or null, if index has been shutdown or
+	 * 		   if no query fingerprint could be calculated.
+	 */
+	public HitSet searchAllMoleculesByFingerprintMatch(final String strSmiles) throws IOException {
+		return searchAllShardHits(new ShardTask<HitSet>() {
+			@Override
+			public HitSet run(final ChemicalIndex shard) throws Exception {
+				return shard.searchAllMoleculesByFingerprintMatch(strSmiles);
+			}
+		});
+	}
+
+	/**
+	 * Searches all molecules which contain the passed in molecule as a substructure
+	 * on all shards (see {@link #searchAllMolecules(String)}).
+	 * 
+	 * @return All hits of all shards or null, if index has been shutdown or if
+	 * 		   the SMILES cannot be used for a substructure search.
+	 */
+	public HitSet searchAllMoleculesWithSubstructure(final String strSmiles) throws IOException {
+		return searchAllShardHits(new ShardTask<HitSet>() {
+			@Override
+			public HitSet run(final ChemicalIndex shard) throws Exception {
+				return shard.searchAllMoleculesWithSubstructure(strSmiles);
+			}
+		});
+	}
+
+	/**
+	 * Searches all molecules whose similarity with the passed in molecule reaches
+	 * the threshold on all shards (see {@link #searchAllMolecules(String)}).
+	 * 
+	 * @return All hits of all shards or null, if index has been shutdown.
+	 */
+	public HitSet searchAllMoleculesBySimilarity(final String strSmiles, final float fThreshold)
+			throws IOException {
+		return searchAllShardHits(new ShardTask<HitSet>() {
+			@Override
+			public HitSet run(final ChemicalIndex shard) throws Exception {
+				return shard.searchAllMoleculesBySimilarity(strSmiles, fThreshold);
+			}
+		});
+	}
+
+	/**
+	 * Searches a page of molecules based on a free text search on all shards
+	 * (see {@link ChemicalIndex#searchMolecules(String, SearchCursor, int)}).
+	 * Every shard fetches a page of the full page size, which are merged like
+	 * the hits of {@link #searchMolecules(String, int)}. As the merged order is
+	 * approximate, page boundaries can differ from an unsharded index.
+	 * 
+	 * @param strFreeSearch
+	 *            Search string (human). Must not be null.
+	 * @param cursor
+	 *            Cursor of the previous page or null to fetch the first page.
+	 * @param iPageSize
+	 *            Maximum number of hits of the page. Must be &gt; 0.
+	 * 
+	 * @return Page of merged results or null, if index has been shutdown.
+	 * 
+	 * @throws SearchExpiredException
+	 *             Thrown, if the searcher of a shard cursor has been released already.
+	 */
+	public ShardedSearchPage searchMolecules(final String strFreeSearch, final ShardedSearchCursor cursor,
+			final int iPageSize) throws IOException, ParseException {
+		try {
+			return searchAllShardPages(new ShardPageTask() {
+				@Override
+				public SearchPage run(final ChemicalIndex shard, final SearchCursor shardCursor,
+						final int iShardPageSize) throws Exception {
+					return shard.searchMolecules(strFreeSearch, shardCursor, iShardPageSize);
+				}
+			}, cursor, iPageSize, false);
+		}
+		catch (final IOException exc) {
+			if (exc.getCause() instanceof ParseException) {
+				throw (ParseException)exc.getCause();
+			}
+			throw exc;
+		}
+	}
+
+	/**
+	 * Searches a page of molecules based on a name on all shards
+	 * (see {@link #searchMolecules(String, ShardedSearchCursor, int)} for paging
+	 * and the approximate merge of scores).
+	 * 
+	 * @return Page of merged results or null, if index has been shutdown.
+	 */
+	public ShardedSearchPage searchMoleculesByName(final String strName, final ShardedSearchCursor cursor,
+			final int iPageSize) throws IOException {
+		return searchAllShardPages(new ShardPageTask() {
+			@Override
+			public SearchPage run(final ChemicalIndex shard, final SearchCursor shardCursor,
+					final int iShardPageSize) throws Exception {
+				return shard.searchMoleculesByName(strName, shardCursor, iShardPageSize);
+			}
+		}, cursor, iPageSize, false);
+	}
+
+	/**
+	 * Searches a page of molecules based on a canonical SMILES on all shards
+	 * (see {@link #searchMolecules(String, ShardedSearchCursor, int)} for paging
+	 * and the approximate merge of scores).
+	 * 
+	 * @return Page of merged results or null, if index has been shutdown.
+	 */
+	public ShardedSearchPage searchExactMolecules(final String strSmiles, final ShardedSearchCursor cursor,
+			final int iPageSize) throws IOException {
+		return searchAllShardPages(new ShardPageTask() {
+			@Override
+			public SearchPage run(final ChemicalIndex shard, final SearchCursor shardCursor,
+					final int iShardPageSize) throws Exception {
+				return shard.searchExactMolecules(strSmiles, shardCursor, iShardPageSize);
+			}
+		}, cursor, iPageSize, false);
+	}
+
+	/**
+	 * Searches a page of similar molecules based on fingerprint matches on all shards
+	 * (see {@link #searchMolecules(String, ShardedSearchCursor, int)} for paging
+	 * and the approximate merge of scores).
+	 * 
+	 * @return Page of merged results or null, if index has been shutdown or
+	 * 		   if no query fingerprint could be calculated.
+	 */
+	public ShardedSearchPage searchMoleculesByFingerprintMatch(final String strSmiles,
+			final ShardedSearchCursor cursor, final int iPageSize) throws IOException {
+		return searchAllShardPages(new ShardPageTask() {
+			@Override
+			public SearchPage run(final ChemicalIndex shard, final SearchCursor shardCursor,
+					final int iShardPageSize) throws Exception {
+				return shard.searchMoleculesByFingerprintMatch(strSmiles, shardCursor, iShardPageSize);
+			}
+		}, cursor, iPageSize, false);
+	}
+
+	/**
+	 * Searches a page of molecules which contain the passed in molecule as a
+	 * substructure on all shards (see {@link ChemicalIndex#searchMoleculesWithSubstructure(String, SearchCursor, int)}).
+	 * The page size is split between the shards, which still have hits, so every
+	 * shard verifies only its share of the page and all its hits end up on the page.
+	 * 
+	 * @return Page of merged results or null, if index has been shutdown or if
+	 * 		   the SMILES cannot be used for a substructure search.
+	 */
+	public ShardedSearchPage searchMoleculesWithSubstructure(final String strSmiles,
+			final ShardedSearchCursor cursor, final int iPageSize) throws IOException {
+		return searchAllShardPages(new ShardPageTask() {
+			@Override
+			public SearchPage run(final ChemicalIndex shard, final SearchCursor shardCursor,
+					final int iShardPageSize) throws Exception {
+				return shard.searchMoleculesWithSubstructure(strSmiles, shardCursor, iShardPageSize);
+			}
+		}, cursor, iPageSize, true);
+	}
+
+	/**
+	 * Searches a page of the molecules that are most similar to the passed in molecule
+	 * on all shards (see {@link ChemicalIndex#searchMoleculesBySimilarity(String, float, SearchCursor, int)}
+	 * and {@link #searchMolecules(String, ShardedSearchCursor, int)} for paging).
+	 * 
+	 * @return Page of merged results ordered by descending similarity or null,
+	 * 		   if index has been shutdown.
+	 */
+	public ShardedSearchPage searchMoleculesBySimilarity(final String strSmiles, final float fThreshold,
+			final ShardedSearchCursor cursor, final int iPageSize) throws IOException {
+		return searchAllShardPages(new ShardPageTask() {
+			@Override
+			public SearchPage run(final ChemicalIndex shard, final SearchCursor shardCursor,
+					final int iShardPageSize) throws Exception {
+				return shard.searchMoleculesBySimilarity(strSmiles, fThreshold, shardCursor, iShardPageSize);
+			}
+		}, cursor, iPageSize, false);
+	}
+
+	/**
+	 * Returns the primary keys of the documents, which have been found by a
+	 * search of this index. Hits carry the primary keys, which their shards
+	 * resolved with the searchers that found them. Other hits are resolved by
+	 * their shards with the current searchers.
+	 * 
+	 * @param collector
+	 *            Search result of this index. Can be null.
+	 * 
+	 * @return Array of primary keys in the order that the collector provides.
+	 *         Can be empty, but will never be null.
+	 */
+	public String[] getPrimaryKeysForSearchHits(final TopDocsCollector<ScoreDoc> collector)
+			throws IOException {
+		return (collector == null ? EMPTY_RESULTS : getPrimaryKeysForSearchHits(collector.topDocs()));
+	}
+
+	/**
+	 * Returns the primary keys of a page of the documents, which have been
+	 * found by a search of this index. The page is cut from the merged hits of
+	 * all shards, so the search must have requested at least iStart + iHowMany hits.
+	 * 
+	 * @param collector
+	 *            Search result of this index. Can be null.
+	 * @param iStart
+	 *            Index of the first hit of the page (0 based).
+	 * @param iHowMany
+	 *            Maximum number of hits of the page.
+	 * 
+	 * @return Array of primary keys in the order that the collector provides.
+	 *         Can be empty, but will never be null.
+	 */
+	public String[] getPrimaryKeysForSearchHits(final TopDocsCollector<ScoreDoc> collector,
+			final int iStart, final int iHowMany) throws IOException {
+		return (collector == null ? EMPTY_RESULTS :
+			getPrimaryKeysForSearchHits(collector.topDocs(iStart, iHowMany)));
+	}
+
+	/**
+	 * Returns the primary keys of all documents of a hit set of this index
+	 * in document id order. They are taken from the primary keys of the shards,
+	 * which the hit set carries.
+	 * 
+	 * @param hits
+	 *            Search result of this index. Can be null.
+	 * 
+	 * @return Array of primary keys in document id order.
+	 *         Can be empty, but will never be null.
+	 */
+	public String[] getPrimaryKeysForSearchHits(final HitSet hits) {
+		return (hits == null ? EMPTY_RESULTS : getPrimaryKeysForSearchHits(hits, 0, hits.cardinality()));
+	}
+
+	/**
+	 * Returns the primary keys of a page of the documents of a hit set of
+	 * this index in document id order (see {@link #getPrimaryKeysForSearchHits(HitSet)}).
+	 * 
+	 * @param hits
+	 *            Search result of this index. Can be null.
+	 * @param iStart
+	 *            Index of the first hit of the page (0 based).
+	 * @param iHowMany
+	 *            Maximum number of hits of the page.
+	 * 
+	 * @return Array of primary keys in document id order.
+	 *         Can be empty, but will never be null.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             Thrown, if the hit set does not carry primary keys.
+	 */
+	public String[] getPrimaryKeysForSearchHits(final HitSet hits, final int iStart, final int iHowMany) {
+		if (hits == null) {
+			return EMPTY_RESULTS;
+		}
+		if (hits.getPrimaryKeyColumn() == null) {
+			throw new IllegalArgumentException("Hit set does not carry primary keys.");
+		}
+
+		final String[] arrPKs = hits.getPrimaryKeyColumn().getPrimaryKeys(hits.getHits(iStart, iHowMany));
+		final List<String> listPKs = new ArrayList<String>(arrPKs.length);
+		for (final String strPK : arrPKs) {
+			if (strPK != null) {
+				listPKs.add(strPK);
+			}
+		}
+
+		return listPKs.toArray(new String[listPKs.size()]);
+	}
+
+	//
+	// Protected Methods
+	//
+
+	/**
+	 * Returns the shard, which holds the molecule with the specified primary key.
+	 * 
+	 * @param strPK Primary key. Must not be null.
+	 * 
+	 * @return Shard of the primary key.
+	 */
+	protected ChemicalIndex getShardForPK(final String strPK) {
+		if (strPK == null) {
+			throw new IllegalArgumentException("Primary key must not be null.");
+		}
+
+		return m_arrShards[getShardIndex(strPK, m_arrShards.length)];
+	}
+
+	/**
+	 * Resolves the primary keys of the passed in merged search hits. The hits
+	 * are grouped by shard, so every shard resolves all its hits, which do not
+	 * carry their primary keys, with one searcher.
+	 * 
+	 * @param topDocs Merged search hits. Can be null.
+	 * 
+	 * @return Array of primary keys in the order of the hits. Hits without
+	 * 		   primary key are left out. Can be empty, but will never be null.
+	 */
+	protected String[] getPrimaryKeysForSearchHits(final TopDocs topDocs) throws IOException {
+		if (topDocs == null || topDocs.scoreDocs == null || topDocs.scoreDocs.length == 0) {
+			return EMPTY_RESULTS;
+		}
+
+		final ScoreDoc[] arrScoreDocs = topDocs.scoreDocs;
+
+		// Group the hits by shard
+		final int[] arrShardHitCounts = new int[m_arrShards.length];
+		for (final ScoreDoc scoreDoc : arrScoreDocs) {
+			if (scoreDoc.shardIndex < 0 || scoreDoc.shardIndex >= m_arrShards.length) {
+				throw new IllegalArgumentException("Search hits do not belong to this sharded index.");
+			}
+			arrShardHitCounts[scoreDoc.shardIndex]++;
+		}
+		final ScoreDoc[][] arrShardHits = new ScoreDoc[m_arrShards.length][];
+		for (int iShard = 0; iShard < m_arrShards.length; iShard++) {
+			arrShardHits[iShard] = new ScoreDoc[arrShardHitCounts[iShard]];
+			arrShardHitCounts[iShard] = 0;
+		}
+		for (final ScoreDoc scoreDoc : arrScoreDocs) {
+			arrShardHits[scoreDoc.shardIndex][arrShardHitCounts[scoreDoc.shardIndex]++] = scoreDoc;
+		}
+
+		final String[][] arrShardPKs = new String[m_arrShards.length][];
+		for (int iShard = 0; iShard < m_arrShards.length; iShard++) {
+			arrShardPKs[iShard] = m_arrShards[iShard].getPrimaryKeys(arrShardHits[iShard]);
+			arrShardHitCounts[iShard] = 0;
+		}
+
+		// Restore the merged order
+		final List<String> listPKs = new ArrayList<String>(arrScoreDocs.length);
+		for (final ScoreDoc scoreDoc : arrScoreDocs) {
+			final String strPK = arrShardPKs[scoreDoc.shardIndex][arrShardHitCounts[scoreDoc.shardIndex]++];
+			if (strPK != null) {
+				listPKs.add(strPK);
+			}
+		}
+
+		return listPKs.toArray(new String[listPKs.size()]);
+	}
+
+	/**
+	 * Runs the specified search on all shards in parallel and merges their hits.
+	 * 
+	 * @param search Search to run on every shard. Must not be null.
+	 * @param iMaxHits Maximum number of hits to return.
+	 * 
+	 * @return Collector with the merged hits or null, if a shard has been shutdown.
+	 * 
+	 * @throws IOException Thrown, if a shard could not be searched.
+	 */
+	protected TopDocsCollector<ScoreDoc> searchAllShards(final ShardTask<TopDocsCollector<ScoreDoc>> search,
+			final int iMaxHits) throws IOException {
+		final List<TopDocsCollector<ScoreDoc>> listCollectors = runOnAllShards(search);
+
+		final TopDocs[] arrShardHits = new TopDocs[listCollectors.size()];
+		for (int iShard = 0; iShard < arrShardHits.length; iShard++) {
+			final TopDocsCollector<ScoreDoc> collector = listCollectors.get(iShard);
+			if (collector == null) {
+				return null;
+			}
+			arrShardHits[iShard] = collector.topDocs();
+		}
+
+		return new ShardedCollector(arrShardHits, iMaxHits);
+	}
+
+	/**
+	 * Runs the specified search on all shards in parallel and concatenates their
+	 * hit sets and primary keys in shard order.
+	 * 
+	 * @param search Search to run on every shard. Must not be null.
+	 * 
+	 * @return Merged hit set or null, if a shard has been shutdown or the query
+	 * 		cannot be used.
+	 * 
+	 * @throws IOException Thrown, if a shard could not be searched.
+	 */
+	protected HitSet searchAllShardHits(final ShardTask<HitSet> search) throws IOException {
+		final List<HitSet> listShardHits = runOnAllShards(search);
+
+		final PrimaryKeyColumn[] arrColumns = new PrimaryKeyColumn[listShardHits.size()];
+		int iMaxDoc = 0;
+		for (int iShard = 0; iShard < arrColumns.length; iShard++) {
+			final HitSet hits = listShardHits.get(iShard);
+			if (hits == null) {
+				return null;
+			}
+			arrColumns[iShard] = hits.getPrimaryKeyColumn();
+			iMaxDoc += hits.getMaxDoc();
+		}
+
+		final FixedBitSet bits = new FixedBitSet(iMaxDoc);
+		int iDocBase = 0;
+		for (final HitSet hits : listShardHits) {
+			final DocIdSetIterator iterator = hits.iterator();
+			int iDoc;
+			while ((iDoc = iterator.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+				bits.set(iDocBase + iDoc);
+			}
+			iDocBase += hits.getMaxDoc();
+		}
+
+		return new HitSet(bits, new PrimaryKeyColumn(arrColumns));
+	}
+
+	/**
+	 * Runs the specified paged search on all shards in parallel and merges their
+	 * pages by descending score, ascending document id and ascending shard index.
+	 * A shard, whose hits are taken only partially, gets a cursor after the last
+	 * hit that was taken. If its page was the last one, it fetches the same page
+	 * again next time and skips the hits that were taken already.
+	 * 
+	 * @param search Paged search to run on every shard. Must not be null.
+	 * @param cursor Cursor of the previous page or null to fetch the first page.
+	 * @param iPageSize Maximum number of hits of the page. Must be &gt; 0.
+	 * @param bSplitPage True to split the page size between the shards, which
+	 * 		still have hits, so that all hits of the shards are taken. False to
+	 * 		fetch a page of the full page size from every shard.
+	 * 
+	 * @return Page of merged hits or null, if a shard has been shutdown.
+	 * 
+	 * @throws IOException Thrown, if a shard could not be searched.
+	 */
+	protected ShardedSearchPage searchAllShardPages(final ShardPageTask search, final ShardedSearchCursor cursor,
+			final int iPageSize, final boolean bSplitPage) throws IOException {
+		if (iPageSize <= 0) {
+			throw new IllegalArgumentException("Page size must be > 0.");
+		}
+		if (cursor != null && cursor.getShardCount() != m_arrShards.length) {
+			throw new IllegalArgumentException("Search cursor belongs to a different sharded index.");
+		}
+
+		final int iShardCount = m_arrShards.length;
+		final SearchCursor[] arrCursors = new SearchCursor[iShardCount];
+		final int[] arrSkipHits = new int[iShardCount];
+		final int[] arrHitsBefore = new int[iShardCount];
+		final boolean[] arrExhausted = new boolean[iShardCount];
+		int iActiveShards = 0;
+		for (int iShard = 0; iShard < iShardCount; iShard++) {
+			if (cursor != null) {
+				arrCursors[iShard] = cursor.getShardCursor(iShard);
+				arrSkipHits[iShard] = cursor.getSkipHits(iShard);
+				arrHitsBefore[iShard] = cursor.getHitsBefore(iShard);
+				arrExhausted[iShard] = cursor.isExhausted(iShard);
+			}
+			if (!arrExhausted[iShard]) {
+				iActiveShards++;
+			}
+		}
+
+		// Determine the page sizes of the shards, 0 for shards that are not searched
+		final int[] arrPageSizes = new int[iShardCount];
+		int iActiveShard = 0;
+		for (int iShard = 0; iShard < iShardCount; iShard++) {
+			if (!arrExhausted[iShard]) {
+				arrPageSizes[iShard] = (bSplitPage ? iPageSize / iActiveShards +
+						(iActiveShard < iPageSize % iActiveShards ? 1 : 0) : iPageSize + arrSkipHits[iShard]);
+				iActiveShard++;
+			}
+		}
+
+		final List<SearchPage> listPages = runOnAllShards(new ShardTask<SearchPage>() {
+			@Override
+			public SearchPage run(final ChemicalIndex shard) throws Exception {
+				final int iShard = indexOfShard(shard);
+				return (arrPageSizes[iShard] > 0 ? search.run(shard, arrCursors[iShard], arrPageSizes[iShard]) : null);
+			}
+		});
+
+		final ScoreDoc[][] arrShardHits = new ScoreDoc[iShardCount][];
+		final int[] arrFirstHits = new int[iShardCount];
+		final int[] arrNextHits = new int[iShardCount];
+		for (int iShard = 0; iShard < iShardCount; iShard++) {
+			final SearchPage page = listPages.get(iShard);
+			if (page == null) {
+				if (arrPageSizes[iShard] > 0) {
+					return null;
+				}
+			}
+			else {
+				arrShardHits[iShard] = page.getHits();
+				for (final ScoreDoc hit : arrShardHits[iShard]) {
+					hit.shardIndex = iShard;
+				}
+				arrFirstHits[iShard] = Math.min(arrSkipHits[iShard], arrShardHits[iShard].length);
+				arrNextHits[iShard] = arrFirstHits[iShard];
+			}
+		}
+
+		// Take the best hits of all shards
+		final List<ScoreDoc> listHits = new ArrayList<ScoreDoc>(iPageSize);
+		final List<String> listPKs = new ArrayList<String>(iPageSize);
+		while (listHits.size() < iPageSize) {
+			int iBestShard = -1;
+			for (int iShard = 0; iShard < iShardCount; iShard++) {
+				if (arrShardHits[iShard] != null && arrNextHits[iShard] < arrShardHits[iShard].length &&
+						(iBestShard < 0 || ranksBefore(arrShardHits[iShard][arrNextHits[iShard]],
+								arrShardHits[iBestShard][arrNextHits[iBestShard]]))) {
+					iBestShard = iShard;
+				}
+			}
+			if (iBestShard < 0) {
+				break;
+			}
+			listHits.add(arrShardHits[iBestShard][arrNextHits[iBestShard]]);
+			listPKs.add(listPages.get(iBestShard).getPrimaryKey(arrNextHits[iBestShard]));
+			arrNextHits[iBestShard]++;
+		}
+
+		// Determine where every shard continues
+		int iTotalHits = 0;
+		boolean bMoreHits = false;
+		for (int iShard = 0; iShard < iShardCount; iShard++) {
+			final SearchPage page = listPages.get(iShard);
+			if (page != null) {
+				final int iTaken = arrNextHits[iShard] - arrFirstHits[iShard];
+				arrHitsBefore[iShard] += iTaken;
+				if (arrNextHits[iShard] == arrShardHits[iShard].length) {
+					arrCursors[iShard] = page.getCursor();
+					arrSkipHits[iShard] = 0;
+					arrExhausted[iShard] = (page.getCursor() == null);
+				}
+				else if (iTaken > 0 && page.getCursor() != null) {
+					// Only pages of ranked searches are taken partially, which do not resume any verification
+					final SearchCursor cursorPage = page.getCursor();
+					arrCursors[iShard] = new SearchCursor(cursorPage.getSearcherVersion(), cursorPage.getQueryHash(),
+							arrShardHits[iShard][arrNextHits[iShard] - 1], -1, arrHitsBefore[iShard]);
+					arrSkipHits[iShard] = 0;
+				}
+				else {
+					arrSkipHits[iShard] += iTaken;
+				}
+				iTotalHits += page.getTotalHits();
+			}
+			else {
+				iTotalHits += arrHitsBefore[iShard];
+			}
+			bMoreHits |= !arrExhausted[iShard];
+		}
+
+		return new ShardedSearchPage(listHits.toArray(new ScoreDoc[listHits.size()]),
+				listPKs.toArray(new String[listPKs.size()]), iTotalHits, (bMoreHits ?
+						new ShardedSearchCursor(arrCursors, arrSkipHits, arrHitsBefore, arrExhausted) : null));
+	}
+
+	/**
+	 * Runs a count on all shards in parallel and sums up the numbers of hits.
+	 * 
+	 * @param count Count to run on a single shard. Must not be null.
+	 * 
+	 * @return Number of hits of all shards or -1, if any shard delivered no count.
+	 * 
+	 * @throws IOException Thrown, if a shard failed.
+	 */
+	protected int countAllShards(final ShardTask<Integer> count) throws IOException {
+		int iHits = 0;
+		for (final Integer iShardHits : runOnAllShards(count)) {
+			if (iShardHits == null || iShardHits < 0) {
+				return -1;
+			}
+			iHits += iShardHits;
+		}
+		return iHits;
+	}
+
+	/**
+	 * Runs the specified task on all shards in parallel and waits for all of them.
+	 * 
+	 * @param task Task to run on every shard. Must not be null.
+	 * 
+	 * @return Results of the shards in shard order.
+	 * 
+	 * @throws IOException Thrown, if the task failed on a shard. Other checked
+	 * 		exceptions are wrapped as cause.
+	 */
+	protected <T> List<T> runOnAllShards(final ShardTask<T> task) throws IOException {
+		final List<T> listResults = new ArrayList<T>(m_arrShards.length);
+
+		if (m_arrShards.length == 1) {
+			listResults.add(runOnShard(task, m_arrShards[0]));
+			return listResults;
+		}
+
+		final ExecutorService executor = getShardExecutor();
+		final List<Future<T>> listFutures = new ArrayList<Future<T>>(m_arrShards.length);
+		for (final ChemicalIndex shard : m_arrShards) {
+			listFutures.add(executor.submit(new Callable<T>() {
+				@Override
+				public T call() throws Exception {
+					return task.run(shard);
+				}
+			}));
+		}
+
+		Throwable failure = null;
+		for (final Future<T> future : listFutures) {
+			try {
+				listResults.add(future.get());
+			}
+			catch (final ExecutionException exc) {
+				failure = (failure == null ? exc.getCause() : failure);
+				listResults.add(null);
+			}
+			catch (final InterruptedException exc) {
+				Thread.currentThread().interrupt();
+				failure = (failure == null ? exc : failure);
+				listResults.add(null);
+			}
+		}
+
+		if (failure != null) {
+			throw toIOException(failure);
+		}
+
+		return listResults;
+	}
+
+	/**
+	 * Returns the executor that runs tasks on all shards in parallel. It
+	 * gets created on first use and consists of one daemon thread per shard.
+	 * 
+	 * @return Shard executor.
+	 */
+	protected synchronized ExecutorService getShardExecutor() {
+		if (m_shardExecutor == null) {
+			final AtomicInteger aiThreadNumber = new AtomicInteger();
+			m_shardExecutor = Executors.newFixedThreadPool(m_arrShards.length, new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable runnable) {
+					final Thread thread = new Thread(runnable, "ShardedChemicalIndex-Shard-" + aiThreadNumber.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		return m_shardExecutor;
+	}
+
+	//
+	// Private Methods
+	//
+
+	/**
+	 * Returns the index of the specified shard.
+	 * 
+	 * @param shard Shard of this index. Must not be null.
+	 * 
+	 * @return Index of the shard.
+	 */
+	private int indexOfShard(final ChemicalIndex shard) {
+		for (int iShard = 0; iShard < m_arrShards.length; iShard++) {
+			if (m_arrShards[iShard] == shard) {
+				return iShard;
+			}
+		}
+
+		throw new IllegalArgumentException("Shard does not belong to this sharded index.");
+	}
+
+	/**
+	 * Runs the specified task on a single shard on the calling thread.
+	 * 
+	 * @param task Task. Must not be null.
+	 * @param shard Shard. Must not be null.
+	 * 
+	 * @return Result of the task.
+	 * 
+	 * @throws IOException Thrown, if the task failed.
+	 */
+	private <T> T runOnShard(final ShardTask<T> task, final ChemicalIndex shard) throws IOException {
+		try {
+			return task.run(shard);
+		}
+		catch (final Exception exc) {
+			throw toIOException(exc);
+		}
+	}
+
+	/**
+	 * Rethrows unchecked failures and converts checked ones into an IOException.
+	 * 
+	 * @param failure Failure of a shard task. Must not be null.
+	 * 
+	 * @return IOException to be thrown.
+	 */
+	private IOException toIOException(final Throwable failure) {
+		if (failure instanceof IOException) {
+			return (IOException)failure;
+		}
+		else if (failure instanceof RuntimeException) {
+			throw (RuntimeException)failure;
+		}
+		else if (failure instanceof Error) {
+			throw (Error)failure;
+		}
+		return new IOException("Shard task failed.", failure);
+	}
+
+	//
+	// Static Public Methods
+	//
+
+	/**
+	 * Determines the shard of a primary key.
+	 * 
+	 * @param strPK Primary key. Must not be null.
+	 * @param iShardCount Number of shards. Must be &gt; 0.
+	 * 
+	 * @return Index of the shard (0 based).
+	 */
+	public static int getShardIndex(final String strPK, final int iShardCount) {
+		if (iShardCount <= 0) {
+			throw new IllegalArgumentException("Number of shards must be > 0.");
+		}
+
+		// String hash codes are specified, so the assignment is stable across JVMs
+		return (strPK.hashCode() & 0x7fffffff) % iShardCount;
+	}
+
+	//
+	// Static Private Methods
+	//
+
+	/**
+	 * Determines, if a merged hit ranks before another one. Hits are ordered by
+	 * descending score, ascending document id and ascending shard index. Scores are
+	 * not normalized between shards (see class description).
+	 * 
+	 * @param hitA Hit. Must not be null.
+	 * @param hitB Other hit. Must not be null.
+	 * 
+	 * @return True, if hitA ranks before hitB.
+	 */
+	private static boolean ranksBefore(final ScoreDoc hitA, final ScoreDoc hitB) {
+		if (hitA.score != hitB.score) {
+			return hitA.score > hitB.score;
+		}
+		if (hitA.doc != hitB.doc) {
+			return hitA.doc < hitB.doc;
+		}
+		return hitA.shardIndex < hitB.shardIndex;
+	}
+}
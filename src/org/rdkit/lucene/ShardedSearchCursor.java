@@ -0,0 +1,241 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+/**
+ * Position after a page of merged search results of a {@link ShardedChemicalIndex},
+ * from where the next page continues. It consists of one {@link SearchCursor} per
+ * shard, so every shard continues with the searcher that delivered its previous
+ * page. Clients pass it around as opaque token (see {@link #toString()} and
+ * {@link #parse(String)}), just like a cursor of a single index.
+ * <p>
+ * A merged page may take only some of the hits a shard delivered. Such a shard
+ * either gets a cursor after the last hit that was taken or, if its page was the
+ * last one, remembers the number of hits to skip, when the page is fetched again.
+ */
+public class ShardedSearchCursor {
+
+	//
+	// Constants
+	//
+
+	/** Separator of the states of the shards in a token. */
+	private static final char SHARD_SEPARATOR = '_';
+
+	/** Separator of the fields of the state of a shard in a token. */
+	private static final char FIELD_SEPARATOR = '~';
+
+	/** Marker of a shard without further hits in a token. */
+	private static final char EXHAUSTED = 'x';
+
+	/** Radix of numbers in a token. */
+	private static final int RADIX = Character.MAX_RADIX;
+
+	//
+	// Members
+	//
+
+	/** The cursors of the shards. Contains null for shards that start over. */
+	private final SearchCursor[] m_arrShardCursors;
+
+	/** The number of hits of the next page of every shard, which have been delivered already. */
+	private final int[] m_arrSkipHits;
+
+	/** The number of hits every shard delivered on all previous pages. */
+	private final int[] m_arrHitsBefore;
+
+	/** Flags of shards without further hits. */
+	private final boolean[] m_arrExhausted;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new cursor. All arrays must have one entry per shard.
+	 * 
+	 * @param arrShardCursors Cursors of the shards. Contains null for shards that
+	 * 		start over or do not have further hits. Must not be null.
+	 * @param arrSkipHits Numbers of hits of the next page of every shard, which
+	 * 		have been delivered already. Must not be null.
+	 * @param arrHitsBefore Numbers of hits every shard delivered on all previous
+	 * 		pages. Must not be null.
+	 * @param arrExhausted Flags of shards without further hits. Must not be null.
+	 */
+	public ShardedSearchCursor(final SearchCursor[] arrShardCursors, final int[] arrSkipHits,
+			final int[] arrHitsBefore, final boolean[] arrExhausted) {
+		if (arrShardCursors == null || arrSkipHits == null || arrHitsBefore == null || arrExhausted == null ||
+				arrSkipHits.length != arrShardCursors.length || arrHitsBefore.length != arrShardCursors.length ||
+				arrExhausted.length != arrShardCursors.length) {
+			throw new IllegalArgumentException("Shard states must not be null and of same length.");
+		}
+
+		m_arrShardCursors = arrShardCursors.clone();
+		m_arrSkipHits = arrSkipHits.clone();
+		m_arrHitsBefore = arrHitsBefore.clone();
+		m_arrExhausted = arrExhausted.clone();
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Returns the number of shards of this cursor.
+	 * 
+	 * @return Number of shards.
+	 */
+	public int getShardCount() {
+		return m_arrShardCursors.length;
+	}
+
+	/**
+	 * Returns the cursor of the specified shard.
+	 * 
+	 * @param iShard Index of the shard.
+	 * 
+	 * @return Cursor or null, if the shard starts over or has no further hits.
+	 */
+	public SearchCursor getShardCursor(final int iShard) {
+		return m_arrShardCursors[iShard];
+	}
+
+	/**
+	 * Returns the number of hits of the next page of the specified shard,
+	 * which have been delivered by previous pages already.
+	 * 
+	 * @param iShard Index of the shard.
+	 * 
+	 * @return Number of hits to skip.
+	 */
+	public int getSkipHits(final int iShard) {
+		return m_arrSkipHits[iShard];
+	}
+
+	/**
+	 * Returns the number of hits the specified shard delivered on all previous pages.
+	 * 
+	 * @param iShard Index of the shard.
+	 * 
+	 * @return Number of hits.
+	 */
+	public int getHitsBefore(final int iShard) {
+		return m_arrHitsBefore[iShard];
+	}
+
+	/**
+	 * Determines, if the specified shard has no further hits.
+	 * 
+	 * @param iShard Index of the shard.
+	 * 
+	 * @return True, if all hits of the shard have been delivered.
+	 */
+	public boolean isExhausted(final int iShard) {
+		return m_arrExhausted[iShard];
+	}
+
+	/**
+	 * Returns the opaque token of this cursor.
+	 * 
+	 * @return Token, which can be parsed with {@link #parse(String)}.
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		for (int iShard = 0; iShard < m_arrShardCursors.length; iShard++) {
+			if (iShard > 0) {
+				sb.append(SHARD_SEPARATOR);
+			}
+			if (m_arrExhausted[iShard]) {
+				sb.append(EXHAUSTED).append(Integer.toString(m_arrHitsBefore[iShard], RADIX));
+			}
+			else {
+				sb.append(Integer.toString(m_arrHitsBefore[iShard], RADIX)).append(FIELD_SEPARATOR)
+				.append(Integer.toString(m_arrSkipHits[iShard], RADIX)).append(FIELD_SEPARATOR);
+				if (m_arrShardCursors[iShard] != null) {
+					sb.append(m_arrShardCursors[iShard].toString());
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	//
+	// Static Public Methods
+	//
+
+	/**
+	 * Parses a cursor token.
+	 * 
+	 * @param strToken Token created by {@link #toString()}. Can be null.
+	 * 
+	 * @return Cursor or null, if null was passed in.
+	 * 
+	 * @throws IllegalArgumentException Thrown, if the token is invalid.
+	 */
+	public static ShardedSearchCursor parse(final String strToken) {
+		if (strToken == null) {
+			return null;
+		}
+
+		final String[] arrShards = strToken.split(String.valueOf(SHARD_SEPARATOR), -1);
+		final SearchCursor[] arrShardCursors = new SearchCursor[arrShards.length];
+		final int[] arrSkipHits = new int[arrShards.length];
+		final int[] arrHitsBefore = new int[arrShards.length];
+		final boolean[] arrExhausted = new boolean[arrShards.length];
+
+		try {
+			for (int iShard = 0; iShard < arrShards.length; iShard++) {
+				final String strShard = arrShards[iShard];
+				if (!strShard.isEmpty() && strShard.charAt(0) == EXHAUSTED) {
+					arrHitsBefore[iShard] = Integer.parseInt(strShard.substring(1), RADIX);
+					arrExhausted[iShard] = true;
+				}
+				else {
+					final String[] arrFields = strShard.split(String.valueOf(FIELD_SEPARATOR), 3);
+					if (arrFields.length != 3) {
+						throw new IllegalArgumentException("Invalid search cursor '" + strToken + "'.");
+					}
+					arrHitsBefore[iShard] = Integer.parseInt(arrFields[0], RADIX);
+					arrSkipHits[iShard] = Integer.parseInt(arrFields[1], RADIX);
+					arrShardCursors[iShard] = (arrFields[2].isEmpty() ? null : SearchCursor.parse(arrFields[2]));
+				}
+			}
+		}
+		catch (final NumberFormatException exc) {
+			throw new IllegalArgumentException("Invalid search cursor '" + strToken + "'.", exc);
+		}
+
+		return new ShardedSearchCursor(arrShardCursors, arrSkipHits, arrHitsBefore, arrExhausted);
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.search.ScoreDoc;
+
+/**
+ * A page of merged search results of a {@link ShardedChemicalIndex} with the
+ * primary keys of its hits and the cursor to fetch the next page. Hits carry
+ * the index of their shard as {@link ScoreDoc#shardIndex}. Primary keys are
+ * resolved by the searchers of the shards that found the hits.
+ */
+public class ShardedSearchPage {
+
+	//
+	// Members
+	//
+
+	/** The hits of this page. */
+	private final ScoreDoc[] m_arrHits;
+
+	/** The primary keys of the hits. Contains null for hits without primary key. */
+	private final String[] m_arrPKs;
+
+	/** The total number of hits. */
+	private final int m_iTotalHits;
+
+	/** The cursor of the next page or null, if this is the last page. */
+	private final ShardedSearchCursor m_cursor;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new page.
+	 * 
+	 * @param arrHits Hits of this page. Must not be null.
+	 * @param arrPKs Primary keys of the hits. Must not be null.
+	 * @param iTotalHits Total number of hits.
+	 * @param cursor Cursor of the next page. Null, if this is the last page.
+	 */
+	public ShardedSearchPage(final ScoreDoc[] arrHits, final String[] arrPKs, final int iTotalHits,
+			final ShardedSearchCursor cursor) {
+		if (arrHits == null || arrPKs == null || arrHits.length != arrPKs.length) {
+			throw new IllegalArgumentException("Hits and primary keys must not be null and of same length.");
+		}
+
+		m_arrHits = arrHits;
+		m_arrPKs = arrPKs;
+		m_iTotalHits = iTotalHits;
+		m_cursor = cursor;
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Returns the hits of this page. Their document ids belong to the searchers
+	 * of their shards that found them.
+	 * 
+	 * @return Hits. Can be empty, but never null.
+	 */
+	public ScoreDoc[] getHits() {
+		return m_arrHits.clone();
+	}
+
+	/**
+	 * Returns the primary keys of the hits of this page.
+	 * 
+	 * @return Primary keys in the order of the hits. Hits without primary key
+	 * 		are left out. Can be empty, but never null.
+	 */
+	public String[] getPrimaryKeys() {
+		final List<String> listPKs = new ArrayList<String>(m_arrPKs.length);
+		for (final String strPK : m_arrPKs) {
+			if (strPK != null) {
+				listPKs.add(strPK);
+			}
+		}
+		return listPKs.toArray(new String[listPKs.size()]);
+	}
+
+	/**
+	 * Returns the primary key of the specified hit of this page.
+	 * 
+	 * @param iHit Index of the hit in the order of {@link #getHits()}.
+	 * 
+	 * @return Primary key or null, if the hit has none.
+	 */
+	public String getPrimaryKey(final int iHit) {
+		return m_arrPKs[iHit];
+	}
+
+	/**
+	 * Returns the number of hits of this page.
+	 * 
+	 * @return Number of hits.
+	 */
+	public int size() {
+		return m_arrHits.length;
+	}
+
+	/**
+	 * Returns the total number of hits of the search, which is the sum of the
+	 * total numbers of hits of the current pages of all shards
+	 * (see {@link SearchPage#getTotalHits()}).
+	 * 
+	 * @return Total number of hits.
+	 */
+	public int getTotalHits() {
+		return m_iTotalHits;
+	}
+
+	/**
+	 * Returns the cursor to fetch the next page.
+	 * 
+	 * @return Cursor or null, if this is the last page.
+	 */
+	public ShardedSearchCursor getCursor() {
+		return m_cursor;
+	}
+
+	/**
+	 * Determines, if there is a next page.
+	 * 
+	 * @return True, if there may be more hits.
+	 */
+	public boolean hasNextPage() {
+		return m_cursor != null;
+	}
+}
@@ -0,0 +1,724 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.FixedBitSet;
+import org.rdkit.lucene.store.FingerprintColumn;
+import org.rdkit.lucene.store.FingerprintStore;
+import org.rdkit.lucene.util.IndexUtils;
+
+/**
+ * A Tanimoto similarity scan over the fingerprint columns of all segments
+ * of an index. The Tanimoto similarity of a query q and a molecule t cannot
+ * exceed min(|q|, |t|) / max(|q|, |t|), so for a threshold T only molecules
+ * with a bit count in [T * |q|, |q| / T] can be hits. The scan therefore
+ * visits only those bit count buckets of every segment (see
+ * {@link FingerprintColumn#getBucketStart(int)}), starting with the ones
+ * closest to |q|, which are likely to contain the best hits.
+ * <p>
+ * Buckets are scanned concurrently by one worker per search thread. Every
+ * worker takes the next bucket that is closest to |q| and collects the best
+ * hits of all its buckets. Hits are kept in a list until the worker found as
+ * many hits as requested, only then a bounded queue gets allocated, so memory
+ * grows with the number of workers and actual hits only. As soon as the queue
+ * of a worker is full, its lowest score is published to all other workers as
+ * the minimum score a molecule needs to make it into the overall top hits.
+ * This narrows the range of buckets that are still worth visiting while the
+ * scan proceeds.
+ * <p>
+ * To deliver further pages of hits, the scan can skip all hits that rank
+ * before or at the last hit of the previous page.
+ * <p>
+ * When only counting hits or setting their bits, all buckets within the
+ * threshold bounds are visited and no hit objects are created.
+ */
+public class SimilarityScan {
+
+	//
+	// Members
+	//
+
+	/** The query fingerprint as words. */
+	private final long[] m_arrQuery;
+
+	/** Number of set bits of the query fingerprint. */
+	private final int m_iQueryBits;
+
+	/** Minimum similarity of hits. */
+	private final float m_fThreshold;
+
+	/** Maximum number of hits. */
+	private final int m_iMaxHits;
+
+	/** The last hit of the previous page or null. */
+	private final ScoreDoc m_after;
+
+	/** The best known score that is needed to be part of the top hits (as float bits). */
+	private final AtomicInteger m_aiMinScore;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new similarity scan.
+	 * 
+	 * @param arrQuery Query fingerprint as words (see {@link FingerprintColumn#toWords(java.util.BitSet)}).
+	 * 		Must not be null.
+	 * @param fThreshold Minimum Tanimoto similarity of hits (0.0 - 1.0).
+	 * @param iMaxHits Maximum number of hits to return. Must be > 0.
+	 */
+	public SimilarityScan(final long[] arrQuery, final float fThreshold, final int iMaxHits) {
+		this(arrQuery, fThreshold, iMaxHits, null);
+	}
+
+	/**
+	 * Creates a new similarity scan, which delivers only hits that rank after
+	 * the specified hit, i.e. hits with a lower score or with the same score and
+	 * a higher document id.
+	 * 
+	 * @param arrQuery Query fingerprint as words (see {@link FingerprintColumn#toWords(java.util.BitSet)}).
+	 * 		Must not be null.
+	 * @param fThreshold Minimum Tanimoto similarity of hits (0.0 - 1.0).
+	 * @param iMaxHits Maximum number of hits to return. Must be > 0.
+	 * @param after Last hit of the previous page. Can be null to start with the best hits.
+	 */
+	public SimilarityScan(final long[] arrQuery, final float fThreshold, final int iMaxHits,
+			final ScoreDoc after) {
+		if (arrQuery == null) {
+			throw new IllegalArgumentException("Query fingerprint must not be null.");
+		}
+		if (fThreshold < 0.0f || fThreshold > 1.0f) {
+			throw new IllegalArgumentException("Similarity threshold must be between 0.0 and 1.0.");
+		}
+		if (iMaxHits <= 0) {
+			throw new IllegalArgumentException("Maximum number of hits must be > 0.");
+		}
+
+		int iQueryBits = 0;
+		for (final long lWord : arrQuery) {
+			iQueryBits += Long.bitCount(lWord);
+		}
+
+		m_arrQuery = arrQuery;
+		m_iQueryBits = iQueryBits;
+		m_fThreshold = fThreshold;
+		m_iMaxHits = iMaxHits;
+		m_after = after;
+		m_aiMinScore = new AtomicInteger(Float.floatToIntBits(fThreshold));
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Scans all segments of the specified reader and collects the top hits.
+	 * 
+	 * @param reader Top level index reader. Must not be null.
+	 * @param store Fingerprint store of the index. Must not be null.
+	 * @param executor Executor to run the scan concurrently. Can be null to
+	 * 		scan on the calling thread.
+	 * @param stats Statistics to be filled with the number of visited buckets and candidates.
+	 * 		Can be null.
+	 * 
+	 * @return Collector with the top hits ordered by descending similarity. Its total hit
+	 * 		count equals the number of returned hits, as molecules that cannot make it into
+	 * 		the top hits are not scored at all.
+	 * 
+	 * @throws IOException Thrown, if the index could not be read.
+	 */
+	public SubstructureScoreDocCollector run(final IndexReader reader, final FingerprintStore store,
+			final ExecutorService executor, final SearchStatistics stats) throws IOException {
+		final List<BucketTask> listTasks = createTasks(reader, store, stats);
+		final AtomicInteger aiNextTask = new AtomicInteger();
+		final int iWorkerCount = (executor == null ? 1 : Math.min(listTasks.size(), getThreadCount(executor)));
+		final List<ScanWorker> listWorkers = new ArrayList<ScanWorker>(iWorkerCount);
+		for (int i = 0; i < iWorkerCount; i++) {
+			listWorkers.add(new ScanWorker(listTasks, aiNextTask));
+		}
+
+		// Merge the hits of all workers
+		final TopHits hits = new TopHits();
+		try {
+			if (listWorkers.size() < 2) {
+				for (final ScanWorker worker : listWorkers) {
+					hits.addAll(worker.call());
+				}
+			}
+			else {
+				for (final Future<TopHits> future : executor.invokeAll(listWorkers)) {
+					hits.addAll(future.get());
+				}
+			}
+		}
+		catch (final InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Similarity search was interrupted.", exc);
+		}
+		catch (final ExecutionException exc) {
+			throw (exc.getCause() instanceof IOException ? (IOException)exc.getCause() :
+				new IOException("Similarity search failed.", exc.getCause()));
+		}
+		catch (final IOException exc) {
+			throw exc;
+		}
+		catch (final Exception exc) {
+			throw new IOException("Similarity search failed.", exc);
+		}
+
+		final ScoreDoc[] arrHits = hits.getHits();
+		final SubstructureScoreDocCollector collector =
+				SubstructureScoreDocCollector.create(Math.max(1, arrHits.length), false);
+		for (final ScoreDoc hit : arrHits) {
+			collector.collect(hit.doc, hit.score);
+		}
+
+		return collector;
+	}
+
+	/**
+	 * Scans all segments of the specified reader and counts the molecules, whose
+	 * similarity reaches the threshold (and that rank after the last hit of the
+	 * previous page, if specified). The maximum number of hits does not apply.
+	 * 
+	 * @param reader Top level index reader. Must not be null.
+	 * @param store Fingerprint store of the index. Must not be null.
+	 * @param executor Executor to run the scan concurrently. Can be null to
+	 * 		scan on the calling thread.
+	 * @param stats Statistics to be filled with the number of visited buckets and candidates.
+	 * 		Can be null.
+	 * 
+	 * @return Number of hits.
+	 * 
+	 * @throws IOException Thrown, if the index could not be read.
+	 */
+	public int count(final IndexReader reader, final FingerprintStore store,
+			final ExecutorService executor, final SearchStatistics stats) throws IOException {
+		return scan(reader, store, executor, stats, null);
+	}
+
+	/**
+	 * Scans all segments of the specified reader and sets the bits of all molecules, whose
+	 * similarity reaches the threshold (and that rank after the last hit of the
+	 * previous page, if specified). The maximum number of hits does not apply.
+	 * While scanning concurrently, the bits are set atomically in a second array of
+	 * the same size.
+	 * 
+	 * @param reader Top level index reader. Must not be null.
+	 * @param store Fingerprint store of the index. Must not be null.
+	 * @param executor Executor to run the scan concurrently. Can be null to
+	 * 		scan on the calling thread.
+	 * @param stats Statistics to be filled with the number of visited buckets and candidates.
+	 * 		Can be null.
+	 * 
+	 * @return Bit set with one bit per document of the reader, which is set for hits.
+	 * 
+	 * @throws IOException Thrown, if the index could not be read.
+	 */
+	public FixedBitSet collect(final IndexReader reader, final FingerprintStore store,
+			final ExecutorService executor, final SearchStatistics stats) throws IOException {
+		final FixedBitSet bits = new FixedBitSet(reader.maxDoc());
+		final long[] arrWords = bits.getBits();
+		final AtomicLongArray arrHits = new AtomicLongArray(arrWords.length);
+
+		scan(reader, store, executor, stats, arrHits);
+		for (int i = 0; i < arrWords.length; i++) {
+			arrWords[i] = arrHits.get(i);
+		}
+
+		return bits;
+	}
+
+	//
+	// Private Methods
+	//
+
+	/**
+	 * Scans all segments of the specified reader and counts the molecules, whose
+	 * similarity reaches the threshold.
+	 * 
+	 * @param reader Top level index reader. Must not be null.
+	 * @param store Fingerprint store of the index. Must not be null.
+	 * @param executor Executor to run the scan concurrently. Can be null.
+	 * @param stats Statistics to be filled. Can be null.
+	 * @param arrHits Words of a bit set to set the bits of hits in. Can be null to only count them.
+	 * 
+	 * @return Number of hits.
+	 * 
+	 * @throws IOException Thrown, if the index could not be read.
+	 */
+	private int scan(final IndexReader reader, final FingerprintStore store,
+			final ExecutorService executor, final SearchStatistics stats, final AtomicLongArray arrHits)
+			throws IOException {
+		final List<CountTask> listTasks = new ArrayList<CountTask>();
+		for (final BucketTask task : createTasks(reader, store, stats)) {
+			listTasks.add(new CountTask(task, arrHits));
+		}
+
+		int iHits = 0;
+		try {
+			if (executor == null || listTasks.size() < 2) {
+				for (final CountTask task : listTasks) {
+					iHits += task.call();
+				}
+			}
+			else {
+				for (final Future<Integer> future : executor.invokeAll(listTasks)) {
+					iHits += future.get();
+				}
+			}
+		}
+		catch (final InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Similarity search was interrupted.", exc);
+		}
+		catch (final ExecutionException exc) {
+			throw (exc.getCause() instanceof IOException ? (IOException)exc.getCause() :
+				new IOException("Similarity search failed.", exc.getCause()));
+		}
+		catch (final IOException exc) {
+			throw exc;
+		}
+		catch (final Exception exc) {
+			throw new IOException("Similarity search failed.", exc);
+		}
+
+		return iHits;
+	}
+
+	/**
+	 * Creates the tasks for all bit count buckets of all segments, which can contain
+	 * molecules reaching the threshold. Buckets closest to the query bit count come first.
+	 * 
+	 * @param reader Top level index reader. Must not be null.
+	 * @param store Fingerprint store of the index. Must not be null.
+	 * @param stats Statistics to be filled with the number of segments. Can be null.
+	 * 
+	 * @return List of tasks. Can be empty.
+	 * 
+	 * @throws IOException Thrown, if a fingerprint column could not be built.
+	 */
+	private List<BucketTask> createTasks(final IndexReader reader, final FingerprintStore store,
+			final SearchStatistics stats) throws IOException {
+		final List<BucketTask> listTasks = new ArrayList<BucketTask>();
+
+		if (m_iQueryBits > 0) {
+			final IndexReader[] arrSegmentReaders = IndexUtils.getSegmentReaders(reader);
+			final int[] arrDocBases = IndexUtils.getDocBases(arrSegmentReaders);
+			for (int i = 0; i < arrSegmentReaders.length; i++) {
+				final FingerprintColumn column = store.getColumn(arrSegmentReaders[i]);
+				final FixedBitSet liveDocs = IndexUtils.getLiveDocs(arrSegmentReaders[i]);
+				final int iBucketCount = column.getBucketCount();
+				int iNonEmptyBuckets = 0;
+				for (int iPopCount = 0; iPopCount < iBucketCount; iPopCount++) {
+					if (column.getBucketStart(iPopCount) < column.getBucketEnd(iPopCount)) {
+						iNonEmptyBuckets++;
+						if (getBound(iPopCount) >= m_fThreshold) {
+							listTasks.add(new BucketTask(column, liveDocs, arrDocBases[i], iPopCount, stats));
+						}
+					}
+				}
+				if (stats != null) {
+					stats.addSegment(column.getMaxDoc(), iNonEmptyBuckets);
+				}
+			}
+
+			// Visit the buckets closest to the query bit count first
+			Collections.sort(listTasks, new Comparator<BucketTask>() {
+				@Override
+				public int compare(final BucketTask task1, final BucketTask task2) {
+					return Math.abs(task1.m_iPopCount - m_iQueryBits) - Math.abs(task2.m_iPopCount - m_iQueryBits);
+				}
+			});
+		}
+
+		return listTasks;
+	}
+
+	/**
+	 * Determines the number of threads of the specified executor, which
+	 * is the number of workers that scan buckets concurrently.
+	 * 
+	 * @param executor Executor. Must not be null.
+	 * 
+	 * @return Number of threads.
+	 */
+	private static int getThreadCount(final ExecutorService executor) {
+		return (executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor)executor).getMaximumPoolSize() :
+			Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Calculates the highest possible Tanimoto similarity of the query
+	 * with a molecule of the specified bit count.
+	 * 
+	 * @param iPopCount Bit count of a molecule.
+	 * 
+	 * @return Upper bound of the similarity.
+	 */
+	private float getBound(final int iPopCount) {
+		return (float)Math.min(iPopCount, m_iQueryBits) / Math.max(iPopCount, m_iQueryBits);
+	}
+
+	/**
+	 * Returns the best known minimum score that is needed to be part of the top hits.
+	 * 
+	 * @return Minimum score.
+	 */
+	private float getMinScore() {
+		return Float.intBitsToFloat(m_aiMinScore.get());
+	}
+
+	/**
+	 * Raises the minimum score that is needed to be part of the top hits,
+	 * if the passed in score is higher than the current one.
+	 * 
+	 * @param fScore Lowest score of a full queue.
+	 */
+	private void publishMinScore(final float fScore) {
+		int iCurrent;
+		while (fScore > Float.intBitsToFloat(iCurrent = m_aiMinScore.get())) {
+			if (m_aiMinScore.compareAndSet(iCurrent, Float.floatToIntBits(fScore))) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Sets a bit in the words of a bit set, which are shared by concurrent tasks.
+	 * The layout is the same as the one of a {@link FixedBitSet}.
+	 * 
+	 * @param arrWords Words of the bit set. Must not be null.
+	 * @param iBit Bit to set.
+	 */
+	private static void setBit(final AtomicLongArray arrWords, final int iBit) {
+		final int iWord = iBit >> 6;
+		final long lMask = 1L << (iBit & 63);
+		long lWord;
+		do {
+			lWord = arrWords.get(iWord);
+		}
+		while (!arrWords.compareAndSet(iWord, lWord, lWord | lMask));
+	}
+
+	//
+	// Inner Classes
+	//
+
+	/**
+	 * The best hits found by a worker or by the whole scan, ordered by descending
+	 * score and ascending document id. Hits are kept in a list, until the maximum
+	 * number of hits is reached. Only then a bounded queue is allocated, whose lowest
+	 * score gets published as minimum score of the top hits whenever it changes.
+	 */
+	private class TopHits {
+
+		/** Hits as long as there are less than the maximum number of hits, null afterwards. */
+		private List<ScoreDoc> m_listHits;
+
+		/** Queue of the best hits or null, as long as there are less than the maximum number of hits. */
+		private SubstructureHitQueue m_queue;
+
+		/**
+		 * Creates a new empty container of top hits.
+		 */
+		private TopHits() {
+			m_listHits = new ArrayList<ScoreDoc>();
+			m_queue = null;
+		}
+
+		/**
+		 * Adds a hit, which replaces the lowest ranking hit, if the maximum
+		 * number of hits is reached already.
+		 * 
+		 * @param hit Hit with top level document id. Must not be null.
+		 */
+		private void add(final ScoreDoc hit) {
+			if (m_queue == null) {
+				m_listHits.add(hit);
+				if (m_listHits.size() == m_iMaxHits) {
+					m_queue = new SubstructureHitQueue(m_iMaxHits, false);
+					for (final ScoreDoc hitListed : m_listHits) {
+						m_queue.add(hitListed);
+					}
+					m_listHits = null;
+					publishMinScore(m_queue.top().score);
+				}
+			}
+			else if (m_queue.insertWithOverflow(hit) != hit) {
+				publishMinScore(m_queue.top().score);
+			}
+		}
+
+		/**
+		 * Adds all hits of the specified container.
+		 * 
+		 * @param hits Other hits. Must not be null.
+		 */
+		private void addAll(final TopHits hits) {
+			for (final ScoreDoc hit : hits.getHits()) {
+				add(hit);
+			}
+		}
+
+		/**
+		 * Returns the hits ordered by descending score and ascending document id.
+		 * Hits of a full queue are removed from it.
+		 * 
+		 * @return Hits. Can be empty.
+		 */
+		private ScoreDoc[] getHits() {
+			final ScoreDoc[] arrHits;
+
+			if (m_queue == null) {
+				arrHits = m_listHits.toArray(new ScoreDoc[m_listHits.size()]);
+				Arrays.sort(arrHits, new Comparator<ScoreDoc>() {
+					@Override
+					public int compare(final ScoreDoc hit1, final ScoreDoc hit2) {
+						final int iResult = Float.compare(hit2.score, hit1.score);
+						return (iResult != 0 ? iResult : (hit1.doc < hit2.doc ? -1 : (hit1.doc == hit2.doc ? 0 : 1)));
+					}
+				});
+			}
+			else {
+				arrHits = new ScoreDoc[m_queue.size()];
+				for (int i = arrHits.length - 1; i >= 0; i--) {
+					arrHits[i] = m_queue.pop();
+				}
+			}
+
+			return arrHits;
+		}
+	}
+
+	/**
+	 * Scans the bucket tasks one after another, always taking the next one
+	 * that no other worker took yet, and collects their hits.
+	 */
+	private class ScanWorker implements Callable<TopHits> {
+
+		/** All bucket tasks, closest to the query bit count first. */
+		private final List<BucketTask> m_listTasks;
+
+		/** Index of the next task that was not taken yet, shared by all workers. */
+		private final AtomicInteger m_aiNextTask;
+
+		/**
+		 * Creates a new worker.
+		 * 
+		 * @param listTasks All bucket tasks. Must not be null.
+		 * @param aiNextTask Index of the next task, shared by all workers. Must not be null.
+		 */
+		private ScanWorker(final List<BucketTask> listTasks, final AtomicInteger aiNextTask) {
+			m_listTasks = listTasks;
+			m_aiNextTask = aiNextTask;
+		}
+
+		@Override
+		public TopHits call() throws Exception {
+			final TopHits hits = new TopHits();
+
+			int iTask;
+			while ((iTask = m_aiNextTask.getAndIncrement()) < m_listTasks.size()) {
+				m_listTasks.get(iTask).scan(hits);
+			}
+
+			return hits;
+		}
+	}
+
+	/**
+	 * Scans a single bit count bucket of a segment and adds its hits with top
+	 * level document ids to the hits of a worker. The bucket is skipped or left
+	 * early, as soon as the minimum score of the overall top hits exceeds the
+	 * similarity bound of its bit count.
+	 */
+	private class BucketTask {
+
+		/** Fingerprint column of the segment. */
+		private final FingerprintColumn m_column;
+
+		/** Live documents of the segment or null, if there are no deletions. */
+		private final FixedBitSet m_liveDocs;
+
+		/** Document id base of the segment. */
+		private final int m_iDocBase;
+
+		/** Bit count of the bucket. */
+		private final int m_iPopCount;
+
+		/** Statistics to be filled or null. */
+		private final SearchStatistics m_stats;
+
+		/**
+		 * Creates a new task for a bucket.
+		 * 
+		 * @param column Fingerprint column of the segment. Must not be null.
+		 * @param liveDocs Live documents of the segment or null, if there are no deletions.
+		 * @param iDocBase Document id base of the segment.
+		 * @param iPopCount Bit count of the bucket.
+		 * @param stats Statistics to be filled. Can be null.
+		 */
+		private BucketTask(final FingerprintColumn column, final FixedBitSet liveDocs, final int iDocBase,
+				final int iPopCount, final SearchStatistics stats) {
+			m_column = column;
+			m_liveDocs = liveDocs;
+			m_iDocBase = iDocBase;
+			m_iPopCount = iPopCount;
+			m_stats = stats;
+		}
+
+		/**
+		 * Scans the bucket for hits that can be part of the top hits.
+		 * 
+		 * @param hits Hits of the scanning worker. Must not be null.
+		 */
+		private void scan(final TopHits hits) {
+			final float fBound = getBound(m_iPopCount);
+			float fMinScore = getMinScore();
+
+			if (fBound >= fMinScore) {
+				final int iEnd = m_column.getBucketEnd(m_iPopCount);
+				int iCandidates = 0;
+
+				for (int iPosition = m_column.getBucketStart(m_iPopCount); iPosition < iEnd; iPosition++) {
+					final int iDoc = m_column.getDocInBucketOrder(iPosition);
+					if (m_liveDocs != null && !m_liveDocs.get(iDoc)) {
+						continue;
+					}
+
+					iCandidates++;
+					final int iCommon = m_column.countCommonBits(m_arrQuery, iDoc);
+					final float fScore = (float)iCommon / (m_iQueryBits + m_iPopCount - iCommon);
+					if (fScore >= fMinScore && (m_after == null || fScore < m_after.score ||
+							(fScore == m_after.score && m_iDocBase + iDoc > m_after.doc))) {
+						hits.add(new ScoreDoc(m_iDocBase + iDoc, fScore));
+						fMinScore = getMinScore();
+						if (fBound < fMinScore) {
+							break;
+						}
+					}
+				}
+
+				if (m_stats != null) {
+					m_stats.addVisitedBucket(iCandidates);
+				}
+			}
+		}
+
+		/**
+		 * Counts the molecules of the bucket, which reach the threshold.
+		 * 
+		 * @param arrHits Words of a bit set to set the bits of hits in. Can be null.
+		 * 
+		 * @return Number of hits in the bucket.
+		 */
+		private int count(final AtomicLongArray arrHits) {
+			int iHits = 0;
+
+			if (getBound(m_iPopCount) >= m_fThreshold) {
+				final int iEnd = m_column.getBucketEnd(m_iPopCount);
+				int iCandidates = 0;
+
+				for (int iPosition = m_column.getBucketStart(m_iPopCount); iPosition < iEnd; iPosition++) {
+					final int iDoc = m_column.getDocInBucketOrder(iPosition);
+					if (m_liveDocs != null && !m_liveDocs.get(iDoc)) {
+						continue;
+					}
+
+					iCandidates++;
+					final int iCommon = m_column.countCommonBits(m_arrQuery, iDoc);
+					final float fScore = (float)iCommon / (m_iQueryBits + m_iPopCount - iCommon);
+					if (fScore >= m_fThreshold && (m_after == null || fScore < m_after.score ||
+							(fScore == m_after.score && m_iDocBase + iDoc > m_after.doc))) {
+						iHits++;
+						if (arrHits != null) {
+							setBit(arrHits, m_iDocBase + iDoc);
+						}
+					}
+				}
+
+				if (m_stats != null) {
+					m_stats.addVisitedBucket(iCandidates);
+				}
+			}
+
+			return iHits;
+		}
+	}
+
+	/**
+	 * Counts the hits of a single bit count bucket of a segment.
+	 */
+	private static class CountTask implements Callable<Integer> {
+
+		/** The task of the bucket. */
+		private final BucketTask m_task;
+
+		/** Words of a bit set to set the bits of hits in or null. */
+		private final AtomicLongArray m_arrHits;
+
+		/**
+		 * Creates a new counting task for a bucket.
+		 * 
+		 * @param task The task of the bucket. Must not be null.
+		 * @param arrHits Words of a bit set to set the bits of hits in. Can be null.
+		 */
+		private CountTask(final BucketTask task, final AtomicLongArray arrHits) {
+			m_task = task;
+			m_arrHits = arrHits;
+		}
+
+		@Override
+		public Integer call() throws Exception {
+			return m_task.count(m_arrHits);
+		}
+	}
+}
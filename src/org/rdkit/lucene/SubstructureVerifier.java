@@ -0,0 +1,562 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.RDKit.GenericRDKitException;
+import org.RDKit.ROMol;
+import org.RDKit.RWMol;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.ReaderUtil;
+import org.rdkit.lucene.bin.RDKit;
+import org.rdkit.lucene.cache.MoleculeCache;
+import org.rdkit.lucene.util.IndexUtils;
+
+/**
+ * Verifies substructure candidates, which passed the fingerprint screen, by
+ * running a real substructure match against their stored SMILES. The candidates
+ * are split into small chunks, which are claimed in candidate order by a number of
+ * workers running in parallel. Every candidate is verified in its own RDKit cleanup
+ * wave. The query molecule is prepared upfront and shared read-only by all workers, as it is only
+ * used as query of substructure matches, while candidate molecules are never shared
+ * between threads at the same time. Matches are recorded per candidate and merged into the result collector in
+ * candidate order afterwards, so the result does not depend on the number of workers.
+ * As soon as the completed candidates at the beginning of the list contain enough
+ * hits, no further chunks are claimed.
+ * <p>
+ * Candidates that have been stored with a binary RDKit molecule are rebuilt from
+ * it, which is much faster than parsing their SMILES. Parsed candidates can be
+ * kept in a {@link MoleculeCache} to be reused by later searches.
+ * <p>
+ * When streaming hits to a {@link SubstructureHitListener}, hits of completed chunks
+ * at the beginning of the list are delivered right away in candidate order, and the
+ * listener can stop the verification.
+ * <p>
+ * When only counting hits or setting their bits, matches are just flagged. Neither hit objects nor
+ * primary keys are created for them.
+ */
+public class SubstructureVerifier {
+
+	//
+	// Constants
+	//
+
+	/** Number of candidates that a worker claims at once. */
+	private static final int CANDIDATES_PER_CHUNK = 32;
+
+	/** Loads only the fields that are needed to verify a candidate. */
+	private static final FieldSelector FIELD_SELECTOR = new MapFieldSelector(
+			ChemicalIndex.FIELD_PK, ChemicalIndex.FIELD_SMILES, ChemicalIndex.FIELD_MOL);
+
+	/** Loads only the primary key of a hit, whose molecule was cached. */
+	private static final FieldSelector PK_SELECTOR = new MapFieldSelector(ChemicalIndex.FIELD_PK);
+
+	//
+	// Members
+	//
+
+	/** The searcher to read candidate SMILES from. */
+	private final IndexSearcher m_searcher;
+
+	/** The prepared query molecule. */
+	private final ROMol m_molQuery;
+
+	/** Maximum number of hits. */
+	private final int m_iMaxHits;
+
+	/** True to rebuild candidates from binary molecules, if stored. */
+	private final boolean m_bUseBinaryMolecules;
+
+	/** Cache of parsed candidate molecules or null. */
+	private final MoleculeCache m_cache;
+
+	/** Segment readers of the searcher, which identify cached molecules. */
+	private final IndexReader[] m_arrSegmentReaders;
+
+	/** Document id base of every segment of the searcher. */
+	private final int[] m_arrDocBases;
+
+	/** Candidates to verify. */
+	private final ScoreDoc[] m_arrCandidates;
+
+	/** Match result per candidate. */
+	private final boolean[] m_arrMatches;
+
+	/** Primary key per matching candidate. */
+	private final String[] m_arrPKs;
+
+	/** Number of hits per chunk or -1, if the chunk is not completed yet. */
+	private final int[] m_arrChunkHits;
+
+	/** Next chunk to be claimed by a worker. */
+	private final AtomicInteger m_aiNextChunk;
+
+	/** Number of candidates that failed verification. */
+	private final AtomicInteger m_aiErrors;
+
+	/** Number of chunks at the beginning that are completed and counted in m_iPrefixHits. */
+	private int m_iPrefixChunks;
+
+	/** Number of hits in the completed chunks at the beginning. */
+	private int m_iPrefixHits;
+
+	/** Listener to stream hits to or null, if hits are collected at the end. */
+	private SubstructureHitListener m_listener;
+
+	/** Set to true, when enough hits have been found in completed chunks. */
+	private volatile boolean m_bDone;
+
+	/** Set to true, when the listener stopped the verification. */
+	private boolean m_bStopped;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new verifier for the specified candidates.
+	 * 
+	 * @param searcher Searcher to read the SMILES of candidates from. Must not be null.
+	 * @param molQuery Query molecule, which is used read-only by all workers. It must be
+	 * 		prepared completely (property cache and ring information). Must not be null.
+	 * @param arrCandidates Candidates in the order they shall be collected. Must not be null.
+	 * @param iMaxHits Maximum number of hits.
+	 * @param bUseBinaryMolecules True to rebuild candidates from their binary molecules,
+	 * 		if stored. False to always parse their SMILES.
+	 * @param cache Cache of parsed candidate molecules. Can be null.
+	 */
+	public SubstructureVerifier(final IndexSearcher searcher, final ROMol molQuery,
+			final ScoreDoc[] arrCandidates, final int iMaxHits, final boolean bUseBinaryMolecules,
+			final MoleculeCache cache) {
+		if (searcher == null) {
+			throw new IllegalArgumentException("Searcher must not be null.");
+		}
+		if (molQuery == null) {
+			throw new IllegalArgumentException("Query molecule must not be null.");
+		}
+		if (arrCandidates == null) {
+			throw new IllegalArgumentException("Candidates must not be null.");
+		}
+
+		final int iChunks = (arrCandidates.length + CANDIDATES_PER_CHUNK - 1) / CANDIDATES_PER_CHUNK;
+
+		m_searcher = searcher;
+		m_molQuery = molQuery;
+		m_iMaxHits = iMaxHits;
+		m_bUseBinaryMolecules = bUseBinaryMolecules;
+		m_cache = cache;
+		m_arrSegmentReaders = searcher.getSubReaders();
+		m_arrDocBases = IndexUtils.getDocBases(m_arrSegmentReaders);
+		m_arrCandidates = arrCandidates;
+		m_arrMatches = new boolean[arrCandidates.length];
+		m_arrPKs = new String[arrCandidates.length];
+		m_arrChunkHits = new int[iChunks];
+		m_aiNextChunk = new AtomicInteger();
+		m_aiErrors = new AtomicInteger();
+		m_iPrefixChunks = 0;
+		m_iPrefixHits = 0;
+		m_listener = null;
+		m_bStopped = false;
+		m_bDone = (iMaxHits <= 0 || iChunks == 0);
+
+		for (int i = 0; i < iChunks; i++) {
+			m_arrChunkHits[i] = -1;
+		}
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Verifies the candidates and collects the first matching ones in candidate order,
+	 * using their screening score.
+	 * 
+	 * @param collector Collector to receive hits. Must not be null.
+	 * @param executor Executor to run workers. Can be null to verify on the calling thread.
+	 * @param iParallelism Maximum number of workers for this verification. Values &lt; 2
+	 * 		mean to verify on the calling thread.
+	 * 
+	 * @return Number of hits collected.
+	 * 
+	 * @throws IOException Thrown, if a candidate could not be read.
+	 */
+	public int verify(final SubstructureScoreDocCollector collector, final ExecutorService executor,
+			final int iParallelism) throws IOException {
+		runWorkers(executor, iParallelism);
+
+		// Merge in candidate order
+		int iHits = 0;
+		for (int i = 0; i < m_arrMatches.length && iHits < m_iMaxHits; i++) {
+			if (m_arrMatches[i]) {
+				iHits++;
+				collector.collect(m_arrCandidates[i].doc, m_arrCandidates[i].score);
+			}
+		}
+
+		return iHits;
+	}
+
+	/**
+	 * Verifies the candidates and counts the matching ones without collecting them.
+	 * 
+	 * @param executor Executor to run workers. Can be null to verify on the calling thread.
+	 * @param iParallelism Maximum number of workers for this verification. Values &lt; 2
+	 * 		mean to verify on the calling thread.
+	 * 
+	 * @return Number of hits, but not more than the maximum number of hits.
+	 * 
+	 * @throws IOException Thrown, if a candidate could not be read.
+	 */
+	public int count(final ExecutorService executor, final int iParallelism) throws IOException {
+		runWorkers(executor, iParallelism);
+
+		int iHits = 0;
+		for (int i = 0; i < m_arrMatches.length && iHits < m_iMaxHits; i++) {
+			if (m_arrMatches[i]) {
+				iHits++;
+			}
+		}
+
+		return iHits;
+	}
+
+	/**
+	 * Verifies the candidates and sets the bits of the matching ones.
+	 * 
+	 * @param bits Bit set with one bit per document of the searcher. Must not be null.
+	 * @param executor Executor to run workers. Can be null to verify on the calling thread.
+	 * @param iParallelism Maximum number of workers for this verification. Values &lt; 2
+	 * 		mean to verify on the calling thread.
+	 * 
+	 * @return Number of hits, but not more than the maximum number of hits.
+	 * 
+	 * @throws IOException Thrown, if a candidate could not be read.
+	 */
+	public int collect(final FixedBitSet bits, final ExecutorService executor, final int iParallelism)
+			throws IOException {
+		runWorkers(executor, iParallelism);
+
+		int iHits = 0;
+		for (int i = 0; i < m_arrMatches.length && iHits < m_iMaxHits; i++) {
+			if (m_arrMatches[i]) {
+				iHits++;
+				bits.set(m_arrCandidates[i].doc);
+			}
+		}
+
+		return iHits;
+	}
+
+	/**
+	 * Verifies the candidates and streams the first matching ones in candidate order
+	 * to the specified listener, as soon as all candidates before them are verified.
+	 * 
+	 * @param listener Listener to receive hits. It can stop the verification. Must not be null.
+	 * @param executor Executor to run workers. Can be null to verify on the calling thread.
+	 * @param iParallelism Maximum number of workers for this verification. Values &lt; 2
+	 * 		mean to verify on the calling thread.
+	 * 
+	 * @return Number of hits delivered.
+	 * 
+	 * @throws IOException Thrown, if a candidate could not be read.
+	 */
+	public int stream(final SubstructureHitListener listener, final ExecutorService executor,
+			final int iParallelism) throws IOException {
+		if (listener == null) {
+			throw new IllegalArgumentException("Listener must not be null.");
+		}
+
+		synchronized (this) {
+			m_listener = listener;
+		}
+		runWorkers(executor, iParallelism);
+
+		synchronized (this) {
+			return m_iPrefixHits;
+		}
+	}
+
+	/**
+	 * Determines, if the listener stopped streaming hits.
+	 * 
+	 * @return True, if the listener returned false for a hit.
+	 */
+	public synchronized boolean isStopped() {
+		return m_bStopped;
+	}
+
+	/**
+	 * Returns the number of candidates that could not be verified due to RDKit errors.
+	 * 
+	 * @return Number of errors.
+	 */
+	public int getErrorCount() {
+		return m_aiErrors.get();
+	}
+
+	//
+	// Private Methods
+	//
+
+	/**
+	 * Runs workers until all candidates are verified or enough hits are found.
+	 * 
+	 * @param executor Executor to run workers. Can be null to verify on the calling thread.
+	 * @param iParallelism Maximum number of workers.
+	 * 
+	 * @throws IOException Thrown, if a candidate could not be read.
+	 */
+	private void runWorkers(final ExecutorService executor, final int iParallelism) throws IOException {
+		final int iWorkers = Math.min(iParallelism, m_arrChunkHits.length);
+
+		try {
+			if (executor == null || iWorkers < 2) {
+				new Worker().call();
+			}
+			else {
+				final List<Worker> listWorkers = new ArrayList<Worker>(iWorkers);
+				for (int i = 0; i < iWorkers; i++) {
+					listWorkers.add(new Worker());
+				}
+				for (final Future<Void> future : executor.invokeAll(listWorkers)) {
+					future.get();
+				}
+			}
+		}
+		catch (final InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Substructure verification was interrupted.", exc);
+		}
+		catch (final ExecutionException exc) {
+			if (exc.getCause() instanceof RuntimeException) {
+				// E.g. thrown by a listener
+				throw (RuntimeException)exc.getCause();
+			}
+			throw (exc.getCause() instanceof IOException ? (IOException)exc.getCause() :
+				new IOException("Substructure verification failed.", exc.getCause()));
+		}
+		catch (final IOException exc) {
+			throw exc;
+		}
+		catch (final RuntimeException exc) {
+			throw exc;
+		}
+		catch (final Exception exc) {
+			throw new IOException("Substructure verification failed.", exc);
+		}
+	}
+
+	/**
+	 * Records the number of hits of a completed chunk and determines, if the completed
+	 * chunks at the beginning of the candidate list contain enough hits already.
+	 * When streaming, the hits of these chunks are delivered to the listener.
+	 * 
+	 * @param iChunk Completed chunk.
+	 * @param iHits Number of hits in the chunk.
+	 */
+	private synchronized void completeChunk(final int iChunk, final int iHits) {
+		m_arrChunkHits[iChunk] = iHits;
+		while (!m_bDone && m_iPrefixChunks < m_arrChunkHits.length && m_arrChunkHits[m_iPrefixChunks] >= 0) {
+			if (m_listener == null) {
+				m_iPrefixHits += m_arrChunkHits[m_iPrefixChunks];
+			}
+			else {
+				final int iStart = m_iPrefixChunks * CANDIDATES_PER_CHUNK;
+				final int iEnd = Math.min(m_arrCandidates.length, iStart + CANDIDATES_PER_CHUNK);
+				for (int i = iStart; i < iEnd && !m_bDone; i++) {
+					if (m_arrMatches[i]) {
+						m_iPrefixHits++;
+						if (!m_listener.onHit(m_arrCandidates[i].doc, m_arrPKs[i], m_arrCandidates[i].score)) {
+							m_bStopped = true;
+							m_bDone = true;
+						}
+					}
+				}
+			}
+			m_iPrefixChunks++;
+			if (m_iPrefixHits >= m_iMaxHits) {
+				m_bDone = true;
+			}
+		}
+	}
+
+	//
+	// Inner Classes
+	//
+
+	/**
+	 * Claims chunks of candidates until all are verified or enough hits are found.
+	 */
+	private class Worker implements Callable<Void> {
+
+		@Override
+		public Void call() throws Exception {
+			int iChunk;
+			while (!m_bDone && (iChunk = m_aiNextChunk.getAndIncrement()) < m_arrChunkHits.length) {
+				final int iStart = iChunk * CANDIDATES_PER_CHUNK;
+				final int iEnd = Math.min(m_arrCandidates.length, iStart + CANDIDATES_PER_CHUNK);
+				int iHits = 0;
+
+				for (int i = iStart; i < iEnd && !m_bDone; i++) {
+					if (verify(m_molQuery, i)) {
+						m_arrMatches[i] = true;
+						iHits++;
+					}
+				}
+
+				completeChunk(iChunk, iHits);
+			}
+
+			return null;
+		}
+
+		/**
+		 * Checks, if the specified candidate contains the query molecule.
+		 * The primary key of a matching candidate is recorded, if hits are streamed.
+		 * 
+		 * @param molQuery Shared query molecule. Must not be null.
+		 * @param iCandidate Index of the candidate.
+		 * 
+		 * @return True, if the candidate matches.
+		 * 
+		 * @throws IOException Thrown, if the candidate could not be read.
+		 */
+		private boolean verify(final ROMol molQuery, final int iCandidate) throws IOException {
+			final int iDocID = m_arrCandidates[iCandidate].doc;
+			final int iSegment = ReaderUtil.subIndex(iDocID, m_arrDocBases);
+			final IndexReader segmentReader = m_arrSegmentReaders[iSegment];
+			final int iSegmentDocID = iDocID - m_arrDocBases[iSegment];
+			boolean bMatch = false;
+			Document doc = null;
+			MoleculeCache.Entry entry = (m_cache == null ? null : m_cache.get(segmentReader, iSegmentDocID));
+
+			final int iWaveIdLoop = RDKit.createUniqueCleanupWaveId();
+			try {
+				if (entry == null) {
+					doc = m_searcher.doc(iDocID, FIELD_SELECTOR);
+					final ROMol mol = (doc == null ? null : createMolecule(doc));
+					if (mol != null) {
+						if (m_cache != null) {
+							// The cache takes over the molecule
+							entry = m_cache.put(segmentReader, iSegmentDocID, mol);
+						}
+						else {
+							bMatch = RDKit.markForCleanup(mol, iWaveIdLoop).hasSubstructMatch(molQuery);
+						}
+					}
+				}
+
+				if (entry != null) {
+					// Cached molecules may be shared with other searches
+					synchronized (entry) {
+						bMatch = entry.getMolecule().hasSubstructMatch(molQuery);
+					}
+				}
+
+				// Primary keys are only delivered to listeners, which are set before workers start
+				if (bMatch && m_listener != null) {
+					if (m_searcher instanceof ChemicalIndex.ChemicalSearcher) {
+						// Read from the primary key column
+						m_arrPKs[iCandidate] = ((ChemicalIndex.ChemicalSearcher)m_searcher).getPrimaryKeyColumn().getPrimaryKey(iDocID);
+					}
+					else {
+						if (doc == null) {
+							doc = m_searcher.doc(iDocID, PK_SELECTOR);
+						}
+						m_arrPKs[iCandidate] = doc.get(ChemicalIndex.FIELD_PK);
+					}
+				}
+			}
+			catch (final GenericRDKitException exc) {
+				m_aiErrors.incrementAndGet();
+			}
+			finally {
+				if (entry != null) {
+					m_cache.release(entry);
+				}
+				RDKit.cleanupMarkedObjects(iWaveIdLoop);
+			}
+
+			return bMatch;
+		}
+
+		/**
+		 * Creates the molecule of a candidate from its binary molecule or SMILES.
+		 * 
+		 * @param doc Candidate document. Must not be null.
+		 * 
+		 * @return Molecule, which is not registered for cleanup, or null,
+		 * 		if the document contains no structure.
+		 * 
+		 * @throws GenericRDKitException Thrown, if the molecule could not be created.
+		 */
+		private ROMol createMolecule(final Document doc) throws GenericRDKitException {
+			final byte[] arrMol = (m_bUseBinaryMolecules ? doc.getBinaryValue(ChemicalIndex.FIELD_MOL) : null);
+			if (arrMol != null) {
+				// Pickles include the property cache
+				return RDKit.toROMol(arrMol);
+			}
+
+			final String smilesExisting = doc.get(ChemicalIndex.FIELD_SMILES);
+			if (smilesExisting == null) {
+				return null;
+			}
+
+			final RWMol mol = RWMol.MolFromSmiles(smilesExisting, 0, false);
+			try {
+				mol.updatePropertyCache(false);
+			}
+			catch (final GenericRDKitException exc) {
+				mol.delete();
+				throw exc;
+			}
+
+			return mol;
+		}
+	}
+}
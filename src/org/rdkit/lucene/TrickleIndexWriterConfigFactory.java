@@ -0,0 +1,94 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TieredMergePolicy;
+
+/**
+ * Index writer configuration for an index that continuously receives small
+ * numbers of molecules while it is being searched, which become searchable by
+ * reopening near-real-time readers (see {@link ChemicalIndex#setReopenInterval(long)}).
+ * <p>
+ * A small RAM buffer keeps the heap footprint low and flushes often, so reopened
+ * readers see new molecules quickly. Merges run on a single thread with low
+ * priority, so they compete as little as possible with searches. Small segments use
+ * compound files, which keeps the number of open files low despite frequent flushes.
+ * <p>
+ * Trade-offs: Frequent flushes produce many small segments, which need to be merged
+ * and cost some search performance until then. Bulk loads are slower than with
+ * {@link BulkBuildIndexWriterConfigFactory}.
+ */
+public class TrickleIndexWriterConfigFactory extends DefaultIndexWriterConfigFactory {
+
+	//
+	// Constants
+	//
+
+	/** Size of the RAM buffer in MB. */
+	public static final double RAM_BUFFER_SIZE_MB = 8.0d;
+
+	/** Segments smaller than this are treated as equal in size when selecting merges. */
+	public static final double FLOOR_SEGMENT_MB = 1.0d;
+
+	//
+	// Constructor
+	//
+
+	public TrickleIndexWriterConfigFactory(final AnalyzerFactory analyzerFactory) {
+		super(analyzerFactory);
+	}
+
+	//
+	// Public Methods
+	//
+
+	@Override
+	public IndexWriterConfig createIndexWriterConfig(final Analyzer analyzer) {
+		final TieredMergePolicy mergePolicy = new TieredMergePolicy();
+		mergePolicy.setFloorSegmentMB(FLOOR_SEGMENT_MB);
+		mergePolicy.setUseCompoundFile(true);
+
+		final ConcurrentMergeScheduler mergeScheduler = new ConcurrentMergeScheduler();
+		mergeScheduler.setMaxThreadCount(1);
+		mergeScheduler.setMaxMergeCount(2);
+		mergeScheduler.setMergeThreadPriority(Thread.MIN_PRIORITY);
+
+		return super.createIndexWriterConfig(analyzer)
+				.setRAMBufferSizeMB(RAM_BUFFER_SIZE_MB)
+				.setMergePolicy(mergePolicy)
+				.setMergeScheduler(mergeScheduler);
+	}
+}
@@ -200,11 +200,13 @@ public class RDKit {
 	public static byte[] toByteArray(final ROMol mol)
 			throws GenericRDKitException {
 		final Int_Vect iv = mol.ToBinary();
-		final byte[] bytes = new byte[(int)iv.size()];
-		for (int i = 0; i < bytes.length; i++) {
-			bytes[i] = (byte)iv.get(i);
+		try {
+			return RDKitMarshaller.toByteArray(iv);
+		}
+		finally {
+			// Free the native copy of the pickle right away instead of waiting for finalization
+			iv.delete();
 		}
-		return bytes;
 	}
 
 	/**
@@ -218,11 +220,13 @@ public class RDKit {
 	 */
 	public static ROMol toROMol(final byte[] bytes)
 			throws GenericRDKitException {
-		final Int_Vect iv = new Int_Vect(bytes.length);
-		for (int i = 0; i < bytes.length; i++) {
-			iv.set(i, bytes[i]);
+		final Int_Vect iv = RDKitMarshaller.toIntVect(bytes);
+		try {
+			return ROMol.MolFromBinary(iv);
+		}
+		finally {
+			iv.delete();
 		}
-		return ROMol.MolFromBinary(iv);
 	}
 
 	/**
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene.bin;
+
+import java.util.BitSet;
+
+import org.RDKit.ExplicitBitVect;
+import org.RDKit.Int_Vect;
+import org.RDKit.RDKFuncs;
+
+/**
+ * Moves data between RDKit vectors and Java arrays. Every call of a method
+ * of an RDKit object crosses the JNI boundary, which costs far more than
+ * the work done by simple accessors like getBit() or get(). This class
+ * transfers whole vectors with as few crossings as the RDKit wrapper allows.
+ * <p>
+ * Bit vectors are transferred in a single crossing as text of '0' and '1'
+ * characters, which is decoded on the Java side. Int_Vect objects offer no bulk
+ * accessor, so their elements still need one crossing each, but the size is
+ * only queried once and the conversions are kept in one place.
+ */
+public final class RDKitMarshaller {
+
+	//
+	// Constructor
+	//
+
+	private RDKitMarshaller() {
+		// Only here to avoid instantiation of this utility class
+	}
+
+	//
+	// Static Public Methods
+	//
+
+	/**
+	 * Converts an RDKit bit vector into a Java BitSet with a single JNI crossing.
+	 * 
+	 * @param rdkitBitVector RDKit bit vector. Can be null.
+	 * 
+	 * @return BitSet or null, if null was passed in.
+	 */
+	public static BitSet toBitSet(final ExplicitBitVect rdkitBitVector) {
+		return (rdkitBitVector == null ? null : toBitSet(RDKFuncs.BitVectToText(rdkitBitVector)));
+	}
+
+	/**
+	 * Converts the text representation of a bit vector into a Java BitSet.
+	 * Character i of the text represents bit i.
+	 * 
+	 * @param strBits Bits as '0' and '1' characters. Must not be null.
+	 * 
+	 * @return BitSet.
+	 */
+	public static BitSet toBitSet(final String strBits) {
+		if (strBits == null) {
+			throw new IllegalArgumentException("Bit text must not be null.");
+		}
+
+		final int iLength = strBits.length();
+		final BitSet fingerprint = new BitSet(iLength);
+		for (int i = strBits.indexOf('1'); i >= 0; i = strBits.indexOf('1', i + 1)) {
+			fingerprint.set(i);
+		}
+
+		return fingerprint;
+	}
+
+	/**
+	 * Copies the elements of an RDKit int vector, which represent bytes
+	 * (e.g. of a molecule pickle), into a byte array.
+	 * 
+	 * @param iv RDKit int vector. Must not be null.
+	 * 
+	 * @return Byte array.
+	 */
+	public static byte[] toByteArray(final Int_Vect iv) {
+		if (iv == null) {
+			throw new IllegalArgumentException("Int vector must not be null.");
+		}
+
+		final byte[] arrBytes = new byte[(int)iv.size()];
+		for (int i = 0; i < arrBytes.length; i++) {
+			arrBytes[i] = (byte)iv.get(i);
+		}
+
+		return arrBytes;
+	}
+
+	/**
+	 * Copies a byte array (e.g. a molecule pickle) into a new RDKit int vector.
+	 * 
+	 * @param arrBytes Byte array. Must not be null.
+	 * 
+	 * @return RDKit int vector, which needs to be deleted by the caller.
+	 */
+	public static Int_Vect toIntVect(final byte[] arrBytes) {
+		if (arrBytes == null) {
+			throw new IllegalArgumentException("Byte array must not be null.");
+		}
+
+		final Int_Vect iv = new Int_Vect(arrBytes.length);
+		for (int i = 0; i < arrBytes.length; i++) {
+			iv.set(i, arrBytes[i]);
+		}
+
+		return iv;
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene.cache;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopDocsCollector;
+import org.apache.lucene.util.PriorityQueue;
+
+/**
+ * Collector that delivers a result, which is known in advance, like the collector
+ * of the original search, e.g. a cached result or the merged result of several
+ * searches. It rejects all attempts to collect further documents.
+ * <p>
+ * Document ids are only valid for the searcher that found them, so hits should
+ * carry their primary keys (see {@link PrimaryKeyScoreDoc}), if they are meant
+ * to be resolved after that searcher got released.
+ */
+public class FixedTopDocsCollector extends TopDocsCollector<ScoreDoc> {
+
+	//
+	// Inner Classes
+	//
+
+	/**
+	 * Priority queue that orders hits like the Lucene hit queue, i.e. by
+	 * descending score and ascending document id, so the result order of
+	 * the original {@link Collector} is restored.
+	 */
+	private static class HitQueue extends PriorityQueue<ScoreDoc> {
+
+		/**
+		 * Creates a new queue.
+		 * 
+		 * @param iSize Maximum number of hits.
+		 */
+		private HitQueue(final int iSize) {
+			initialize(iSize);
+		}
+
+		@Override
+		protected boolean lessThan(final ScoreDoc hitA, final ScoreDoc hitB) {
+			return (hitA.score == hitB.score ? hitA.doc > hitB.doc : hitA.score < hitB.score);
+		}
+	}
+
+	//
+	// Members
+	//
+
+	/** Maximal score of all hits. */
+	private float m_fMaxScore;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new collector, which delivers the passed in hits.
+	 * 
+	 * @param arrHits Hits of the result. Must not be null.
+	 * @param iTotalHits Total number of hits, which can be larger than the number of passed in hits.
+	 * @param fMaxScore Maximal score of all hits.
+	 */
+	public FixedTopDocsCollector(final ScoreDoc[] arrHits, final int iTotalHits, final float fMaxScore) {
+		super(new HitQueue(Math.max(1, arrHits.length)));
+		for (final ScoreDoc hit : arrHits) {
+			pq.add(hit);
+		}
+		totalHits = iTotalHits;
+		m_fMaxScore = fMaxScore;
+	}
+
+	/**
+	 * Creates a new collector with an empty queue, which gets filled by the subclass.
+	 * The subclass also sets the total number of hits and the maximal score.
+	 * 
+	 * @param queue Queue to be filled with the hits. Must not be null.
+	 */
+	protected FixedTopDocsCollector(final PriorityQueue<ScoreDoc> queue) {
+		super(queue);
+		m_fMaxScore = Float.NaN;
+	}
+
+	//
+	// Public Methods
+	//
+
+	@Override
+	public void setScorer(final Scorer scorer) {
+		throw new UnsupportedOperationException("A fixed result cannot collect further hits.");
+	}
+
+	@Override
+	public void collect(final int doc) {
+		throw new UnsupportedOperationException("A fixed result cannot collect further hits.");
+	}
+
+	@Override
+	public void setNextReader(final IndexReader reader, final int docBase) {
+		throw new UnsupportedOperationException("A fixed result cannot collect further hits.");
+	}
+
+	@Override
+	public boolean acceptsDocsOutOfOrder() {
+		return true;
+	}
+
+	//
+	// Protected Methods
+	//
+
+	/**
+	 * Sets the maximal score of all hits.
+	 * 
+	 * @param fMaxScore Maximal score. NaN, if unknown.
+	 */
+	protected void setMaxScore(final float fMaxScore) {
+		m_fMaxScore = fMaxScore;
+	}
+
+	@Override
+	protected TopDocs newTopDocs(final ScoreDoc[] results, final int start) {
+		return (results == null ? EMPTY_TOPDOCS : new TopDocs(totalHits, results, m_fMaxScore));
+	}
+}
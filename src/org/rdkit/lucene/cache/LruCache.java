@@ -0,0 +1,404 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Base class of the least recently used caches of this package. It keeps the entries
+ * in access order and evicts the least recently used ones, as soon as their total size
+ * exceeds the budget of the cache. Subclasses define key and entry types and how the
+ * size of an entry is measured, e.g. in estimated bytes or simply as 1 per entry.
+ * <p>
+ * Entries that own native memory are acquired with a reference count and need to
+ * be released after use with {@link #release(Entry)}. An entry that gets evicted
+ * while it is in use is deleted on its last release. Entries that are looked up
+ * without acquiring them are deleted right away when they get evicted.
+ * 
+ * @param <K> Key type, which must implement equals() and hashCode().
+ * @param <E> Entry type.
+ */
+public abstract class LruCache<K, E extends LruCache.Entry> {
+
+	//
+	// Inner Classes
+	//
+
+	/**
+	 * A cached entry with its size and reference count.
+	 */
+	public static class Entry {
+
+		/** Size of the entry, while it is part of the cache. */
+		private long m_lSize;
+
+		/** Number of users that acquired the entry and did not release it yet. */
+		private int m_iRefCount;
+
+		/** True, if the entry is not part of the cache anymore. */
+		private boolean m_bEvicted;
+
+		/**
+		 * Creates a new entry.
+		 */
+		protected Entry() {
+			m_lSize = 0;
+			m_iRefCount = 0;
+			m_bEvicted = false;
+		}
+
+		/**
+		 * Frees the resources owned by this entry. It is called once, when the entry
+		 * is not part of the cache anymore and not in use. The default does nothing.
+		 */
+		protected void delete() {
+			// Nothing to free by default
+		}
+	}
+
+	//
+	// Members
+	//
+
+	/** Cached entries in access order. */
+	private final LinkedHashMap<K, E> m_mapEntries;
+
+	/** Maximum total size of all cached entries. */
+	private long m_lMaxSize;
+
+	/** Total size of all cached entries. */
+	private long m_lSize;
+
+	/** Number of successful lookups. */
+	private long m_lHits;
+
+	/** Number of failed lookups. */
+	private long m_lMisses;
+
+	/** Number of evicted entries. */
+	private long m_lEvictions;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new cache.
+	 * 
+	 * @param lMaxSize Maximum total size of all cached entries. 0 disables caching.
+	 * @param iInitialCapacity Initial capacity of the entry map.
+	 */
+	protected LruCache(final long lMaxSize, final int iInitialCapacity) {
+		if (lMaxSize < 0) {
+			throw new IllegalArgumentException("Cache size must not be negative.");
+		}
+
+		m_mapEntries = new LinkedHashMap<K, E>(iInitialCapacity, 0.75f, true);
+		m_lMaxSize = lMaxSize;
+		m_lSize = 0;
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Releases an entry that was acquired before. If the entry was evicted
+	 * meanwhile and this was the last user, it gets deleted.
+	 * 
+	 * @param entry Entry to be released. Can be null.
+	 */
+	public void release(final E entry) {
+		if (entry != null) {
+			final Entry entryReleased = entry;
+			boolean bDelete;
+			synchronized (this) {
+				entryReleased.m_iRefCount--;
+				bDelete = (entryReleased.m_bEvicted && entryReleased.m_iRefCount == 0);
+			}
+			if (bDelete) {
+				entryReleased.delete();
+			}
+		}
+	}
+
+	/**
+	 * Removes all entries from the cache. Counters are not reset.
+	 */
+	public synchronized void clear() {
+		evict(0);
+	}
+
+	/**
+	 * Returns the maximum total size of all cached entries.
+	 * 
+	 * @return Cache budget.
+	 */
+	public synchronized long getMaxSize() {
+		return m_lMaxSize;
+	}
+
+	/**
+	 * Sets the maximum total size of all cached entries.
+	 * Entries that do not fit anymore are evicted.
+	 * 
+	 * @param lMaxSize Cache budget. 0 disables caching.
+	 */
+	public synchronized void setMaxSize(final long lMaxSize) {
+		if (lMaxSize < 0) {
+			throw new IllegalArgumentException("Cache size must not be negative.");
+		}
+
+		m_lMaxSize = lMaxSize;
+		evict(lMaxSize);
+	}
+
+	/**
+	 * Returns the total size of all cached entries.
+	 * 
+	 * @return Used size.
+	 */
+	public synchronized long getSize() {
+		return m_lSize;
+	}
+
+	/**
+	 * Returns the number of cached entries.
+	 * 
+	 * @return Number of entries.
+	 */
+	public synchronized int size() {
+		return m_mapEntries.size();
+	}
+
+	/**
+	 * Returns the number of lookups that found an entry.
+	 * 
+	 * @return Number of hits.
+	 */
+	public synchronized long getHitCount() {
+		return m_lHits;
+	}
+
+	/**
+	 * Returns the number of lookups that did not find an entry.
+	 * 
+	 * @return Number of misses.
+	 */
+	public synchronized long getMissCount() {
+		return m_lMisses;
+	}
+
+	/**
+	 * Returns the fraction of lookups that found an entry.
+	 * 
+	 * @return Hit rate between 0 and 1 or NaN, if there was no lookup yet.
+	 */
+	public synchronized double getHitRate() {
+		final long lLookups = m_lHits + m_lMisses;
+		return (lLookups == 0 ? Double.NaN : (double)m_lHits / lLookups);
+	}
+
+	/**
+	 * Returns the number of entries that have been evicted from the cache,
+	 * either to stay within the budget or because they were removed.
+	 * 
+	 * @return Number of evictions.
+	 */
+	public synchronized long getEvictionCount() {
+		return m_lEvictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return getClass().getSimpleName() + "[entries=" + m_mapEntries.size() + ", size=" + m_lSize + "/" + m_lMaxSize +
+				", hits=" + m_lHits + ", misses=" + m_lMisses + ", evictions=" + m_lEvictions + "]";
+	}
+
+	//
+	// Protected Methods
+	//
+
+	/**
+	 * Measures the size of an entry, which is counted against the budget of the cache.
+	 * 
+	 * @param key Key of the entry. Not null.
+	 * @param entry Entry. Not null.
+	 * 
+	 * @return Size of the entry.
+	 */
+	protected abstract long sizeOf(K key, E entry);
+
+	/**
+	 * Looks up the entry with the specified key and counts the lookup as hit or miss.
+	 * 
+	 * @param key Key of the entry. Must not be null.
+	 * @param bAcquire True to acquire the entry, which must be released with
+	 * 		{@link #release(Entry)} afterwards.
+	 * 
+	 * @return Entry or null, if it is not cached.
+	 */
+	protected synchronized E lookup(final K key, final boolean bAcquire) {
+		final E entryFound = m_mapEntries.get(key);
+		if (entryFound == null) {
+			m_lMisses++;
+		}
+		else {
+			final Entry entry = entryFound;
+			m_lHits++;
+			if (bAcquire) {
+				entry.m_iRefCount++;
+			}
+		}
+
+		return entryFound;
+	}
+
+	/**
+	 * Adds an entry to the cache, which takes over its ownership. If another entry was
+	 * added for the same key meanwhile, the passed in entry is deleted and the existing
+	 * entry is returned instead. If the entry does not fit into the cache, it is
+	 * deleted as soon as it is not in use anymore.
+	 * 
+	 * @param key Key of the entry. Must not be null.
+	 * @param entryNew Entry. Must not be null and must not have been added before.
+	 * @param bAcquire True to acquire the returned entry, which must be released with
+	 * 		{@link #release(Entry)} afterwards.
+	 * 
+	 * @return The added or the existing entry.
+	 */
+	protected E add(final K key, final E entryNew, final boolean bAcquire) {
+		if (entryNew == null) {
+			throw new IllegalArgumentException("Entry must not be null.");
+		}
+
+		final Entry entry = entryNew;
+		final long lSize = sizeOf(key, entryNew);
+		E entryExisting = null;
+		boolean bDelete = false;
+
+		synchronized (this) {
+			entryExisting = m_mapEntries.get(key);
+			if (entryExisting != null) {
+				final Entry entryCached = entryExisting;
+				if (bAcquire) {
+					entryCached.m_iRefCount++;
+				}
+				bDelete = true;
+			}
+			else {
+				if (bAcquire) {
+					entry.m_iRefCount++;
+				}
+				if (lSize > m_lMaxSize) {
+					entry.m_bEvicted = true;
+					bDelete = !bAcquire;
+				}
+				else {
+					entry.m_lSize = lSize;
+					m_mapEntries.put(key, entryNew);
+					m_lSize += lSize;
+					evict(m_lMaxSize);
+				}
+			}
+		}
+
+		if (bDelete) {
+			entry.delete();
+		}
+
+		return (entryExisting != null ? entryExisting : entryNew);
+	}
+
+	/**
+	 * Removes the entry with the specified key from the cache. It is deleted
+	 * right away, if it is not in use.
+	 * 
+	 * @param key Key of the entry. Must not be null.
+	 */
+	protected synchronized void remove(final K key) {
+		final E entry = m_mapEntries.remove(key);
+		if (entry != null) {
+			discard(entry);
+		}
+	}
+
+	/**
+	 * Returns the keys of all cached entries from the least to the most recently used one.
+	 * 
+	 * @return Copy of the keys.
+	 */
+	protected synchronized List<K> getKeys() {
+		return new ArrayList<K>(m_mapEntries.keySet());
+	}
+
+	//
+	// Private Methods
+	//
+
+	/**
+	 * Evicts least recently used entries until the cache fits into the
+	 * specified size. A size of 0 evicts all entries. Entries that are not in use are deleted right away.
+	 * Must be called while holding the lock of this cache.
+	 * 
+	 * @param lMaxSize Size to fit into.
+	 */
+	private void evict(final long lMaxSize) {
+		final Iterator<Map.Entry<K, E>> iterator = m_mapEntries.entrySet().iterator();
+		while ((m_lSize > lMaxSize || lMaxSize == 0) && iterator.hasNext()) {
+			final E entry = iterator.next().getValue();
+			iterator.remove();
+			discard(entry);
+		}
+	}
+
+	/**
+	 * Accounts for an entry that has been removed from the map. It is deleted
+	 * right away, if it is not in use. Must be called while holding the lock of this cache.
+	 * 
+	 * @param entryRemoved Removed entry. Must not be null.
+	 */
+	private void discard(final E entryRemoved) {
+		final Entry entry = entryRemoved;
+		m_lSize -= entry.m_lSize;
+		m_lEvictions++;
+		entry.m_bEvicted = true;
+		if (entry.m_iRefCount == 0) {
+			entry.delete();
+		}
+	}
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene.cache;
+
+import org.RDKit.ROMol;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentReader;
+
+/**
+ * A least recently used cache of parsed RDKit molecules. The cache owns its
+ * molecules and frees their native memory by calling delete() as soon as they
+ * are evicted and not in use anymore, instead of leaving this to cleanup waves.
+ * The budget of the cache is given in estimated native bytes, which are derived
+ * from the number of atoms and bonds of a molecule.
+ * <p>
+ * Molecules are handed out as {@link Entry} objects, which need to be released
+ * after use with {@link #release(LruCache.Entry)}. An entry that gets evicted while it is
+ * in use is deleted on its last release. RDKit molecules must not be used by
+ * several threads at the same time, so users should synchronize on the entry
+ * while working with its molecule.
+ * <p>
+ * Molecules are keyed by the core of their segment (see {@link IndexReader#getCoreCacheKey()})
+ * and their document id within the segment. Segments that did not change keep their cached
+ * molecules when the index is reopened. The molecules of a segment are removed, when the
+ * last reader of the segment core gets closed.
+ */
+public class MoleculeCache extends LruCache<MoleculeCache.Key, MoleculeCache.Entry> {
+
+	//
+	// Constants
+	//
+
+	/** Estimated native bytes of an empty molecule. */
+	private static final long BYTES_PER_MOLECULE = 1024;
+
+	/** Estimated native bytes per atom. */
+	private static final long BYTES_PER_ATOM = 320;
+
+	/** Estimated native bytes per bond. */
+	private static final long BYTES_PER_BOND = 160;
+
+	//
+	// Inner Classes
+	//
+
+	/**
+	 * A cached molecule.
+	 */
+	public static class Entry extends LruCache.Entry {
+
+		/** The molecule. */
+		private final ROMol m_mol;
+
+		/**
+		 * Creates a new entry.
+		 * 
+		 * @param mol Molecule. Must not be null.
+		 */
+		private Entry(final ROMol mol) {
+			m_mol = mol;
+		}
+
+		/**
+		 * Returns the cached molecule. It must not be deleted or
+		 * changed and must not be used after releasing the entry.
+		 * 
+		 * @return Molecule.
+		 */
+		public ROMol getMolecule() {
+			return m_mol;
+		}
+
+		@Override
+		protected void delete() {
+			m_mol.delete();
+		}
+	}
+
+	/**
+	 * Key of a cached molecule.
+	 */
+	protected static class Key {
+
+		/** Core cache key of the segment. */
+		private final Object m_coreKey;
+
+		/** Document id within the segment. */
+		private final int m_iDoc;
+
+		/**
+		 * Creates a new key.
+		 * 
+		 * @param coreKey Core cache key of the segment. Must not be null.
+		 * @param iDoc Document id within the segment.
+		 */
+		private Key(final Object coreKey, final int iDoc) {
+			m_coreKey = coreKey;
+			m_iDoc = iDoc;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			return (o instanceof Key && ((Key)o).m_coreKey == m_coreKey && ((Key)o).m_iDoc == m_iDoc);
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(m_coreKey) * 31 + m_iDoc;
+		}
+	}
+
+	//
+	// Members
+	//
+
+	/** Removes the molecules of a segment, when its core gets closed. */
+	private final SegmentReader.CoreClosedListener m_coreClosedListener;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new molecule cache.
+	 * 
+	 * @param lMaxBytes Maximum estimated native bytes of all cached molecules.
+	 * 		0 disables caching.
+	 */
+	public MoleculeCache(final long lMaxBytes) {
+		super(lMaxBytes, 1024);
+
+		m_coreClosedListener = new SegmentReader.CoreClosedListener() {
+			@Override
+			public void onClose(final SegmentReader owner) {
+				removeSegment(owner.getCoreCacheKey());
+			}
+		};
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Looks up the molecule of the specified document and acquires its entry.
+	 * 
+	 * @param segmentReader Reader of the segment that contains the document. Must not be null.
+	 * @param iDoc Document id within the segment.
+	 * 
+	 * @return Acquired entry or null, if the molecule is not cached. An entry must
+	 * 		be released with {@link #release(LruCache.Entry)}.
+	 */
+	public Entry get(final IndexReader segmentReader, final int iDoc) {
+		return lookup(new Key(segmentReader.getCoreCacheKey(), iDoc), true);
+	}
+
+	/**
+	 * Adds the molecule of the specified document to the cache, which takes over its ownership,
+	 * and acquires its entry. If another molecule was added for the same document meanwhile,
+	 * the passed in molecule is deleted and the existing entry is acquired instead. If the
+	 * molecule does not fit into the cache, it is deleted as soon as the entry gets released.
+	 * 
+	 * @param segmentReader Reader of the segment that contains the document. Must not be null
+	 * 		and must be kept open by the caller.
+	 * @param iDoc Document id within the segment.
+	 * @param mol Molecule. Must not be null and must not be registered for any cleanup.
+	 * 
+	 * @return Acquired entry, which must be released with {@link #release(LruCache.Entry)}.
+	 */
+	public Entry put(final IndexReader segmentReader, final int iDoc, final ROMol mol) {
+		if (mol == null) {
+			throw new IllegalArgumentException("Molecule must not be null.");
+		}
+
+		if (segmentReader instanceof SegmentReader) {
+			// Listeners are kept in a set, so registering again for every molecule is harmless
+			((SegmentReader)segmentReader).addCoreClosedListener(m_coreClosedListener);
+		}
+
+		return add(new Key(segmentReader.getCoreCacheKey(), iDoc), new Entry(mol), true);
+	}
+
+	//
+	// Protected Methods
+	//
+
+	@Override
+	protected long sizeOf(final Key key, final Entry entry) {
+		return estimateBytes(entry.m_mol);
+	}
+
+	/**
+	 * Removes all molecules of the specified segment core from the cache.
+	 * 
+	 * @param coreKey Core cache key of the segment. Must not be null.
+	 */
+	protected synchronized void removeSegment(final Object coreKey) {
+		for (final Key key : getKeys()) {
+			if (key.m_coreKey == coreKey) {
+				remove(key);
+			}
+		}
+	}
+
+	//
+	// Static Public Methods
+	//
+
+	/**
+	 * Estimates the native memory of a molecule.
+	 * 
+	 * @param mol Molecule. Must not be null.
+	 * 
+	 * @return Estimated bytes.
+	 */
+	public static long estimateBytes(final ROMol mol) {
+		return BYTES_PER_MOLECULE + mol.getNumAtoms() * BYTES_PER_ATOM + mol.getNumBonds() * BYTES_PER_BOND;
+	}
+}
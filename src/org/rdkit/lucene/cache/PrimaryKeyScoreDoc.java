@@ -0,0 +1,92 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene.cache;
+
+import org.apache.lucene.search.ScoreDoc;
+
+/**
+ * A search hit, which carries the primary key of its document. The primary key
+ * is resolved by the search itself with the searcher that found the hit, so it
+ * stays valid after that searcher got replaced or closed, while the document id
+ * is only meaningful for that searcher.
+ */
+public class PrimaryKeyScoreDoc extends ScoreDoc {
+
+	//
+	// Constants
+	//
+
+	/** Serialnumber */
+	private static final long serialVersionUID = 1L;
+
+	//
+	// Members
+	//
+
+	/** The primary key of the document or null, if the document has none. */
+	private final String m_strPK;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new hit.
+	 * 
+	 * @param iDoc Document id.
+	 * @param fScore Score.
+	 * @param strPK Primary key of the document. Can be null.
+	 */
+	public PrimaryKeyScoreDoc(final int iDoc, final float fScore, final String strPK) {
+		super(iDoc, fScore);
+		m_strPK = strPK;
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Returns the primary key of the document.
+	 * 
+	 * @return Primary key or null, if the document has none.
+	 */
+	public String getPrimaryKey() {
+		return m_strPK;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + " pk=" + m_strPK;
+	}
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene.cache;
+
+import java.util.BitSet;
+
+import org.RDKit.ROMol;
+
+/**
+ * A least recently used cache of prepared search queries. A prepared query holds
+ * everything that is derived from a query SMILES before a search starts: the
+ * canonical SMILES, the query and structure fingerprints and the parsed query molecule. Repeated
+ * and paged searches for the same SMILES skip all this RDKit work.
+ * <p>
+ * The cache owns the query molecules and frees their native memory by calling
+ * delete() as soon as they are evicted and not in use anymore. Prepared queries are
+ * handed out with a reference count and need to be released after use with
+ * {@link #release(LruCache.Entry)}. Unlike cached candidate molecules, a query molecule
+ * is shared read-only by all threads searching for it. It is prepared completely
+ * before it gets cached, so substructure matches do not change it.
+ */
+public class QueryCache extends LruCache<String, QueryCache.PreparedQuery> {
+
+	//
+	// Inner Classes
+	//
+
+	/**
+	 * A prepared query.
+	 */
+	public static class PreparedQuery extends LruCache.Entry {
+
+		/** The query SMILES as passed in by the user. */
+		private final String m_strSmiles;
+
+		/** The canonical query SMILES or null. */
+		private final String m_strCanonicalSmiles;
+
+		/** The query fingerprint or null. */
+		private final BitSet m_fpQuery;
+
+		/** The structure fingerprint of the canonical SMILES or null. */
+		private final BitSet m_fpStructure;
+
+		/** The query molecule or null. */
+		private final ROMol m_molQuery;
+
+		/**
+		 * Creates a new prepared query. The cache takes over the ownership of the
+		 * query molecule, when the query gets added.
+		 * 
+		 * @param strSmiles Query SMILES. Must not be null.
+		 * @param strCanonicalSmiles Canonical query SMILES. Can be null, if the
+		 * 		SMILES could not be canonicalized.
+		 * @param fpQuery Query fingerprint. Can be null, if it could not be calculated.
+		 * @param fpStructure Structure fingerprint, which is compared to the indexed
+		 * 		fingerprints by similarity searches. Can be null, if it could not be calculated.
+		 * @param molQuery Query molecule. Can be null, if the SMILES could not be parsed.
+		 * 		Must not be registered for any cleanup.
+		 */
+		public PreparedQuery(final String strSmiles, final String strCanonicalSmiles,
+				final BitSet fpQuery, final BitSet fpStructure, final ROMol molQuery) {
+			if (strSmiles == null) {
+				throw new IllegalArgumentException("SMILES must not be null.");
+			}
+
+			m_strSmiles = strSmiles;
+			m_strCanonicalSmiles = strCanonicalSmiles;
+			m_fpQuery = fpQuery;
+			m_fpStructure = fpStructure;
+			m_molQuery = molQuery;
+		}
+
+		/**
+		 * Returns the query SMILES as passed in by the user.
+		 * 
+		 * @return Query SMILES.
+		 */
+		public String getSmiles() {
+			return m_strSmiles;
+		}
+
+		/**
+		 * Returns the canonical query SMILES.
+		 * 
+		 * @return Canonical SMILES or null, if the SMILES could not be canonicalized.
+		 */
+		public String getCanonicalSmiles() {
+			return m_strCanonicalSmiles;
+		}
+
+		/**
+		 * Returns the query fingerprint. It is shared and must not be changed.
+		 * 
+		 * @return Query fingerprint or null, if it could not be calculated.
+		 */
+		public BitSet getQueryFingerprint() {
+			return m_fpQuery;
+		}
+
+		/**
+		 * Returns the structure fingerprint of the canonical SMILES, which is comparable
+		 * to the indexed fingerprints. It is shared and must not be changed.
+		 * 
+		 * @return Structure fingerprint or null, if it could not be calculated.
+		 */
+		public BitSet getStructureFingerprint() {
+			return m_fpStructure;
+		}
+
+		/**
+		 * Returns the query molecule. It is shared by all threads searching for this
+		 * query, so it must not be changed or deleted and must only be used as query of
+		 * substructure matches. It must not be used after releasing the query.
+		 * 
+		 * @return Query molecule or null, if the SMILES could not be parsed.
+		 */
+		public ROMol getQueryMolecule() {
+			return m_molQuery;
+		}
+
+		/**
+		 * Frees the native memory of the query molecule.
+		 */
+		@Override
+		protected void delete() {
+			if (m_molQuery != null) {
+				m_molQuery.delete();
+			}
+		}
+	}
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new query cache.
+	 * 
+	 * @param iMaxSize Maximum number of cached queries. 0 disables caching.
+	 */
+	public QueryCache(final int iMaxSize) {
+		super(iMaxSize, 256);
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Looks up the prepared query for the specified SMILES and acquires it.
+	 * 
+	 * @param strSmiles Query SMILES. Must not be null.
+	 * 
+	 * @return Acquired query or null, if the query is not cached. A query must be
+	 * 		released with {@link #release(LruCache.Entry)}.
+	 */
+	public PreparedQuery get(final String strSmiles) {
+		if (strSmiles == null) {
+			throw new IllegalArgumentException("SMILES must not be null.");
+		}
+
+		return lookup(strSmiles, true);
+	}
+
+	/**
+	 * Adds a prepared query to the cache, which takes over the ownership of its molecule,
+	 * and acquires it. If another query was added for the same SMILES meanwhile, the
+	 * molecule of the passed in query is deleted and the existing query is acquired instead.
+	 * If the cache is disabled, the query is deleted as soon as it gets released.
+	 * 
+	 * @param queryNew Prepared query. Must not be null and must not have been added before.
+	 * 
+	 * @return Acquired query, which must be released with {@link #release(LruCache.Entry)}.
+	 */
+	public PreparedQuery put(final PreparedQuery queryNew) {
+		if (queryNew == null) {
+			throw new IllegalArgumentException("Prepared query must not be null.");
+		}
+
+		return add(queryNew.m_strSmiles, queryNew, true);
+	}
+
+	//
+	// Protected Methods
+	//
+
+	/**
+	 * Counts every query as 1, so the budget of the cache is the number of queries.
+	 * 
+	 * @param strSmiles Query SMILES.
+	 * @param query Prepared query.
+	 * 
+	 * @return Always 1.
+	 */
+	@Override
+	protected long sizeOf(final String strSmiles, final PreparedQuery query) {
+		return 1;
+	}
+}
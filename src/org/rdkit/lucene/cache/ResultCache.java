@@ -0,0 +1,338 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene.cache;
+
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopDocsCollector;
+
+/**
+ * A least recently used cache of search results. A result is stored compactly as
+ * arrays of document ids, scores and primary keys together with the total hit count and is keyed
+ * by the type of search, the canonical query SMILES and the maximum number of hits.
+ * The budget of the cache is given in estimated heap bytes.
+ * <p>
+ * Document ids are only valid for a certain index reader. When the reader changes, the
+ * cache needs to be invalidated, which starts a new generation. Users pass the generation
+ * they obtained when starting to work with a reader, so they neither get nor add
+ * results of another reader.
+ */
+public class ResultCache extends LruCache<ResultCache.Key, ResultCache.Result> {
+
+	//
+	// Constants
+	//
+
+	/** Estimated heap bytes of a result without hits, including its key. */
+	private static final long BYTES_PER_RESULT = 160;
+
+	/** Estimated heap bytes per hit (document id, score and reference of the shared primary key). */
+	private static final long BYTES_PER_HIT = 16;
+
+	/** Estimated heap bytes per character of the query SMILES. */
+	private static final long BYTES_PER_CHAR = 2;
+
+	//
+	// Inner Classes
+	//
+
+	/**
+	 * The types of searches whose results are cached.
+	 */
+	public enum SearchType {
+
+		/** Search for exactly matching canonical SMILES. */
+		EXACT,
+
+		/** Search for fingerprint matches. */
+		FINGERPRINT,
+
+		/** Search for substructures. */
+		SUBSTRUCTURE
+	}
+
+	/**
+	 * An immutable search result.
+	 */
+	public static class Result extends LruCache.Entry {
+
+		/** Document ids of the hits in result order. */
+		private final int[] m_arrDocIds;
+
+		/** Scores of the hits in result order. */
+		private final float[] m_arrScores;
+
+		/** Primary keys of the hits in result order or null, if the hits do not carry them. */
+		private final String[] m_arrPrimaryKeys;
+
+		/** Total number of hits, which can be larger than the number of stored hits. */
+		private final int m_iTotalHits;
+
+		/** Maximal score of all hits. */
+		private final float m_fMaxScore;
+
+		/**
+		 * Creates a new result from the top documents of a search. If all hits carry
+		 * their primary keys (see {@link PrimaryKeyScoreDoc}), they are kept as well.
+		 * 
+		 * @param topDocs Top documents. Must not be null.
+		 */
+		public Result(final TopDocs topDocs) {
+			if (topDocs == null) {
+				throw new IllegalArgumentException("Top documents must not be null.");
+			}
+
+			final ScoreDoc[] arrHits = topDocs.scoreDocs;
+			m_arrDocIds = new int[arrHits.length];
+			m_arrScores = new float[arrHits.length];
+			boolean bPrimaryKeys = true;
+			for (int i = 0; i < arrHits.length; i++) {
+				m_arrDocIds[i] = arrHits[i].doc;
+				m_arrScores[i] = arrHits[i].score;
+				bPrimaryKeys &= (arrHits[i] instanceof PrimaryKeyScoreDoc);
+			}
+			m_arrPrimaryKeys = (bPrimaryKeys ? new String[arrHits.length] : null);
+			for (int i = 0; m_arrPrimaryKeys != null && i < arrHits.length; i++) {
+				m_arrPrimaryKeys[i] = ((PrimaryKeyScoreDoc)arrHits[i]).getPrimaryKey();
+			}
+			m_iTotalHits = topDocs.totalHits;
+			m_fMaxScore = topDocs.getMaxScore();
+		}
+
+		/**
+		 * Returns the number of stored hits.
+		 * 
+		 * @return Number of hits.
+		 */
+		public int size() {
+			return m_arrDocIds.length;
+		}
+
+		/**
+		 * Returns the document id of the specified hit.
+		 * 
+		 * @param iHit Index of the hit in result order.
+		 * 
+		 * @return Document id.
+		 */
+		public int getDocId(final int iHit) {
+			return m_arrDocIds[iHit];
+		}
+
+		/**
+		 * Returns the score of the specified hit.
+		 * 
+		 * @param iHit Index of the hit in result order.
+		 * 
+		 * @return Score.
+		 */
+		public float getScore(final int iHit) {
+			return m_arrScores[iHit];
+		}
+
+		/**
+		 * Returns the total number of hits of the search, which can
+		 * be larger than the number of stored hits.
+		 * 
+		 * @return Total number of hits.
+		 */
+		public int getTotalHits() {
+			return m_iTotalHits;
+		}
+
+		/**
+		 * Creates a new collector, which delivers this result like the collector
+		 * of the original search. The collector does not accept further hits.
+		 * Its hits carry their primary keys, if the hits of the original search did.
+		 * 
+		 * @return Collector with this result.
+		 */
+		public TopDocsCollector<ScoreDoc> createCollector() {
+			final ScoreDoc[] arrHits = new ScoreDoc[m_arrDocIds.length];
+			for (int i = 0; i < arrHits.length; i++) {
+				arrHits[i] = (m_arrPrimaryKeys != null ?
+						new PrimaryKeyScoreDoc(m_arrDocIds[i], m_arrScores[i], m_arrPrimaryKeys[i]) :
+							new ScoreDoc(m_arrDocIds[i], m_arrScores[i]));
+			}
+			return new FixedTopDocsCollector(arrHits, m_iTotalHits, m_fMaxScore);
+		}
+
+		/**
+		 * Estimates the heap memory of this result.
+		 * 
+		 * @return Estimated bytes.
+		 */
+		private long estimateBytes() {
+			return BYTES_PER_RESULT + m_arrDocIds.length * BYTES_PER_HIT;
+		}
+	}
+
+	/**
+	 * Key of a cached result.
+	 */
+	protected static class Key {
+
+		/** The type of search. */
+		private final SearchType m_searchType;
+
+		/** The canonical query SMILES. */
+		private final String m_strSmiles;
+
+		/** The maximum number of hits. */
+		private final int m_iMaxHits;
+
+		/**
+		 * Creates a new key.
+		 * 
+		 * @param searchType Type of search. Must not be null.
+		 * @param strSmiles Canonical query SMILES. Must not be null.
+		 * @param iMaxHits Maximum number of hits.
+		 */
+		private Key(final SearchType searchType, final String strSmiles, final int iMaxHits) {
+			if (searchType == null) {
+				throw new IllegalArgumentException("Search type must not be null.");
+			}
+			if (strSmiles == null) {
+				throw new IllegalArgumentException("SMILES must not be null.");
+			}
+
+			m_searchType = searchType;
+			m_strSmiles = strSmiles;
+			m_iMaxHits = iMaxHits;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			return (o instanceof Key && ((Key)o).m_searchType == m_searchType &&
+					((Key)o).m_iMaxHits == m_iMaxHits && ((Key)o).m_strSmiles.equals(m_strSmiles));
+		}
+
+		@Override
+		public int hashCode() {
+			return (m_searchType.hashCode() * 31 + m_strSmiles.hashCode()) * 31 + m_iMaxHits;
+		}
+	}
+
+	//
+	// Members
+	//
+
+	/** Current generation, which is incremented with every invalidation. */
+	private int m_iGeneration;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new result cache.
+	 * 
+	 * @param lMaxBytes Maximum estimated heap bytes of all cached results.
+	 * 		0 disables caching.
+	 */
+	public ResultCache(final long lMaxBytes) {
+		super(lMaxBytes, 256);
+		m_iGeneration = 0;
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Returns the current generation of the cache.
+	 * 
+	 * @return Generation.
+	 */
+	public synchronized int getGeneration() {
+		return m_iGeneration;
+	}
+
+	/**
+	 * Looks up the result of a search.
+	 * 
+	 * @param searchType Type of search. Must not be null.
+	 * @param strSmiles Canonical query SMILES. Must not be null.
+	 * @param iMaxHits Maximum number of hits of the search.
+	 * @param iGeneration Generation the search belongs to.
+	 * 
+	 * @return Cached result or null, if the search is not cached or the
+	 * 		generation is outdated.
+	 */
+	public synchronized Result get(final SearchType searchType, final String strSmiles,
+			final int iMaxHits, final int iGeneration) {
+		return (iGeneration == m_iGeneration ? lookup(new Key(searchType, strSmiles, iMaxHits), false) : null);
+	}
+
+	/**
+	 * Adds the result of a search to the cache. Results of outdated generations,
+	 * results that do not fit into the cache and results of searches that are
+	 * cached already are not added.
+	 * 
+	 * @param searchType Type of search. Must not be null.
+	 * @param strSmiles Canonical query SMILES. Must not be null.
+	 * @param iMaxHits Maximum number of hits of the search.
+	 * @param iGeneration Generation the search belongs to.
+	 * @param result Result. Must not be null and must not have been added before.
+	 */
+	public synchronized void put(final SearchType searchType, final String strSmiles,
+			final int iMaxHits, final int iGeneration, final Result result) {
+		if (result == null) {
+			throw new IllegalArgumentException("Result must not be null.");
+		}
+
+		final Key key = new Key(searchType, strSmiles, iMaxHits);
+		if (iGeneration == m_iGeneration) {
+			add(key, result, false);
+		}
+	}
+
+	/**
+	 * Removes all results from the cache and starts a new generation, e.g. because
+	 * the index was reopened and document ids are not valid anymore.
+	 * Counters are not reset.
+	 */
+	public synchronized void invalidate() {
+		clear();
+		m_iGeneration++;
+	}
+
+	//
+	// Protected Methods
+	//
+
+	@Override
+	protected long sizeOf(final Key key, final Result result) {
+		return result.estimateBytes() + key.m_strSmiles.length() * BYTES_PER_CHAR;
+	}
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene.federation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.util.PriorityQueue;
+import org.rdkit.lucene.federation.FederationProtocol.Response;
+
+/**
+ * The merged result of a federated search. It contains the best hits of all
+ * shards that answered in time, ordered by descending score, ascending document
+ * id and ascending shard index. Shards that failed or timed out are listed,
+ * so callers can decide whether a partial result is acceptable.
+ */
+public class FederatedResult {
+
+	//
+	// Inner Classes
+	//
+
+	/**
+	 * A hit of a federated search.
+	 */
+	public static class Hit {
+
+		/** The primary key or null, if unknown. */
+		private final String m_strPK;
+
+		/** The score. */
+		private final float m_fScore;
+
+		/** The index of the shard of the hit. */
+		private final int m_iShard;
+
+		/** The document id within the shard. */
+		private final int m_iDoc;
+
+		/**
+		 * Creates a new hit.
+		 * 
+		 * @param strPK Primary key. Can be null.
+		 * @param fScore Score.
+		 * @param iShard Index of the shard.
+		 * @param iDoc Document id within the shard.
+		 */
+		private Hit(final String strPK, final float fScore, final int iShard, final int iDoc) {
+			m_strPK = strPK;
+			m_fScore = fScore;
+			m_iShard = iShard;
+			m_iDoc = iDoc;
+		}
+
+		/**
+		 * Returns the primary key of the hit.
+		 * 
+		 * @return Primary key or null, if unknown.
+		 */
+		public String getPrimaryKey() {
+			return m_strPK;
+		}
+
+		/**
+		 * Returns the score of the hit.
+		 * 
+		 * @return Score.
+		 */
+		public float getScore() {
+			return m_fScore;
+		}
+
+		/**
+		 * Returns the index of the shard, which found the hit.
+		 * 
+		 * @return Shard index (0 based).
+		 */
+		public int getShardIndex() {
+			return m_iShard;
+		}
+
+		/**
+		 * Returns the document id of the hit within its shard.
+		 * 
+		 * @return Document id.
+		 */
+		public int getDoc() {
+			return m_iDoc;
+		}
+
+		@Override
+		public String toString() {
+			return m_strPK + " (score=" + m_fScore + ", shard=" + m_iShard + ", doc=" + m_iDoc + ")";
+		}
+	}
+
+	/**
+	 * Priority queue that orders hits by descending score, ascending document
+	 * id and ascending shard index.
+	 */
+	private static class HitQueue extends PriorityQueue<Hit> {
+
+		/**
+		 * Creates a new queue.
+		 * 
+		 * @param iSize Maximum number of hits.
+		 */
+		private HitQueue(final int iSize) {
+			initialize(iSize);
+		}
+
+		@Override
+		protected boolean lessThan(final Hit hitA, final Hit hitB) {
+			if (hitA.m_fScore != hitB.m_fScore) {
+				return hitA.m_fScore < hitB.m_fScore;
+			}
+			if (hitA.m_iDoc != hitB.m_iDoc) {
+				return hitA.m_iDoc > hitB.m_iDoc;
+			}
+			return hitA.m_iShard > hitB.m_iShard;
+		}
+	}
+
+	//
+	// Members
+	//
+
+	/** The merged hits. */
+	private final Hit[] m_arrHits;
+
+	/** The total number of hits of all answering shards. */
+	private final int m_iTotalHits;
+
+	/** The indexes of shards that did not answer in time or failed. */
+	private final int[] m_arrMissingShards;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Merges the responses of all shards.
+	 * 
+	 * @param arrResponses Responses in shard order. Contains null for shards that
+	 * 		did not answer. Must not be null.
+	 * @param iMaxHits Maximum number of hits to keep.
+	 */
+	public FederatedResult(final Response[] arrResponses, final int iMaxHits) {
+		int iHitCount = 0;
+		int iTotalHits = 0;
+		final List<Integer> listMissingShards = new ArrayList<Integer>();
+		for (int iShard = 0; iShard < arrResponses.length; iShard++) {
+			if (arrResponses[iShard] == null || arrResponses[iShard].isError()) {
+				listMissingShards.add(iShard);
+			}
+			else {
+				iHitCount += arrResponses[iShard].size();
+				iTotalHits += arrResponses[iShard].getTotalHits();
+			}
+		}
+
+		final HitQueue queue = new HitQueue(Math.max(1, Math.min(iMaxHits, iHitCount)));
+		if (iMaxHits > 0) {
+			for (int iShard = 0; iShard < arrResponses.length; iShard++) {
+				final Response response = arrResponses[iShard];
+				if (response != null && !response.isError()) {
+					for (int i = 0; i < response.size(); i++) {
+						queue.insertWithOverflow(new Hit(response.getPrimaryKey(i), response.getScore(i),
+								iShard, response.getDoc(i)));
+					}
+				}
+			}
+		}
+
+		m_arrHits = new Hit[queue.size()];
+		for (int i = m_arrHits.length - 1; i >= 0; i--) {
+			m_arrHits[i] = queue.pop();
+		}
+		m_iTotalHits = iTotalHits;
+		m_arrMissingShards = new int[listMissingShards.size()];
+		for (int i = 0; i < m_arrMissingShards.length; i++) {
+			m_arrMissingShards[i] = listMissingShards.get(i);
+		}
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Returns the merged hits.
+	 * 
+	 * @return Hits ordered by descending score. Can be empty, but never null.
+	 */
+	public Hit[] getHits() {
+		return m_arrHits.clone();
+	}
+
+	/**
+	 * Returns the primary keys of the merged hits.
+	 * 
+	 * @return Primary keys in the order of the hits. Hits without primary key
+	 * 		are left out. Can be empty, but never null.
+	 */
+	public String[] getPrimaryKeys() {
+		final List<String> listPKs = new ArrayList<String>(m_arrHits.length);
+		for (final Hit hit : m_arrHits) {
+			if (hit.m_strPK != null) {
+				listPKs.add(hit.m_strPK);
+			}
+		}
+		return listPKs.toArray(new String[listPKs.size()]);
+	}
+
+	/**
+	 * Returns the total number of hits of all answering shards, which can be
+	 * larger than the number of returned hits.
+	 * 
+	 * @return Total number of hits.
+	 */
+	public int getTotalHits() {
+		return m_iTotalHits;
+	}
+
+	/**
+	 * Returns the shards that did not contribute to this result, because
+	 * they failed or did not answer in time.
+	 * 
+	 * @return Shard indexes. Can be empty, but never null.
+	 */
+	public int[] getMissingShards() {
+		return m_arrMissingShards.clone();
+	}
+
+	/**
+	 * Determines, if all shards contributed to this result.
+	 * 
+	 * @return True, if all shards answered in time.
+	 */
+	public boolean isComplete() {
+		return m_arrMissingShards.length == 0;
+	}
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene.federation;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.rdkit.lucene.federation.FederationProtocol.Request;
+import org.rdkit.lucene.federation.FederationProtocol.Response;
+import org.rdkit.lucene.federation.FederationProtocol.SearchType;
+
+/**
+ * Coordinates searches over several {@link ShardServer}s. Every search is sent
+ * to all shards in parallel and their top hits are merged into a {@link FederatedResult}.
+ * Shards that fail or do not answer within the timeout are left out of the result
+ * instead of delaying it. Their connection gets closed, so a late answer cannot
+ * be mistaken for the answer of a later request.
+ * <p>
+ * Connections are kept open and reused. Concurrent searches use separate
+ * connections to the same shard, so this client can be shared by several threads.
+ */
+public class FederatedSearchClient {
+
+	//
+	// Constants
+	//
+
+	/** The logger instance. */
+	private static final Logger LOGGER = Logger.getLogger(FederatedSearchClient.class.getName());
+
+	/** Default time to wait for the answers of all shards in milliseconds. */
+	public static final long DEFAULT_TIMEOUT = 10000;
+
+	/** Time to wait for a connection to a shard in milliseconds. */
+	public static final int CONNECT_TIMEOUT = 2000;
+
+	//
+	// Members
+	//
+
+	/** The addresses of the shard servers. */
+	private final InetSocketAddress[] m_arrShards;
+
+	/** Idle connections per shard. */
+	private final List<ConcurrentLinkedQueue<SocketChannel>> m_listIdleConnections;
+
+	/** The time to wait for the answers of all shards in milliseconds. */
+	private volatile long m_lTimeout;
+
+	/** The source of request ids. */
+	private final AtomicLong m_alRequestIds;
+
+	/** The executor that sends requests to shards in parallel. */
+	private final ExecutorService m_executor;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new client for the specified shard servers. The order of the
+	 * shards determines the shard indexes of hits.
+	 * 
+	 * @param arrShards Addresses of all shard servers. Must not be null or empty.
+	 * @param lTimeout Time to wait for the answers of all shards in milliseconds. Must be &gt; 0.
+	 */
+	public FederatedSearchClient(final InetSocketAddress[] arrShards, final long lTimeout) {
+		if (arrShards == null || arrShards.length == 0) {
+			throw new IllegalArgumentException("Shard addresses must not be null or empty.");
+		}
+
+		m_arrShards = arrShards.clone();
+		m_listIdleConnections = new ArrayList<ConcurrentLinkedQueue<SocketChannel>>(arrShards.length);
+		for (int i = 0; i < arrShards.length; i++) {
+			if (arrShards[i] == null) {
+				throw new IllegalArgumentException("Shard address must not be null.");
+			}
+			m_listIdleConnections.add(new ConcurrentLinkedQueue<SocketChannel>());
+		}
+		setTimeout(lTimeout);
+		m_alRequestIds = new AtomicLong();
+
+		final AtomicInteger aiThreadNumber = new AtomicInteger();
+		m_executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, "FederatedSearchClient-" + aiThreadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Returns the number of shards.
+	 * 
+	 * @return Number of shards.
+	 */
+	public int getShardCount() {
+		return m_arrShards.length;
+	}
+
+	/**
+	 * Returns the time to wait for the answers of all shards.
+	 * 
+	 * @return Timeout in milliseconds.
+	 */
+	public long getTimeout() {
+		return m_lTimeout;
+	}
+
+	/**
+	 * Sets the time to wait for the answers of all shards. Shards answering
+	 * later are left out of the result.
+	 * 
+	 * @param lTimeout Timeout in milliseconds. Must be &gt; 0.
+	 */
+	public void setTimeout(final long lTimeout) {
+		if (lTimeout <= 0) {
+			throw new IllegalArgumentException("Timeout must be > 0.");
+		}
+
+		m_lTimeout = lTimeout;
+	}
+
+	/**
+	 * Searches molecules based on a free text search on all shards.
+	 * 
+	 * @param strFreeSearch Search string. Must not be null.
+	 * @param iMaxHits Maximum number of hits to return.
+	 * 
+	 * @return Merged result. Never null.
+	 */
+	public FederatedResult searchMolecules(final String strFreeSearch, final int iMaxHits) {
+		return search(SearchType.FREE_TEXT, strFreeSearch, iMaxHits, 0.0f);
+	}
+
+	/**
+	 * Searches molecules based on a name on all shards.
+	 * 
+	 * @param strName Name of a molecule. Must not be null.
+	 * @param iMaxHits Maximum number of hits to return.
+	 * 
+	 * @return Merged result. Never null.
+	 */
+	public FederatedResult searchMoleculesByName(final String strName, final int iMaxHits) {
+		return search(SearchType.NAME, strName, iMaxHits, 0.0f);
+	}
+
+	/**
+	 * Searches molecules based on a canonical SMILES on all shards.
+	 * 
+	 * @param strSmiles SMILES to search for. Must not be null.
+	 * @param iMaxHits Maximum number of hits to return.
+	 * 
+	 * @return Merged result. Never null.
+	 */
+	public FederatedResult searchExactMolecules(final String strSmiles, final int iMaxHits) {
+		return search(SearchType.EXACT, strSmiles, iMaxHits, 0.0f);
+	}
+
+	/**
+	 * Searches molecules based on fingerprint matches on all shards.
+	 * 
+	 * @param strSmiles SMILES to search for. Must not be null.
+	 * @param iMaxHits Maximum number of hits to return.
+	 * 
+	 * @return Merged result. Never null.
+	 */
+	public FederatedResult searchMoleculesByFingerprintMatch(final String strSmiles, final int iMaxHits) {
+		return search(SearchType.FINGERPRINT, strSmiles, iMaxHits, 0.0f);
+	}
+
+	/**
+	 * Searches molecules which contain the passed in molecule as a substructure on all shards.
+	 * 
+	 * @param strSmiles SMILES to search for. Must not be null.
+	 * @param iMaxHits Maximum number of hits to return.
+	 * 
+	 * @return Merged result. Never null.
+	 */
+	public FederatedResult searchMoleculesWithSubstructure(final String strSmiles, final int iMaxHits) {
+		return search(SearchType.SUBSTRUCTURE, strSmiles, iMaxHits, 0.0f);
+	}
+
+	/**
+	 * Searches the molecules that are most similar to the passed in molecule on all shards.
+	 * 
+	 * @param strSmiles SMILES to search for. Must not be null.
+	 * @param fThreshold Minimum Tanimoto similarity of hits (0.0 - 1.0).
+	 * @param iMaxHits Maximum number of hits to return.
+	 * 
+	 * @return Merged result ordered by descending similarity. Never null.
+	 */
+	public FederatedResult searchMoleculesBySimilarity(final String strSmiles, final float fThreshold,
+			final int iMaxHits) {
+		return search(SearchType.SIMILARITY, strSmiles, iMaxHits, fThreshold);
+	}
+
+	/**
+	 * Sends a search to all shards in parallel and merges the answers that
+	 * arrive within the timeout.
+	 * 
+	 * @param searchType Search type. Must not be null.
+	 * @param strQuery Query. Must not be null.
+	 * @param iMaxHits Maximum number of hits to return.
+	 * @param fThreshold Similarity threshold. Only used for similarity searches.
+	 * 
+	 * @return Merged result. Never null. Shards that failed or timed out are
+	 * 		listed as missing shards.
+	 */
+	public FederatedResult search(final SearchType searchType, final String strQuery, final int iMaxHits,
+			final float fThreshold) {
+		final Request request = new Request(m_alRequestIds.incrementAndGet(), searchType, strQuery,
+				iMaxHits, fThreshold);
+		final long lDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(m_lTimeout);
+
+		final List<Future<Response>> listFutures = new ArrayList<Future<Response>>(m_arrShards.length);
+		for (int i = 0; i < m_arrShards.length; i++) {
+			final int iShard = i;
+			listFutures.add(m_executor.submit(new Callable<Response>() {
+				@Override
+				public Response call() throws Exception {
+					return send(iShard, request);
+				}
+			}));
+		}
+
+		final Response[] arrResponses = new Response[m_arrShards.length];
+		for (int iShard = 0; iShard < m_arrShards.length; iShard++) {
+			final Future<Response> future = listFutures.get(iShard);
+			try {
+				arrResponses[iShard] = future.get(Math.max(0, lDeadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+				if (arrResponses[iShard].isError()) {
+					LOGGER.log(Level.WARNING, "Shard " + m_arrShards[iShard] + " failed: " + arrResponses[iShard].getError());
+				}
+			}
+			catch (final TimeoutException exc) {
+				// Interrupting the request closes its connection
+				future.cancel(true);
+				LOGGER.log(Level.WARNING, "Shard " + m_arrShards[iShard] + " did not answer within " + m_lTimeout + " ms.");
+			}
+			catch (final ExecutionException exc) {
+				LOGGER.log(Level.WARNING, "Shard " + m_arrShards[iShard] + " could not be searched.", exc.getCause());
+			}
+			catch (final InterruptedException exc) {
+				Thread.currentThread().interrupt();
+				for (final Future<Response> futureOther : listFutures) {
+					futureOther.cancel(true);
+				}
+				break;
+			}
+		}
+
+		return new FederatedResult(arrResponses, iMaxHits);
+	}
+
+	/**
+	 * Closes all idle connections and stops the request threads.
+	 */
+	public void close() {
+		m_executor.shutdownNow();
+		for (final ConcurrentLinkedQueue<SocketChannel> queue : m_listIdleConnections) {
+			SocketChannel channel;
+			while ((channel = queue.poll()) != null) {
+				closeQuietly(channel);
+			}
+		}
+	}
+
+	//
+	// Protected Methods
+	//
+
+	/**
+	 * Sends a request to a shard and waits for its response. The connection
+	 * is reused for later requests, unless the request failed.
+	 * 
+	 * @param iShard Index of the shard.
+	 * @param request Request. Must not be null.
+	 * 
+	 * @return Response of the shard.
+	 * 
+	 * @throws IOException Thrown, if the shard could not be reached or the
+	 * 		request got interrupted.
+	 */
+	protected Response send(final int iShard, final Request request) throws IOException {
+		SocketChannel channel = m_listIdleConnections.get(iShard).poll();
+		if (channel == null) {
+			channel = SocketChannel.open();
+			try {
+				channel.socket().setTcpNoDelay(true);
+				channel.socket().connect(m_arrShards[iShard], CONNECT_TIMEOUT);
+			}
+			catch (final IOException exc) {
+				closeQuietly(channel);
+				throw exc;
+			}
+		}
+
+		boolean bReusable = false;
+		try {
+			FederationProtocol.writeRequest(channel, request);
+			final Response response = FederationProtocol.readResponse(channel);
+			if (response.getRequestId() != request.getRequestId()) {
+				throw new IOException("Response " + response.getRequestId() + " does not belong to request " +
+						request.getRequestId() + ".");
+			}
+			bReusable = true;
+			return response;
+		}
+		finally {
+			if (bReusable) {
+				m_listIdleConnections.get(iShard).offer(channel);
+			}
+			else {
+				closeQuietly(channel);
+			}
+		}
+	}
+
+	//
+	// Private Methods
+	//
+
+	/**
+	 * Closes a connection and ignores failures.
+	 * 
+	 * @param channel Connection. Must not be null.
+	 */
+	private void closeQuietly(final SocketChannel channel) {
+		try {
+			channel.close();
+		}
+		catch (final IOException exc) {
+			// Ignored
+		}
+	}
+
+	//
+	// Static Public Methods
+	//
+
+	/**
+	 * Runs a single federated search and prints its result, e.g. to try out
+	 * several shard servers running on localhost.
+	 * 
+	 * @param args Comma-separated shard addresses (host:port), search type,
+	 * 		query and optionally maximum number of hits, timeout in milliseconds
+	 * 		and similarity threshold.
+	 */
+	public static void main(final String[] args) {
+		if (args.length < 3) {
+			System.out.println("Usage: FederatedSearchClient <host:port,host:port,...> <" +
+					Arrays.toString(SearchType.values()) + "> <query> [max hits] [timeout ms] [threshold]");
+			System.exit(1);
+		}
+
+		final String[] arrAddresses = args[0].split(",");
+		final InetSocketAddress[] arrShards = new InetSocketAddress[arrAddresses.length];
+		for (int i = 0; i < arrAddresses.length; i++) {
+			final String strAddress = arrAddresses[i].trim();
+			final int iColon = strAddress.lastIndexOf(':');
+			arrShards[i] = (iColon < 0 ? new InetSocketAddress("localhost", Integer.parseInt(strAddress)) :
+				new InetSocketAddress(strAddress.substring(0, iColon), Integer.parseInt(strAddress.substring(iColon + 1))));
+		}
+		final SearchType searchType = SearchType.valueOf(args[1]);
+		final int iMaxHits = (args.length > 3 ? Integer.parseInt(args[3]) : 100);
+		final long lTimeout = (args.length > 4 ? Long.parseLong(args[4]) : DEFAULT_TIMEOUT);
+		final float fThreshold = (args.length > 5 ? Float.parseFloat(args[5]) : 0.8f);
+
+		final FederatedSearchClient client = new FederatedSearchClient(arrShards, lTimeout);
+		try {
+			final long lStart = System.currentTimeMillis();
+			final FederatedResult result = client.search(searchType, args[2], iMaxHits, fThreshold);
+			final long lTime = System.currentTimeMillis() - lStart;
+
+			for (final FederatedResult.Hit hit : result.getHits()) {
+				System.out.println(hit);
+			}
+			System.out.println(result.getHits().length + " of " + result.getTotalHits() + " hits in " + lTime + " ms." +
+					(result.isComplete() ? "" : " Missing shards: " + Arrays.toString(result.getMissingShards())));
+		}
+		finally {
+			client.close();
+		}
+	}
+}
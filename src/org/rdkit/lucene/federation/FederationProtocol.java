@@ -0,0 +1,603 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene.federation;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Binary protocol between {@link ShardServer} and {@link FederatedSearchClient}.
+ * Every message is a frame, which consists of the length of its body (int) followed
+ * by the body. A body starts with {@link #MAGIC} and {@link #VERSION}, followed by
+ * the request id (long), so responses can be matched with their requests.
+ * <p>
+ * Request body: search type (byte), maximum number of hits (int), similarity
+ * threshold (float) and query (string).<br>
+ * Response body: status (byte). If OK: total hit count (int), number of hits (int)
+ * and per hit score (float), document id (int) and primary key (string, empty if unknown).
+ * Otherwise: error message (string).<br>
+ * Strings are encoded as number of bytes (int) followed by UTF-8 bytes. All numbers
+ * are big endian.
+ */
+public final class FederationProtocol {
+
+	//
+	// Constants
+	//
+
+	/** Marks the start of every frame body ("RDKL"). */
+	public static final int MAGIC = 0x52444B4C;
+
+	/** Version of the protocol. */
+	public static final byte VERSION = 1;
+
+	/** Maximum size of a frame body. Protects against corrupt length fields. */
+	public static final int MAX_FRAME_SIZE = 256 * 1024 * 1024;
+
+	/** Status of a successful response. */
+	public static final byte STATUS_OK = 0;
+
+	/** Status of a failed response. */
+	public static final byte STATUS_ERROR = 1;
+
+	/** Encoding of strings. */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Size of magic, version and request id. */
+	private static final int HEADER_SIZE = 4 + 1 + 8;
+
+	//
+	// Inner Classes
+	//
+
+	/**
+	 * The search types that shard servers offer.
+	 */
+	public enum SearchType {
+		/** Free text search (see ChemicalIndex.searchMolecules()). */
+		FREE_TEXT,
+
+		/** Name search (see ChemicalIndex.searchMoleculesByName()). */
+		NAME,
+
+		/** Exact structure search (see ChemicalIndex.searchExactMolecules()). */
+		EXACT,
+
+		/** Fingerprint search (see ChemicalIndex.searchMoleculesByFingerprintMatch()). */
+		FINGERPRINT,
+
+		/** Substructure search (see ChemicalIndex.searchMoleculesWithSubstructure()). */
+		SUBSTRUCTURE,
+
+		/** Similarity search (see ChemicalIndex.searchMoleculesBySimilarity()). */
+		SIMILARITY
+	}
+
+	/**
+	 * A search request.
+	 */
+	public static class Request {
+
+		/** The request id. */
+		private final long m_lRequestId;
+
+		/** The search type. */
+		private final SearchType m_searchType;
+
+		/** The query. */
+		private final String m_strQuery;
+
+		/** The maximum number of hits. */
+		private final int m_iMaxHits;
+
+		/** The similarity threshold. Only used for similarity searches. */
+		private final float m_fThreshold;
+
+		/**
+		 * Creates a new request.
+		 * 
+		 * @param lRequestId Request id.
+		 * @param searchType Search type. Must not be null.
+		 * @param strQuery Query, e.g. SMILES. Must not be null.
+		 * @param iMaxHits Maximum number of hits.
+		 * @param fThreshold Similarity threshold. Only used for similarity searches.
+		 */
+		public Request(final long lRequestId, final SearchType searchType, final String strQuery,
+				final int iMaxHits, final float fThreshold) {
+			if (searchType == null) {
+				throw new IllegalArgumentException("Search type must not be null.");
+			}
+			if (strQuery == null) {
+				throw new IllegalArgumentException("Query must not be null.");
+			}
+
+			m_lRequestId = lRequestId;
+			m_searchType = searchType;
+			m_strQuery = strQuery;
+			m_iMaxHits = iMaxHits;
+			m_fThreshold = fThreshold;
+		}
+
+		/**
+		 * Returns the request id.
+		 * 
+		 * @return Request id.
+		 */
+		public long getRequestId() {
+			return m_lRequestId;
+		}
+
+		/**
+		 * Returns the search type.
+		 * 
+		 * @return Search type.
+		 */
+		public SearchType getSearchType() {
+			return m_searchType;
+		}
+
+		/**
+		 * Returns the query.
+		 * 
+		 * @return Query.
+		 */
+		public String getQuery() {
+			return m_strQuery;
+		}
+
+		/**
+		 * Returns the maximum number of hits.
+		 * 
+		 * @return Maximum number of hits.
+		 */
+		public int getMaxHits() {
+			return m_iMaxHits;
+		}
+
+		/**
+		 * Returns the similarity threshold.
+		 * 
+		 * @return Similarity threshold.
+		 */
+		public float getThreshold() {
+			return m_fThreshold;
+		}
+	}
+
+	/**
+	 * The response of a shard to a search request.
+	 */
+	public static class Response {
+
+		/** The id of the answered request. */
+		private final long m_lRequestId;
+
+		/** The error message or null, if the search succeeded. */
+		private final String m_strError;
+
+		/** The total number of hits of the shard. */
+		private final int m_iTotalHits;
+
+		/** The scores of the returned hits. */
+		private final float[] m_arrScores;
+
+		/** The document ids of the returned hits within the shard. */
+		private final int[] m_arrDocs;
+
+		/** The primary keys of the returned hits. Contains null for unknown keys. */
+		private final String[] m_arrPKs;
+
+		/**
+		 * Creates a successful response.
+		 * 
+		 * @param lRequestId Id of the answered request.
+		 * @param iTotalHits Total number of hits of the shard.
+		 * @param arrScores Scores of the returned hits. Must not be null.
+		 * @param arrDocs Document ids of the returned hits. Must not be null.
+		 * @param arrPKs Primary keys of the returned hits. Must not be null.
+		 */
+		public Response(final long lRequestId, final int iTotalHits, final float[] arrScores,
+				final int[] arrDocs, final String[] arrPKs) {
+			if (arrScores.length != arrDocs.length || arrScores.length != arrPKs.length) {
+				throw new IllegalArgumentException("Scores, documents and primary keys must have the same length.");
+			}
+
+			m_lRequestId = lRequestId;
+			m_strError = null;
+			m_iTotalHits = iTotalHits;
+			m_arrScores = arrScores;
+			m_arrDocs = arrDocs;
+			m_arrPKs = arrPKs;
+		}
+
+		/**
+		 * Creates a failed response.
+		 * 
+		 * @param lRequestId Id of the answered request.
+		 * @param strError Error message. Must not be null.
+		 */
+		public Response(final long lRequestId, final String strError) {
+			if (strError == null) {
+				throw new IllegalArgumentException("Error message must not be null.");
+			}
+
+			m_lRequestId = lRequestId;
+			m_strError = strError;
+			m_iTotalHits = 0;
+			m_arrScores = new float[0];
+			m_arrDocs = new int[0];
+			m_arrPKs = new String[0];
+		}
+
+		/**
+		 * Returns the request id.
+		 * 
+		 * @return Request id.
+		 */
+		public long getRequestId() {
+			return m_lRequestId;
+		}
+
+		/**
+		 * Determines, if the search failed.
+		 * 
+		 * @return True, if the search failed.
+		 */
+		public boolean isError() {
+			return m_strError != null;
+		}
+
+		/**
+		 * Returns the error message.
+		 * 
+		 * @return Error message or null, if the search succeeded.
+		 */
+		public String getError() {
+			return m_strError;
+		}
+
+		/**
+		 * Returns the total number of hits of the shard, which can
+		 * be larger than the number of returned hits.
+		 * 
+		 * @return Total number of hits.
+		 */
+		public int getTotalHits() {
+			return m_iTotalHits;
+		}
+
+		/**
+		 * Returns the number of returned hits.
+		 * 
+		 * @return Number of hits.
+		 */
+		public int size() {
+			return m_arrScores.length;
+		}
+
+		/**
+		 * Returns the score of a hit.
+		 * 
+		 * @param iHit Index of the hit.
+		 * 
+		 * @return Score.
+		 */
+		public float getScore(final int iHit) {
+			return m_arrScores[iHit];
+		}
+
+		/**
+		 * Returns the document id of a hit within the shard.
+		 * 
+		 * @param iHit Index of the hit.
+		 * 
+		 * @return Document id.
+		 */
+		public int getDoc(final int iHit) {
+			return m_arrDocs[iHit];
+		}
+
+		/**
+		 * Returns the primary key of a hit.
+		 * 
+		 * @param iHit Index of the hit.
+		 * 
+		 * @return Primary key or null, if unknown.
+		 */
+		public String getPrimaryKey(final int iHit) {
+			return m_arrPKs[iHit];
+		}
+	}
+
+	//
+	// Static Public Methods
+	//
+
+	/**
+	 * Writes a request frame.
+	 * 
+	 * @param channel Channel to write to. Must not be null.
+	 * @param request Request. Must not be null.
+	 * 
+	 * @throws IOException Thrown, if the frame could not be written.
+	 */
+	public static void writeRequest(final WritableByteChannel channel, final Request request) throws IOException {
+		final byte[] arrQuery = request.getQuery().getBytes(UTF8);
+		final ByteBuffer buffer = createFrame(1 + 4 + 4 + 4 + arrQuery.length, request.getRequestId());
+		buffer.put((byte)request.getSearchType().ordinal());
+		buffer.putInt(request.getMaxHits());
+		buffer.putFloat(request.getThreshold());
+		buffer.putInt(arrQuery.length);
+		buffer.put(arrQuery);
+		writeFrame(channel, buffer);
+	}
+
+	/**
+	 * Reads a request frame.
+	 * 
+	 * @param channel Channel to read from. Must not be null.
+	 * 
+	 * @return Request or null, if the channel reached its end before a new frame.
+	 * 
+	 * @throws IOException Thrown, if the frame could not be read or is invalid.
+	 */
+	public static Request readRequest(final ReadableByteChannel channel) throws IOException {
+		final ByteBuffer buffer = readFrame(channel);
+		if (buffer == null) {
+			return null;
+		}
+
+		final long lRequestId = buffer.getLong();
+		final int iSearchType = buffer.get();
+		if (iSearchType < 0 || iSearchType >= SearchType.values().length) {
+			throw new IOException("Unknown search type " + iSearchType + ".");
+		}
+		final int iMaxHits = buffer.getInt();
+		final float fThreshold = buffer.getFloat();
+		final String strQuery = getString(buffer);
+
+		return new Request(lRequestId, SearchType.values()[iSearchType], strQuery, iMaxHits, fThreshold);
+	}
+
+	/**
+	 * Writes a response frame.
+	 * 
+	 * @param channel Channel to write to. Must not be null.
+	 * @param response Response. Must not be null.
+	 * 
+	 * @throws IOException Thrown, if the frame could not be written.
+	 */
+	public static void writeResponse(final WritableByteChannel channel, final Response response) throws IOException {
+		ByteBuffer buffer;
+
+		if (response.isError()) {
+			final byte[] arrError = response.getError().getBytes(UTF8);
+			buffer = createFrame(1 + 4 + arrError.length, response.getRequestId());
+			buffer.put(STATUS_ERROR);
+			buffer.putInt(arrError.length);
+			buffer.put(arrError);
+		}
+		else {
+			final int iSize = response.size();
+			final byte[][] arrPKs = new byte[iSize][];
+			int iBodySize = 1 + 4 + 4;
+			for (int i = 0; i < iSize; i++) {
+				final String strPK = response.getPrimaryKey(i);
+				arrPKs[i] = (strPK == null ? new byte[0] : strPK.getBytes(UTF8));
+				iBodySize += 4 + 4 + 4 + arrPKs[i].length;
+			}
+
+			buffer = createFrame(iBodySize, response.getRequestId());
+			buffer.put(STATUS_OK);
+			buffer.putInt(response.getTotalHits());
+			buffer.putInt(iSize);
+			for (int i = 0; i < iSize; i++) {
+				buffer.putFloat(response.getScore(i));
+				buffer.putInt(response.getDoc(i));
+				buffer.putInt(arrPKs[i].length);
+				buffer.put(arrPKs[i]);
+			}
+		}
+
+		writeFrame(channel, buffer);
+	}
+
+	/**
+	 * Reads a response frame.
+	 * 
+	 * @param channel Channel to read from. Must not be null.
+	 * 
+	 * @return Response.
+	 * 
+	 * @throws IOException Thrown, if the frame could not be read, is invalid
+	 * 		or if the channel reached its end.
+	 */
+	public static Response readResponse(final ReadableByteChannel channel) throws IOException {
+		final ByteBuffer buffer = readFrame(channel);
+		if (buffer == null) {
+			throw new EOFException("Connection closed by shard server.");
+		}
+
+		final long lRequestId = buffer.getLong();
+		final byte status = buffer.get();
+		if (status != STATUS_OK) {
+			return new Response(lRequestId, getString(buffer));
+		}
+
+		final int iTotalHits = buffer.getInt();
+		final int iSize = buffer.getInt();
+		if (iSize < 0 || iSize > buffer.remaining() / 12) {
+			throw new IOException("Invalid number of hits " + iSize + ".");
+		}
+		final float[] arrScores = new float[iSize];
+		final int[] arrDocs = new int[iSize];
+		final String[] arrPKs = new String[iSize];
+		for (int i = 0; i < iSize; i++) {
+			arrScores[i] = buffer.getFloat();
+			arrDocs[i] = buffer.getInt();
+			final String strPK = getString(buffer);
+			arrPKs[i] = (strPK.isEmpty() ? null : strPK);
+		}
+
+		return new Response(lRequestId, iTotalHits, arrScores, arrDocs, arrPKs);
+	}
+
+	//
+	// Static Private Methods
+	//
+
+	/**
+	 * Creates a buffer for a frame and fills in length and header.
+	 * 
+	 * @param iPayloadSize Size of the body without header.
+	 * @param lRequestId Request id.
+	 * 
+	 * @return Buffer positioned behind the header.
+	 */
+	private static ByteBuffer createFrame(final int iPayloadSize, final long lRequestId) {
+		final ByteBuffer buffer = ByteBuffer.allocate(4 + HEADER_SIZE + iPayloadSize);
+		buffer.putInt(HEADER_SIZE + iPayloadSize);
+		buffer.putInt(MAGIC);
+		buffer.put(VERSION);
+		buffer.putLong(lRequestId);
+		return buffer;
+	}
+
+	/**
+	 * Writes a complete frame.
+	 * 
+	 * @param channel Channel to write to. Must not be null.
+	 * @param buffer Filled frame buffer. Must not be null.
+	 * 
+	 * @throws IOException Thrown, if the frame could not be written.
+	 */
+	private static void writeFrame(final WritableByteChannel channel, final ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Reads a complete frame and checks its header.
+	 * 
+	 * @param channel Channel to read from. Must not be null.
+	 * 
+	 * @return Body of the frame positioned behind magic and version,
+	 * 		or null, if the channel reached its end before the frame started.
+	 * 
+	 * @throws IOException Thrown, if the frame could not be read or is invalid.
+	 */
+	private static ByteBuffer readFrame(final ReadableByteChannel channel) throws IOException {
+		final ByteBuffer bufferLength = ByteBuffer.allocate(4);
+		if (!readFully(channel, bufferLength, true)) {
+			return null;
+		}
+
+		final int iLength = bufferLength.getInt();
+		if (iLength < HEADER_SIZE || iLength > MAX_FRAME_SIZE) {
+			throw new IOException("Invalid frame length " + iLength + ".");
+		}
+
+		final ByteBuffer buffer = ByteBuffer.allocate(iLength);
+		readFully(channel, buffer, false);
+		if (buffer.getInt() != MAGIC) {
+			throw new IOException("Invalid frame. The peer does not speak the federation protocol.");
+		}
+		final byte version = buffer.get();
+		if (version != VERSION) {
+			throw new IOException("Unsupported protocol version " + version + ".");
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * Fills the passed in buffer from the channel and flips it.
+	 * 
+	 * @param channel Channel to read from. Must not be null.
+	 * @param buffer Buffer to fill. Must not be null.
+	 * @param bEndAllowed True, if the channel may end before the first byte.
+	 * 
+	 * @return True, if the buffer was filled. False, if the channel ended before the first byte.
+	 * 
+	 * @throws IOException Thrown, if reading failed or the channel ended within the buffer.
+	 */
+	private static boolean readFully(final ReadableByteChannel channel, final ByteBuffer buffer,
+			final boolean bEndAllowed) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				if (bEndAllowed && buffer.position() == 0) {
+					return false;
+				}
+				throw new EOFException("Connection closed within a frame.");
+			}
+		}
+		buffer.flip();
+		return true;
+	}
+
+	/**
+	 * Reads a string.
+	 * 
+	 * @param buffer Buffer to read from. Must not be null.
+	 * 
+	 * @return String. Not null.
+	 * 
+	 * @throws IOException Thrown, if the string length is invalid.
+	 */
+	private static String getString(final ByteBuffer buffer) throws IOException {
+		final int iLength = buffer.getInt();
+		if (iLength < 0 || iLength > buffer.remaining()) {
+			throw new IOException("Invalid string length " + iLength + ".");
+		}
+		final byte[] arrBytes = new byte[iLength];
+		buffer.get(arrBytes);
+		return new String(arrBytes, UTF8);
+	}
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * This constructor serves only the purpose to avoid instantiation of this class.
+	 */
+	private FederationProtocol() {
+		// To avoid instantiation of this class.
+	}
+}
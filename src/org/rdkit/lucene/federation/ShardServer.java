@@ -0,0 +1,401 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene.federation;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopDocsCollector;
+import org.rdkit.lucene.ChemicalIndex;
+import org.rdkit.lucene.StandardAnalyzerFactory;
+import org.rdkit.lucene.bin.RDKit;
+import org.rdkit.lucene.federation.FederationProtocol.Request;
+import org.rdkit.lucene.federation.FederationProtocol.Response;
+import org.rdkit.lucene.fingerprint.DefaultFingerprintFactory;
+import org.rdkit.lucene.fingerprint.DefaultFingerprintSettings;
+import org.rdkit.lucene.fingerprint.FingerprintType;
+import org.rdkit.lucene.store.DirectoryType;
+
+/**
+ * Serves searches of a {@link ChemicalIndex} over the {@link FederationProtocol},
+ * so a {@link FederatedSearchClient} can search a collection that is spread over
+ * several machines. Every connection is served by its own thread and may send
+ * any number of requests one after the other. Every request is answered with
+ * the top hits of a regular search. The hits carry their primary keys (see
+ * {@link org.rdkit.lucene.cache.PrimaryKeyScoreDoc}), which the searcher that found them resolved, so
+ * they stay consistent with the hits, even if the index changes meanwhile. No
+ * searcher is kept open after a response, and cached results are used as well.
+ * <p>
+ * Run {@link #main(String[])} to start a shard server process.
+ */
+public class ShardServer {
+
+	//
+	// Constants
+	//
+
+	/** The logger instance. */
+	private static final Logger LOGGER = Logger.getLogger(ShardServer.class.getName());
+
+	//
+	// Members
+	//
+
+	/** The index to be searched. */
+	private final ChemicalIndex m_index;
+
+	/** The address to listen on. */
+	private final InetSocketAddress m_address;
+
+	/** The channel accepting connections. Null, if not running. */
+	private ServerSocketChannel m_serverChannel;
+
+	/** The threads serving connections. Null, if not running. */
+	private ExecutorService m_connectionExecutor;
+
+	/** All open client connections. */
+	private final Set<SocketChannel> m_setConnections;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new shard server. It needs to be started to accept connections.
+	 * 
+	 * @param index Index to be searched. Must not be null.
+	 * @param address Address to listen on. Port 0 picks a free port. Must not be null.
+	 */
+	public ShardServer(final ChemicalIndex index, final InetSocketAddress address) {
+		if (index == null) {
+			throw new IllegalArgumentException("Index must not be null.");
+		}
+		if (address == null) {
+			throw new IllegalArgumentException("Address must not be null.");
+		}
+
+		m_index = index;
+		m_address = address;
+		m_serverChannel = null;
+		m_connectionExecutor = null;
+		m_setConnections = new HashSet<SocketChannel>();
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Starts accepting connections in a background thread.
+	 * 
+	 * @throws IOException Thrown, if the address could not be bound.
+	 */
+	public synchronized void start() throws IOException {
+		if (m_serverChannel != null) {
+			return;
+		}
+
+		final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(m_address);
+
+		final AtomicInteger aiThreadNumber = new AtomicInteger();
+		m_connectionExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, "ShardServer-Connection-" + aiThreadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		m_serverChannel = serverChannel;
+
+		final Thread threadAccept = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept(serverChannel);
+			}
+		}, "ShardServer-Accept");
+		threadAccept.setDaemon(true);
+		threadAccept.start();
+
+		LOGGER.log(Level.INFO, "Shard server listening on port " + getPort() + ".");
+	}
+
+	/**
+	 * Stops accepting connections and closes all open connections. Running
+	 * searches finish, but their responses get lost.
+	 */
+	public synchronized void stop() {
+		if (m_serverChannel == null) {
+			return;
+		}
+
+		try {
+			m_serverChannel.close();
+		}
+		catch (final IOException exc) {
+			LOGGER.log(Level.WARNING, "Server channel could not be closed.", exc);
+		}
+		m_serverChannel = null;
+
+		synchronized (m_setConnections) {
+			for (final SocketChannel channel : m_setConnections) {
+				closeQuietly(channel);
+			}
+			m_setConnections.clear();
+		}
+
+		m_connectionExecutor.shutdown();
+		m_connectionExecutor = null;
+	}
+
+	/**
+	 * Returns the port the server listens on.
+	 * 
+	 * @return Port or -1, if the server is not running.
+	 */
+	public synchronized int getPort() {
+		return (m_serverChannel == null ? -1 : m_serverChannel.socket().getLocalPort());
+	}
+
+	//
+	// Protected Methods
+	//
+
+	/**
+	 * Accepts connections until the server channel gets closed.
+	 * 
+	 * @param serverChannel Server channel. Must not be null.
+	 */
+	protected void accept(final ServerSocketChannel serverChannel) {
+		while (serverChannel.isOpen()) {
+			try {
+				final SocketChannel channel = serverChannel.accept();
+				channel.socket().setTcpNoDelay(true);
+
+				final ExecutorService executor;
+				synchronized (this) {
+					executor = m_connectionExecutor;
+				}
+				if (executor == null) {
+					closeQuietly(channel);
+					break;
+				}
+				synchronized (m_setConnections) {
+					m_setConnections.add(channel);
+				}
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						serve(channel);
+					}
+				});
+			}
+			catch (final ClosedChannelException exc) {
+				// Server got stopped
+				break;
+			}
+			catch (final IOException exc) {
+				LOGGER.log(Level.WARNING, "Connection could not be accepted.", exc);
+			}
+		}
+	}
+
+	/**
+	 * Answers requests of a connection until the client closes it.
+	 * 
+	 * @param channel Client connection. Must not be null.
+	 */
+	protected void serve(final SocketChannel channel) {
+		try {
+			Request request;
+			while ((request = FederationProtocol.readRequest(channel)) != null) {
+				FederationProtocol.writeResponse(channel, search(request));
+			}
+		}
+		catch (final IOException exc) {
+			LOGGER.log(Level.FINE, "Connection to " + channel.socket().getRemoteSocketAddress() + " failed.", exc);
+		}
+		catch (final RuntimeException exc) {
+			LOGGER.log(Level.WARNING, "Invalid request from " + channel.socket().getRemoteSocketAddress() + ".", exc);
+		}
+		finally {
+			synchronized (m_setConnections) {
+				m_setConnections.remove(channel);
+			}
+			closeQuietly(channel);
+		}
+	}
+
+	/**
+	 * Runs the search of a request on the index.
+	 * 
+	 * @param request Request. Must not be null.
+	 * 
+	 * @return Response with the hits or the error.
+	 */
+	protected Response search(final Request request) {
+		try {
+			final String strQuery = request.getQuery();
+			final int iMaxHits = request.getMaxHits();
+			TopDocsCollector<ScoreDoc> collector = null;
+
+			switch (request.getSearchType()) {
+			case FREE_TEXT:
+				collector = m_index.searchMolecules(strQuery, iMaxHits);
+				break;
+			case NAME:
+				collector = m_index.searchMoleculesByName(strQuery, iMaxHits);
+				break;
+			case EXACT:
+				collector = m_index.searchExactMolecules(strQuery, iMaxHits);
+				break;
+			case FINGERPRINT:
+				collector = m_index.searchMoleculesByFingerprintMatch(strQuery, iMaxHits);
+				break;
+			case SUBSTRUCTURE:
+				collector = m_index.searchMoleculesWithSubstructure(strQuery, iMaxHits);
+				break;
+			case SIMILARITY:
+				collector = m_index.searchMoleculesBySimilarity(strQuery, request.getThreshold(), iMaxHits);
+				break;
+			}
+
+			if (collector == null) {
+				return new Response(request.getRequestId(), "Index has been shutdown.");
+			}
+
+			// Hits carry the primary keys resolved by the searcher that found them
+			final TopDocs topDocs = collector.topDocs();
+			final ScoreDoc[] arrScoreDocs = (topDocs.scoreDocs == null ? new ScoreDoc[0] : topDocs.scoreDocs);
+			final float[] arrScores = new float[arrScoreDocs.length];
+			final int[] arrDocs = new int[arrScoreDocs.length];
+			for (int i = 0; i < arrScoreDocs.length; i++) {
+				arrScores[i] = arrScoreDocs[i].score;
+				arrDocs[i] = arrScoreDocs[i].doc;
+			}
+
+			return new Response(request.getRequestId(), topDocs.totalHits, arrScores, arrDocs,
+					m_index.getPrimaryKeys(arrScoreDocs));
+		}
+		catch (final Exception exc) {
+			LOGGER.log(Level.WARNING, request.getSearchType() + " search for '" + request.getQuery() + "' failed.", exc);
+			return new Response(request.getRequestId(), exc.getClass().getSimpleName() + ": " + exc.getMessage());
+		}
+	}
+
+	//
+	// Private Methods
+	//
+
+	/**
+	 * Closes a connection and ignores failures.
+	 * 
+	 * @param channel Connection. Must not be null.
+	 */
+	private void closeQuietly(final SocketChannel channel) {
+		try {
+			channel.close();
+		}
+		catch (final IOException exc) {
+			// Ignored
+		}
+	}
+
+	//
+	// Static Public Methods
+	//
+
+	/**
+	 * Starts a shard server for an existing index and serves it until the
+	 * process gets terminated. Several shard servers can run on the same
+	 * machine with different ports, e.g. to try out federated searches.
+	 * 
+	 * @param args Index directory, port and optionally the directory type
+	 * 		(NIOFS, MMAP or RAM - default is NIOFS).
+	 */
+	public static void main(final String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("Usage: ShardServer <index directory> <port> [NIOFS|MMAP|RAM]");
+			System.exit(1);
+		}
+
+		RDKit.activate();
+
+		final File dirIndex = new File(args[0]);
+		final int iPort = Integer.parseInt(args[1]);
+		final DirectoryType directoryType = (args.length > 2 ? DirectoryType.valueOf(args[2]) : DirectoryType.NIOFS);
+
+		// Fingerprint settings must be the same as the ones used when indexing
+		final ChemicalIndex index = new ChemicalIndex(directoryType.open(dirIndex),
+				new StandardAnalyzerFactory(),
+				new DefaultFingerprintFactory(new DefaultFingerprintSettings(FingerprintType.avalon).setNumBits(512)),
+				null);
+		final ShardServer server = new ShardServer(index, new InetSocketAddress(iPort));
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				server.stop();
+				try {
+					index.shutdown();
+				}
+				catch (final IOException exc) {
+					LOGGER.log(Level.SEVERE, "Index could not be closed.", exc);
+				}
+			}
+		}));
+
+		server.start();
+		System.out.println("Serving " + dirIndex.getAbsolutePath() + " (" + index.getIndexedMoleculeCount() +
+				" molecules) on port " + server.getPort() + ".");
+
+		// The accepting thread is a daemon thread
+		Thread.currentThread().join();
+	}
+}
@@ -41,6 +41,7 @@ import org.RDKit.RDKFuncs;
 import org.RDKit.ROMol;
 import org.RDKit.RWMol;
 import org.rdkit.lucene.bin.RDKit;
+import org.rdkit.lucene.bin.RDKitMarshaller;
 
 /**
  * A fingerprint factory is an object that knows how to produce fingerprints for SMILES.
@@ -235,18 +236,7 @@ public class DefaultFingerprintFactory implements FingerprintFactory {
 	 * @return BitSet or null, if null was passed in.
 	 */
 	private BitSet convert(final ExplicitBitVect rdkitBitVector) {
-		BitSet fingerprint = null;
-
-		if (rdkitBitVector != null) {
-			final int iLength = (int)rdkitBitVector.getNumBits();
-			fingerprint = new BitSet(iLength);
-			for (int i = 0; i < iLength; i++) {
-				if (rdkitBitVector.getBit(i)) {
-					fingerprint.set(i);
-				}
-			}
-		}
-
-		return fingerprint;
+		// Transfers all bits at once instead of calling getBit() for every bit
+		return RDKitMarshaller.toBitSet(rdkitBitVector);
 	}
 }
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene.store;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+
+/**
+ * Defines how the files of an index directory are accessed. Which one is the
+ * fastest depends on the host (operating system, available memory and
+ * storage), so it should be measured rather than guessed.
+ */
+public enum DirectoryType {
+
+	/**
+	 * Reads index files with positional NIO reads, which go through the OS page cache
+	 * and copy the data into Java buffers. Scales with concurrent readers of the same file.
+	 */
+	NIOFS,
+
+	/**
+	 * Maps index files into virtual memory, so reads hit the OS page cache
+	 * directly without copying. Needs a 64 bit JVM for large indexes.
+	 */
+	MMAP,
+
+	/**
+	 * Loads a copy of all index files into the Java heap. Only suitable for
+	 * small indexes, which fit into the heap with some room to spare. Changes
+	 * are not written back to the file system.
+	 */
+	RAM;
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Opens the specified index directory with this type of access.
+	 * 
+	 * @param directory Index directory. Must not be null.
+	 * 
+	 * @return Directory instance.
+	 * 
+	 * @throws IOException Thrown, if the directory could not be opened or loaded.
+	 */
+	public Directory open(final File directory) throws IOException {
+		if (directory == null) {
+			throw new IllegalArgumentException("Directory must not be null.");
+		}
+
+		Directory dirRet = null;
+
+		switch (this) {
+		case MMAP:
+			final MMapDirectory dirMapped = new MMapDirectory(directory);
+			if (MMapDirectory.UNMAP_SUPPORTED) {
+				// Releases mappings of closed files right away instead of on garbage collection
+				dirMapped.setUseUnmap(true);
+			}
+			dirRet = dirMapped;
+			break;
+		case RAM:
+			final Directory dirFiles = new NIOFSDirectory(directory);
+			try {
+				dirRet = new RAMDirectory(dirFiles);
+			}
+			finally {
+				dirFiles.close();
+			}
+			break;
+		case NIOFS:
+		default:
+			dirRet = new NIOFSDirectory(directory);
+			break;
+		}
+
+		return dirRet;
+	}
+}
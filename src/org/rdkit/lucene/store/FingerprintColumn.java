@@ -0,0 +1,1091 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.BitSet;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+
+/**
+ * The fingerprints of all documents of a single index segment, packed as
+ * fixed width rows of long words. Row i holds the fingerprint of the
+ * segment document with the id i. A column is built once from the
+ * fingerprint postings of a segment and can be persisted next to the
+ * segment files, because segments are immutable (except for deletions,
+ * which are checked against the reader when screening).
+ * <p>
+ * The rows live outside of the Java heap: Either in a memory mapped file
+ * or - for directories that are not file system based - in direct buffers.
+ * Rows are padded to a multiple of 64 bytes and start at a 64 byte aligned
+ * file offset, so every fingerprint starts at a cache line boundary.
+ * As a single mapping cannot exceed 2 GB, large columns are split into
+ * several chunks of whole rows.
+ * <p>
+ * Behind the rows the column holds the number of set bits of every
+ * fingerprint, which is used to bound Tanimoto similarities without
+ * looking at the fingerprint itself. Finally, the documents are partitioned
+ * into buckets by their bit count: The column holds all document ids ordered
+ * by bit count together with the start of every bucket in that order, so a
+ * similarity search can visit only the buckets that may contain hits.
+ * <p>
+ * Last, every fingerprint is OR-folded into a single 64 bit word (bit i goes to
+ * bit i % 64). These words are kept in a dense array on the Java heap, so a screen
+ * can reject most fingerprints with a single AND per document before testing
+ * the full rows: If q is a subset of t, fold(q) is a subset of fold(t).
+ */
+public class FingerprintColumn {
+
+	//
+	// Constants
+	//
+
+	/** Marker at the beginning of a persisted fingerprint column. */
+	private static final int MAGIC = 0x46504331; // "FPC1"
+
+	/** Version of the persisted format. Files of other versions are rebuilt. */
+	private static final int FORMAT_VERSION = 5;
+
+	/** Size of the file header in bytes. Rows start right after it. */
+	private static final int HEADER_SIZE = 64;
+
+	/** Alignment of rows in bytes. */
+	private static final int ROW_ALIGNMENT = 64;
+
+	/** Maximum size of a single chunk in bytes. */
+	private static final int MAX_CHUNK_SIZE = 1 << 30;
+
+	/** Maximum number of document ids in a single chunk of the bucket order. */
+	private static final int MAX_ORDER_CHUNK_SIZE = MAX_CHUNK_SIZE / 4;
+
+	/** Size of the buffer used to copy rows from and to Lucene streams. */
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+	/** Byte order of persisted columns. */
+	private static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	//
+	// Members
+	//
+
+	/** Number of documents (including deleted ones) in the segment. */
+	private final int m_iMaxDoc;
+
+	/** Number of long words per fingerprint row. */
+	private final int m_iWordsPerRow;
+
+	/** Number of rows per chunk. */
+	private final int m_iRowsPerChunk;
+
+	/** Identifies the segment content this column was built from. */
+	private final long m_lChecksum;
+
+	/** All fingerprint rows, split into chunks. */
+	private final LongBuffer[] m_arrChunks;
+
+	/** Number of set bits of all fingerprints, split into chunks like the rows. */
+	private final ShortBuffer[] m_arrPopCounts;
+
+	/** Start of every bit count bucket in the bucket order plus the end of the last bucket. */
+	private final IntBuffer m_bucketStarts;
+
+	/** All document ids ordered by bit count, split into chunks. */
+	private final IntBuffer[] m_arrBucketOrder;
+
+	/** OR-folded fingerprint words of all documents. */
+	private final long[] m_arrFoldedWords;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new fingerprint column.
+	 * 
+	 * @param iMaxDoc Number of documents in the segment.
+	 * @param iWordsPerRow Number of long words per fingerprint.
+	 * @param lChecksum Checksum of the segment content.
+	 * @param arrChunks All fingerprint rows, split into chunks of
+	 * 		{@link #getRowsPerChunk(int)} rows.
+	 * @param arrPopCounts Number of set bits of all fingerprints, split into chunks
+	 * 		like the rows.
+	 * @param bucketStarts Start of every bit count bucket in the bucket order plus
+	 * 		the end of the last bucket.
+	 * @param arrBucketOrder All document ids ordered by bit count, split into chunks
+	 * 		of {@link #MAX_ORDER_CHUNK_SIZE} ids.
+	 * @param arrFoldedWords OR-folded fingerprint words of all documents.
+	 */
+	protected FingerprintColumn(final int iMaxDoc, final int iWordsPerRow, final long lChecksum,
+			final LongBuffer[] arrChunks, final ShortBuffer[] arrPopCounts,
+			final IntBuffer bucketStarts, final IntBuffer[] arrBucketOrder, final long[] arrFoldedWords) {
+		m_iMaxDoc = iMaxDoc;
+		m_iWordsPerRow = iWordsPerRow;
+		m_iRowsPerChunk = getRowsPerChunk(iWordsPerRow);
+		m_lChecksum = lChecksum;
+		m_arrChunks = arrChunks;
+		m_arrPopCounts = arrPopCounts;
+		m_bucketStarts = bucketStarts;
+		m_arrBucketOrder = arrBucketOrder;
+		m_arrFoldedWords = arrFoldedWords;
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Returns the number of documents (including deleted ones) covered by this column.
+	 * 
+	 * @return Number of documents.
+	 */
+	public int getMaxDoc() {
+		return m_iMaxDoc;
+	}
+
+	/**
+	 * Returns the number of long words every fingerprint row consists of.
+	 * This is always a multiple of 8.
+	 * 
+	 * @return Number of words per row.
+	 */
+	public int getWordsPerRow() {
+		return m_iWordsPerRow;
+	}
+
+	/**
+	 * Returns the checksum of the segment content this column was built from.
+	 * 
+	 * @return Checksum.
+	 */
+	public long getChecksum() {
+		return m_lChecksum;
+	}
+
+	/**
+	 * Determines, if all bits of the query fingerprint are also set in the fingerprint
+	 * of the specified document, which is the case when (q & ~t) == 0 for all words.
+	 * 
+	 * @param arrQuery Query fingerprint as words (see {@link #toWords(BitSet)}). Must not be null.
+	 * @param iDoc Segment document id.
+	 * 
+	 * @return True, if the document fingerprint contains all query bits.
+	 */
+	public boolean containsAll(final long[] arrQuery, final int iDoc) {
+		final LongBuffer chunk = m_arrChunks[iDoc / m_iRowsPerChunk];
+		final int iOffset = (iDoc % m_iRowsPerChunk) * m_iWordsPerRow;
+		final int iQueryWords = arrQuery.length;
+
+		for (int i = 0; i < iQueryWords; i++) {
+			final long lQuery = arrQuery[i];
+			if (lQuery != 0) {
+				if (i >= m_iWordsPerRow || (lQuery & ~chunk.get(iOffset + i)) != 0) {
+					return false;
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns the OR-folded fingerprint words of all documents, indexed by segment
+	 * document id. The array is shared and must not be changed.
+	 * 
+	 * @return Folded words.
+	 */
+	public long[] getFoldedWords() {
+		return m_arrFoldedWords;
+	}
+
+	/**
+	 * Returns the number of set bits in the fingerprint of the specified document.
+	 * 
+	 * @param iDoc Segment document id.
+	 * 
+	 * @return Number of set bits.
+	 */
+	public int getPopCount(final int iDoc) {
+		return m_arrPopCounts[iDoc / m_iRowsPerChunk].get(iDoc % m_iRowsPerChunk) & 0xffff;
+	}
+
+	/**
+	 * Returns the number of bit count buckets, which is the maximum possible
+	 * bit count plus one. Bucket i holds all documents with i set bits.
+	 * 
+	 * @return Number of buckets.
+	 */
+	public int getBucketCount() {
+		return m_bucketStarts.capacity() - 1;
+	}
+
+	/**
+	 * Returns the position of the first document of a bucket in the bucket order.
+	 * 
+	 * @param iPopCount Bit count of the bucket. Must be between 0 and {@link #getBucketCount()}.
+	 * 		For the latter the end of the last bucket is returned.
+	 * 
+	 * @return Position in the bucket order (see {@link #getDocInBucketOrder(int)}).
+	 */
+	public int getBucketStart(final int iPopCount) {
+		return m_bucketStarts.get(iPopCount);
+	}
+
+	/**
+	 * Returns the position behind the last document of a bucket in the bucket order.
+	 * 
+	 * @param iPopCount Bit count of the bucket. Must be between 0 and {@link #getBucketCount()} - 1.
+	 * 
+	 * @return Position in the bucket order (see {@link #getDocInBucketOrder(int)}).
+	 */
+	public int getBucketEnd(final int iPopCount) {
+		return m_bucketStarts.get(iPopCount + 1);
+	}
+
+	/**
+	 * Returns the document at the specified position of the bucket order, which
+	 * holds all documents ordered by bit count and within a bucket by document id.
+	 * 
+	 * @param iPosition Position between 0 and {@link #getMaxDoc()} - 1.
+	 * 
+	 * @return Segment document id.
+	 */
+	public int getDocInBucketOrder(final int iPosition) {
+		return m_arrBucketOrder[iPosition / MAX_ORDER_CHUNK_SIZE].get(iPosition % MAX_ORDER_CHUNK_SIZE);
+	}
+
+	/**
+	 * Counts the bits that are set in the query fingerprint as well as in
+	 * the fingerprint of the specified document.
+	 * 
+	 * @param arrQuery Query fingerprint as words (see {@link #toWords(BitSet)}). Must not be null.
+	 * @param iDoc Segment document id.
+	 * 
+	 * @return Number of common bits.
+	 */
+	public int countCommonBits(final long[] arrQuery, final int iDoc) {
+		final LongBuffer chunk = m_arrChunks[iDoc / m_iRowsPerChunk];
+		final int iOffset = (iDoc % m_iRowsPerChunk) * m_iWordsPerRow;
+		final int iWords = Math.min(arrQuery.length, m_iWordsPerRow);
+		int iCount = 0;
+
+		for (int i = 0; i < iWords; i++) {
+			iCount += Long.bitCount(arrQuery[i] & chunk.get(iOffset + i));
+		}
+
+		return iCount;
+	}
+
+	/**
+	 * Writes this column to the specified output.
+	 * 
+	 * @param out Output. Must not be null.
+	 * 
+	 * @throws IOException Thrown, if writing failed.
+	 */
+	public void write(final IndexOutput out) throws IOException {
+		final ByteBuffer header = createHeader(m_iMaxDoc, m_iWordsPerRow, m_lChecksum);
+		out.writeBytes(header.array(), HEADER_SIZE);
+
+		final byte[] arrBuffer = new byte[COPY_BUFFER_SIZE];
+		final ByteBuffer buffer = ByteBuffer.wrap(arrBuffer).order(BYTE_ORDER);
+		for (final LongBuffer chunk : m_arrChunks) {
+			final LongBuffer source = chunk.duplicate();
+			source.clear();
+			while (source.hasRemaining()) {
+				buffer.clear();
+				final LongBuffer target = buffer.asLongBuffer();
+				final int iWords = Math.min(target.remaining(), source.remaining());
+				for (int i = 0; i < iWords; i++) {
+					target.put(source.get());
+				}
+				out.writeBytes(arrBuffer, iWords * 8);
+			}
+		}
+		for (final ShortBuffer chunk : m_arrPopCounts) {
+			final ShortBuffer source = chunk.duplicate();
+			source.clear();
+			while (source.hasRemaining()) {
+				buffer.clear();
+				final ShortBuffer target = buffer.asShortBuffer();
+				final int iCounts = Math.min(target.remaining(), source.remaining());
+				for (int i = 0; i < iCounts; i++) {
+					target.put(source.get());
+				}
+				out.writeBytes(arrBuffer, iCounts * 2);
+			}
+		}
+
+		// Pad the bit counts, so the bucket index is aligned
+		final long lPadding = getBucketOffset(m_iMaxDoc, m_iWordsPerRow) -
+				getPopCountOffset(m_iMaxDoc, m_iWordsPerRow) - (long)m_iMaxDoc * 2;
+		for (long l = 0; l < lPadding; l++) {
+			out.writeByte((byte)0);
+		}
+
+		final IntBuffer[] arrBucketIndex = new IntBuffer[m_arrBucketOrder.length + 1];
+		arrBucketIndex[0] = m_bucketStarts;
+		System.arraycopy(m_arrBucketOrder, 0, arrBucketIndex, 1, m_arrBucketOrder.length);
+		for (final IntBuffer chunk : arrBucketIndex) {
+			final IntBuffer source = chunk.duplicate();
+			source.clear();
+			while (source.hasRemaining()) {
+				buffer.clear();
+				final IntBuffer target = buffer.asIntBuffer();
+				final int iInts = Math.min(target.remaining(), source.remaining());
+				for (int i = 0; i < iInts; i++) {
+					target.put(source.get());
+				}
+				out.writeBytes(arrBuffer, iInts * 4);
+			}
+		}
+
+		// Pad the bucket index, so the folded words are aligned
+		final long lFoldPadding = getFoldOffset(m_iMaxDoc, m_iWordsPerRow) - getBucketOffset(m_iMaxDoc, m_iWordsPerRow) -
+				(getBucketCount(m_iWordsPerRow) + 1) * 4L - (long)m_iMaxDoc * 4;
+		for (long l = 0; l < lFoldPadding; l++) {
+			out.writeByte((byte)0);
+		}
+
+		for (int iStart = 0; iStart < m_arrFoldedWords.length; ) {
+			buffer.clear();
+			final LongBuffer target = buffer.asLongBuffer();
+			final int iWords = Math.min(target.remaining(), m_arrFoldedWords.length - iStart);
+			target.put(m_arrFoldedWords, iStart, iWords);
+			out.writeBytes(arrBuffer, iWords * 8);
+			iStart += iWords;
+		}
+	}
+
+	//
+	// Static Public Methods
+	//
+
+	/**
+	 * Reads a column that was written before with {@link #write(IndexOutput)}
+	 * into direct buffers.
+	 * 
+	 * @param in Input. Must not be null.
+	 * 
+	 * @return The column or null, if the input is not a complete column of
+	 * 		the current format.
+	 * 
+	 * @throws IOException Thrown, if reading failed.
+	 */
+	public static FingerprintColumn read(final IndexInput in) throws IOException {
+		if (in.length() < HEADER_SIZE) {
+			return null;
+		}
+
+		final byte[] arrHeader = new byte[HEADER_SIZE];
+		in.readBytes(arrHeader, 0, HEADER_SIZE);
+		final ByteBuffer header = ByteBuffer.wrap(arrHeader).order(BYTE_ORDER);
+		if (!isValidHeader(header, in.length())) {
+			return null;
+		}
+
+		final int iMaxDoc = header.getInt(8);
+		final int iWordsPerRow = header.getInt(12);
+		final int iRowsPerChunk = getRowsPerChunk(iWordsPerRow);
+		final LongBuffer[] arrChunks = new LongBuffer[getChunkCount(iMaxDoc, iRowsPerChunk)];
+
+		final ShortBuffer[] arrPopCounts = new ShortBuffer[arrChunks.length];
+
+		final byte[] arrBuffer = new byte[COPY_BUFFER_SIZE];
+		for (int i = 0; i < arrChunks.length; i++) {
+			final int iRows = Math.min(iRowsPerChunk, iMaxDoc - i * iRowsPerChunk);
+			arrChunks[i] = readDirect(in, iRows * iWordsPerRow * 8, arrBuffer).asLongBuffer();
+		}
+		for (int i = 0; i < arrPopCounts.length; i++) {
+			final int iRows = Math.min(iRowsPerChunk, iMaxDoc - i * iRowsPerChunk);
+			arrPopCounts[i] = readDirect(in, iRows * 2, arrBuffer).asShortBuffer();
+		}
+
+		in.seek(getBucketOffset(iMaxDoc, iWordsPerRow));
+		final IntBuffer bucketStarts = readDirect(in, (getBucketCount(iWordsPerRow) + 1) * 4, arrBuffer).asIntBuffer();
+		final IntBuffer[] arrBucketOrder = new IntBuffer[getChunkCount(iMaxDoc, MAX_ORDER_CHUNK_SIZE)];
+		for (int i = 0; i < arrBucketOrder.length; i++) {
+			final int iDocs = Math.min(MAX_ORDER_CHUNK_SIZE, iMaxDoc - i * MAX_ORDER_CHUNK_SIZE);
+			arrBucketOrder[i] = readDirect(in, iDocs * 4, arrBuffer).asIntBuffer();
+		}
+
+		in.seek(getFoldOffset(iMaxDoc, iWordsPerRow));
+		final long[] arrFoldedWords = new long[iMaxDoc];
+		final ByteBuffer buffer = ByteBuffer.wrap(arrBuffer).order(BYTE_ORDER);
+		for (int iStart = 0; iStart < iMaxDoc; ) {
+			final int iWords = Math.min(arrBuffer.length / 8, iMaxDoc - iStart);
+			in.readBytes(arrBuffer, 0, iWords * 8);
+			buffer.clear();
+			buffer.asLongBuffer().get(arrFoldedWords, iStart, iWords);
+			iStart += iWords;
+		}
+
+		return new FingerprintColumn(iMaxDoc, iWordsPerRow, header.getLong(16), arrChunks, arrPopCounts,
+				bucketStarts, arrBucketOrder, arrFoldedWords);
+	}
+
+	/**
+	 * Maps a column file that was written before with {@link #buildFile(IndexReader, String, File)}.
+	 * The rows are not copied into memory, but accessed through the page cache of the
+	 * operating system.
+	 * 
+	 * @param file Column file. Must not be null.
+	 * 
+	 * @return The column or null, if the file is not a complete column of
+	 * 		the current format.
+	 * 
+	 * @throws IOException Thrown, if the file could not be mapped.
+	 */
+	public static FingerprintColumn map(final File file) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final long lLength = channel.size();
+			if (lLength < HEADER_SIZE) {
+				return null;
+			}
+
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(BYTE_ORDER);
+			while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+				// Read until header is complete
+			}
+			if (!isValidHeader(header, lLength)) {
+				return null;
+			}
+
+			final int iMaxDoc = header.getInt(8);
+			final int iWordsPerRow = header.getInt(12);
+			final LongBuffer[] arrChunks = mapChunks(channel, MapMode.READ_ONLY, iMaxDoc, iWordsPerRow);
+			final ShortBuffer[] arrPopCounts = mapPopCounts(channel, MapMode.READ_ONLY, iMaxDoc, iWordsPerRow);
+			final IntBuffer bucketStarts = mapBucketStarts(channel, MapMode.READ_ONLY, iMaxDoc, iWordsPerRow);
+			final IntBuffer[] arrBucketOrder = mapBucketOrder(channel, MapMode.READ_ONLY, iMaxDoc, iWordsPerRow);
+
+			// Folded words are copied to the heap, as they are scanned densely
+			final long[] arrFoldedWords = new long[iMaxDoc];
+			mapFoldedWords(channel, MapMode.READ_ONLY, iMaxDoc, iWordsPerRow).get(arrFoldedWords);
+
+			return new FingerprintColumn(iMaxDoc, iWordsPerRow, header.getLong(16), arrChunks, arrPopCounts,
+					bucketStarts, arrBucketOrder, arrFoldedWords);
+		}
+		finally {
+			// The mappings stay valid after closing the file
+			raf.close();
+		}
+	}
+
+	/**
+	 * Builds the fingerprint column for a segment from the postings of
+	 * the fingerprint field, which holds the set bit positions as terms.
+	 * The rows are kept in direct buffers. For file system based indexes
+	 * {@link #buildFile(IndexReader, String, File)} should be used instead.
+	 * 
+	 * @param segmentReader Reader of a single segment. Must not be null.
+	 * @param strField Fingerprint field name. Must not be null.
+	 * 
+	 * @return Fingerprint column.
+	 * 
+	 * @throws IOException Thrown, if index could not be read.
+	 */
+	public static FingerprintColumn build(final IndexReader segmentReader, final String strField)
+			throws IOException {
+		final int iMaxDoc = segmentReader.maxDoc();
+		final int iWordsPerRow = getWordsPerRow(getMaxBit(segmentReader, strField));
+		final int iRowsPerChunk = getRowsPerChunk(iWordsPerRow);
+		final LongBuffer[] arrChunks = new LongBuffer[getChunkCount(iMaxDoc, iRowsPerChunk)];
+		final ShortBuffer[] arrPopCounts = new ShortBuffer[arrChunks.length];
+		for (int i = 0; i < arrChunks.length; i++) {
+			final int iRows = Math.min(iRowsPerChunk, iMaxDoc - i * iRowsPerChunk);
+			arrChunks[i] = ByteBuffer.allocateDirect(iRows * iWordsPerRow * 8).order(BYTE_ORDER).asLongBuffer();
+			arrPopCounts[i] = ByteBuffer.allocateDirect(iRows * 2).order(BYTE_ORDER).asShortBuffer();
+		}
+		final IntBuffer bucketStarts = ByteBuffer.allocateDirect(
+				(getBucketCount(iWordsPerRow) + 1) * 4).order(BYTE_ORDER).asIntBuffer();
+		final IntBuffer[] arrBucketOrder = new IntBuffer[getChunkCount(iMaxDoc, MAX_ORDER_CHUNK_SIZE)];
+		for (int i = 0; i < arrBucketOrder.length; i++) {
+			final int iDocs = Math.min(MAX_ORDER_CHUNK_SIZE, iMaxDoc - i * MAX_ORDER_CHUNK_SIZE);
+			arrBucketOrder[i] = ByteBuffer.allocateDirect(iDocs * 4).order(BYTE_ORDER).asIntBuffer();
+		}
+
+		final long[] arrFoldedWords = new long[iMaxDoc];
+
+		fill(segmentReader, strField, arrChunks, iWordsPerRow);
+		countBits(arrChunks, arrPopCounts, arrFoldedWords, iWordsPerRow);
+		partition(arrPopCounts, bucketStarts, arrBucketOrder);
+
+		return new FingerprintColumn(iMaxDoc, iWordsPerRow, computeChecksum(segmentReader, strField),
+				arrChunks, arrPopCounts, bucketStarts, arrBucketOrder, arrFoldedWords);
+	}
+
+	/**
+	 * Builds the fingerprint column for a segment from the postings of
+	 * the fingerprint field directly in the specified file, which gets mapped
+	 * for writing. The file is complete, when this method returns.
+	 * Use {@link #map(File)} to access it afterwards.
+	 * 
+	 * @param segmentReader Reader of a single segment. Must not be null.
+	 * @param strField Fingerprint field name. Must not be null.
+	 * @param file Column file to be created. Must not be null.
+	 * 
+	 * @throws IOException Thrown, if index could not be read or file could not be written.
+	 */
+	public static void buildFile(final IndexReader segmentReader, final String strField, final File file)
+			throws IOException {
+		final int iMaxDoc = segmentReader.maxDoc();
+		final int iWordsPerRow = getWordsPerRow(getMaxBit(segmentReader, strField));
+		final long lChecksum = computeChecksum(segmentReader, strField);
+
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			raf.setLength(getFileLength(iMaxDoc, iWordsPerRow));
+
+			final FileChannel channel = raf.getChannel();
+			final LongBuffer[] arrChunks = mapChunks(channel, MapMode.READ_WRITE, iMaxDoc, iWordsPerRow);
+			final ShortBuffer[] arrPopCounts = mapPopCounts(channel, MapMode.READ_WRITE, iMaxDoc, iWordsPerRow);
+			final IntBuffer bucketStarts = mapBucketStarts(channel, MapMode.READ_WRITE, iMaxDoc, iWordsPerRow);
+			final IntBuffer[] arrBucketOrder = mapBucketOrder(channel, MapMode.READ_WRITE, iMaxDoc, iWordsPerRow);
+			final long[] arrFoldedWords = new long[iMaxDoc];
+			fill(segmentReader, strField, arrChunks, iWordsPerRow);
+			countBits(arrChunks, arrPopCounts, arrFoldedWords, iWordsPerRow);
+			partition(arrPopCounts, bucketStarts, arrBucketOrder);
+			mapFoldedWords(channel, MapMode.READ_WRITE, iMaxDoc, iWordsPerRow).put(arrFoldedWords);
+
+			// Header is written last, so an interrupted build leaves an invalid file
+			final ByteBuffer header = createHeader(iMaxDoc, iWordsPerRow, lChecksum);
+			while (header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+			channel.force(false);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Computes a checksum of the fingerprint postings of a segment, which is used
+	 * to detect persisted columns that do not belong to the segment content
+	 * (e.g. if an index was recreated and segment names got reused).
+	 * 
+	 * @param segmentReader Reader of a single segment. Must not be null.
+	 * @param strField Fingerprint field name. Must not be null.
+	 * 
+	 * @return Checksum.
+	 * 
+	 * @throws IOException Thrown, if index could not be read.
+	 */
+	public static long computeChecksum(final IndexReader segmentReader, final String strField)
+			throws IOException {
+		long lChecksum = segmentReader.maxDoc();
+
+		final TermEnum terms = segmentReader.terms(new Term(strField, ""));
+		try {
+			do {
+				final Term term = terms.term();
+				if (term == null || term.field() != strField) {
+					break;
+				}
+				lChecksum = lChecksum * 31 + term.text().hashCode();
+				lChecksum = lChecksum * 31 + terms.docFreq();
+			}
+			while (terms.next());
+		}
+		finally {
+			terms.close();
+		}
+
+		return lChecksum;
+	}
+
+	/**
+	 * Converts a fingerprint into an array of long words, bit i being stored
+	 * in word i / 64 at position i % 64.
+	 * 
+	 * @param fp Fingerprint. Must not be null.
+	 * 
+	 * @return Array of words. The length depends on the highest set bit.
+	 */
+	public static long[] toWords(final BitSet fp) {
+		final long[] arrWords = new long[(fp.length() + 63) >> 6];
+		for (int i = fp.nextSetBit(0); i >= 0; i = fp.nextSetBit(i + 1)) {
+			arrWords[i >> 6] |= 1L << i;
+		}
+		return arrWords;
+	}
+
+	/**
+	 * OR-folds a fingerprint given as words into a single word, bit i
+	 * being stored at position i % 64.
+	 * 
+	 * @param arrWords Fingerprint as words (see {@link #toWords(BitSet)}). Must not be null.
+	 * 
+	 * @return Folded word.
+	 */
+	public static long fold(final long[] arrWords) {
+		long lFolded = 0;
+		for (final long lWord : arrWords) {
+			lFolded |= lWord;
+		}
+		return lFolded;
+	}
+
+	//
+	// Static Private Methods
+	//
+
+	/**
+	 * Sets the bits of all fingerprint postings in the passed in rows.
+	 * 
+	 * @param segmentReader Reader of a single segment. Must not be null.
+	 * @param strField Fingerprint field name. Must not be null.
+	 * @param arrChunks Zeroed rows split into chunks. Must not be null.
+	 * @param iWordsPerRow Number of words per row.
+	 * 
+	 * @throws IOException Thrown, if index could not be read.
+	 */
+	private static void fill(final IndexReader segmentReader, final String strField,
+			final LongBuffer[] arrChunks, final int iWordsPerRow) throws IOException {
+		final int iRowsPerChunk = getRowsPerChunk(iWordsPerRow);
+		final TermEnum terms = segmentReader.terms(new Term(strField, ""));
+		final TermDocs termDocs = segmentReader.termDocs();
+		try {
+			do {
+				final Term term = terms.term();
+				if (term == null || term.field() != strField) {
+					break;
+				}
+				final int iBit = Integer.parseInt(term.text());
+				final int iWord = iBit >> 6;
+				final long lMask = 1L << iBit;
+				termDocs.seek(terms);
+				while (termDocs.next()) {
+					final int iDoc = termDocs.doc();
+					final LongBuffer chunk = arrChunks[iDoc / iRowsPerChunk];
+					final int iIndex = (iDoc % iRowsPerChunk) * iWordsPerRow + iWord;
+					chunk.put(iIndex, chunk.get(iIndex) | lMask);
+				}
+			}
+			while (terms.next());
+		}
+		finally {
+			termDocs.close();
+			terms.close();
+		}
+	}
+
+	/**
+	 * Counts the set bits of all rows and folds every row into a single word.
+	 * 
+	 * @param arrChunks Filled rows split into chunks. Must not be null.
+	 * @param arrPopCounts Bit counts split into chunks like the rows. Must not be null.
+	 * @param arrFoldedWords Receives the folded word of every row. Must not be null.
+	 * @param iWordsPerRow Number of words per row.
+	 */
+	private static void countBits(final LongBuffer[] arrChunks, final ShortBuffer[] arrPopCounts,
+			final long[] arrFoldedWords, final int iWordsPerRow) {
+		int iDoc = 0;
+		for (int iChunk = 0; iChunk < arrChunks.length; iChunk++) {
+			final LongBuffer chunk = arrChunks[iChunk];
+			final ShortBuffer popCounts = arrPopCounts[iChunk];
+			final int iRows = popCounts.capacity();
+			for (int iRow = 0; iRow < iRows; iRow++, iDoc++) {
+				int iCount = 0;
+				long lFolded = 0;
+				for (int i = iRow * iWordsPerRow, iEnd = i + iWordsPerRow; i < iEnd; i++) {
+					final long lWord = chunk.get(i);
+					iCount += Long.bitCount(lWord);
+					lFolded |= lWord;
+				}
+				popCounts.put(iRow, (short)iCount);
+				arrFoldedWords[iDoc] = lFolded;
+			}
+		}
+	}
+
+	/**
+	 * Partitions all documents into buckets by their bit count. This is a counting
+	 * sort, so documents of a bucket stay ordered by document id.
+	 * 
+	 * @param arrPopCounts Bit counts of all rows split into chunks. Must not be null.
+	 * @param bucketStarts Receives the start of every bucket plus the end of the last one.
+	 * 		Must not be null.
+	 * @param arrBucketOrder Receives all document ids ordered by bit count. Must not be null.
+	 */
+	private static void partition(final ShortBuffer[] arrPopCounts, final IntBuffer bucketStarts,
+			final IntBuffer[] arrBucketOrder) {
+		final int iBucketCount = bucketStarts.capacity() - 1;
+		final int[] arrPositions = new int[iBucketCount + 1];
+
+		// Count bucket sizes
+		for (final ShortBuffer popCounts : arrPopCounts) {
+			final int iRows = popCounts.capacity();
+			for (int iRow = 0; iRow < iRows; iRow++) {
+				arrPositions[(popCounts.get(iRow) & 0xffff) + 1]++;
+			}
+		}
+
+		// Convert sizes into starts
+		for (int i = 1; i <= iBucketCount; i++) {
+			arrPositions[i] += arrPositions[i - 1];
+		}
+		for (int i = 0; i <= iBucketCount; i++) {
+			bucketStarts.put(i, arrPositions[i]);
+		}
+
+		// Distribute document ids
+		int iDoc = 0;
+		for (final ShortBuffer popCounts : arrPopCounts) {
+			final int iRows = popCounts.capacity();
+			for (int iRow = 0; iRow < iRows; iRow++, iDoc++) {
+				final int iPosition = arrPositions[popCounts.get(iRow) & 0xffff]++;
+				arrBucketOrder[iPosition / MAX_ORDER_CHUNK_SIZE].put(iPosition % MAX_ORDER_CHUNK_SIZE, iDoc);
+			}
+		}
+	}
+
+	/**
+	 * Reads the specified number of bytes into a new direct buffer.
+	 * 
+	 * @param in Input. Must not be null.
+	 * @param iLength Number of bytes to read.
+	 * @param arrBuffer Buffer used for copying. Must not be null.
+	 * 
+	 * @return Direct buffer with the bytes read.
+	 * 
+	 * @throws IOException Thrown, if reading failed.
+	 */
+	private static ByteBuffer readDirect(final IndexInput in, final int iLength, final byte[] arrBuffer)
+			throws IOException {
+		final ByteBuffer target = ByteBuffer.allocateDirect(iLength).order(BYTE_ORDER);
+		while (target.hasRemaining()) {
+			final int iCopy = Math.min(arrBuffer.length, target.remaining());
+			in.readBytes(arrBuffer, 0, iCopy);
+			target.put(arrBuffer, 0, iCopy);
+		}
+		target.clear();
+		return target;
+	}
+
+	/**
+	 * Maps all rows of a column file.
+	 * 
+	 * @param channel Channel of the column file. Must not be null.
+	 * @param mode Map mode.
+	 * @param iMaxDoc Number of rows.
+	 * @param iWordsPerRow Number of words per row.
+	 * 
+	 * @return Chunks of rows.
+	 * 
+	 * @throws IOException Thrown, if mapping failed.
+	 */
+	private static LongBuffer[] mapChunks(final FileChannel channel, final MapMode mode,
+			final int iMaxDoc, final int iWordsPerRow) throws IOException {
+		final int iRowsPerChunk = getRowsPerChunk(iWordsPerRow);
+		final LongBuffer[] arrChunks = new LongBuffer[getChunkCount(iMaxDoc, iRowsPerChunk)];
+		for (int i = 0; i < arrChunks.length; i++) {
+			final int iRows = Math.min(iRowsPerChunk, iMaxDoc - i * iRowsPerChunk);
+			final MappedByteBuffer buffer = channel.map(mode,
+					HEADER_SIZE + (long)i * iRowsPerChunk * iWordsPerRow * 8, (long)iRows * iWordsPerRow * 8);
+			arrChunks[i] = buffer.order(BYTE_ORDER).asLongBuffer();
+		}
+		return arrChunks;
+	}
+
+	/**
+	 * Maps the bit counts of all rows of a column file.
+	 * 
+	 * @param channel Channel of the column file. Must not be null.
+	 * @param mode Map mode.
+	 * @param iMaxDoc Number of rows.
+	 * @param iWordsPerRow Number of words per row.
+	 * 
+	 * @return Chunks of bit counts.
+	 * 
+	 * @throws IOException Thrown, if mapping failed.
+	 */
+	private static ShortBuffer[] mapPopCounts(final FileChannel channel, final MapMode mode,
+			final int iMaxDoc, final int iWordsPerRow) throws IOException {
+		final int iRowsPerChunk = getRowsPerChunk(iWordsPerRow);
+		final long lOffset = getPopCountOffset(iMaxDoc, iWordsPerRow);
+		final ShortBuffer[] arrPopCounts = new ShortBuffer[getChunkCount(iMaxDoc, iRowsPerChunk)];
+		for (int i = 0; i < arrPopCounts.length; i++) {
+			final int iRows = Math.min(iRowsPerChunk, iMaxDoc - i * iRowsPerChunk);
+			final MappedByteBuffer buffer = channel.map(mode,
+					lOffset + (long)i * iRowsPerChunk * 2, (long)iRows * 2);
+			arrPopCounts[i] = buffer.order(BYTE_ORDER).asShortBuffer();
+		}
+		return arrPopCounts;
+	}
+
+	/**
+	 * Maps the bucket starts of a column file.
+	 * 
+	 * @param channel Channel of the column file. Must not be null.
+	 * @param mode Map mode.
+	 * @param iMaxDoc Number of rows.
+	 * @param iWordsPerRow Number of words per row.
+	 * 
+	 * @return Bucket starts plus the end of the last bucket.
+	 * 
+	 * @throws IOException Thrown, if mapping failed.
+	 */
+	private static IntBuffer mapBucketStarts(final FileChannel channel, final MapMode mode,
+			final int iMaxDoc, final int iWordsPerRow) throws IOException {
+		final MappedByteBuffer buffer = channel.map(mode, getBucketOffset(iMaxDoc, iWordsPerRow),
+				(getBucketCount(iWordsPerRow) + 1) * 4L);
+		return buffer.order(BYTE_ORDER).asIntBuffer();
+	}
+
+	/**
+	 * Maps the bucket order of a column file.
+	 * 
+	 * @param channel Channel of the column file. Must not be null.
+	 * @param mode Map mode.
+	 * @param iMaxDoc Number of rows.
+	 * @param iWordsPerRow Number of words per row.
+	 * 
+	 * @return Chunks of document ids ordered by bit count.
+	 * 
+	 * @throws IOException Thrown, if mapping failed.
+	 */
+	private static IntBuffer[] mapBucketOrder(final FileChannel channel, final MapMode mode,
+			final int iMaxDoc, final int iWordsPerRow) throws IOException {
+		final long lOffset = getBucketOffset(iMaxDoc, iWordsPerRow) + (getBucketCount(iWordsPerRow) + 1) * 4L;
+		final IntBuffer[] arrBucketOrder = new IntBuffer[getChunkCount(iMaxDoc, MAX_ORDER_CHUNK_SIZE)];
+		for (int i = 0; i < arrBucketOrder.length; i++) {
+			final int iDocs = Math.min(MAX_ORDER_CHUNK_SIZE, iMaxDoc - i * MAX_ORDER_CHUNK_SIZE);
+			final MappedByteBuffer buffer = channel.map(mode,
+					lOffset + (long)i * MAX_ORDER_CHUNK_SIZE * 4, (long)iDocs * 4);
+			arrBucketOrder[i] = buffer.order(BYTE_ORDER).asIntBuffer();
+		}
+		return arrBucketOrder;
+	}
+
+	/**
+	 * Maps the folded words of a column file.
+	 * 
+	 * @param channel Channel of the column file. Must not be null.
+	 * @param mode Map mode.
+	 * @param iMaxDoc Number of rows.
+	 * @param iWordsPerRow Number of words per row.
+	 * 
+	 * @return Folded words.
+	 * 
+	 * @throws IOException Thrown, if mapping failed.
+	 */
+	private static LongBuffer mapFoldedWords(final FileChannel channel, final MapMode mode,
+			final int iMaxDoc, final int iWordsPerRow) throws IOException {
+		final MappedByteBuffer buffer = channel.map(mode, getFoldOffset(iMaxDoc, iWordsPerRow), (long)iMaxDoc * 8);
+		return buffer.order(BYTE_ORDER).asLongBuffer();
+	}
+
+	/**
+	 * Calculates the offset of the bit counts in a persisted column.
+	 * 
+	 * @param iMaxDoc Number of rows.
+	 * @param iWordsPerRow Number of words per row.
+	 * 
+	 * @return Offset in bytes.
+	 */
+	private static long getPopCountOffset(final int iMaxDoc, final int iWordsPerRow) {
+		return HEADER_SIZE + (long)iMaxDoc * iWordsPerRow * 8;
+	}
+
+	/**
+	 * Calculates the offset of the bucket index in a persisted column, which
+	 * follows the bit counts at the next 8 byte boundary.
+	 * 
+	 * @param iMaxDoc Number of rows.
+	 * @param iWordsPerRow Number of words per row.
+	 * 
+	 * @return Offset in bytes.
+	 */
+	private static long getBucketOffset(final int iMaxDoc, final int iWordsPerRow) {
+		return (getPopCountOffset(iMaxDoc, iWordsPerRow) + (long)iMaxDoc * 2 + 7) & ~7L;
+	}
+
+	/**
+	 * Calculates the length of a persisted column.
+	 * 
+	 * @param iMaxDoc Number of rows.
+	 * @param iWordsPerRow Number of words per row.
+	 * 
+	 * @return Length in bytes.
+	 */
+	private static long getFileLength(final int iMaxDoc, final int iWordsPerRow) {
+		return getFoldOffset(iMaxDoc, iWordsPerRow) + (long)iMaxDoc * 8;
+	}
+
+	/**
+	 * Calculates the offset of the folded words in a persisted column, which
+	 * follow the bucket index at the next 8 byte boundary.
+	 * 
+	 * @param iMaxDoc Number of rows.
+	 * @param iWordsPerRow Number of words per row.
+	 * 
+	 * @return Offset in bytes.
+	 */
+	private static long getFoldOffset(final int iMaxDoc, final int iWordsPerRow) {
+		return (getBucketOffset(iMaxDoc, iWordsPerRow) + (getBucketCount(iWordsPerRow) + 1) * 4L +
+				(long)iMaxDoc * 4 + 7) & ~7L;
+	}
+
+	/**
+	 * Calculates the number of bit count buckets, which covers every possible bit count of a row.
+	 * 
+	 * @param iWordsPerRow Number of words per row.
+	 * 
+	 * @return Number of buckets.
+	 */
+	private static int getBucketCount(final int iWordsPerRow) {
+		return iWordsPerRow * 64 + 1;
+	}
+
+	/**
+	 * Creates the header of a persisted column.
+	 * 
+	 * @param iMaxDoc Number of rows.
+	 * @param iWordsPerRow Number of words per row.
+	 * @param lChecksum Checksum of the segment content.
+	 * 
+	 * @return Heap buffer with the header, ready to be written.
+	 */
+	private static ByteBuffer createHeader(final int iMaxDoc, final int iWordsPerRow, final long lChecksum) {
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(BYTE_ORDER);
+		header.putInt(0, MAGIC);
+		header.putInt(4, FORMAT_VERSION);
+		header.putInt(8, iMaxDoc);
+		header.putInt(12, iWordsPerRow);
+		header.putLong(16, lChecksum);
+		return header;
+	}
+
+	/**
+	 * Checks, if the passed in header belongs to a complete column of the current format.
+	 * 
+	 * @param header Header. Must not be null.
+	 * @param lLength Length of the persisted column in bytes.
+	 * 
+	 * @return True, if the header is valid.
+	 */
+	private static boolean isValidHeader(final ByteBuffer header, final long lLength) {
+		final int iMaxDoc = header.getInt(8);
+		final int iWordsPerRow = header.getInt(12);
+
+		return header.getInt(0) == MAGIC && header.getInt(4) == FORMAT_VERSION &&
+				iMaxDoc >= 0 && iWordsPerRow >= 0 && iWordsPerRow % (ROW_ALIGNMENT / 8) == 0 &&
+				lLength == getFileLength(iMaxDoc, iWordsPerRow);
+	}
+
+	/**
+	 * Calculates the number of words per row for the highest bit, padded to the row alignment.
+	 * 
+	 * @param iMaxBit Highest set bit position or -1.
+	 * 
+	 * @return Number of words per row.
+	 */
+	private static int getWordsPerRow(final int iMaxBit) {
+		final int iWordsPerAlignment = ROW_ALIGNMENT / 8;
+		final int iWords = (iMaxBit >> 6) + 1;
+		return (iWords + iWordsPerAlignment - 1) / iWordsPerAlignment * iWordsPerAlignment;
+	}
+
+	/**
+	 * Calculates how many rows fit into a single chunk.
+	 * 
+	 * @param iWordsPerRow Number of words per row.
+	 * 
+	 * @return Rows per chunk. At least 1.
+	 */
+	private static int getRowsPerChunk(final int iWordsPerRow) {
+		return (iWordsPerRow == 0 ? Integer.MAX_VALUE : MAX_CHUNK_SIZE / (iWordsPerRow * 8));
+	}
+
+	/**
+	 * Calculates the number of chunks needed for all rows.
+	 * 
+	 * @param iMaxDoc Number of rows.
+	 * @param iRowsPerChunk Number of rows per chunk.
+	 * 
+	 * @return Number of chunks.
+	 */
+	private static int getChunkCount(final int iMaxDoc, final int iRowsPerChunk) {
+		return (iMaxDoc == 0 ? 0 : (int)(((long)iMaxDoc + iRowsPerChunk - 1) / iRowsPerChunk));
+	}
+
+	/**
+	 * Determines the highest bit position used in the fingerprint field of a segment.
+	 * 
+	 * @param segmentReader Reader of a single segment. Must not be null.
+	 * @param strField Fingerprint field name. Must not be null.
+	 * 
+	 * @return Highest bit position or -1, if there are no bits.
+	 * 
+	 * @throws IOException Thrown, if index could not be read.
+	 */
+	private static int getMaxBit(final IndexReader segmentReader, final String strField)
+			throws IOException {
+		int iMaxBit = -1;
+
+		final TermEnum terms = segmentReader.terms(new Term(strField, ""));
+		try {
+			do {
+				final Term term = terms.term();
+				if (term == null || term.field() != strField) {
+					break;
+				}
+				iMaxBit = Math.max(iMaxBit, Integer.parseInt(term.text()));
+			}
+			while (terms.next());
+		}
+		finally {
+			terms.close();
+		}
+
+		return iMaxBit;
+	}
+}
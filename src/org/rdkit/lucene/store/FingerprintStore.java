@@ -0,0 +1,484 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.rdkit.lucene.util.IndexUtils;
+
+/**
+ * Manages the fingerprint columns of all segments of an index. Every column
+ * is persisted as file &lt;segment name&gt;{@value #FILE_EXTENSION} in the
+ * index directory next to the Lucene segment files, so it needs to be built
+ * from the fingerprint postings only once per segment. For file system based
+ * directories the files are memory mapped, so fingerprints never occupy the
+ * Java heap. Other directories hold them in direct buffers.
+ * <p>
+ * Columns are loaded lazily, i.e. only when a screen or a similarity scan
+ * requests the column of a segment for the first time. Columns of segments
+ * are kept as they are, because segments are immutable. Deletions do not
+ * invalidate a column, as they are taken from the segment reader when screening.
+ * If a column file cannot be written (e.g. because the index resides on a
+ * read-only file system), the column is built in memory instead.
+ * <p>
+ * A column is released only after the last reader of its segment got closed,
+ * because older searchers (e.g. pinned ones of search cursors) may still
+ * screen segments that are not part of the current index anymore. Columns are
+ * built outside of the store lock, so building the column of a new segment
+ * does not block screens of other segments. Concurrent requests for the same
+ * segment wait for the same build.
+ * <p>
+ * Only column files that were written by this store are ever deleted, namely
+ * when their segments are neither part of the current index (see
+ * {@link #deleteObsoleteFiles(IndexReader)}) nor used by an open reader anymore.
+ * This way several processes can share an index directory without removing
+ * files the other ones are building or using.
+ */
+public class FingerprintStore {
+
+	//
+	// Constants
+	//
+
+	/** The logger instance. */
+	private static final Logger LOGGER = Logger.getLogger(FingerprintStore.class.getName());
+
+	/** File extension of persisted fingerprint columns. */
+	public static final String FILE_EXTENSION = ".fpc";
+
+	/** Suffix of the segment name of temporary column files that are being built. */
+	private static final String TEMP_SUFFIX = "_tmp";
+
+	//
+	// Inner Classes
+	//
+
+	/**
+	 * The column of a segment, which is loaded or built only once, together
+	 * with the cores of all segment readers that use it.
+	 */
+	private static class Entry {
+
+		/** Task that loads or builds the column. */
+		private final FutureTask<FingerprintColumn> m_task;
+
+		/** Core cache keys of all open segment readers that use the column. */
+		private final Set<Object> m_setCoreKeys;
+
+		/**
+		 * Creates a new entry.
+		 * 
+		 * @param task Task that loads or builds the column. Must not be null.
+		 */
+		private Entry(final FutureTask<FingerprintColumn> task) {
+			m_task = task;
+			m_setCoreKeys = new HashSet<Object>();
+		}
+	}
+
+	//
+	// Members
+	//
+
+	/** The index directory. */
+	private final Directory m_directory;
+
+	/** The field that contains the fingerprint bit positions as terms. */
+	private final String m_strField;
+
+	/** The file system directory of the index or null, if the index is not file system based. */
+	private final File m_fileDirectory;
+
+	/** Loaded columns and columns that are being built by segment name. */
+	private final Map<String, Entry> m_mapColumns;
+
+	/** Releases columns after the last reader of their segment got closed. */
+	private final SegmentReader.CoreClosedListener m_coreClosedListener;
+
+	/** Segment names by names of the column files that were written by this store. */
+	private final Map<String, String> m_mapWrittenFiles;
+
+	/** Names of the segments of the current index or null, if not known yet. */
+	private Set<String> m_setLiveSegments;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new fingerprint store for the specified index directory.
+	 * 
+	 * @param directory Index directory. Must not be null.
+	 * @param strField Field that contains fingerprint bit positions as terms. Must not be null.
+	 */
+	public FingerprintStore(final Directory directory, final String strField) {
+		if (directory == null) {
+			throw new IllegalArgumentException("Index directory must not be null.");
+		}
+		if (strField == null) {
+			throw new IllegalArgumentException("Fingerprint field must not be null.");
+		}
+
+		m_directory = directory;
+		m_fileDirectory = (directory instanceof FSDirectory ? ((FSDirectory)directory).getDirectory() : null);
+		m_strField = strField.intern();
+		m_mapColumns = new HashMap<String, Entry>();
+		m_mapWrittenFiles = new HashMap<String, String>();
+		m_setLiveSegments = null;
+		m_coreClosedListener = new SegmentReader.CoreClosedListener() {
+			@Override
+			public void onClose(final SegmentReader owner) {
+				release(owner);
+			}
+		};
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Returns the fingerprint column of the specified segment. If the
+	 * column is not loaded yet, it gets read from its file or - if
+	 * there is none yet - built from the fingerprint postings and persisted.
+	 * The column is kept until the last reader of the segment gets closed.
+	 * 
+	 * @param segmentReader Reader of a single segment. Must not be null.
+	 * 
+	 * @return Fingerprint column of the segment.
+	 * 
+	 * @throws IOException Thrown, if the column could not be built.
+	 */
+	public FingerprintColumn getColumn(final IndexReader segmentReader) throws IOException {
+		if (!(segmentReader instanceof SegmentReader)) {
+			// No stable identity to persist or cache the column
+			LOGGER.log(Level.FINE, "Building transient fingerprint column for " + segmentReader);
+			return FingerprintColumn.build(segmentReader, m_strField);
+		}
+
+		final SegmentReader reader = (SegmentReader)segmentReader;
+		final String strSegment = reader.getSegmentName();
+		final Entry entry;
+		boolean bBuild = false;
+		boolean bNewCore = false;
+
+		synchronized (m_mapColumns) {
+			Entry entryExisting = m_mapColumns.get(strSegment);
+			if (entryExisting == null) {
+				entryExisting = new Entry(new FutureTask<FingerprintColumn>(new Callable<FingerprintColumn>() {
+					@Override
+					public FingerprintColumn call() throws IOException {
+						return loadOrBuild(segmentReader, strSegment);
+					}
+				}));
+				m_mapColumns.put(strSegment, entryExisting);
+				bBuild = true;
+			}
+			entry = entryExisting;
+			bNewCore = entry.m_setCoreKeys.add(reader.getCoreCacheKey());
+		}
+
+		if (bNewCore) {
+			// The caller holds the reader open, so its core cannot be closed before
+			reader.addCoreClosedListener(m_coreClosedListener);
+		}
+
+		// Loading or building happens outside of the lock, other threads
+		// requesting the same segment wait for the result of this task
+		if (bBuild) {
+			entry.m_task.run();
+		}
+
+		try {
+			return entry.m_task.get();
+		}
+		catch (final InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Loading fingerprint column of segment " + strSegment + " was interrupted.", exc);
+		}
+		catch (final ExecutionException exc) {
+			// Forget the failed attempt, so that the next request tries again
+			synchronized (m_mapColumns) {
+				if (m_mapColumns.get(strSegment) == entry) {
+					m_mapColumns.remove(strSegment);
+				}
+			}
+			if (exc.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)exc.getCause();
+			}
+			throw (exc.getCause() instanceof IOException ? (IOException)exc.getCause() :
+				new IOException("Loading fingerprint column of segment " + strSegment + " failed.", exc.getCause()));
+		}
+	}
+
+	/**
+	 * Tells this store the segments of the current index and removes the column
+	 * files that were written by this store for segments that are neither part
+	 * of the current index nor used by any open reader anymore. No columns are
+	 * built here, so this is cheap enough to be called whenever a new reader
+	 * gets opened.
+	 * 
+	 * @param reader Top level reader of the current index. Must not be null.
+	 */
+	public void deleteObsoleteFiles(final IndexReader reader) {
+		final Set<String> setLiveSegments = new HashSet<String>();
+
+		for (final IndexReader segmentReader : IndexUtils.getSegmentReaders(reader)) {
+			if (segmentReader instanceof SegmentReader) {
+				setLiveSegments.add(((SegmentReader)segmentReader).getSegmentName());
+			}
+		}
+
+		synchronized (m_mapColumns) {
+			m_setLiveSegments = setLiveSegments;
+			deleteObsoleteFiles();
+		}
+	}
+
+	/**
+	 * Releases all loaded columns.
+	 */
+	public void clear() {
+		synchronized (m_mapColumns) {
+			m_mapColumns.clear();
+		}
+	}
+
+	//
+	// Protected Methods
+	//
+
+	/**
+	 * Releases the column of the specified segment, if no other reader core uses it anymore.
+	 * Called when the last reader of a segment core got closed. The column file is
+	 * removed, if the segment is not part of the current index anymore and the file
+	 * was written by this store.
+	 * 
+	 * @param segmentReader Reader of the closed core. Must not be null.
+	 */
+	protected void release(final SegmentReader segmentReader) {
+		final String strSegment = segmentReader.getSegmentName();
+
+		synchronized (m_mapColumns) {
+			final Entry entry = m_mapColumns.get(strSegment);
+			if (entry != null && entry.m_setCoreKeys.remove(segmentReader.getCoreCacheKey()) &&
+					entry.m_setCoreKeys.isEmpty()) {
+				m_mapColumns.remove(strSegment);
+				LOGGER.log(Level.FINE, "Fingerprint column of segment " + strSegment + " released.");
+				deleteObsoleteFiles();
+			}
+		}
+	}
+
+	/**
+	 * Reads the column of a segment from its file, if it exists and belongs to the
+	 * segment content. Otherwise the column is built and written. If writing fails,
+	 * the column is built in memory.
+	 * 
+	 * @param segmentReader Reader of a single segment. Must not be null.
+	 * @param strSegment Name of the segment. Must not be null.
+	 * 
+	 * @return Fingerprint column of the segment.
+	 * 
+	 * @throws IOException Thrown, if the column could not be built.
+	 */
+	protected FingerprintColumn loadOrBuild(final IndexReader segmentReader, final String strSegment)
+			throws IOException {
+		final String strFileName = strSegment + FILE_EXTENSION;
+		FingerprintColumn column = null;
+
+		if (m_directory.fileExists(strFileName)) {
+			try {
+				if (m_fileDirectory != null) {
+					column = FingerprintColumn.map(new File(m_fileDirectory, strFileName));
+				}
+				else {
+					final IndexInput in = m_directory.openInput(strFileName);
+					try {
+						column = FingerprintColumn.read(in);
+					}
+					finally {
+						in.close();
+					}
+				}
+			}
+			catch (final IOException exc) {
+				LOGGER.log(Level.WARNING, "Fingerprint column " + strFileName + " could not be read. Rebuilding it.", exc);
+			}
+
+			if (column != null && (column.getMaxDoc() != segmentReader.maxDoc() ||
+					column.getChecksum() != FingerprintColumn.computeChecksum(segmentReader, m_strField))) {
+				LOGGER.log(Level.INFO, "Fingerprint column " + strFileName + " does not match its segment. Rebuilding it.");
+				column = null;
+			}
+		}
+
+		if (column == null) {
+			if (m_fileDirectory != null) {
+				column = buildFile(segmentReader, strSegment);
+			}
+			else {
+				column = FingerprintColumn.build(segmentReader, m_strField);
+				try {
+					final IndexOutput out = m_directory.createOutput(strFileName);
+					try {
+						column.write(out);
+					}
+					finally {
+						out.close();
+					}
+					addWrittenFile(strFileName, strSegment);
+				}
+				catch (final IOException exc) {
+					// The column is still usable, but will be built again next time
+					LOGGER.log(Level.WARNING, "Fingerprint column " + strFileName + " could not be written.", exc);
+				}
+			}
+		}
+
+		return column;
+	}
+
+	/**
+	 * Builds the column file of a segment under a unique temporary name, moves it
+	 * to its final name and maps it. If the file cannot be written, the column gets
+	 * built in memory instead.
+	 * 
+	 * @param segmentReader Reader of a single segment. Must not be null.
+	 * @param strSegment Name of the segment. Must not be null.
+	 * 
+	 * @return Fingerprint column of the segment.
+	 * 
+	 * @throws IOException Thrown, if the column could not be built.
+	 */
+	protected FingerprintColumn buildFile(final IndexReader segmentReader, final String strSegment)
+			throws IOException {
+		final File file = new File(m_fileDirectory, strSegment + FILE_EXTENSION);
+
+		// The temporary name is unique, so builds of other processes sharing the directory do not interfere
+		File fileTemp = null;
+		try {
+			fileTemp = File.createTempFile(strSegment + TEMP_SUFFIX, FILE_EXTENSION, m_fileDirectory);
+			FingerprintColumn.buildFile(segmentReader, m_strField, fileTemp);
+		}
+		catch (final IOException exc) {
+			if (fileTemp != null && !fileTemp.delete()) {
+				LOGGER.log(Level.FINE, "Incomplete fingerprint column " + fileTemp.getName() + " could not be deleted.");
+			}
+			LOGGER.log(Level.WARNING, "Fingerprint column " + file.getName() + " could not be written. " +
+					"Building it in memory.", exc);
+			return FingerprintColumn.build(segmentReader, m_strField);
+		}
+
+		File fileBuilt = fileTemp;
+		if ((!file.exists() || file.delete()) && fileTemp.renameTo(file)) {
+			fileBuilt = file;
+		}
+		else {
+			// E.g. an outdated file is still mapped on Windows
+			LOGGER.log(Level.WARNING, "Fingerprint column " + file.getName() + " could not be replaced. Using " +
+					fileTemp.getName() + " until the next rebuild.");
+		}
+		addWrittenFile(fileBuilt.getName(), strSegment);
+
+		final FingerprintColumn column = FingerprintColumn.map(fileBuilt);
+		if (column == null) {
+			throw new IOException("Fingerprint column " + fileBuilt.getName() + " is incomplete.");
+		}
+
+		return column;
+	}
+
+	//
+	// Private Methods
+	//
+
+	/**
+	 * Remembers a column file that was written by this store, so that
+	 * it gets deleted when its segment is not used anymore.
+	 * 
+	 * @param strFileName Name of the column file. Must not be null.
+	 * @param strSegment Name of the segment. Must not be null.
+	 */
+	private void addWrittenFile(final String strFileName, final String strSegment) {
+		synchronized (m_mapColumns) {
+			m_mapWrittenFiles.put(strFileName, strSegment);
+		}
+	}
+
+	/**
+	 * Removes column files that were written by this store for segments that
+	 * are neither part of the current index nor used by any open reader.
+	 * Nothing is removed, as long as the segments of the current index are
+	 * not known. Must be called while holding the lock of the column map.
+	 */
+	private void deleteObsoleteFiles() {
+		if (m_setLiveSegments != null) {
+			final Iterator<Map.Entry<String, String>> iterator = m_mapWrittenFiles.entrySet().iterator();
+			while (iterator.hasNext()) {
+				final Map.Entry<String, String> entry = iterator.next();
+				final String strSegment = entry.getValue();
+				if (!m_setLiveSegments.contains(strSegment) && !m_mapColumns.containsKey(strSegment)) {
+					try {
+						if (m_directory.fileExists(entry.getKey())) {
+							m_directory.deleteFile(entry.getKey());
+						}
+						iterator.remove();
+					}
+					catch (final IOException exc) {
+						// Still in use on some platforms - we will try again next time
+						LOGGER.log(Level.FINE, "Obsolete fingerprint column " + entry.getKey() +
+								" could not be deleted yet.", exc);
+					}
+				}
+			}
+		}
+	}
+}
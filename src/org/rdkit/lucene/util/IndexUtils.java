@@ -0,0 +1,231 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene.util;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.ReaderUtil;
+
+/**
+ * This utility class contains convenience methods to work with Lucene
+ * index readers outside of the normal query execution.
+ */
+public final class IndexUtils {
+
+	//
+	// Constants
+	//
+
+	/** Number of bytes read at once when warming index files. */
+	private static final int WARM_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Live documents of segments with deletions by the deletions cache key of their
+	 * readers (see {@link IndexReader#getDeletesCacheKey()}). Readers with the
+	 * same deletions share the key, and the entry goes away together with it.
+	 */
+	private static final Map<Object, LiveDocs> LIVE_DOCS_CACHE =
+			Collections.synchronizedMap(new WeakHashMap<Object, LiveDocs>());
+
+	//
+	// Inner Classes
+	//
+
+	/**
+	 * The live documents of a segment together with the number of documents
+	 * they were determined for.
+	 */
+	private static class LiveDocs {
+
+		/** Bit set with all live documents. */
+		private final FixedBitSet m_bits;
+
+		/** Number of live documents of the segment when the bit set was created. */
+		private final int m_iNumDocs;
+
+		/**
+		 * Creates a new live documents entry.
+		 * 
+		 * @param bits Bit set with all live documents. Must not be null.
+		 * @param iNumDocs Number of live documents of the segment.
+		 */
+		private LiveDocs(final FixedBitSet bits, final int iNumDocs) {
+			m_bits = bits;
+			m_iNumDocs = iNumDocs;
+		}
+	}
+
+	//
+	// Constructor
+	//
+
+	private IndexUtils() {
+		// Only here to avoid instantiation of this utility class
+	}
+
+	//
+	// Static Methods
+	//
+
+	/**
+	 * Determines the documents of a segment, which are not deleted. As
+	 * {@link IndexReader#isDeleted(int)} is synchronized for segment readers,
+	 * this should be used when many documents of a segment are checked,
+	 * especially from several threads. The deletions of a segment reader
+	 * do not change, so the bit set is determined only once and shared by
+	 * all searches on readers with the same deletions.
+	 * 
+	 * @param reader Segment reader. Must not be null.
+	 * 
+	 * @return Bit set with all live documents or null, if the segment
+	 * 		does not have deletions. It must not be changed.
+	 * 
+	 * @throws IOException Thrown, if the index could not be read.
+	 */
+	public static FixedBitSet getLiveDocs(final IndexReader reader) throws IOException {
+		FixedBitSet liveDocs = null;
+
+		if (reader.hasDeletions()) {
+			// Writable readers may delete in place, which changes the number of documents
+			final Object key = reader.getDeletesCacheKey();
+			final int iNumDocs = reader.numDocs();
+			final LiveDocs cached = LIVE_DOCS_CACHE.get(key);
+			if (cached != null && cached.m_iNumDocs == iNumDocs) {
+				return cached.m_bits;
+			}
+
+			liveDocs = new FixedBitSet(reader.maxDoc());
+
+			// Iterating all documents skips deleted ones
+			final TermDocs termDocs = reader.termDocs(null);
+			try {
+				while (termDocs.next()) {
+					liveDocs.set(termDocs.doc());
+				}
+			}
+			finally {
+				termDocs.close();
+			}
+
+			// Concurrent first searches may determine the same bits, the last one wins
+			LIVE_DOCS_CACHE.put(key, new LiveDocs(liveDocs, iNumDocs));
+		}
+
+		return liveDocs;
+	}
+
+	/**
+	 * Returns the segment readers of the specified reader in document order.
+	 * 
+	 * @param reader Top level index reader. Must not be null.
+	 * 
+	 * @return Segment readers. Never null.
+	 */
+	public static IndexReader[] getSegmentReaders(final IndexReader reader) {
+		final List<IndexReader> listSegmentReaders = new ArrayList<IndexReader>();
+		ReaderUtil.gatherSubReaders(listSegmentReaders, reader);
+		return listSegmentReaders.toArray(new IndexReader[listSegmentReaders.size()]);
+	}
+
+	/**
+	 * Calculates the document id bases of the specified segment readers.
+	 * 
+	 * @param arrSegmentReaders Segment readers in document order. Must not be null.
+	 * 
+	 * @return Document id base of each segment reader.
+	 */
+	public static int[] getDocBases(final IndexReader[] arrSegmentReaders) {
+		final int[] arrDocBases = new int[arrSegmentReaders.length];
+		int iDocBase = 0;
+		for (int i = 0; i < arrSegmentReaders.length; i++) {
+			arrDocBases[i] = iDocBase;
+			iDocBase += arrSegmentReaders[i].maxDoc();
+		}
+		return arrDocBases;
+	}
+
+	/**
+	 * Reads every file of the specified index directory once, so that the
+	 * operating system keeps them in its page cache (or, for memory mapped
+	 * directories, the mapped pages are resident) before the first search needs them.
+	 * This only pays off, if the index fits into the free physical memory.
+	 * 
+	 * @param directory Index directory. Must not be null.
+	 * 
+	 * @return Number of bytes read.
+	 * 
+	 * @throws IOException Thrown, if a file could not be read.
+	 */
+	public static long warm(final Directory directory) throws IOException {
+		final byte[] arrBuffer = new byte[WARM_BUFFER_SIZE];
+		long lBytes = 0;
+
+		for (final String strFileName : directory.listAll()) {
+			final IndexInput in;
+			try {
+				in = directory.openInput(strFileName);
+			}
+			catch (final FileNotFoundException exc) {
+				// Removed meanwhile, e.g. by a merge
+				continue;
+			}
+
+			try {
+				final long lLength = in.length();
+				long lRemaining = lLength;
+				while (lRemaining > 0) {
+					final int iChunk = (int)Math.min(lRemaining, arrBuffer.length);
+					in.readBytes(arrBuffer, 0, iChunk);
+					lRemaining -= iChunk;
+				}
+				lBytes += lLength;
+			}
+			finally {
+				in.close();
+			}
+		}
+
+		return lBytes;
+	}
+}